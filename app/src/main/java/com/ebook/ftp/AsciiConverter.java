@@ -0,0 +1,329 @@
+package com.ebook.ftp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Line-ending conversion for TYPE A transfers: files are stored with LF line ends and sent
+ * with CRLF (RFC 959's NVT-ASCII).
+ *
+ * <p>Conversion works on whole buffers. Each buffer is scanned for the next line break and
+ * everything up to it is copied in one bulk put, so the cost per byte is a compare rather
+ * than a copy. The converters wrap channels, so the existing read-ahead and upload pipelines
+ * run unchanged on either side of them. A CRLF already in a file is sent as is, so a file
+ * with Windows line ends survives a round trip.
+ */
+final class AsciiConverter {
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    private AsciiConverter() {
+    }
+
+    /**
+     * Converts LF to CRLF on the way to {@code out}. Writes are converted into a buffer that
+     * is passed on whenever it fills and on {@link #flush}; closing flushes without closing
+     * {@code out}.
+     */
+    static final class Encoder implements WritableByteChannel {
+        private final WritableByteChannel out;
+        private final ByteBuffer buf;
+        // The last byte taken in was a CR, so an LF right after it is already a line end
+        private boolean afterCr;
+        private boolean open = true;
+
+        /**
+         * @param buffer  where converted bytes collect; at least two bytes, owned by the caller.
+         * @param afterCr true to start as if a CR had just been sent, when resuming (REST)
+         *                after a CR; see {@link Position#afterCr}.
+         */
+        Encoder(WritableByteChannel out, ByteBuffer buffer, boolean afterCr) {
+            this.out = out;
+            this.buf = buffer;
+            this.afterCr = afterCr;
+            buffer.clear();
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (!open) throw new ClosedChannelException();
+            int consumed = src.remaining();
+            int limit = src.limit();
+            while (src.hasRemaining()) {
+                if (buf.remaining() < 2) drain();
+                int start = src.position();
+                int end = Math.min(limit, start + buf.remaining() - 1);
+                int i = start;
+                boolean cr = afterCr;
+                while (i < end) {
+                    byte b = src.get(i);
+                    if (b == LF && !cr) break;
+                    cr = b == CR;
+                    i++;
+                }
+                if (i > start) {
+                    src.limit(i);
+                    buf.put(src);
+                    src.limit(limit);
+                    afterCr = cr;
+                }
+                if (i < end) {
+                    buf.put(CR).put(LF);
+                    src.position(i + 1);
+                    afterCr = false;
+                }
+            }
+            return consumed;
+        }
+
+        /** Passes on everything converted so far. */
+        void flush() throws IOException {
+            drain();
+        }
+
+        private void drain() throws IOException {
+            buf.flip();
+            while (buf.hasRemaining()) {
+                out.write(buf);
+            }
+            buf.clear();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!open) return;
+            flush();
+            open = false;
+        }
+    }
+
+    /**
+     * Converts CRLF to LF on the way in from {@code in}; a CR not followed by LF is kept.
+     * Closing does not close {@code in}.
+     */
+    static final class Decoder implements ReadableByteChannel {
+        private final ReadableByteChannel in;
+        private final ByteBuffer buf;
+        // A CR ended the previous input; whether it is dropped depends on the next byte
+        private boolean pendingCr;
+        private boolean eof = false;
+        private boolean open = true;
+
+        /**
+         * @param buffer    raw input collects here; owned by the caller.
+         * @param pendingCr true to start as if a CR had just been received, when resuming
+         *                  (REST) between the CR and LF of a line end; see
+         *                  {@link Position#splitLineEnd}. A CR already stored must not be
+         *                  passed on again.
+         */
+        Decoder(ReadableByteChannel in, ByteBuffer buffer, boolean pendingCr) {
+            this.in = in;
+            this.buf = buffer;
+            this.pendingCr = pendingCr;
+            buffer.clear().flip(); // empty
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!open) throw new ClosedChannelException();
+            int start = dst.position();
+            while (dst.hasRemaining() && dst.position() == start) {
+                if (!buf.hasRemaining()) {
+                    if (eof || !fill()) {
+                        if (pendingCr) {
+                            dst.put(CR);
+                            pendingCr = false;
+                        }
+                        break;
+                    }
+                }
+                decode(dst);
+            }
+            int n = dst.position() - start;
+            return n == 0 && eof && !buf.hasRemaining() ? -1 : n;
+        }
+
+        private boolean fill() throws IOException {
+            buf.clear();
+            int n;
+            do {
+                n = in.read(buf);
+            } while (n == 0);
+            buf.flip();
+            if (n < 0) eof = true;
+            return n > 0;
+        }
+
+        private void decode(ByteBuffer dst) {
+            if (pendingCr) {
+                pendingCr = false;
+                if (buf.get(buf.position()) == LF) {
+                    dst.put(LF);
+                    buf.position(buf.position() + 1);
+                    return;
+                }
+                dst.put(CR);
+                if (!dst.hasRemaining()) return;
+            }
+            int limit = buf.limit();
+            while (buf.hasRemaining() && dst.hasRemaining()) {
+                int start = buf.position();
+                int end = Math.min(limit, start + dst.remaining());
+                int i = start;
+                while (i < end && buf.get(i) != CR) {
+                    i++;
+                }
+                if (i > start) {
+                    buf.limit(i);
+                    dst.put(buf);
+                    buf.limit(limit);
+                }
+                if (i < end) {
+                    // A CR: drop it if an LF follows, decide later if the input ends here
+                    buf.position(i + 1);
+                    if (i + 1 == limit) {
+                        pendingCr = true;
+                    } else if (buf.get(i + 1) != LF) {
+                        dst.put(CR);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+
+    /** Where a transfer resumed at an offset of the converted stream starts in the file. */
+    static final class Position {
+        final long offset;
+        // The converted stream up to the offset ends with a CR: one from the file, or the one
+        // sent for the LF at offset
+        final boolean afterCr;
+        // The offset splits the CRLF sent for the LF at offset: only its CR was sent. Unlike a
+        // CR from the file, that CR is not in the file before offset.
+        final boolean splitLineEnd;
+
+        Position(long offset, boolean afterCr) {
+            this(offset, afterCr, false);
+        }
+
+        Position(long offset, boolean afterCr, boolean splitLineEnd) {
+            this.offset = offset;
+            this.afterCr = afterCr;
+            this.splitLineEnd = splitLineEnd;
+        }
+    }
+
+    /**
+     * Maps an offset in the converted (CRLF) stream of a file to an offset in the file.
+     *
+     * @return null if the converted file is shorter than {@code convertedOffset}.
+     */
+    static Position seek(SeekableByteChannel file, long convertedOffset, ByteBuffer scratch) throws IOException {
+        long converted = 0;
+        long offset = 0;
+        boolean afterCr = false;
+        file.position(0);
+        while (converted < convertedOffset) {
+            scratch.clear();
+            if (file.read(scratch) < 0) break;
+            scratch.flip();
+            int limit = scratch.limit();
+            for (int i = 0; i < limit; i++) {
+                byte b = scratch.get(i);
+                boolean lineEnd = b == LF && !afterCr;
+                long next = converted + (lineEnd ? 2 : 1);
+                if (next > convertedOffset) return new Position(offset, true, true);
+                afterCr = b == CR;
+                converted = next;
+                offset++;
+                if (converted == convertedOffset) return new Position(offset, afterCr);
+            }
+        }
+        return converted == convertedOffset ? new Position(offset, afterCr) : null;
+    }
+
+    /** The size of a file once converted: one more byte for every LF not preceded by CR. */
+    static long convertedSize(SeekableByteChannel file, ByteBuffer scratch) throws IOException {
+        long size = 0;
+        long bareLf = 0;
+        boolean afterCr = false;
+        file.position(0);
+        while (true) {
+            scratch.clear();
+            int n = file.read(scratch);
+            if (n < 0) break;
+            size += n;
+            for (int i = 0; i < n; i++) {
+                byte b = scratch.get(i);
+                if (b == LF && !afterCr) bareLf++;
+                afterCr = b == CR;
+            }
+        }
+        return size + bareLf;
+    }
+
+    /**
+     * Converted sizes of large files, so an ASCII-mode client asking for SIZE before every
+     * transfer does not make the server read the whole file each time. An entry is only used
+     * while the file's size and modification time are unchanged.
+     */
+    static final class SizeCache {
+        // Smaller files are scanned faster than the cache would save
+        static final long MIN_CACHED_SIZE = 64 * 1024;
+        private static final int MAX_ENTRIES = 256;
+
+        private static final class CachedSize {
+            final long size;
+            final long modified;
+            final long convertedSize;
+
+            CachedSize(long size, long modified, long convertedSize) {
+                this.size = size;
+                this.modified = modified;
+                this.convertedSize = convertedSize;
+            }
+        }
+
+        private final Map<String, CachedSize> entries = new LinkedHashMap<String, CachedSize>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedSize> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+
+        /** The cached converted size of {@code path} at this size and time, or -1. */
+        synchronized long get(String path, long size, long modified) {
+            CachedSize e = entries.get(path);
+            return e != null && e.size == size && e.modified == modified ? e.convertedSize : -1;
+        }
+
+        synchronized void put(String path, long size, long modified, long convertedSize) {
+            if (size >= MIN_CACHED_SIZE) entries.put(path, new CachedSize(size, modified, convertedSize));
+        }
+
+        synchronized void clear() {
+            entries.clear();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.ebook.ftp;
+
+import android.util.Log;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared pool of reusable direct buffers for data transfers, bounded by a global memory budget.
+ *
+ * <p>Buffers come in a few size classes (4, 16 and 64 KB). A released buffer goes back to the
+ * free list of its class and is handed out again, so steady-state transfers allocate nothing.
+ * Every byte the arena ever allocated, leased or pooled, counts against the budget; when a lease
+ * would exceed it the arena first drops pooled buffers of other classes, then falls back to a
+ * smaller class, and only then makes the caller wait for a release. Memory use therefore stays
+ * flat however many clients are connected.
+ *
+ * <p>Buffers are direct so socket and file channel I/O does not copy through a temporary
+ * native buffer.
+ */
+public class BufferArena {
+
+    private static final String TAG = "FTP_BufferArena";
+
+    public static final int SMALL = 4 * 1024;
+    public static final int MEDIUM = 16 * 1024;
+    public static final int LARGE = 64 * 1024;
+
+    private static final int[] CLASSES = {SMALL, MEDIUM, LARGE};
+
+    public static final long DEFAULT_BUDGET = 8L * 1024 * 1024;
+
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<ByteBuffer>[] pools = new ArrayDeque[CLASSES.length];
+    private final ServerMetrics metrics;
+
+    // All guarded by this.
+    private long budget;
+    private long allocated = 0;
+    private long leased = 0;
+
+    public BufferArena(long budget, ServerMetrics metrics) {
+        this.budget = Math.max(budget, LARGE);
+        this.metrics = metrics;
+        for (int i = 0; i < CLASSES.length; i++) {
+            pools[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Leases a buffer of {@code preferred} bytes (rounded up to a size class), or of a smaller
+     * class down to {@code minimum} when the budget is exhausted. Waits for other transfers to
+     * release memory if not even {@code minimum} is available.
+     */
+    public ByteBuffer lease(int preferred, int minimum) throws InterruptedIOException {
+        return lease(preferred, minimum, true);
+    }
+
+    /**
+     * Like {@link #lease(int, int)} but never waits.
+     *
+     * @return the buffer, or null if nothing of at least {@code minimum} bytes fits the budget now.
+     */
+    public ByteBuffer tryLease(int preferred, int minimum) {
+        try {
+            return lease(preferred, minimum, false);
+        } catch (InterruptedIOException e) {
+            throw new AssertionError(e); // cannot happen without waiting
+        }
+    }
+
+    /** Returns a leased buffer to its pool. The caller must not touch it afterwards. */
+    public synchronized void release(ByteBuffer buffer) {
+        if (buffer == null) return;
+        int cls = classOf(buffer.capacity());
+        leased -= buffer.capacity();
+        buffer.clear();
+        if (allocated > budget) {
+            // Budget was lowered while this was out: drop it instead of pooling
+            allocated -= buffer.capacity();
+        } else {
+            pools[cls].push(buffer);
+        }
+        publish();
+        notifyAll();
+    }
+
+    /** Changes the budget; buffers over a lowered budget are dropped as they come back. */
+    public synchronized void setBudget(long budget) {
+        this.budget = Math.max(budget, LARGE);
+        trimTo(this.budget);
+        publish();
+        notifyAll();
+    }
+
+    public synchronized long getBudget() {
+        return budget;
+    }
+
+    /** Drops every pooled (not leased) buffer so the memory can be reclaimed. */
+    public synchronized void trim() {
+        trimTo(leased);
+        publish();
+    }
+
+    private synchronized ByteBuffer lease(int preferred, int minimum, boolean wait) throws InterruptedIOException {
+        int top = classOf(preferred);
+        int bottom = classOf(Math.min(minimum, preferred));
+        boolean waited = false;
+        while (true) {
+            for (int cls = top; cls >= bottom; cls--) {
+                ByteBuffer buf = take(cls);
+                if (buf != null) {
+                    if (cls != top) metrics.increment("arena.fallbacks");
+                    if (waited) metrics.increment("arena.waits");
+                    return buf;
+                }
+            }
+            if (!wait) return null;
+            waited = true;
+            try {
+                wait(TimeUnit.SECONDS.toMillis(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a transfer buffer");
+            }
+        }
+    }
+
+    // Pooled buffer of the class, else a new one if the budget allows (after evicting other pools).
+    private ByteBuffer take(int cls) {
+        int size = CLASSES[cls];
+        ByteBuffer buf = pools[cls].poll();
+        if (buf == null) {
+            if (allocated + size > budget) trimTo(budget - size);
+            if (allocated + size > budget) return null;
+            buf = ByteBuffer.allocateDirect(size);
+            allocated += size;
+        }
+        leased += size;
+        publish();
+        return buf;
+    }
+
+    // Drops pooled buffers, smallest classes first, until at most target bytes are allocated.
+    private void trimTo(long target) {
+        for (int cls = 0; cls < CLASSES.length && allocated > target; cls++) {
+            while (allocated > target && pools[cls].poll() != null) {
+                allocated -= CLASSES[cls];
+            }
+        }
+        if (allocated > target && target >= leased) {
+            Log.w(TAG, "Arena accounting off: allocated " + allocated + ", leased " + leased);
+        }
+    }
+
+    private static int classOf(int size) {
+        for (int i = 0; i < CLASSES.length; i++) {
+            if (size <= CLASSES[i]) return i;
+        }
+        return CLASSES.length - 1;
+    }
+
+    private void publish() {
+        metrics.set("arena.allocated_bytes", allocated);
+        metrics.set("arena.leased_bytes", leased);
+    }
+}
@@ -0,0 +1,165 @@
+package com.ebook.ftp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers stat and list results of another file system for a short time, so clients that
+ * stat every file before fetching it, or list the same directory over and over, cost one
+ * lookup in the underlying storage instead of one per command.
+ *
+ * <p>Entries expire after a fixed time and the least recently used are dropped beyond a
+ * maximum count. Writes through {@link #openWrite} and changes reported to
+ * {@link #invalidate} drop the affected entries at once; the expiry only bounds how long
+ * changes made outside the server (by other apps) can go unnoticed.
+ */
+public class CachingFileSystem implements VirtualFileSystem {
+
+    public static final long DEFAULT_TTL_MS = 2000;
+    public static final int DEFAULT_MAX_ENTRIES = 4096;
+
+    // A cached stat() result (attributes, or null for nothing there) or list() result.
+    private static final class Cached {
+        final Object value;
+        final long expiresAt;
+
+        Cached(Object value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final String STAT = "s:";
+    private static final String LIST = "l:";
+
+    private final VirtualFileSystem delegate;
+    private final long ttlNanos;
+    private final int maxEntries;
+
+    // Keyed by STAT or LIST plus path, in access order; guarded by itself.
+    private final LinkedHashMap<String, Cached> cache;
+
+    public CachingFileSystem(VirtualFileSystem delegate) {
+        this(delegate, DEFAULT_TTL_MS, DEFAULT_MAX_ENTRIES);
+    }
+
+    public CachingFileSystem(VirtualFileSystem delegate, long ttlMs, int maxEntries) {
+        this.delegate = delegate;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+        this.maxEntries = maxEntries;
+        this.cache = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+                return size() > CachingFileSystem.this.maxEntries;
+            }
+        };
+    }
+
+    @Override
+    public String resolve(String currentDir, String path) throws IOException {
+        return delegate.resolve(currentDir, path);
+    }
+
+    @Override
+    public Attributes stat(String path) throws IOException {
+        Cached cached = get(STAT + path);
+        if (cached != null) return (Attributes) cached.value;
+        Attributes attributes = delegate.stat(path);
+        put(STAT + path, attributes);
+        return attributes;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<Attributes> list(String path) throws IOException {
+        Cached cached = get(LIST + path);
+        if (cached != null) return (List<Attributes>) cached.value;
+        List<Attributes> entries = delegate.list(path);
+        if (entries != null) entries = Collections.unmodifiableList(entries);
+        put(LIST + path, entries);
+        return entries;
+    }
+
+    @Override
+    public SeekableByteChannel openRead(String path) throws IOException {
+        return delegate.openRead(path);
+    }
+
+    @Override
+    public WriteChannel openWrite(String path) throws IOException {
+        WriteChannel out = delegate.openWrite(path);
+        return new WriteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                return out.write(src);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return out.isOpen();
+            }
+
+            @Override
+            public void commit() throws IOException {
+                try {
+                    out.commit();
+                } finally {
+                    invalidate(path);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                out.close();
+            }
+        };
+    }
+
+    @Override
+    public File toLocalFile(String path) throws IOException {
+        return delegate.toLocalFile(path);
+    }
+
+    @Override
+    public void invalidate(String path) {
+        String parent = VirtualFileSystem.parentOf(path);
+        String below = path.equals("/") ? "/" : path + "/";
+        synchronized (cache) {
+            cache.remove(STAT + path);
+            cache.remove(LIST + path);
+            if (parent != null) cache.remove(LIST + parent);
+            Iterator<String> it = cache.keySet().iterator();
+            while (it.hasNext()) {
+                String key = it.next();
+                if (key.startsWith(below, 2)) it.remove();
+            }
+        }
+        delegate.invalidate(path);
+    }
+
+    private Cached get(String key) {
+        synchronized (cache) {
+            Cached cached = cache.get(key);
+            if (cached == null) return null;
+            if (System.nanoTime() - cached.expiresAt >= 0) {
+                cache.remove(key);
+                return null;
+            }
+            return cached;
+        }
+    }
+
+    private void put(String key, Object value) {
+        synchronized (cache) {
+            cache.put(key, new Cached(value, System.nanoTime() + ttlNanos));
+        }
+    }
+}
@@ -1,25 +1,48 @@
 package com.ebook.ftp;
 
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.util.Log;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.net.ssl.SSLSocket;
 
 
 public class ClientHandler implements Runnable {
@@ -27,38 +50,128 @@ public class ClientHandler implements Runnable {
 
     private static final String TAG = "FTP_ClientHandler";
 
-    private Socket controlSocket;
+    private volatile Socket controlSocket;
     private BufferedReader reader;
     private BufferedWriter writer;
 
+    private final FTPServer server;
     private final String username;
     private final String password;
+    private final MetadataIndex metadataIndex;
 
     private boolean isLoggedIn = false;
+
+    // Explicit FTPS state: control channel upgraded by AUTH TLS, data channels by PROT P
+    private final TlsContext tlsContext;
+    private boolean tlsActive = false;
+    private boolean dataProtected = false;
+
+    // True between accepting a data connection and closing it; reported to the server's activity listener.
+    private boolean transferActive = false;
+
+    // True while this session holds one of the server's concurrent transfer slots.
+    private boolean transferSlot = false;
+    private static final long TRANSFER_SLOT_TIMEOUT_MS = 30_000;
+    private static final long PATH_LOCK_TIMEOUT_MS = 30_000;
+    private final VirtualFileSystem fileSystem;
+    // Directory behind the file system, for commands that need local files; null if there is none
     private String rootDir;
+    // A path of the file system, "/" being the root
     private String currentDir;
 
-    private ServerSocket dataServerSocket;
-    private Socket dataSocket;
-
-    public ClientHandler(Socket clientSocket, String username, String password, String rootDir) throws IOException {
+    // Source of a rename, set by RNFR and consumed by the RNTO that must follow it
+    private File renameFrom;
+
+    // TYPE A: line ends are converted to CRLF on the wire
+    private boolean asciiMode = false;
+    // Offset set by REST for the next RETR or STOR, in bytes of the transferred stream
+    private long restartOffset = 0;
+    // Size announced by ALLO for the next STOR, or -1
+    private long allocateBytes = -1;
+
+    // Volatile so an operator's kill from another thread sees the current sockets
+    private volatile ServerSocket dataServerSocket;
+    private volatile Socket dataSocket;
+
+    // This connection's entry in the server's session registry
+    private final ClientSession session;
+
+    // Recording of this session when the server traces sessions, else null
+    private SessionTrace trace;
+    // Where the open data connection's transfer started, for its trace record
+    private long transferStartNanos;
+    private long transferStartBytesIn;
+    private long transferStartBytesOut;
+
+    // The RETR, STOR or LIST running on one of the server's transfer threads while this thread
+    // goes on reading commands; null when none was started since the last one finished
+    private volatile DataTransfer transfer;
+    // How long ABOR waits for a transfer to notice its data connection was closed
+    private static final long ABORT_WAIT_MS = 2_000;
+    // A command waiting for a transfer that has moved nothing for this long aborts it
+    private static final long TRANSFER_STALL_MS = 60_000;
+    // SITE BENCH sizes in MB, and how long a session waits for its result
+    private static final int DEFAULT_BENCH_MB = 16;
+    private static final int MAX_BENCH_MB = 64;
+    private static final long BENCH_TIMEOUT_MS = 60_000;
+    // Replies from the session and transfer threads are written one at a time
+    private final Object replyLock = new Object();
+
+
+    public ClientHandler(Socket clientSocket, FTPServer server) throws IOException {
         this.controlSocket = clientSocket;
-        this.username = username;
-        this.password = password;
-        this.rootDir = new File(rootDir).getCanonicalPath();
-        this.currentDir = this.rootDir;
+        this.server = server;
+        this.username = server.getUsername();
+        this.password = server.getPassword();
+        this.metadataIndex = server.getMetadataIndex();
+        this.tlsContext = server.getTlsContext();
+        this.fileSystem = server.getFileSystem();
+        this.rootDir = server.getRootDir() != null ? new File(server.getRootDir()).getCanonicalPath() : null;
+        this.currentDir = "/";
 
         reader = new BufferedReader(new InputStreamReader(controlSocket.getInputStream()));
         writer = new BufferedWriter(new OutputStreamWriter(controlSocket.getOutputStream()));
 
+        this.session = server.getSessions().register(String.valueOf(clientSocket.getRemoteSocketAddress()), this::forceClose);
+        try {
+            this.trace = server.openTrace(session);
+        } catch (IOException e) {
+            Log.w(TAG, "Session trace not recorded: " + e.getMessage());
+        }
+
         Log.d(TAG, "ClientHandler created for " + clientSocket.getRemoteSocketAddress() + " with root: " + this.rootDir);
     }
 
+    /**
+     * Drops the connection from another thread (operator kill): closing the sockets makes the
+     * session's blocked reads and writes fail, and its command loop then cleans up as usual.
+     */
+    private void forceClose() {
+        Log.i(TAG, "Session " + session.getId() + " killed by operator.");
+        closeQuietly(dataSocket);
+        closeQuietly(dataServerSocket);
+        closeQuietly(controlSocket);
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c == null) return;
+        try {
+            c.close();
+        } catch (IOException ignored) {
+            // already closed
+        }
+    }
+
     /**
      * The main execution loop for handling client commands.
      * This method reads commands from the client, processes them, and sends appropriate responses.
      * It handles various FTP commands such as USER, PASS, PWD, CWD, PASV, LIST, NLST, RETR,
-     * STOR, QUIT, FEAT, TYPE, SYST, OPTS, SIZE, and NOOP.
+     * STOR, ALLO, ABOR, STAT, RNFR, RNTO, DELE, MKD, RMD, QUIT, FEAT, TYPE, SYST, OPTS, SIZE,
+     * MDTM, MLST, SITE, and NOOP.
+     *
+     * RETR, STOR and LIST run on a transfer thread (see {@link #startTransfer}) so that ABOR,
+     * STAT and NOOP are answered while they are in progress; other commands wait for the
+     * transfer to end.
      *
      * The loop continues until the client disconnects or sends a QUIT command.
      * It also manages user authentication state and ensures that data connections are
@@ -79,7 +192,10 @@ public class ClientHandler implements Runnable {
 
             try {
                 while ((line = reader.readLine()) != null) {
+                    line = stripTelnetCommands(line);
                     Log.i(TAG, "CMD: " + line);
+                    server.commandReceived();
+                    if (trace != null) trace.command(line);
                     String command = "";
                     String argument = "";
 
@@ -93,15 +209,50 @@ public class ClientHandler implements Runnable {
                     } else {
                         continue;
                     }
+                    if (command.equals("ABOR") || command.equals("STAT") || command.equals("NOOP")) {
+                        // Answered at once, also in the middle of a transfer
+                        if (!isTransferRunning()) session.setCommand(line);
+                    } else {
+                        // Anything else waits its turn, as if the transfer had run on this thread
+                        awaitTransfer();
+                        session.setCommand(command.equals("PASS") ? "PASS ****" : line);
+                        if (isTransferRunning() && usesDataConnection(command)) {
+                            // An abandoned transfer still owns the data connection state
+                            sendResponse("425 Previous transfer is still stopping, try again later.");
+                            continue;
+                        }
+                    }
 
                     switch (command) {
+                        case "AUTH":
+                            handleAuth(argument);
+                            break;
+
+                        case "PBSZ":
+                            if (!tlsActive) {
+                                sendResponse("503 AUTH TLS first.");
+                            } else {
+                                // TLS is a stream protocol, there is no buffer to size
+                                sendResponse("200 PBSZ=0");
+                            }
+                            break;
+
+                        case "PROT":
+                            handleProt(argument);
+                            break;
+
                         case "USER":
+                            if (server.isTlsRequired() && !tlsActive) {
+                                sendResponse("530 TLS required, use AUTH TLS first.");
+                                break;
+                            }
                             user = argument;
                             sendResponse("331 User name ok, need password");
                             break;
                         case "PASS":
                             if (user != null && user.equals(username) && argument.equals(password)) {
                                 isLoggedIn = true;
+                                session.setUser(user);
                                 Log.i(TAG, "User " + user + " logged in.");
                                 sendResponse("230 User logged in, proceed");
                             } else {
@@ -115,10 +266,7 @@ public class ClientHandler implements Runnable {
                         case "PWD":
                         case "XPWD":
                             if (!checkLoggedIn()) break;
-                            // This is done to show the user's path *relative to the root*, not the full system path
-                            String displayPath = currentDir.replace(rootDir, "");
-                            if (displayPath.isEmpty()) displayPath = "/";
-                            sendResponse("257 \"" + displayPath + "\" is the current directory.");
+                            sendResponse("257 \"" + currentDir + "\" is the current directory.");
                             break;
 
                             //change working directory
@@ -137,19 +285,73 @@ public class ClientHandler implements Runnable {
                         case "LIST":
                         case "NLST": // Handle NLST too
                             if (!checkLoggedIn()) break;
-                            sendDirectoryListing(argument);
+                            startTransfer(command, argument);
                             break;
 
                             //retrieve
                         case "RETR":
                             if (!checkLoggedIn()) break;
-                            sendFile(argument);
+                            startTransfer(command, argument);
                             break;
 
                             //STORe //uplod file to ftp server
                         case "STOR":
                             if (!checkLoggedIn()) break;
-                            receiveFile(argument);
+                            startTransfer(command, argument);
+                            break;
+
+                            //stop the running transfer
+                        case "ABOR":
+                            if (!checkLoggedIn()) break;
+                            handleAbor();
+                            break;
+
+                            //transfer progress or session status
+                        case "STAT":
+                            if (!checkLoggedIn()) break;
+                            handleStat(argument);
+                            break;
+
+                            //announce the size of the next upload
+                        case "ALLO":
+                            if (!checkLoggedIn()) break;
+                            handleAllo(argument);
+                            break;
+
+                            //restart the next transfer at an offset
+                        case "REST":
+                            if (!checkLoggedIn()) break;
+                            handleRest(argument);
+                            break;
+
+                            //rename or move, in two steps
+                        case "RNFR":
+                            if (!checkLoggedIn()) break;
+                            handleRnfr(argument);
+                            break;
+
+                        case "RNTO":
+                            if (!checkLoggedIn()) break;
+                            handleRnto(argument);
+                            break;
+
+                            //delete a file
+                        case "DELE":
+                            if (!checkLoggedIn()) break;
+                            handleDele(argument);
+                            break;
+
+                            //make / remove directory
+                        case "MKD":
+                        case "XMKD":
+                            if (!checkLoggedIn()) break;
+                            handleMkd(argument);
+                            break;
+
+                        case "RMD":
+                        case "XRMD":
+                            if (!checkLoggedIn()) break;
+                            handleRmd(argument);
                             break;
 
                             //Quit
@@ -165,14 +367,24 @@ public class ClientHandler implements Runnable {
                             sendResponse(" PASV");
                             sendResponse(" MLSD"); // Modern clients often prefer MLSD
                             sendResponse(" SIZE");
+                            sendResponse(" REST STREAM");
+                            sendResponse(" MDTM");
+                            sendResponse(" MLST type*;size*;modify*;");
+                            if (tlsContext != null) {
+                                sendResponse(" AUTH TLS");
+                                sendResponse(" PBSZ");
+                                sendResponse(" PROT");
+                            }
                             sendResponse("211 End");
                             break;
 
                         case "TYPE":
-                            // I is image/binary
-                            if (argument.equalsIgnoreCase("I")) {
+                            // I is image/binary, L 8 the same thing; A N is ASCII with non-print format
+                            if (argument.equalsIgnoreCase("I") || argument.equalsIgnoreCase("L 8")) {
+                                asciiMode = false;
                                 sendResponse("200 Type set to I (Binary)");
-                            } else if (argument.equalsIgnoreCase("A")) {//ASCII
+                            } else if (argument.equalsIgnoreCase("A") || argument.equalsIgnoreCase("A N")) {//ASCII
+                                asciiMode = true;
                                 sendResponse("200 Type set to A (ASCII)");
                             } else {
                                 sendResponse("504 Type not supported.");
@@ -199,6 +411,24 @@ public class ClientHandler implements Runnable {
                             handleSize(argument);
                             break;
 
+                            //last modification time
+                        case "MDTM":
+                            if (!checkLoggedIn()) break;
+                            handleMdtm(argument);
+                            break;
+
+                            //machine readable facts for a single path
+                        case "MLST":
+                            if (!checkLoggedIn()) break;
+                            handleMlst(argument);
+                            break;
+
+                            //server specific extensions
+                        case "SITE":
+                            if (!checkLoggedIn()) break;
+                            handleSite(argument);
+                            break;
+
                             //No operations
                         case "NOOP":
                             sendResponse("200 NOOP command successful");
@@ -222,11 +452,19 @@ public class ClientHandler implements Runnable {
             Log.e(TAG, "IOException in ClientHandler setup: " + e.getMessage(), e);
         } finally {
             Log.d(TAG, "Cleaning up resources for client.");
+            // A transfer cannot outlive its control connection
+            DataTransfer running = transfer;
+            if (running != null && !running.isDone()) {
+                running.abort();
+                running.awaitQuietly(ABORT_WAIT_MS);
+            }
+            server.getSessions().unregister(session);
             try {
                 if (reader != null) reader.close();
                 if (writer != null) writer.close();
                 if (controlSocket != null && !controlSocket.isClosed()) controlSocket.close();
                 closeDataConnection(); // Ensure data connections are closed
+                if (trace != null) trace.close();
             } catch (IOException e) {
                 Log.e(TAG, "Error during final cleanup: " + e.getMessage(), e);
             }
@@ -234,67 +472,57 @@ public class ClientHandler implements Runnable {
     }
 
     /**
-     * Builds a File object from a given path, ensuring it stays within the defined root directory.
-     *
-     * <p>This method handles both absolute and relative paths:
-     * <ul>
-     *   <li>Absolute paths (starting with "/") are resolved relative to the {@code rootDir}.
-     *   <li>Relative paths are resolved relative to the {@code currentDir}.
-     * </ul>
-     *
-     * <p>Crucially, it performs a security check to prevent path traversal attacks.
-     * If the resolved canonical path of the target file falls outside the {@code rootDir},
-     * an {@link IOException} is thrown.
+     * Resolves a client-supplied path, absolute (from the root) or relative to the current
+     * directory, to a path of the served file system. "." and ".." never lead above the root.
+     */
+    private String resolvePath(String path) throws IOException {
+        return fileSystem.resolve(currentDir, path);
+    }
+
+    /**
+     * The local file behind a client-supplied path, for commands that work on files directly.
+     * The file system refuses paths that resolve, through links, to a place outside the root.
      *
-     * @param path The path string to build the File from. Can be absolute or relative.
-     * @return A {@link File} object representing the resolved path.
-     * @throws IOException If an I/O error occurs during path resolution or if the
-     *                     resolved path is outside the allowed root directory.
-     *                     This includes cases where the path is invalid or attempts
-     *                     to access files outside the intended scope.
+     * @throws IOException if the path is refused or the file system has no local files.
      */
     private File buildFile(String path) throws IOException {
-        String effectivePath;
-        File baseDir;
-
-        if (path.startsWith("/")) {
-            // Absolute path: relative to rootDir
-            effectivePath = path.substring(1);
-            baseDir = new File(rootDir);
-        } else {
-            // Relative path: relative to currentDir
-            effectivePath = path;
-            baseDir = new File(currentDir);
-        }
-
-        File targetFile = new File(baseDir, effectivePath);
-        String canonicalPath = targetFile.getCanonicalPath();
-
-
-        if (!canonicalPath.startsWith(rootDir) && !canonicalPath.equals(rootDir)) {
-            Log.w(TAG, "Security Alert: Attempted access outside root: " + canonicalPath + " (Original: " + path + ")");
-            throw new IOException("Access denied - Path outside root directory.");
-        }
-
-        return targetFile;
+        File file = fileSystem.toLocalFile(resolvePath(path));
+        if (file == null) throw new IOException("Not supported by this file system.");
+        return file;
     }
 
 
     private void receiveFile(String filename) throws IOException {
+        long offset = restartOffset;
+        restartOffset = 0;
+        long allocation = allocateBytes;
+        allocateBytes = -1;
         if (dataServerSocket == null) {
             sendResponse("425 Use PASV first");
             return;
         }
 
+        String path;
         File file;
         try {
-            file = buildFile(filename);
+            path = resolvePath(filename);
+            file = fileSystem.toLocalFile(path);
         } catch (IOException e) {
             sendResponse("550 " + e.getMessage());
             return;
         }
 
-        Log.d(TAG, "Attempting to receive (STOR): " + file.getAbsolutePath());
+        Log.d(TAG, "Attempting to receive (STOR): " + path);
+
+        if (UploadCommitter.isTempName(VirtualFileSystem.nameOf(path))) {
+            sendResponse("553 File name not allowed.");
+            closeDataConnection();
+            return;
+        }
+        if (file == null) {
+            receiveToFileSystem(path, filename, offset);
+            return;
+        }
 
         // Check write permissions
         File parent = file.getParentFile();
@@ -317,35 +545,330 @@ public class ClientHandler implements Runnable {
             return;
         }
 
-        try {
-            dataSocket = dataServerSocket.accept();
-            sendResponse("150 Opening data connection for " + filename);
-
-            Log.d(TAG, "STOR: Opening FileOutputStream for: " + file.getAbsolutePath());
-            try (BufferedInputStream in = new BufferedInputStream(dataSocket.getInputStream());
-                 FileOutputStream fos = new FileOutputStream(file)) {
+        if (allocation > 0 && !checkFreeSpace(parent, allocation)) return;
 
-                byte[] buffer = new byte[8192];
-                int read;
-                while ((read = in.read(buffer)) != -1) {
-                    fos.write(buffer, 0, read);
+        PathLockManager.Lease lock = lockFile(file, true);
+        if (lock == null) {
+            closeDataConnection();
+            return;
+        }
+        AsciiConverter.Position resume = resumePoint(path, offset);
+        if (resume == null) {
+            lock.close();
+            return;
+        }
+        if (!acquireTransferSlot()) {
+            lock.close();
+            return;
+        }
+        DataTransfer running = transfer;
+        if (running != null && !asciiMode && allocation > 0) running.progress.setExpectedBytes(Math.max(0, allocation - offset));
+        ByteBuffer asciiBuffer = null;
+        try {
+            openDataConnection("150 Opening " + (asciiMode ? "ASCII" : "BINARY") + " mode data connection for " + filename);
+
+            // Receive into a hidden sibling and rename it over the target only on success
+            UploadCommitter committer = server.getUploadCommitter();
+            File temp = committer.tempFor(file);
+            boolean committed = false;
+            TransferJournal.Entry journaled = null;
+            Log.d(TAG, "STOR: Opening FileOutputStream for: " + temp.getAbsolutePath());
+            try (ReadableByteChannel raw = MeteredChannels.in(Channels.newChannel(dataSocket.getInputStream()), session);
+                 FileOutputStream fos = new FileOutputStream(temp)) {
+
+                ReadableByteChannel in = raw;
+                if (asciiMode) {
+                    asciiBuffer = server.getBufferArena().lease(BufferArena.LARGE, BufferArena.SMALL);
+                    in = new AsciiConverter.Decoder(raw, asciiBuffer, resume.splitLineEnd);
+                }
+                if (allocation > 0 && !preallocate(fos, Math.max(allocation, resume.offset))) {
+                    sendResponse("552 Insufficient storage space for " + allocation + " bytes.");
+                    return;
+                }
+                if (resume.offset > 0) {
+                    try (SeekableByteChannel old = fileSystem.openRead(path)) {
+                        copyPrefix(old, resume.offset, fos.getChannel());
+                    }
+                }
+                TransferJournal journal = server.getTransferJournal();
+                if (journal != null) journaled = journal.begin(file, temp, fos.getChannel(), resume.offset, allocation);
+
+                // A resumed upload's hash would only cover its second part
+                DedupIndex dedupIndex = resume.offset == 0 ? server.getDedupIndex() : null;
+                MessageDigest digest = dedupIndex != null ? DedupIndex.newDigest() : null;
+
+                // Network receive and disk write run on separate threads so they overlap
+                long received = server.getUploadPipeline().transfer(in, fos.getChannel(), digest,
+                        server.getIoScheduler().request(file, allocation));
+                // A client may close its end before sending ABOR; that is no complete upload
+                checkNotAborted();
+                // Drop what was preallocated beyond the data actually sent
+                if (allocation > 0) fos.getChannel().truncate(fos.getChannel().position());
+
+                String hash = digest != null ? DedupIndex.toHex(digest.digest()) : null;
+                File duplicate = hash != null ? dedupIndex.find(hash) : null;
+                if (duplicate != null && DedupIndex.sameVolume(duplicate, temp)
+                        && committer.commitLink(duplicate, file)) {
+                    // Same content already stored: the new name now shares its blocks
+                    Log.i(TAG, "STOR: " + file.getName() + " deduplicated against " + duplicate.getAbsolutePath());
+                } else {
+                    committer.commit(fos.getChannel(), temp, file);
+                    committed = true;
+                    if (hash != null) dedupIndex.record(hash, file);
                 }
-                fos.flush();
-                Log.i(TAG, "STOR: Received file: " + file.getName());
+                server.notifyChanged(file);
+                Log.i(TAG, "STOR: Received file: " + file.getName() + " (" + received + " bytes)");
                 sendResponse("226 Transfer Completed.");
             } catch (IOException e) {
                 Log.e(TAG, "IOException during STOR transfer: " + file.getAbsolutePath(), e);
-                sendResponse("426 Data connection error or transfer aborted. " + e.getMessage());
+                sendResponse(transferFailedReply(e));
+            } finally {
+                if (!committed && temp.exists() && !temp.delete()) {
+                    Log.w(TAG, "STOR: Could not remove partial upload " + temp.getAbsolutePath());
+                }
+                if (journaled != null) journaled.end();
             }
 
         } catch (IOException e) {
             Log.e(TAG, "IOException accepting STOR data connection: " + e.getMessage(), e);
-            sendResponse("426 Data connection error or transfer aborted. " + e.getMessage());
+            sendResponse(transferFailedReply(e));
+        } finally {
+            closeDataConnection();
+            if (asciiBuffer != null) server.getBufferArena().release(asciiBuffer);
+            lock.close();
+        }
+    }
+
+    /**
+     * Handles ALLO: the size of the next STOR, given up front so the file can be preallocated
+     * and a lack of space reported before any data is sent. A record size ("ALLO n R m") is
+     * accepted and ignored; files have no records here.
+     */
+    private void handleAllo(String argument) throws IOException {
+        long size;
+        try {
+            size = Long.parseLong(new StringTokenizer(argument).nextToken());
+        } catch (RuntimeException e) {
+            size = -1;
+        }
+        if (size < 0) {
+            sendResponse("501 ALLO requires a non-negative size in bytes.");
+            return;
+        }
+        allocateBytes = size;
+        sendResponse("200 ALLO " + size + " bytes for the next upload.");
+    }
+
+    /**
+     * Replies 552 and returns false if the volume holding {@code dir} has less than
+     * {@code bytes} available, so an upload that cannot fit fails before it starts.
+     */
+    private boolean checkFreeSpace(File dir, long bytes) throws IOException {
+        long usable = dir.getUsableSpace(); // 0 if it cannot be determined
+        if (usable == 0 || usable >= bytes) return true;
+        Log.w(TAG, "STOR refused: " + bytes + " bytes announced, " + usable + " available in " + dir);
+        sendResponse("552 Insufficient storage space: " + bytes + " bytes announced, " + usable + " available.");
+        closeDataConnection();
+        return false;
+    }
+
+    /**
+     * Reserves {@code length} bytes for an upload before it is written, so a flash file
+     * system can lay the file out in few extents instead of growing it a chunk at a time.
+     * The file is trimmed to what was received before it is committed. File systems that
+     * cannot preallocate (FUSE) grow the file as it is written instead.
+     *
+     * @return false if there is not enough space.
+     */
+    private static boolean preallocate(FileOutputStream fos, long length) throws IOException {
+        try {
+            Os.posix_fallocate(fos.getFD(), 0, length);
+            return true;
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.ENOSPC) return false;
+            Log.d(TAG, "Preallocation not supported: " + e.getMessage());
+            return true;
+        }
+    }
+
+    /**
+     * Handles REST: the next RETR or STOR starts at this offset of the transferred data
+     * (counting CRLF line ends in ASCII mode) instead of at the beginning.
+     */
+    private void handleRest(String argument) throws IOException {
+        long offset;
+        try {
+            offset = Long.parseLong(argument.trim());
+        } catch (NumberFormatException e) {
+            offset = -1;
+        }
+        if (offset < 0) {
+            sendResponse("501 REST requires a non-negative byte offset.");
+            return;
+        }
+        restartOffset = offset;
+        sendResponse("350 Restarting at " + offset + ". Send STORE or RETRIEVE to initiate transfer.");
+    }
+
+    /**
+     * Where a STOR after REST continues the existing file at {@code path}: how much of it is
+     * kept, and the line-end state there. Replies 554 and returns null
+     * if the file does not reach that far.
+     */
+    private AsciiConverter.Position resumePoint(String path, long offset) throws IOException {
+        if (offset == 0) return new AsciiConverter.Position(0, false);
+        VirtualFileSystem.Attributes existing = fileSystem.stat(path);
+        AsciiConverter.Position position = null;
+        if (existing != null && !existing.directory) {
+            if (!asciiMode) {
+                position = offset <= existing.size ? new AsciiConverter.Position(offset, false) : null;
+            } else {
+                ByteBuffer scratch = server.getBufferArena().lease(BufferArena.LARGE, BufferArena.SMALL);
+                try (SeekableByteChannel source = fileSystem.openRead(path)) {
+                    position = AsciiConverter.seek(source, offset, scratch);
+                } finally {
+                    server.getBufferArena().release(scratch);
+                }
+            }
+        }
+        if (position == null) {
+            sendResponse("554 Invalid REST offset: the file on the server is shorter.");
+            closeDataConnection();
+        }
+        return position;
+    }
+
+    // Copies the first count bytes of source to out, in the kernel where both are files.
+    private void copyPrefix(SeekableByteChannel source, long count, WritableByteChannel out) throws IOException {
+        if (source instanceof FileChannel) {
+            long done = 0;
+            while (done < count) {
+                long n = ((FileChannel) source).transferTo(done, count - done, out);
+                if (n <= 0) throw new IOException("File shrank while resuming.");
+                done += n;
+            }
+            return;
+        }
+        source.position(0);
+        ByteBuffer buf = server.getBufferArena().lease(BufferArena.LARGE, BufferArena.SMALL);
+        try {
+            long remaining = count;
+            while (remaining > 0) {
+                buf.clear();
+                if (remaining < buf.capacity()) buf.limit((int) remaining);
+                int n = source.read(buf);
+                if (n < 0) throw new IOException("File shrank while resuming.");
+                remaining -= n;
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    out.write(buf);
+                }
+            }
+        } finally {
+            server.getBufferArena().release(buf);
+        }
+    }
+
+
+    /**
+     * STOR into a file system without local files: the data is written through its channel,
+     * which makes the new content visible when it is committed. A failed or aborted upload
+     * is never committed, so the file keeps its previous content.
+     */
+    private void receiveToFileSystem(String path, String filename, long offset) throws IOException {
+        VirtualFileSystem.Attributes existing;
+        try {
+            existing = fileSystem.stat(path);
+        } catch (IOException e) {
+            sendResponse("550 " + e.getMessage());
+            closeDataConnection();
+            return;
+        }
+        if (existing != null && (existing.directory || !existing.writable)) {
+            sendResponse("550 Permission denied: Not a writable file.");
+            closeDataConnection();
+            return;
+        }
+        AsciiConverter.Position resume = resumePoint(path, offset);
+        if (resume == null) return;
+        if (!acquireTransferSlot()) return;
+        ByteBuffer asciiBuffer = null;
+        try {
+            openDataConnection("150 Opening " + (asciiMode ? "ASCII" : "BINARY") + " mode data connection for " + filename);
+            // The kept part is read before the writer replaces the file
+            SeekableByteChannel old = resume.offset > 0 ? fileSystem.openRead(path) : null;
+            try (ReadableByteChannel raw = MeteredChannels.in(Channels.newChannel(dataSocket.getInputStream()), session);
+                 VirtualFileSystem.WriteChannel out = fileSystem.openWrite(path)) {
+                if (old != null) copyPrefix(old, resume.offset, out);
+                ReadableByteChannel in = raw;
+                if (asciiMode) {
+                    asciiBuffer = server.getBufferArena().lease(BufferArena.LARGE, BufferArena.SMALL);
+                    in = new AsciiConverter.Decoder(raw, asciiBuffer, resume.splitLineEnd);
+                }
+                long received = copy(in, out);
+                // A client may close its end before sending ABOR; that is no complete upload
+                checkNotAborted();
+                out.commit();
+                Log.i(TAG, "STOR: Received file: " + path + " (" + received + " bytes)");
+            } finally {
+                closeQuietly(old);
+            }
+            sendResponse("226 Transfer Completed.");
+        } catch (IOException e) {
+            Log.e(TAG, "IOException during STOR transfer: " + path, e);
+            sendResponse(transferFailedReply(e));
         } finally {
             closeDataConnection();
+            if (asciiBuffer != null) server.getBufferArena().release(asciiBuffer);
+        }
+    }
+
+    /**
+     * Like {@link #transferToClient} in ASCII mode: the file is read through the same
+     * read-ahead path (sendfile cannot convert) and its line ends converted on the way out.
+     *
+     * @param position where to start in the converted stream (REST).
+     * @return the number of bytes of the file sent.
+     */
+    private long transferAsciiToClient(File file, SeekableByteChannel source, long position) throws IOException {
+        ByteBuffer buf = server.getBufferArena().lease(BufferArena.LARGE, BufferArena.SMALL);
+        try {
+            AsciiConverter.Position start = position > 0
+                    ? AsciiConverter.seek(source, position, buf)
+                    : new AsciiConverter.Position(0, false);
+            if (start == null) return 0; // past the end: nothing left to send
+            AsciiConverter.Encoder encoder = new AsciiConverter.Encoder(dataChannel(), buf, start.afterCr);
+            long sent;
+            if (file != null && source instanceof FileChannel) {
+                sent = server.getReadAheadPipeline().transfer((FileChannel) source, start.offset, Long.MAX_VALUE,
+                        encoder, server.getIoScheduler().request(file, source.size() - start.offset));
+            } else {
+                source.position(start.offset);
+                sent = copy(source, encoder);
+            }
+            encoder.flush();
+            return sent;
+        } finally {
+            server.getBufferArena().release(buf);
         }
     }
 
+    // Copies a channel to its end through a buffer from the arena.
+    private long copy(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        ByteBuffer buf = server.getBufferArena().lease(BufferArena.LARGE, BufferArena.SMALL);
+        try {
+            long total = 0;
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                total += n;
+                if (!buf.hasRemaining()) writeFully(buf, out);
+            }
+            writeFully(buf, out);
+            return total;
+        } finally {
+            server.getBufferArena().release(buf);
+        }
+    }
 
     /**
      * Sends a file to the FTP client in response to the RETR command.
@@ -358,61 +881,105 @@ public class ClientHandler implements Runnable {
      * @throws IOException If any file I/O or socket error occurs during the transfer.
      */
     private void sendFile(String filename) throws IOException {
+        long offset = restartOffset;
+        restartOffset = 0;
         if (dataServerSocket == null) {
             sendResponse("425 Use PASV first");
             return;
         }
 
+        String path;
+        VirtualFileSystem.Attributes attributes;
         File file;
         try {
-            file = buildFile(filename);
+            path = resolvePath(filename);
+            attributes = fileSystem.stat(path);
+            file = fileSystem.toLocalFile(path);
         } catch (IOException e) {
             sendResponse("550 " + e.getMessage());
             return;
         }
 
-        Log.d(TAG, "Attempting to send (RETR): " + file.getAbsolutePath());
+        Log.d(TAG, "Attempting to send (RETR): " + path);
 
-        if (!file.exists() || !file.isFile()) {
-            Log.w(TAG, "RETR failed: File not found or not a file: " + file.getAbsolutePath());
+        if (attributes == null || attributes.directory) {
+            Log.w(TAG, "RETR failed: File not found or not a file: " + path);
             sendResponse("550 File not found or not a regular file.");
             return;
         }
 
-        if (!file.canRead()) {
-            Log.w(TAG, "RETR failed: Permission denied (canRead=false): " + file.getAbsolutePath());
+        if (!attributes.readable) {
+            Log.w(TAG, "RETR failed: Permission denied (canRead=false): " + path);
             sendResponse("550 Permission denied: Cannot read file on server.");
             return;
         }
 
+        // Other file systems publish whole files at once, so readers need no lock there
+        PathLockManager.Lease lock = null;
+        if (file != null) {
+            lock = lockFile(file, false);
+            if (lock == null) return;
+        }
+        if (!acquireTransferSlot()) {
+            if (lock != null) lock.close();
+            return;
+        }
+        DataTransfer running = transfer;
+        if (running != null && !asciiMode) running.progress.setExpectedBytes(Math.max(0, attributes.size - offset));
         try {
-            dataSocket = dataServerSocket.accept();
-            sendResponse("150 Opening BINARY mode data connection for " + file.getName() + " (" + file.length() + " bytes).");
+            openDataConnection("150 Opening " + (asciiMode ? "ASCII" : "BINARY") + " mode data connection for " + attributes.name + " (" + attributes.size + " bytes).");
 
-            Log.d(TAG, "RETR: Opening FileInputStream for: " + file.getAbsolutePath());
-            try (BufferedOutputStream out = new BufferedOutputStream(dataSocket.getOutputStream());
-                 FileInputStream fis = new FileInputStream(file)) {
+            Log.d(TAG, "RETR: Opening channel for: " + path);
+            try (SeekableByteChannel source = fileSystem.openRead(path)) {
 
-                byte[] buffer = new byte[8192];  // Use 8KB buffer to optimize read/write performance
-                int read;
-                while ((read = fis.read(buffer)) != -1) {
-                    out.write(buffer, 0, read);
-                }
-                out.flush();
-                Log.i(TAG, "RETR: Sent file: " + file.getName());
+                long sent = asciiMode ? transferAsciiToClient(file, source, offset) : transferToClient(file, source, offset);
+                Log.i(TAG, "RETR: Sent file: " + attributes.name + " (" + sent + " bytes)");
                 sendResponse("226 Transfer complete.");
 
             } catch (IOException e) {
-                Log.e(TAG, "IOException during RETR transfer: " + file.getAbsolutePath(), e);
-                sendResponse("426 Data connection error or transfer aborted. " + e.getMessage());
+                Log.e(TAG, "IOException during RETR transfer: " + path, e);
+                sendResponse(transferFailedReply(e));
             }
 
         } catch (IOException e) {
             Log.e(TAG, "IOException accepting RETR data connection: " + e.getMessage(), e);
-            sendResponse("426 Data connection error or transfer aborted. " + e.getMessage());
+            sendResponse(transferFailedReply(e));
         } finally {
             closeDataConnection();
+            if (lock != null) lock.close();
+        }
+    }
+
+    /**
+     * Streams a file to the open data connection, starting at {@code position}: local files
+     * through the shared zero-copy / read-ahead path of {@link FileSender}, others through a
+     * plain buffered copy.
+     *
+     * @param file the local file behind {@code source}, or null if there is none.
+     * @return the number of bytes sent.
+     */
+    private long transferToClient(File file, SeekableByteChannel source, long position) throws IOException {
+        if (file != null && source instanceof FileChannel) {
+            return FileSender.send(file, (FileChannel) source, position, Long.MAX_VALUE, dataSocket, session,
+                    server.getReadAheadPipeline(), server.getIoScheduler().request(file, source.size() - position),
+                    server.getHotFileCache());
         }
+        source.position(position);
+        return copy(source, dataChannel());
+    }
+
+    // Metered channel view of the data connection; the socket's own channel unless TLS is layered on it.
+    private WritableByteChannel dataChannel() throws IOException {
+        return FileSender.channelOf(dataSocket, session);
+    }
+
+    // Sends what was put into buf and clears it for reuse.
+    private static void writeFully(ByteBuffer buf, WritableByteChannel out) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+        buf.clear();
     }
 
     /**
@@ -433,104 +1000,831 @@ public class ClientHandler implements Runnable {
         }
 
         try {
-            dataSocket = dataServerSocket.accept();
-            sendResponse("150 Opening ASCII mode data connection for file list.");
+            openDataConnection("150 Opening ASCII mode data connection for file list.");
 
-            BufferedWriter dataWriter = new BufferedWriter(new OutputStreamWriter(dataSocket.getOutputStream()));
-            File dir = new File(currentDir);
-            File[] files = dir.listFiles();
+            WritableByteChannel dataOut = dataChannel();
+            List<VirtualFileSystem.Attributes> files = fileSystem.list(currentDir);
 
             // SimpleDateFormat for standard LIST format
             SimpleDateFormat sdf = new SimpleDateFormat("MMM dd HH:mm", Locale.US);
             sdf.setTimeZone(TimeZone.getDefault());
 
-            if (files != null) {
-                Log.d(TAG, "Listing directory: " + dir.getAbsolutePath() + " (" + files.length + " items)");
-                for (File f : files) {
-                    if (!f.canRead()) continue;
-
-                    //permission string
-                    String perms = (f.isDirectory() ? "d" : "-") +
-                            (f.canRead() ? "r" : "-") +
-                            (f.canWrite() ? "w" : "-") +
-                            (f.canExecute() ? "x" : "-") +
-                            "------";
-                    long size = f.length();
-                    String dateStr = sdf.format(new Date(f.lastModified()));
-                    String line = String.format(Locale.US, "%s 1 ftp ftp %15d %s %s\r\n",
-                            perms, size, dateStr, f.getName());
-                    dataWriter.write(line);
+            ByteBuffer out = server.getBufferArena().lease(BufferArena.MEDIUM, BufferArena.SMALL);
+            try {
+                if (files != null) {
+                    Log.d(TAG, "Listing directory: " + currentDir + " (" + files.size() + " items)");
+                    for (VirtualFileSystem.Attributes f : files) {
+                        if (!f.readable || UploadCommitter.isTempName(f.name)) continue;
+
+                        //permission string
+                        String perms = (f.directory ? "d" : "-") +
+                                (f.readable ? "r" : "-") +
+                                (f.writable ? "w" : "-") +
+                                (f.executable ? "x" : "-") +
+                                "------";
+                        long size = f.size;
+                        String dateStr = sdf.format(new Date(f.modified));
+                        String line = String.format(Locale.US, "%s 1 ftp ftp %15d %s %s\r\n",
+                                perms, size, dateStr, f.name);
+                        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+                        if (bytes.length > out.remaining()) {
+                            writeFully(out, dataOut);
+                        }
+                        if (bytes.length > out.capacity()) {
+                            dataOut.write(ByteBuffer.wrap(bytes));
+                        } else {
+                            out.put(bytes);
+                        }
+                    }
+                } else {
+                    Log.w(TAG, "LIST failed: cannot list " + currentDir);
                 }
-            } else {
-                Log.w(TAG, "LIST failed: listFiles() returned null for: " + dir.getAbsolutePath());
+                writeFully(out, dataOut);
+            } finally {
+                server.getBufferArena().release(out);
             }
-            dataWriter.flush();
             Log.d(TAG, "LIST: Directory listing sent.");
             sendResponse("226 Transfer Completed.");
 
         } catch (IOException e) {
             Log.e(TAG, "IOException during LIST: " + e.getMessage(), e);
-            sendResponse("426 Data connection error or transfer aborted.");
+            sendResponse(transferFailedReply(e));
         } finally {
             closeDataConnection();
         }
     }
 
     private void handleSize(String filename) throws IOException {
-        File file;
+        String path;
+        VirtualFileSystem.Attributes attributes;
         try {
-            file = buildFile(filename);
+            path = resolvePath(filename);
+            attributes = fileSystem.stat(path);
         } catch (IOException e) {
             sendResponse("550 " + e.getMessage());
             return;
         }
 
-        if (file.exists() && file.isFile() && file.canRead()) {
-            sendResponse("213 " + file.length());
+        if (attributes != null && !attributes.directory && attributes.readable) {
+            sendResponse("213 " + (asciiMode ? asciiSize(path, attributes) : attributes.size));
         } else {
             sendResponse("550 Could not get file size.");
         }
     }
 
-
     /**
-     * Server opens port for client to connect.
-     * Enters passive mode for data transfer.
-     * <p>
-     * This method closes any existing data connection, creates a new server socket on an
-     * available port, and sends a 227 response to the client with the server's IP address
-     * and the port number for the data connection.
-     * <p>
-     * The IP address and port are formatted as specified by the FTP protocol for the PASV command.
-     * If a valid IPv4 address cannot be obtained, a 425 error response is sent, and the
-     * data connection is closed.
-     *
-     * @throws IOException if an I/O error occurs when creating the server socket or sending the response.
+     * The size of a file as sent in ASCII mode, which takes a read of the whole file; large
+     * files are remembered until they change.
      */
-    private void enterPassiveMode() throws IOException {
-        closeDataConnection();
-
-        dataServerSocket = new ServerSocket(0);
-        int port = dataServerSocket.getLocalPort();
-        Log.d(TAG, "Passive mode started on port: " + port);
+    private long asciiSize(String path, VirtualFileSystem.Attributes attributes) throws IOException {
+        AsciiConverter.SizeCache cache = server.getAsciiSizeCache();
+        long size = cache.get(path, attributes.size, attributes.modified);
+        if (size >= 0) return size;
+        ByteBuffer scratch = server.getBufferArena().lease(BufferArena.LARGE, BufferArena.SMALL);
+        try (SeekableByteChannel source = fileSystem.openRead(path)) {
+            size = AsciiConverter.convertedSize(source, scratch);
+        } finally {
+            server.getBufferArena().release(scratch);
+        }
+        cache.put(path, attributes.size, attributes.modified, size);
+        return size;
+    }
 
-        String ip = controlSocket.getLocalAddress().getHostAddress();
-        if (ip == null || ip.contains(":")) {
-            Log.e(TAG, "Could not get valid IPv4 address for PASV.");
-            sendResponse("425 Can't open data connection (IP Address Error).");
-            closeDataConnection();
+    private void handleMdtm(String filename) throws IOException {
+        MetadataIndex.Entry entry;
+        try {
+            entry = statPath(resolvePath(filename));
+        } catch (IOException e) {
+            sendResponse("550 " + e.getMessage());
             return;
         }
-        String ipFormatted = ip.replace('.', ',');
 
-        int p1 = port / 256;
-        int p2 = port % 256;
+        if (entry != null && !entry.directory) {
+            sendResponse("213 " + formatTimeval(entry.modified));
+        } else {
+            sendResponse("550 Could not get modification time.");
+        }
+    }
 
-        sendResponse("227 Entering Passive Mode (" + ipFormatted + "," + p1 + "," + p2 + ").");
+    /**
+     * Handles MLST (RFC 3659): the facts for one path, sent on the control connection.
+     * With no argument the current directory is described.
+     */
+    private void handleMlst(String argument) throws IOException {
+        String displayPath;
+        MetadataIndex.Entry entry;
+        try {
+            displayPath = resolvePath(argument);
+            entry = statPath(displayPath);
+        } catch (IOException e) {
+            sendResponse("550 " + e.getMessage());
+            return;
+        }
+
+        if (entry == null) {
+            sendResponse("550 File not found.");
+            return;
+        }
+        sendResponse("250-Listing " + displayPath);
+        sendResponse(" " + formatFacts(entry) + " " + displayPath);
+        sendResponse("250 End");
     }
 
     /**
-     * Changes the current working directory for the FTP session.
+     * Resolves a path naming an entry to create, move or delete. Unlike {@link #buildFile} the
+     * result is normalized, but its last element is kept as given, so a symbolic link is
+     * acted on itself and not on what it points to.
+     */
+    private File resolveEntry(String path) throws IOException {
+        File file = buildFile(path);
+        String name = file.getName();
+        File parent = file.getParentFile();
+        if (parent == null || name.isEmpty() || name.equals(".") || name.equals("..")) {
+            return file.getCanonicalFile();
+        }
+        return new File(parent.getCanonicalFile(), name);
+    }
+
+    private boolean isRoot(File file) {
+        return file.getPath().equals(rootDir);
+    }
+
+    private void handleRnfr(String path) throws IOException {
+        renameFrom = null;
+        File file;
+        try {
+            file = resolveEntry(path);
+        } catch (IOException e) {
+            sendResponse("550 " + e.getMessage());
+            return;
+        }
+        if (!file.exists() || isRoot(file) || UploadCommitter.isTempName(file.getName())) {
+            sendResponse("550 File not found.");
+            return;
+        }
+        renameFrom = file;
+        sendResponse("350 Ready for RNTO.");
+    }
+
+    /**
+     * RNTO: completes a rename or move started by RNFR. Only renames within one volume are
+     * done, so no data is ever copied; moving across volumes is left to SITE CPY and a delete.
+     */
+    private void handleRnto(String path) throws IOException {
+        File source = renameFrom;
+        renameFrom = null;
+        if (source == null) {
+            sendResponse("503 RNFR required first.");
+            return;
+        }
+        File target;
+        try {
+            target = resolveEntry(path);
+        } catch (IOException e) {
+            sendResponse("550 " + e.getMessage());
+            return;
+        }
+        File parent = target.getParentFile();
+        if (isRoot(target) || parent == null || UploadCommitter.isTempName(target.getName())) {
+            sendResponse("553 File name not allowed.");
+            return;
+        }
+        if (target.getPath().startsWith(source.getPath() + File.separator)) {
+            sendResponse("553 Cannot move a directory into itself.");
+            return;
+        }
+        if (!parent.isDirectory()) {
+            sendResponse("550 Target directory does not exist.");
+            return;
+        }
+        if (target.isDirectory() && !target.equals(source)) {
+            sendResponse("550 Target is an existing directory.");
+            return;
+        }
+        if (!DedupIndex.sameVolume(source.getParentFile(), parent)) {
+            sendResponse("553 Cannot move across volumes; use SITE CPY and delete the original.");
+            return;
+        }
+        try (PathLockManager.Lease lock = lockFiles(source, true, target, true)) {
+            if (lock == null) return;
+            if (!source.renameTo(target)) {
+                Log.w(TAG, "Rename failed: " + source + " -> " + target);
+                sendResponse("550 Rename failed.");
+                return;
+            }
+        }
+        server.notifyChanged(source);
+        server.notifyChanged(target);
+        sendResponse("250 Renamed to " + toDisplayPath(target));
+    }
+
+    private void handleDele(String path) throws IOException {
+        File file;
+        try {
+            file = resolveEntry(path);
+        } catch (IOException e) {
+            sendResponse("550 " + e.getMessage());
+            return;
+        }
+        if (!file.exists()) {
+            sendResponse("550 File not found.");
+            return;
+        }
+        if (file.isDirectory()) {
+            sendResponse("550 Is a directory; use RMD.");
+            return;
+        }
+        try (PathLockManager.Lease lock = lockFile(file, true)) {
+            if (lock == null) return;
+            if (!file.delete()) {
+                sendResponse("550 Delete failed.");
+                return;
+            }
+        }
+        server.notifyChanged(file);
+        sendResponse("250 Deleted " + toDisplayPath(file));
+    }
+
+    private void handleMkd(String path) throws IOException {
+        File dir;
+        try {
+            dir = resolveEntry(path);
+        } catch (IOException e) {
+            sendResponse("550 " + e.getMessage());
+            return;
+        }
+        if (dir.exists()) {
+            sendResponse("550 Already exists.");
+            return;
+        }
+        if (UploadCommitter.isTempName(dir.getName()) || !dir.mkdirs()) {
+            sendResponse("550 Cannot create directory.");
+            return;
+        }
+        server.notifyChanged(dir);
+        // RFC 959: the created path is quoted, with embedded quotes doubled
+        sendResponse("257 \"" + toDisplayPath(dir).replace("\"", "\"\"") + "\" created.");
+    }
+
+    /**
+     * RMD: removes an empty directory. Non-empty ones are refused so a stray RMD never takes
+     * a whole tree with it; SITE RMTREE removes a directory with its contents.
+     */
+    private void handleRmd(String path) throws IOException {
+        File dir;
+        try {
+            dir = resolveEntry(path);
+        } catch (IOException e) {
+            sendResponse("550 " + e.getMessage());
+            return;
+        }
+        if (!dir.isDirectory()) {
+            sendResponse("550 Not a directory.");
+            return;
+        }
+        if (isRoot(dir)) {
+            sendResponse("550 Cannot remove the root directory.");
+            return;
+        }
+        if (!dir.delete()) {
+            String[] names = dir.list();
+            sendResponse(names != null && names.length > 0
+                    ? "550 Directory not empty; SITE RMTREE removes it with its contents."
+                    : "550 Cannot remove directory.");
+            return;
+        }
+        server.notifyChanged(dir);
+        sendResponse("250 Removed " + toDisplayPath(dir));
+    }
+
+    /**
+     * Dispatches the SITE sub-commands understood by this server.
+     */
+    private void handleSite(String argument) throws IOException {
+        String sub = argument;
+        String subArgument = "";
+        int space = argument.indexOf(' ');
+        if (space > 0) {
+            sub = argument.substring(0, space);
+            subArgument = argument.substring(space + 1).trim();
+        }
+
+        switch (sub.toUpperCase(Locale.US)) {
+            case "CHANGES":
+                handleSiteChanges(subArgument);
+                break;
+            case "DU":
+                handleSiteDu(subArgument);
+                break;
+            case "FIND":
+                handleSiteFind(subArgument);
+                break;
+            case "HAVE":
+                handleSiteHave(subArgument);
+                break;
+            case "BENCH":
+                handleSiteBench(subArgument);
+                break;
+            case "LINK":
+                handleSiteLink(subArgument);
+                break;
+            case "METRICS":
+                handleSiteMetrics();
+                break;
+            case "CPY":
+                handleSiteCpy(subArgument);
+                break;
+            case "RMTREE":
+                handleSiteRmtree(subArgument);
+                break;
+            default:
+                sendResponse("504 SITE command not implemented: " + sub);
+                break;
+        }
+    }
+
+    /**
+     * SITE CPY &lt;source&gt; &lt;target&gt;: copies a file or a whole directory on the server, so
+     * no data crosses the network. The source path must not contain spaces; the target may.
+     * An existing directory as target receives the copy under the source's name.
+     */
+    private void handleSiteCpy(String argument) throws IOException {
+        int space = argument.indexOf(' ');
+        if (space <= 0) {
+            sendResponse("501 Usage: SITE CPY <source> <target>");
+            return;
+        }
+        File source;
+        File target;
+        try {
+            source = buildFile(argument.substring(0, space)).getCanonicalFile();
+            target = resolveEntry(argument.substring(space + 1).trim());
+        } catch (IOException e) {
+            sendResponse("550 " + e.getMessage());
+            return;
+        }
+        if (!source.exists() || !source.canRead() || UploadCommitter.isTempName(source.getName())) {
+            sendResponse("550 Source not found.");
+            return;
+        }
+        if (target.isDirectory()) {
+            target = new File(target, source.getName());
+        }
+        if (target.equals(source) || target.getPath().startsWith(source.getPath() + File.separator)) {
+            sendResponse("553 Cannot copy onto or into the source.");
+            return;
+        }
+        if (source.isDirectory() && target.exists()) {
+            sendResponse("550 Target already exists.");
+            return;
+        }
+        File parent = target.getParentFile();
+        if (parent == null || !parent.isDirectory() || !parent.canWrite() || UploadCommitter.isTempName(target.getName())) {
+            sendResponse("550 Cannot create " + toDisplayPath(target));
+            return;
+        }
+
+        // Only a single file copy is locked; a tree copy is not atomic anyway
+        try (PathLockManager.Lease lock = source.isDirectory() ? null : lockFiles(source, false, target, true)) {
+            if (lock == null && !source.isDirectory()) return;
+            TreeWalker.Result result;
+            try {
+                result = server.getTreeWalker().copyTree(source, target, server.getUploadCommitter());
+            } catch (IOException e) {
+                Log.e(TAG, "SITE CPY failed: " + source + " -> " + target, e);
+                server.notifyChanged(target);
+                sendResponse("451 Copy failed: " + e.getMessage());
+                return;
+            }
+            server.notifyChanged(target);
+            if (result.failed > 0) {
+                sendResponse("451 Copied " + result.done + " files, " + result.failed + " failed.");
+            } else {
+                sendResponse("250 Copied " + result.done + " files to " + toDisplayPath(target));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            server.notifyChanged(target);
+            sendResponse("451 Copy interrupted.");
+        }
+    }
+
+    /**
+     * SITE RMTREE &lt;path&gt;: deletes a directory with everything below it, in parallel on the
+     * server's walk pool instead of one DELE/RMD round trip per entry.
+     */
+    private void handleSiteRmtree(String argument) throws IOException {
+        if (argument.isEmpty()) {
+            sendResponse("501 Usage: SITE RMTREE <path>");
+            return;
+        }
+        File dir;
+        try {
+            dir = resolveEntry(argument);
+        } catch (IOException e) {
+            sendResponse("550 " + e.getMessage());
+            return;
+        }
+        if (!dir.exists()) {
+            sendResponse("550 Not found.");
+            return;
+        }
+        if (isRoot(dir)) {
+            sendResponse("550 Cannot remove the root directory.");
+            return;
+        }
+
+        try {
+            TreeWalker.Result result;
+            try {
+                result = server.getTreeWalker().deleteTree(dir);
+            } catch (IOException e) {
+                Log.e(TAG, "SITE RMTREE failed: " + dir, e);
+                server.notifyChanged(dir);
+                sendResponse("451 Delete failed: " + e.getMessage());
+                return;
+            }
+            server.notifyChanged(dir);
+            if (result.failed > 0) {
+                sendResponse("451 Deleted " + result.done + " entries, " + result.failed + " could not be deleted.");
+            } else {
+                sendResponse("250 Deleted " + result.done + " entries.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            server.notifyChanged(dir);
+            sendResponse("451 Delete interrupted.");
+        }
+    }
+
+    /**
+     * SITE METRICS: the server's counters and gauges, one "name value" line each.
+     */
+    private void handleSiteMetrics() throws IOException {
+        sendResponse("211-Server metrics");
+        for (Map.Entry<String, Long> e : server.getMetrics().snapshot().entrySet()) {
+            sendResponse(" " + e.getKey() + " " + e.getValue());
+        }
+        sendResponse("211 End");
+    }
+
+    /**
+     * SITE CHANGES &lt;generation&gt; [epoch]: lists every path added, modified or deleted since
+     * the given index generation (0 for everything), one MLST-style fact line per path. The
+     * closing line carries the generation and epoch to pass on the next call. When the index
+     * can no longer tell what changed since then, the reply is 554 and the client must start
+     * over from generation 0.
+     */
+    private void handleSiteChanges(String argument) throws IOException {
+        if (metadataIndex == null) {
+            sendResponse("502 Metadata index is not enabled.");
+            return;
+        }
+        String[] parts = argument.isEmpty() ? new String[0] : argument.split("\\s+");
+        long since;
+        try {
+            since = parts.length == 0 ? 0 : Long.parseLong(parts[0]);
+        } catch (NumberFormatException e) {
+            since = -1;
+        }
+        if (since < 0 || parts.length > 2) {
+            sendResponse("501 Usage: SITE CHANGES <generation> [epoch]");
+            return;
+        }
+        String resync = metadataIndex.resyncReason(parts.length == 2 ? parts[1] : null, since);
+        if (resync != null) {
+            sendResponse("554 Full resync required: " + resync + "; use SITE CHANGES 0.");
+            return;
+        }
+
+        // Every change up to this generation is visible; later ones are left for the next call.
+        long generation = metadataIndex.currentGeneration();
+        List<MetadataIndex.Entry> changes = metadataIndex.changesSince(since, generation);
+        sendResponse("211-Changes since " + since + (metadataIndex.isComplete() ? "" : " (index still building)"));
+        for (MetadataIndex.Entry entry : changes) {
+            sendResponse(" " + formatFacts(entry) + " " + entry.path);
+        }
+        sendResponse("211 End " + generation + " " + metadataIndex.getEpoch());
+    }
+
+    /**
+     * SITE DU [path]: recursive size of a directory (the current one by default). The total of
+     * each subdirectory is streamed back as soon as the parallel walk finishes it.
+     */
+    private void handleSiteDu(String argument) throws IOException {
+        File dir;
+        try {
+            dir = buildFile(argument.isEmpty() ? "." : argument).getCanonicalFile();
+        } catch (IOException e) {
+            sendResponse("550 " + e.getMessage());
+            return;
+        }
+        if (!dir.isDirectory() || !dir.canRead()) {
+            sendResponse("550 Not a readable directory.");
+            return;
+        }
+
+        sendResponse("211-Disk usage of " + toDisplayPath(dir));
+        try {
+            TreeWalker.Usage total = server.getTreeWalker().du(dir, usage ->
+                    sendResponse(String.format(Locale.US, " %15d %8d %s", usage.bytes, usage.files, toDisplayPath(new File(usage.path)))));
+            sendResponse(String.format(Locale.US, "211 Total %d bytes in %d files", total.bytes, total.files));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sendResponse("451 Walk interrupted.");
+        } catch (IOException e) {
+            if (controlSocket.isClosed()) throw e;
+            Log.e(TAG, "SITE DU failed for " + dir, e);
+            sendResponse("451 " + e.getMessage());
+        }
+    }
+
+    /**
+     * SITE FIND &lt;pattern&gt;: every path below the current directory whose name matches the
+     * glob, streamed back while the parallel walk is still running.
+     */
+    private void handleSiteFind(String pattern) throws IOException {
+        if (pattern.isEmpty()) {
+            sendResponse("501 Usage: SITE FIND <pattern>");
+            return;
+        }
+        File dir;
+        try {
+            dir = buildFile(".");
+        } catch (IOException e) {
+            sendResponse("550 " + e.getMessage());
+            return;
+        }
+
+        sendResponse("211-Matches for " + pattern + " under " + toDisplayPath(dir));
+        try {
+            int count = server.getTreeWalker().find(dir, pattern, match -> sendResponse(" " + toDisplayPath(match)));
+            sendResponse("211 " + count + (count >= TreeWalker.MAX_FIND_RESULTS ? "+" : "") + " matches");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sendResponse("451 Walk interrupted.");
+        } catch (IOException e) {
+            if (controlSocket.isClosed()) throw e;
+            Log.e(TAG, "SITE FIND failed under " + dir, e);
+            sendResponse("451 " + e.getMessage());
+        }
+    }
+
+    /**
+     * SITE BENCH TLS [MB]: loopback benchmark of plaintext versus TLS throughput and of full
+     * versus resumed handshakes, using this server's TLS configuration. Only when the server
+     * allows benchmarks; at most {@link #MAX_BENCH_MB} MB, and one at a time server-wide on the
+     * server's benchmark thread.
+     */
+    private void handleSiteBench(String argument) throws IOException {
+        if (!server.isBenchmarksEnabled()) {
+            sendResponse("502 Benchmarks are not enabled on this server.");
+            return;
+        }
+        String[] parts = argument.split("\\s+");
+        if (parts.length == 0 || !parts[0].equalsIgnoreCase("TLS")) {
+            sendResponse("501 Usage: SITE BENCH TLS [MB]");
+            return;
+        }
+        if (tlsContext == null) {
+            sendResponse("502 TLS is not configured.");
+            return;
+        }
+        int megabytes = DEFAULT_BENCH_MB;
+        if (parts.length > 1) {
+            try {
+                megabytes = Math.max(1, Math.min(MAX_BENCH_MB, Integer.parseInt(parts[1])));
+            } catch (NumberFormatException e) {
+                sendResponse("501 Usage: SITE BENCH TLS [MB]");
+                return;
+            }
+        }
+
+        long bytes = megabytes * 1024L * 1024L;
+        Future<TlsBenchmark.Result> run;
+        try {
+            run = server.getBenchmarkExecutor().submit(() -> new TlsBenchmark(tlsContext).run(bytes));
+        } catch (RejectedExecutionException e) {
+            sendResponse("450 Another benchmark is running, try again later.");
+            return;
+        }
+        TlsBenchmark.Result result;
+        try {
+            result = run.get(BENCH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            run.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the benchmark");
+        } catch (TimeoutException e) {
+            run.cancel(true);
+            sendResponse("451 Benchmark took too long.");
+            return;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "TLS benchmark failed", e.getCause());
+            sendResponse("451 Benchmark failed: " + e.getCause().getMessage());
+            return;
+        }
+        synchronized (replyLock) {
+            sendResponse("211-Benchmarked " + megabytes + " MB over loopback");
+            sendResponse(String.format(Locale.US, " plain %.1f MB/s", result.plainMBps));
+            sendResponse(String.format(Locale.US, " tls   %.1f MB/s (%s, %s)", result.tlsMBps, result.protocol, result.cipherSuite));
+            sendResponse(String.format(Locale.US, " full handshake    %.2f ms", result.fullHandshakeMs));
+            sendResponse(String.format(Locale.US, " resumed handshake %.2f ms%s", result.resumedHandshakeMs, result.resumed ? "" : " (session was not resumed)"));
+            sendResponse("211 End");
+        }
+    }
+
+    /**
+     * SITE HAVE &lt;sha256&gt;: lets a client check whether the server already holds some
+     * content before uploading it. Replies 213 with the path of a copy, or 550.
+     */
+    private void handleSiteHave(String hash) throws IOException {
+        DedupIndex dedupIndex = server.getDedupIndex();
+        if (dedupIndex == null) {
+            sendResponse("502 Deduplication is not enabled.");
+            return;
+        }
+        if (!isSha256Hex(hash)) {
+            sendResponse("501 Usage: SITE HAVE <sha256 hex>");
+            return;
+        }
+        File existing = dedupIndex.find(hash);
+        if (existing != null && toDisplayPathIfInRoot(existing) != null) {
+            sendResponse("213 " + toDisplayPath(existing));
+        } else {
+            sendResponse("550 Content not found.");
+        }
+    }
+
+    /**
+     * SITE LINK &lt;sha256&gt; &lt;path&gt;: creates {@code path} with content the server already
+     * holds, as a hard link where possible and as a local copy otherwise. Either way no data
+     * crosses the network.
+     */
+    private void handleSiteLink(String argument) throws IOException {
+        DedupIndex dedupIndex = server.getDedupIndex();
+        if (dedupIndex == null) {
+            sendResponse("502 Deduplication is not enabled.");
+            return;
+        }
+        int space = argument.indexOf(' ');
+        String hash = space > 0 ? argument.substring(0, space) : argument;
+        String path = space > 0 ? argument.substring(space + 1).trim() : "";
+        if (!isSha256Hex(hash) || path.isEmpty()) {
+            sendResponse("501 Usage: SITE LINK <sha256 hex> <path>");
+            return;
+        }
+
+        File target;
+        try {
+            target = buildFile(path);
+        } catch (IOException e) {
+            sendResponse("550 " + e.getMessage());
+            return;
+        }
+        File existing = dedupIndex.find(hash);
+        if (existing == null || toDisplayPathIfInRoot(existing) == null) {
+            sendResponse("550 Content not found.");
+            return;
+        }
+        File parent = target.getParentFile();
+        if (parent == null || !parent.isDirectory() || !parent.canWrite()
+                || UploadCommitter.isTempName(target.getName())) {
+            sendResponse("550 Cannot create " + path);
+            return;
+        }
+
+        try (PathLockManager.Lease lock = lockFiles(existing, false, target, true)) {
+            if (lock == null) return;
+            UploadCommitter committer = server.getUploadCommitter();
+            boolean linked = DedupIndex.sameVolume(existing, parent) && committer.commitLink(existing, target);
+            if (!linked) {
+                committer.commitCopy(existing, target);
+                dedupIndex.record(hash, target);
+            }
+            server.notifyChanged(target);
+            sendResponse("250 " + (linked ? "Linked " : "Copied ") + toDisplayPath(target));
+        } catch (IOException e) {
+            Log.e(TAG, "SITE LINK failed for " + target, e);
+            sendResponse("451 " + e.getMessage());
+        }
+    }
+
+    private static boolean isSha256Hex(String s) {
+        return s.length() == 64 && s.matches("[0-9a-fA-F]+");
+    }
+
+    private String toDisplayPathIfInRoot(File file) {
+        try {
+            String path = file.getCanonicalPath();
+            return path.equals(rootDir) || path.startsWith(rootDir + File.separator) ? toDisplayPath(file) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the metadata for a path: from {@link #statFile} if the file system has local
+     * files, else from the file system itself. Null if there is nothing readable there.
+     */
+    private MetadataIndex.Entry statPath(String path) throws IOException {
+        File file = fileSystem.toLocalFile(path);
+        if (file != null) return statFile(file);
+        VirtualFileSystem.Attributes attributes = fileSystem.stat(path);
+        if (attributes == null || !attributes.readable) return null;
+        return new MetadataIndex.Entry(path, attributes.directory ? 0 : attributes.size, attributes.modified,
+                attributes.directory, false, 0);
+    }
+
+    /**
+     * Returns the metadata for a file, preferring the index and falling back to (and
+     * refreshing the index from) the file system when the path is not indexed yet.
+     */
+    private MetadataIndex.Entry statFile(File file) {
+        if (metadataIndex != null) {
+            MetadataIndex.Entry entry = metadataIndex.lookup(file);
+            if (entry != null) return entry;
+        }
+        if (!file.exists() || !file.canRead()) return null;
+        if (metadataIndex != null) {
+            metadataIndex.notifyChanged(file);
+        }
+        boolean dir = file.isDirectory();
+        return new MetadataIndex.Entry(toDisplayPath(file), dir ? 0 : file.length(), file.lastModified(), dir, false, 0);
+    }
+
+    private String toDisplayPath(File file) {
+        String path;
+        try {
+            path = file.getCanonicalPath();
+        } catch (IOException e) {
+            path = file.getAbsolutePath();
+        }
+        String displayPath = path.replace(rootDir, "");
+        return displayPath.isEmpty() ? "/" : displayPath;
+    }
+
+    private static String formatFacts(MetadataIndex.Entry entry) {
+        if (entry.deleted) {
+            return "type=deleted;modify=" + formatTimeval(entry.modified) + ";";
+        }
+        return "type=" + (entry.directory ? "dir" : "file")
+                + ";size=" + entry.size
+                + ";modify=" + formatTimeval(entry.modified) + ";";
+    }
+
+    // RFC 3659 time-val: YYYYMMDDHHMMSS in UTC
+    private static String formatTimeval(long millis) {
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMddHHmmss", Locale.US);
+        sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return sdf.format(new Date(millis));
+    }
+
+
+    /**
+     * Server opens port for client to connect.
+     * Enters passive mode for data transfer.
+     * <p>
+     * This method closes any existing data connection, creates a new server socket on an
+     * available port, and sends a 227 response to the client with the server's IP address
+     * and the port number for the data connection.
+     * <p>
+     * The IP address and port are formatted as specified by the FTP protocol for the PASV command.
+     * The address is the one the client reached the control connection on when that is a usable
+     * IPv4 address, otherwise the device's current primary address ({@link IpUtils#getPassiveAddress}).
+     * If a valid IPv4 address cannot be obtained, a 425 error response is sent, and the
+     * data connection is closed.
+     *
+     * @throws IOException if an I/O error occurs when creating the server socket or sending the response.
+     */
+    private void enterPassiveMode() throws IOException {
+        closeDataConnection();
+
+        // Channel-backed so accepted data sockets support transferTo()/sendfile()
+        ServerSocketChannel dataChannel = ServerSocketChannel.open();
+        dataChannel.socket().bind(new InetSocketAddress(0));
+        dataServerSocket = dataChannel.socket();
+        int port = dataServerSocket.getLocalPort();
+        Log.d(TAG, "Passive mode started on port: " + port);
+
+        InetAddress advertised = IpUtils.getPassiveAddress(controlSocket.getLocalAddress());
+        String ip = advertised != null ? advertised.getHostAddress() : null;
+        if (ip == null) {
+            Log.e(TAG, "Could not get valid IPv4 address for PASV.");
+            sendResponse("425 Can't open data connection (IP Address Error).");
+            closeDataConnection();
+            return;
+        }
+        String ipFormatted = ip.replace('.', ',');
+
+        int p1 = port / 256;
+        int p2 = port % 256;
+
+        sendResponse("227 Entering Passive Mode (" + ipFormatted + "," + p1 + "," + p2 + ").");
+    }
+
+    /**
+     * Changes the current working directory for the FTP session.
      *
      * <p>This method handles the "CWD" (Change Working Directory) FTP command. It supports:
      * <ul>
@@ -553,38 +1847,16 @@ public class ClientHandler implements Runnable {
      * @throws IOException If an I/O error occurs while interacting with the file system or sending the response.
      */
     private void changeWorkingDirectory(String dir) throws IOException {
-        File newDir;
-
-        if (dir.equals("..")) {
-            File current = new File(currentDir);
-            File parent = current.getParentFile();
-            if (parent != null && parent.getCanonicalPath().length() >= rootDir.length() && parent.getCanonicalPath().startsWith(rootDir)) {
-                currentDir = parent.getCanonicalPath();
-                Log.d(TAG, "CWD to parent: " + currentDir);
-                sendResponse("250 Directory successfully changed.");
-            } else {
-                currentDir = rootDir; // Or stay, or send error
-                Log.d(TAG, "CWD .. : Already at root. Staying at " + currentDir);
-                sendResponse("250 Directory changed (at root).");
-            }
-            return;
-        } else if (dir.equals("/") || dir.equals("~")) {
-            currentDir = rootDir;
-            Log.d(TAG, "CWD to root: " + currentDir);
-            sendResponse("250 Directory successfully changed.");
-            return;
-        }
-
+        String target = dir.equals("~") ? "/" : dir;
         try {
-            newDir = buildFile(dir);
-            if (newDir.exists() && newDir.isDirectory() && newDir.canRead()) {
-                currentDir = newDir.getCanonicalPath();
-                String displayPath = currentDir.replace(rootDir, "");
-                if (displayPath.isEmpty()) displayPath = "/";
+            String newDir = resolvePath(target);
+            VirtualFileSystem.Attributes attributes = fileSystem.stat(newDir);
+            if (attributes != null && attributes.directory && attributes.readable) {
+                currentDir = newDir;
                 Log.d(TAG, "CWD to: " + currentDir);
-                sendResponse("250 Directory successfully changed to " + displayPath);
+                sendResponse("250 Directory successfully changed to " + currentDir);
             } else {
-                Log.w(TAG, "CWD failed. Path: " + newDir.getAbsolutePath() + " | Exists: " + newDir.exists() + " | IsDir: " + newDir.isDirectory() + " | CanRead: " + (newDir.exists() ? newDir.canRead() : "N/A"));
+                Log.w(TAG, "CWD failed. Path: " + newDir + " | Exists: " + (attributes != null) + " | IsDir: " + (attributes != null && attributes.directory) + " | CanRead: " + (attributes != null ? attributes.readable : "N/A"));
                 sendResponse("550 Failed to change directory: Not found, not a directory, or permission denied.");
             }
         } catch (IOException e) {
@@ -595,6 +1867,331 @@ public class ClientHandler implements Runnable {
 
 
 
+    /**
+     * Handles AUTH TLS (RFC 4217): confirms with 234 and then runs the TLS handshake on the
+     * control connection; everything after that, credentials included, is encrypted.
+     */
+    private void handleAuth(String mechanism) throws IOException {
+        if (tlsContext == null) {
+            sendResponse("502 TLS is not configured on this server.");
+            return;
+        }
+        if (tlsActive) {
+            sendResponse("503 TLS already active.");
+            return;
+        }
+        String m = mechanism.toUpperCase(Locale.US);
+        if (!m.equals("TLS") && !m.equals("TLS-C") && !m.equals("SSL")) {
+            sendResponse("504 AUTH mechanism not supported.");
+            return;
+        }
+
+        sendResponse("234 AUTH " + m + " successful");
+        SSLSocket ssl = tlsContext.wrap(controlSocket);
+        controlSocket = ssl;
+        reader = new BufferedReader(new InputStreamReader(ssl.getInputStream()));
+        writer = new BufferedWriter(new OutputStreamWriter(ssl.getOutputStream()));
+        tlsActive = true;
+        Log.i(TAG, "Control connection secured: " + ssl.getSession().getProtocol() + " " + ssl.getSession().getCipherSuite());
+    }
+
+    private void handleProt(String level) throws IOException {
+        if (!tlsActive) {
+            sendResponse("503 AUTH TLS first.");
+            return;
+        }
+        switch (level.toUpperCase(Locale.US)) {
+            case "P":
+                dataProtected = true;
+                sendResponse("200 Protection level set to Private.");
+                break;
+            case "C":
+                dataProtected = false;
+                sendResponse("200 Protection level set to Clear.");
+                break;
+            case "S":
+            case "E":
+                sendResponse("536 Protection level not supported.");
+                break;
+            default:
+                sendResponse("504 Unknown protection level.");
+                break;
+        }
+    }
+
+    /**
+     * Starts RETR, STOR or LIST on one of the server's transfer threads and returns at once,
+     * leaving this thread to read the control connection: ABOR has to be seen while the
+     * transfer is blocked sending or receiving. The transfer sends its own replies.
+     */
+    private void startTransfer(String command, String argument) {
+        DataTransfer started = new DataTransfer(command, argument);
+        transfer = started;
+        try {
+            server.getTransferPool().execute(started);
+        } catch (RejectedExecutionException e) {
+            started.run(); // the server is stopping
+        }
+    }
+
+    private void runTransfer(String command, String argument) throws IOException {
+        switch (command) {
+            case "RETR":
+                sendFile(argument);
+                break;
+            case "STOR":
+                receiveFile(argument);
+                break;
+            default:
+                sendDirectoryListing(argument);
+                break;
+        }
+    }
+
+    private boolean isTransferRunning() {
+        DataTransfer running = transfer;
+        return running != null && !running.isDone();
+    }
+
+    /**
+     * Waits for the last transfer to end, so the next command sees the state it left. A
+     * transfer that stops moving data is aborted, and one that does not end within
+     * {@link #ABORT_WAIT_MS} of its abort (stuck in storage I/O) is answered for with 426 and
+     * left behind, so the session goes on; until it ends, commands that need the data
+     * connection are refused.
+     */
+    private void awaitTransfer() throws IOException {
+        DataTransfer running = transfer;
+        if (running == null) return;
+        long moved = running.progress.getBytesMoved();
+        while (!running.silenced && !running.await(running.aborted ? ABORT_WAIT_MS : TRANSFER_STALL_MS)) {
+            if (running.aborted) {
+                answerForTransfer(running);
+                return;
+            }
+            long now = running.progress.getBytesMoved();
+            if (now == moved) {
+                Log.w(TAG, running.command + " moved nothing in " + TRANSFER_STALL_MS + " ms, aborting it");
+                running.abort();
+            }
+            moved = now;
+        }
+        if (running.isDone()) transfer = null;
+    }
+
+    // Replies 426 for a transfer that did not stop when aborted, and drops its own late replies.
+    private void answerForTransfer(DataTransfer running) throws IOException {
+        synchronized (replyLock) {
+            if (!running.replied && !running.silenced) {
+                running.silenced = true;
+                sendResponse("426 Connection closed; transfer aborted.");
+            }
+        }
+    }
+
+    private static boolean usesDataConnection(String command) {
+        switch (command) {
+            case "PASV":
+            case "LIST":
+            case "NLST":
+            case "RETR":
+            case "STOR":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Fails a transfer that ABOR stopped, for steps that would otherwise look like success.
+    private void checkNotAborted() throws IOException {
+        DataTransfer running = transfer;
+        if (running != null && running.aborted) throw new IOException("Transfer aborted.");
+    }
+
+    // The reply for a transfer that failed, or that ABOR stopped by closing its connection.
+    private String transferFailedReply(IOException e) {
+        DataTransfer running = transfer;
+        if (running != null && running.aborted) return "426 Connection closed; transfer aborted.";
+        return "426 Data connection error or transfer aborted. " + e.getMessage();
+    }
+
+    /**
+     * Handles ABOR. A running transfer is stopped by closing its data connection, which fails
+     * its blocked read or write at once; it replies 426 and ABOR then replies 226. A transfer
+     * that does not stop in time (stuck in storage I/O) is answered for, and its late replies
+     * are dropped, so the client is never left waiting. Without a transfer the data
+     * connection, if one is open, is closed.
+     */
+    private void handleAbor() throws IOException {
+        DataTransfer running = transfer;
+        if (running == null || running.isDone()) {
+            awaitTransfer();
+            closeDataConnection();
+            sendResponse("226 No transfer to abort.");
+            return;
+        }
+        long start = System.nanoTime();
+        running.abort();
+        if (!running.await(ABORT_WAIT_MS)) answerForTransfer(running);
+        Log.i(TAG, running.command + " aborted in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        sendResponse("226 Abort successful.");
+    }
+
+    /**
+     * Handles STAT: the progress of the running transfer, or else the state of the session.
+     * STAT with a path, which would list it over the control connection, is not supported.
+     */
+    private void handleStat(String argument) throws IOException {
+        DataTransfer running = transfer;
+        if (running != null && !running.isDone()) {
+            long moved = running.progress.getBytesMoved();
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - running.progress.getStartNanos());
+            long expected = running.progress.getExpectedBytes();
+            synchronized (replyLock) {
+                sendResponse("213-Status of " + running.command + " " + running.argument + ":");
+                sendResponse(" " + moved + (expected >= 0 ? " of " + expected : "") + " bytes transferred in "
+                        + elapsedMs + " ms (" + (elapsedMs > 0 ? moved * 1000 / elapsedMs : 0) + " bytes/s)");
+                sendResponse("213 End of status.");
+            }
+            return;
+        }
+        if (!argument.isEmpty()) {
+            sendResponse("504 STAT of a path is not supported, use LIST.");
+            return;
+        }
+        synchronized (replyLock) {
+            sendResponse("211-FTP server status:");
+            sendResponse(" Connected to " + session.getRemoteAddress());
+            sendResponse(" Logged in as " + session.getUser());
+            sendResponse(" TYPE: " + (asciiMode ? "ASCII" : "BINARY") + (dataProtected ? ", PROT P" : ""));
+            sendResponse(" " + session.getBytesIn() + " bytes received, " + session.getBytesOut() + " bytes sent");
+            sendResponse("211 End of status.");
+        }
+    }
+
+    /**
+     * Drops Telnet commands a client puts in front of a command, like the IP (interrupt
+     * process) and Synch some send ahead of ABOR. Their bytes are not text and come out of the
+     * reader as control or replacement characters. Synch's urgent data needs nothing more:
+     * the control connection is read throughout a transfer anyway.
+     */
+    private static String stripTelnetCommands(String line) {
+        int i = 0;
+        while (i < line.length() && (line.charAt(i) < ' ' || line.charAt(i) > '~')) {
+            i++;
+        }
+        return i == 0 ? line : line.substring(i);
+    }
+
+    /** A RETR, STOR or LIST running on one of the server's transfer threads. */
+    private final class DataTransfer implements Runnable {
+        final String command;
+        final String argument;
+        // What the transfer has moved, for STAT and the dashboard
+        final ClientSession.Transfer progress;
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        volatile boolean aborted = false;
+        volatile Thread worker;
+        // Guarded by replyLock: the transfer sent its final reply; ABOR answered for it instead
+        boolean replied = false;
+        boolean silenced = false;
+        // Guarded by this: the transfer thread has moved on and must not be interrupted
+        private boolean finished = false;
+
+        DataTransfer(String command, String argument) {
+            this.command = command;
+            this.argument = argument;
+            this.progress = session.beginTransfer(command, argument);
+        }
+
+        @Override
+        public void run() {
+            worker = Thread.currentThread();
+            try {
+                checkNotAborted();
+                runTransfer(command, argument);
+            } catch (IOException e) {
+                if (aborted) {
+                    // Stopped before a data connection was open, e.g. waiting for a file lock
+                    try {
+                        sendResponse("426 Connection closed; transfer aborted.");
+                    } catch (IOException ignored) {
+                        // the command loop sees the broken connection
+                    }
+                } else {
+                    // The control connection failed; end the session as the command loop would
+                    Log.e(TAG, "IOException in " + command + ": " + e.getMessage(), e);
+                    closeQuietly(controlSocket);
+                }
+            } finally {
+                if (aborted) closeDataConnection();
+                session.endTransfer(progress);
+                synchronized (this) {
+                    finished = true;
+                    Thread.interrupted(); // an abort's interrupt must not reach the pool's next task
+                }
+                done.countDown();
+            }
+        }
+
+        /**
+         * Closes the data connection, failing the transfer's blocked socket I/O, and
+         * interrupts waits for a file lock or transfer slot.
+         */
+        void abort() {
+            aborted = true;
+            closeQuietly(dataSocket);
+            closeQuietly(dataServerSocket);
+            synchronized (this) {
+                Thread t = worker;
+                if (t != null && !finished) t.interrupt();
+            }
+        }
+
+        boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        boolean await(long timeoutMs) throws IOException {
+            try {
+                return done.await(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a transfer");
+            }
+        }
+
+        void awaitQuietly(long timeoutMs) {
+            try {
+                await(timeoutMs);
+            } catch (IOException e) {
+                Log.w(TAG, "Transfer still running at session end.");
+            }
+        }
+    }
+
+    /**
+     * Accepts the pending passive data connection, sends the preliminary 150 reply and, with
+     * PROT P, runs the TLS handshake on it. The handshake uses the server's shared session
+     * cache, so clients that reuse the control connection's session get an abbreviated one.
+     */
+    private void openDataConnection(String preliminaryReply) throws IOException {
+        Socket accepted = dataServerSocket.accept();
+        dataSocket = accepted;
+        if (!transferActive) {
+            transferActive = true;
+            server.transferStarted();
+            transferStartNanos = System.nanoTime();
+            transferStartBytesIn = session.getBytesIn();
+            transferStartBytesOut = session.getBytesOut();
+        }
+        sendResponse(preliminaryReply);
+        if (dataProtected) {
+            dataSocket = tlsContext.wrap(accepted);
+        }
+    }
+
     private boolean checkLoggedIn() throws IOException {
         if (!isLoggedIn) {
             sendResponse("530 Not logged in.");
@@ -604,17 +2201,28 @@ public class ClientHandler implements Runnable {
     }
 
     private void sendResponse(String response) throws IOException {
-        try {
-            if (writer != null && controlSocket != null && !controlSocket.isClosed()) {
-                Log.d(TAG, "RSP: " + response); // Log sent response
-                writer.write(response + "\r\n");
-                writer.flush();
-            } else {
-                Log.w(TAG, "Attempted to send response on closed socket: " + response);
+        synchronized (replyLock) {
+            DataTransfer running = transfer;
+            if (running != null && Thread.currentThread() == running.worker) {
+                if (running.silenced) {
+                    Log.d(TAG, "Dropped reply of an abandoned transfer: " + response);
+                    return;
+                }
+                if (!response.startsWith("1")) running.replied = true;
+            }
+            try {
+                if (writer != null && controlSocket != null && !controlSocket.isClosed()) {
+                    Log.d(TAG, "RSP: " + response); // Log sent response
+                    writer.write(response + "\r\n");
+                    writer.flush();
+                    if (trace != null) trace.reply(response);
+                } else {
+                    Log.w(TAG, "Attempted to send response on closed socket: " + response);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "IOException while sending response: " + response, e);
+                throw e;
             }
-        } catch (IOException e) {
-            Log.e(TAG, "IOException while sending response: " + response, e);
-            throw e;
         }
     }
 
@@ -632,5 +2240,66 @@ public class ClientHandler implements Runnable {
         }
         dataSocket = null;
         dataServerSocket = null;
+        if (transferActive) {
+            transferActive = false;
+            server.transferFinished();
+            if (trace != null) traceTransfer();
+        }
+        if (transferSlot) {
+            transferSlot = false;
+            server.getTransferLimiter().release();
+        }
+    }
+
+    private void traceTransfer() {
+        long in = session.getBytesIn() - transferStartBytesIn;
+        long out = session.getBytesOut() - transferStartBytesOut;
+        byte direction;
+        if (in > out) {
+            direction = SessionTrace.DIRECTION_UPLOAD;
+        } else {
+            String command = session.getCommand();
+            direction = command.regionMatches(true, 0, "LIST", 0, 4) || command.regionMatches(true, 0, "NLST", 0, 4)
+                    ? SessionTrace.DIRECTION_LISTING : SessionTrace.DIRECTION_DOWNLOAD;
+        }
+        trace.transfer(direction, Math.max(in, out), System.nanoTime() - transferStartNanos);
+    }
+
+    /**
+     * Locks a file, shared for reading or exclusive for replacing or removing it, waiting for
+     * other sessions using it unless the server fails fast on busy files. Replies 550 and
+     * returns null if the file stays busy.
+     */
+    private PathLockManager.Lease lockFile(File file, boolean exclusive) throws IOException {
+        PathLockManager.Lease lease = server.getPathLocks().acquire(file, exclusive, pathLockTimeout());
+        if (lease == null) sendResponse("550 File busy, try again later.");
+        return lease;
+    }
+
+    /** Like {@link #lockFile(File, boolean)} for the two files of a rename or copy. */
+    private PathLockManager.Lease lockFiles(File first, boolean firstExclusive, File second, boolean secondExclusive)
+            throws IOException {
+        PathLockManager.Lease lease = server.getPathLocks().acquire(first, firstExclusive, second, secondExclusive,
+                pathLockTimeout());
+        if (lease == null) sendResponse("550 File busy, try again later.");
+        return lease;
+    }
+
+    private long pathLockTimeout() {
+        return server.isFailFastOnBusyFiles() ? 0 : PATH_LOCK_TIMEOUT_MS;
+    }
+
+    /**
+     * Takes a concurrent transfer slot, waiting a while if the server is at its limit (which
+     * is lowered under memory pressure). Replies 425 and returns false if none frees up.
+     */
+    private boolean acquireTransferSlot() throws IOException {
+        if (server.getTransferLimiter().acquire(TRANSFER_SLOT_TIMEOUT_MS)) {
+            transferSlot = true;
+            return true;
+        }
+        sendResponse("425 Too many transfers in progress, try again later.");
+        closeDataConnection();
+        return false;
     }
 }
\ No newline at end of file
@@ -0,0 +1,192 @@
+package com.ebook.ftp;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live state of one connected client, as shown to the operator: who it is, what it is doing
+ * and how much it moved; {@link ThroughputMonitor} derives how fast from the byte counts.
+ * Written by the session's own threads, read by anyone.
+ *
+ * <p>Also carries the operator's controls for the session: {@link #kill()} and a transfer
+ * throttle that the session's data paths apply through {@link #throttle(long)}.
+ */
+public class ClientSession {
+
+    // Unused throttle allowance is capped so an idle session cannot burst far above its limit.
+    private static final long MAX_BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private final long id;
+    private final String remoteAddress;
+    private final long connectedAt = System.currentTimeMillis();
+    private final Runnable closer;
+
+    private volatile String user;
+    private volatile String command = "";
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+
+    // The data transfer in progress, or null
+    private volatile Transfer transfer;
+
+    private volatile long throttleBytesPerSecond = 0;
+    private long throttleNextNanos = 0;
+    private volatile boolean killed = false;
+
+    ClientSession(long id, String remoteAddress, Runnable closer) {
+        this.id = id;
+        this.remoteAddress = remoteAddress;
+        this.closer = closer;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    public long getConnectedAt() {
+        return connectedAt;
+    }
+
+    /** The logged in user, or null before login. */
+    public String getUser() {
+        return user;
+    }
+
+    /** The command being executed, or the last one while idle. Never includes a password. */
+    public String getCommand() {
+        return command;
+    }
+
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    /** The RETR, STOR or LIST in progress, or null. */
+    public Transfer getTransfer() {
+        return transfer;
+    }
+
+    /** The throttle in bytes per second, 0 for none. */
+    public long getThrottle() {
+        return throttleBytesPerSecond;
+    }
+
+    /** Limits this session's transfers to {@code bytesPerSecond}; 0 removes the limit. */
+    public void setThrottle(long bytesPerSecond) {
+        this.throttleBytesPerSecond = Math.max(0, bytesPerSecond);
+    }
+
+    public boolean isKilled() {
+        return killed;
+    }
+
+    /** Disconnects the client: closes its control and data connections. */
+    public void kill() {
+        killed = true;
+        closer.run();
+    }
+
+    void setUser(String user) {
+        this.user = user;
+    }
+
+    void setCommand(String command) {
+        this.command = command;
+    }
+
+    /** Publishes a data transfer starting now; see {@link #getTransfer()}. */
+    Transfer beginTransfer(String command, String argument) {
+        Transfer started = new Transfer(command, argument);
+        transfer = started;
+        return started;
+    }
+
+    void endTransfer(Transfer ended) {
+        if (transfer == ended) transfer = null;
+    }
+
+    void addBytesIn(long n) {
+        bytesIn.addAndGet(n);
+    }
+
+    void addBytesOut(long n) {
+        bytesOut.addAndGet(n);
+    }
+
+    /**
+     * Called after moving {@code n} bytes; sleeps as long as needed to keep the session at its
+     * throttle. Returns at once when no throttle is set.
+     */
+    void throttle(long n) throws InterruptedIOException {
+        long limit = throttleBytesPerSecond;
+        if (limit <= 0 || n <= 0) return;
+        long sleepNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (throttleNextNanos < now - MAX_BURST_NANOS) throttleNextNanos = now - MAX_BURST_NANOS;
+            throttleNextNanos += n * 1_000_000_000L / limit;
+            sleepNanos = throttleNextNanos - now;
+        }
+        if (sleepNanos <= 0) return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(sleepNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttled");
+        }
+    }
+
+    /**
+     * One data transfer of the session. Its progress is read off the session's byte counters,
+     * so the transfer itself does nothing to report it.
+     */
+    public final class Transfer {
+        private final String command;
+        private final String argument;
+        private final long startNanos = System.nanoTime();
+        private final long startBytesIn = bytesIn.get();
+        private final long startBytesOut = bytesOut.get();
+        // What the transfer will move, or -1 while not known
+        private volatile long expectedBytes = -1;
+
+        private Transfer(String command, String argument) {
+            this.command = command;
+            this.argument = argument;
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        public String getArgument() {
+            return argument;
+        }
+
+        public long getStartNanos() {
+            return startNanos;
+        }
+
+        /** Bytes moved so far, in whichever direction the transfer goes. */
+        public long getBytesMoved() {
+            return Math.max(bytesIn.get() - startBytesIn, bytesOut.get() - startBytesOut);
+        }
+
+        /** The bytes the transfer will move in all, or -1 if not known. */
+        public long getExpectedBytes() {
+            return expectedBytes;
+        }
+
+        void setExpectedBytes(long expectedBytes) {
+            this.expectedBytes = expectedBytes;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.ebook.ftp;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent SHA-256 to path index used to deduplicate uploads.
+ *
+ * <p>Uploads are hashed while they stream in. When the finished content matches a file we
+ * already hold on the same volume, the new name is made a hard link to it and the received
+ * copy is dropped. Clients can also ask up front whether a hash is known (SITE HAVE) and
+ * have the server materialize it locally (SITE LINK) without sending the bytes at all.
+ *
+ * <p>An entry is only trusted while the file it points to still has the size and mtime it
+ * had when it was hashed; anything else is treated as a miss and the entry is replaced.
+ */
+public class DedupIndex {
+
+    private static final String TAG = "FTP_DedupIndex";
+
+    private static final int FILE_MAGIC = 0x46544448; // "FTDH"
+    private static final int FILE_VERSION = 1;
+    private static final long PERSIST_INTERVAL_SECONDS = 60;
+
+    public static final String ALGORITHM = "SHA-256";
+
+    private static final class Entry {
+        final String path;
+        final long size;
+        final long modified;
+
+        Entry(String path, long size, long modified) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    private final File storeFile;
+    private final Map<String, Entry> byHash = new ConcurrentHashMap<>();
+    private ScheduledExecutorService persister;
+    private volatile boolean dirty = false;
+
+    public DedupIndex(File storeFile) {
+        this.storeFile = storeFile;
+    }
+
+    public synchronized void start() {
+        if (persister != null) return;
+        load();
+        persister = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "dedup-index-persist"));
+        persister.scheduleWithFixedDelay(() -> {
+            if (dirty) persist();
+        }, PERSIST_INTERVAL_SECONDS, PERSIST_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public synchronized void close() {
+        if (persister == null) return;
+        persister.shutdownNow();
+        persister = null;
+        persist();
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " not available", e);
+        }
+    }
+
+    public static String toHex(byte[] hash) {
+        StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns an existing file with the given content hash, or null if none is known or the
+     * known one changed since it was hashed.
+     */
+    public File find(String hash) {
+        Entry e = byHash.get(hash.toLowerCase(Locale.US));
+        if (e == null) return null;
+        File f = new File(e.path);
+        if (!f.isFile() || f.length() != e.size || f.lastModified() != e.modified) {
+            byHash.remove(hash, e);
+            dirty = true;
+            return null;
+        }
+        return f;
+    }
+
+    /** Records that {@code file} (already in place under its final name) has this content hash. */
+    public void record(String hash, File file) {
+        String key = hash.toLowerCase(Locale.US);
+        Entry existing = byHash.get(key);
+        if (existing != null && find(key) != null) return; // keep the oldest valid copy
+        byHash.put(key, new Entry(file.getAbsolutePath(), file.length(), file.lastModified()));
+        dirty = true;
+    }
+
+    /** @return true if both files live on the same device, i.e. can be hard linked. */
+    public static boolean sameVolume(File a, File b) {
+        try {
+            return Os.stat(a.getPath()).st_dev == Os.stat(b.getPath()).st_dev;
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
+    private void load() {
+        if (storeFile == null || !storeFile.isFile()) return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(storeFile)))) {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                Log.w(TAG, "Ignoring dedup index with unknown format: " + storeFile);
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String hash = in.readUTF();
+                String path = in.readUTF();
+                long size = in.readLong();
+                long modified = in.readLong();
+                byHash.put(hash, new Entry(path, size, modified));
+            }
+            Log.i(TAG, "Loaded " + byHash.size() + " content hashes");
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to load dedup index: " + e.getMessage(), e);
+        }
+    }
+
+    private synchronized void persist() {
+        if (storeFile == null) return;
+        dirty = false;
+        File tmp = new File(storeFile.getPath() + ".tmp");
+        List<Map.Entry<String, Entry>> snapshot = new ArrayList<>(byHash.entrySet());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, Entry> e : snapshot) {
+                out.writeUTF(e.getKey());
+                out.writeUTF(e.getValue().path);
+                out.writeLong(e.getValue().size);
+                out.writeLong(e.getValue().modified);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to persist dedup index: " + e.getMessage(), e);
+            dirty = true;
+            return;
+        }
+        if (!tmp.renameTo(storeFile)) {
+            Log.w(TAG, "Failed to replace dedup index file: " + storeFile);
+            dirty = true;
+        }
+    }
+}
@@ -1,41 +1,201 @@
 package com.ebook.ftp;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 
 public class FTPServer {
 
-    private ServerSocket serverSocket;
-    private boolean running = false;
+    /**
+     * Told about session activity, e.g. to keep the device awake only while the server is busy.
+     * Called on session threads, so implementations must be cheap and thread-safe.
+     */
+    public interface ActivityListener {
+        void onCommand();
+
+        void onTransferStarted();
+
+        void onTransferFinished();
+    }
+
+    private volatile ServerSocket serverSocket;
+    private volatile boolean running = false;
     private int port;
+    // Address the FTP and HTTP listeners are bound to; null for all interfaces. Guarded by this.
+    private InetAddress bindAddress;
     private ExecutorService threadPool;
     private final String username = "admin";
     private final String password = "admin";
 
+    // Directory behind fileSystem; null when it is not backed by local files.
     private String rootDir;
+    private final VirtualFileSystem fileSystem;
+
+    // Optional persistent index of the served tree; null when no index file was given.
+    private MetadataIndex metadataIndex;
+
+    // Fork-join pool behind SITE DU / SITE FIND, created on Start().
+    private TreeWalker treeWalker;
+    private int walkParallelism = Runtime.getRuntime().availableProcessors();
+
+    // Runs the disk stage of the upload and read-ahead pipelines so storage I/O overlaps the network.
+    private ExecutorService diskIoPool;
+    // Runs the sessions' data transfers, so each session's own thread stays free to read ABOR and STAT.
+    private ExecutorService transferPool;
+    private BufferArena bufferArena;
+    private long transferMemoryBudget = BufferArena.DEFAULT_BUDGET;
+    private UploadPipeline uploadPipeline;
+
+    private int maxConcurrentTransfers = TransferLimiter.UNLIMITED;
+    private final TransferLimiter transferLimiter = new TransferLimiter(maxConcurrentTransfers);
+    private ReadAheadPipeline readAheadPipeline;
+
+    private UploadCommitter.DurabilityPolicy durabilityPolicy = UploadCommitter.DurabilityPolicy.GROUP_COMMIT;
+    private UploadCommitter uploadCommitter;
+
+    // Explicit FTPS (AUTH TLS); null when TLS is not configured.
+    private TlsContext tlsContext;
+    private boolean tlsRequired = false;
+
+    // Content-hash index for upload deduplication; null unless enabled.
+    private DedupIndex dedupIndex;
+    // Uploads in progress, for resuming them after a restart; null unless enabled.
+    private TransferJournal transferJournal;
+
+    private final ServerMetrics metrics = new ServerMetrics();
+    // Keeps sessions from reading files others are replacing; see setFailFastOnBusyFiles
+    private final PathLockManager pathLocks = new PathLockManager(metrics);
+    // Orders disk operations of all sessions by urgency; see setIoConcurrency()
+    private final IoScheduler ioScheduler = new IoScheduler(metrics);
+    // Shared mappings of files many clients download; see setHotFileCacheBudget()
+    private final HotFileCache hotFileCache = new HotFileCache(HotFileCache.DEFAULT_BUDGET, metrics);
+    private volatile boolean failFastOnBusyFiles = false;
+    // SITE BENCH; off unless turned on, e.g. in debug builds
+    private volatile boolean benchmarksEnabled = false;
+    // Runs one SITE BENCH at a time for the whole server; rejects a second one
+    private ThreadPoolExecutor benchmarkExecutor;
+    private final SessionRegistry sessions = new SessionRegistry();
+    // Samples the sessions' rates and transfers for the dashboard and the notification
+    private final ThroughputMonitor throughputMonitor = new ThroughputMonitor(sessions);
+    private volatile ActivityListener activityListener;
+    private volatile File traceDir;
+    private volatile MediaScanBatcher mediaScanBatcher;
+    private final AsciiConverter.SizeCache asciiSizeCache = new AsciiConverter.SizeCache();
+
+    // Read-only HTTP access to the same root; port 0 when disabled.
+    private int httpPort = 0;
+    private volatile HttpGateway httpGateway;
 
     public FTPServer(int port , String rootDir){
+        this(port, rootDir, null);
+    }
+
+    /**
+     * @param indexFile where the metadata index of {@code rootDir} is persisted between runs,
+     *                  or null to serve MDTM/MLST straight from the file system.
+     */
+    public FTPServer(int port , String rootDir, File indexFile){
+        this(port, new LocalFileSystem(rootDir), indexFile);
+    }
+
+    /**
+     * Serves {@code fileSystem}, e.g. a {@link MemoryFileSystem} for benchmarks or a
+     * {@link CachingFileSystem} in front of local storage.
+     *
+     * @param indexFile where the metadata index is persisted between runs, or null for none;
+     *                  only used if the file system is backed by local files.
+     */
+    public FTPServer(int port, VirtualFileSystem fileSystem, File indexFile){
         this.threadPool = Executors.newCachedThreadPool();
         this.port = port;
-        this.rootDir = rootDir;
+        try {
+            File localRoot = fileSystem.toLocalFile("/");
+            this.rootDir = localRoot != null ? localRoot.getPath() : null;
+        } catch (IOException e) {
+            System.err.println("File system root unavailable: " + e.getMessage());
+        }
+        // Only storage needs its lookups queued ahead of transfers
+        this.fileSystem = rootDir != null ? new ScheduledFileSystem(fileSystem, ioScheduler) : fileSystem;
+        if (indexFile != null && rootDir != null) {
+            try {
+                this.metadataIndex = new MetadataIndex(rootDir, indexFile);
+            } catch (IOException e) {
+                System.err.println("Metadata index disabled: " + e.getMessage());
+            }
+        }
     }
 
     public void Start() throws IOException{
-        serverSocket = new ServerSocket(port);
+        serverSocket = bindListener(getBindAddress());
         running = true;
         System.out.println("ftp running on port " + port);
+        if (metadataIndex != null) {
+            metadataIndex.start();
+        }
+        if (dedupIndex != null) {
+            dedupIndex.start();
+        }
+        if (transferJournal != null && rootDir != null) {
+            try {
+                for (File recovered : transferJournal.recover()) {
+                    notifyChanged(recovered);
+                }
+            } catch (IOException e) {
+                System.err.println("Transfer journal disabled: " + e.getMessage());
+            }
+        }
+        treeWalker = new TreeWalker(walkParallelism);
+        diskIoPool = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "ftp-disk-io");
+            t.setDaemon(true);
+            return t;
+        });
+        transferPool = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "ftp-transfer");
+            t.setDaemon(true);
+            return t;
+        });
+        benchmarkExecutor = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+            Thread t = new Thread(r, "ftp-benchmark");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+        bufferArena = new BufferArena(transferMemoryBudget, metrics);
+        uploadPipeline = new UploadPipeline(diskIoPool, bufferArena);
+        readAheadPipeline = new ReadAheadPipeline(diskIoPool, bufferArena);
+        uploadCommitter = new UploadCommitter(durabilityPolicy, diskIoPool);
+        throughputMonitor.start();
+        if (httpPort > 0) {
+            try {
+                httpGateway = new HttpGateway(this, httpPort);
+                httpGateway.start();
+            } catch (IOException e) {
+                httpGateway = null;
+                System.err.println("HTTP gateway disabled: " + e.getMessage());
+            }
+        }
 
         while (running){
+            ServerSocket listening = serverSocket;
             try{
-                Socket client = serverSocket.accept();
+                Socket client = listening.accept();
                 System.out.println("client connected: " + client.getRemoteSocketAddress());
-                threadPool.execute(new ClientHandler(client , username, password , rootDir));
+                threadPool.execute(new ClientHandler(client , this));
             }catch (IOException e){
+                if (running && serverSocket != listening) {
+                    continue; // closed by rebind(), continue on the new socket
+                }
                 System.err.println("Error accepting client connection: " + e.getMessage());
 
             }
@@ -56,14 +216,400 @@ public class FTPServer {
         if (threadPool != null && !threadPool.isShutdown()) {
             threadPool.shutdownNow(); // ✅ Don't call shutdown() on null
         }
+        if (httpGateway != null) {
+            httpGateway.stop();
+        }
+        // Interrupts don't unblock socket reads; closing the sessions' sockets does
+        sessions.killAll();
+        throughputMonitor.stop();
+        hotFileCache.trim();
+
+        if (metadataIndex != null) {
+            metadataIndex.close();
+        }
+        if (dedupIndex != null) {
+            dedupIndex.close();
+        }
+        if (transferJournal != null) {
+            transferJournal.close();
+        }
+        if (treeWalker != null) {
+            treeWalker.shutdown();
+        }
+        if (uploadCommitter != null) {
+            uploadCommitter.shutdown();
+        }
+        if (diskIoPool != null) {
+            diskIoPool.shutdownNow();
+        }
+        if (transferPool != null) {
+            transferPool.shutdownNow();
+        }
+        if (benchmarkExecutor != null) {
+            benchmarkExecutor.shutdownNow();
+        }
 
         serverSocket.close();
         System.out.println("FTP server stopped");
     }
 
 
+    /**
+     * Binds the FTP and HTTP listeners to {@code address} only, e.g. the Wi-Fi address so the
+     * server is not reachable over mobile data; null (the default) listens on all interfaces.
+     * Set before Start(); use {@link #rebind} while running.
+     */
+    public synchronized void setBindAddress(InetAddress address) {
+        this.bindAddress = address;
+    }
+
+    synchronized InetAddress getBindAddress() {
+        return bindAddress;
+    }
+
+    /**
+     * Moves listeners bound to a single address to {@code address}, e.g. after the device moved
+     * to another network. Listeners on all interfaces already accept connections on new
+     * addresses, so they are left alone, as are listeners already bound to {@code address}.
+     * The new socket is bound before the old one is closed, so clients are never refused in
+     * between. Sessions already connected are not touched. May block; don't call it on a
+     * callback thread.
+     *
+     * @return true if the listeners were moved.
+     */
+    public synchronized boolean rebind(InetAddress address) throws IOException {
+        if (!running || bindAddress == null || bindAddress.equals(address) || address == null) return false;
+        ServerSocket old = serverSocket;
+        serverSocket = bindListener(address);
+        bindAddress = address;
+        old.close(); // the accept loop moves on to the new socket
+        HttpGateway gateway = httpGateway;
+        if (gateway != null) {
+            try {
+                gateway.rebind(address);
+            } catch (IOException e) {
+                System.err.println("Cannot rebind HTTP gateway: " + e.getMessage());
+            }
+        }
+        metrics.increment("network.rebind");
+        System.out.println("ftp listener rebound to " + address.getHostAddress() + ":" + port);
+        return true;
+    }
+
+    private ServerSocket bindListener(InetAddress address) throws IOException {
+        ServerSocket fresh = new ServerSocket();
+        try {
+            fresh.setReuseAddress(true);
+            fresh.bind(new InetSocketAddress(address, port));
+        } catch (IOException e) {
+            fresh.close();
+            throw e;
+        }
+        return fresh;
+    }
+
     public boolean isRunning() {
     return  running;
     }
 
+    String getUsername() {
+        return username;
+    }
+
+    String getPassword() {
+        return password;
+    }
+
+    String getRootDir() {
+        return rootDir;
+    }
+
+    AsciiConverter.SizeCache getAsciiSizeCache() {
+        return asciiSizeCache;
+    }
+
+    VirtualFileSystem getFileSystem() {
+        return fileSystem;
+    }
+
+    MetadataIndex getMetadataIndex() {
+        return metadataIndex;
+    }
+
+    TreeWalker getTreeWalker() {
+        return treeWalker;
+    }
+
+    BufferArena getBufferArena() {
+        return bufferArena;
+    }
+
+    /**
+     * Caps the memory all transfers together may use for their buffers. Can be changed while
+     * the server is running.
+     */
+    public void setTransferMemoryBudget(long bytes) {
+        this.transferMemoryBudget = bytes;
+        if (bufferArena != null) bufferArena.setBudget(bytes);
+    }
+
+    /**
+     * Caps the bytes of files kept memory-mapped for concurrent and repeated downloads; 0
+     * turns the cache off. Can be changed while the server is running.
+     */
+    public void setHotFileCacheBudget(long bytes) {
+        hotFileCache.setBudget(bytes);
+    }
+
+    HotFileCache getHotFileCache() {
+        return hotFileCache;
+    }
+
+    long getTransferMemoryBudget() {
+        return transferMemoryBudget;
+    }
+
+    TransferLimiter getTransferLimiter() {
+        return transferLimiter;
+    }
+
+    int getMaxConcurrentTransfers() {
+        return maxConcurrentTransfers;
+    }
+
+    /** Caps how many RETR/STOR transfers may run at once; further ones wait for a slot. */
+    public void setMaxConcurrentTransfers(int max) {
+        this.maxConcurrentTransfers = Math.max(1, max);
+        transferLimiter.setLimit(maxConcurrentTransfers);
+    }
+
+    PathLockManager getPathLocks() {
+        return pathLocks;
+    }
+
+    IoScheduler getIoScheduler() {
+        return ioScheduler;
+    }
+
+    /**
+     * Caps how many disk operations of all sessions run at once, and how many of them may
+     * stream large files on one storage volume. Can be changed while the server is running.
+     */
+    public void setIoConcurrency(int maxConcurrent, int maxBulkPerVolume) {
+        ioScheduler.setMaxConcurrent(maxConcurrent);
+        ioScheduler.setMaxBulkPerVolume(maxBulkPerVolume);
+    }
+
+    /**
+     * Also serves the root read-only over HTTP on {@code port} (GET/HEAD with ranges, so
+     * browsers and video players can stream from it), or 0 for no HTTP. Set before Start().
+     */
+    public void setHttpPort(int port) {
+        this.httpPort = port;
+    }
+
+    /** The HTTP gateway's port, or 0 if it is not running. */
+    public int getHttpPort() {
+        HttpGateway gateway = httpGateway;
+        return gateway != null ? gateway.getPort() : 0;
+    }
+
+    boolean isFailFastOnBusyFiles() {
+        return failFastOnBusyFiles;
+    }
+
+    /**
+     * If true, a transfer, rename or delete of a file another session is writing (or, for
+     * writes, reading) is refused at once with 550 instead of waiting for it to finish.
+     */
+    public void setFailFastOnBusyFiles(boolean failFast) {
+        this.failFastOnBusyFiles = failFast;
+    }
+
+    boolean isBenchmarksEnabled() {
+        return benchmarksEnabled;
+    }
+
+    /**
+     * Allows SITE BENCH, which loads the CPU with a loopback TLS transfer. Meant for debug
+     * builds and measurements, not for servers open to untrusted clients.
+     */
+    public void setBenchmarksEnabled(boolean enabled) {
+        this.benchmarksEnabled = enabled;
+    }
+
+    ExecutorService getBenchmarkExecutor() {
+        return benchmarkExecutor;
+    }
+
+    UploadPipeline getUploadPipeline() {
+        return uploadPipeline;
+    }
+
+    ReadAheadPipeline getReadAheadPipeline() {
+        return readAheadPipeline;
+    }
+
+    ExecutorService getTransferPool() {
+        return transferPool;
+    }
+
+    UploadCommitter getUploadCommitter() {
+        return uploadCommitter;
+    }
+
+    TlsContext getTlsContext() {
+        return tlsContext;
+    }
+
+    boolean isTlsRequired() {
+        return tlsRequired && tlsContext != null;
+    }
+
+    /**
+     * Enables AUTH TLS / PBSZ / PROT with the given key material.
+     *
+     * @param required if true, USER is refused until the control connection is secured.
+     */
+    public void setTlsContext(TlsContext tlsContext, boolean required) {
+        this.tlsContext = tlsContext;
+        this.tlsRequired = required;
+    }
+
+    /** Connected sessions, for listing them and for killing or throttling one. */
+    public SessionRegistry getSessions() {
+        return sessions;
+    }
+
+    /** Live rates and transfer progress of the connected sessions. */
+    public ThroughputMonitor getThroughputMonitor() {
+        return throughputMonitor;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setActivityListener(ActivityListener listener) {
+        this.activityListener = listener;
+    }
+
+    /**
+     * Records a {@link SessionTrace} of every session that connects from now on into
+     * {@code dir}, for replaying with {@code TraceReplayer}. Null turns recording off.
+     */
+    public void setTraceDirectory(File dir) {
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalArgumentException("Cannot create trace directory " + dir);
+        }
+        this.traceDir = dir;
+    }
+
+    /** A new trace file for the session, or null when tracing is off. */
+    SessionTrace openTrace(ClientSession session) throws IOException {
+        File dir = traceDir;
+        if (dir == null) return null;
+        String name = "session-" + session.getConnectedAt() + "-" + session.getId() + SessionTrace.FILE_SUFFIX;
+        return new SessionTrace(new File(dir, name));
+    }
+
+    /**
+     * Reports every file clients add, change or remove to the media library through
+     * {@code batcher}, so uploaded photos and videos appear in the gallery. Null turns it off.
+     */
+    public void setMediaScanBatcher(MediaScanBatcher batcher) {
+        this.mediaScanBatcher = batcher;
+    }
+
+    void commandReceived() {
+        ActivityListener l = activityListener;
+        if (l != null) l.onCommand();
+    }
+
+    void transferStarted() {
+        metrics.increment("transfers.started");
+        ActivityListener l = activityListener;
+        if (l != null) l.onTransferStarted();
+    }
+
+    void transferFinished() {
+        ActivityListener l = activityListener;
+        if (l != null) l.onTransferFinished();
+    }
+
+    DedupIndex getDedupIndex() {
+        return dedupIndex;
+    }
+
+    /**
+     * Turns on upload deduplication: uploads are hashed while they stream in and content we
+     * already hold on the same volume is hard linked instead of stored twice. Call before Start().
+     * Refused when the served root cannot hold hard links (shared storage behind FUSE, SD
+     * cards), where every upload would be hashed for links that always fail.
+     *
+     * @param storeFile where the hash to path index is persisted.
+     * @return whether deduplication was turned on.
+     */
+    public boolean enableDeduplication(File storeFile) {
+        if (rootDir == null) return false;
+        MountTable.Mount mount = MountTable.find(new File(rootDir));
+        if (mount != null && !mount.supportsHardLinks()) {
+            System.err.println("Deduplication disabled: " + rootDir + " is on " + mount.type);
+            return false;
+        }
+        this.dedupIndex = new DedupIndex(storeFile);
+        return true;
+    }
+
+    /**
+     * Journals uploads in progress in {@code journalFile}, so the ones a killed process left
+     * behind can be resumed once the server starts again. Set before Start().
+     */
+    public void enableTransferJournal(File journalFile) {
+        this.transferJournal = new TransferJournal(journalFile);
+    }
+
+    TransferJournal getTransferJournal() {
+        return transferJournal;
+    }
+
+    /**
+     * Selects how completed uploads are synced to storage before the 226 reply.
+     * Can be changed while the server is running; applies to uploads finishing afterwards.
+     */
+    public void setDurabilityPolicy(UploadCommitter.DurabilityPolicy policy) {
+        this.durabilityPolicy = policy;
+        if (uploadCommitter != null) uploadCommitter.setPolicy(policy);
+    }
+
+    /**
+     * Sets how many threads SITE DU / SITE FIND walks may use. Takes effect on the next Start().
+     */
+    public void setWalkParallelism(int parallelism) {
+        this.walkParallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Called by sessions after they changed something under the root, so every cache
+     * derived from the tree is brought up to date.
+     */
+    void notifyChanged(File file) {
+        hotFileCache.invalidate(file);
+        File canonical;
+        try {
+            canonical = file.getCanonicalFile();
+        } catch (IOException e) {
+            canonical = file.getAbsoluteFile();
+        }
+        if (metadataIndex != null) metadataIndex.notifyChanged(canonical);
+        if (treeWalker != null) treeWalker.invalidate(canonical);
+        String path = canonical.getPath();
+        if (rootDir != null && (path.equals(rootDir) || path.startsWith(rootDir + File.separator))) {
+            String relative = path.substring(rootDir.length()).replace(File.separatorChar, '/');
+            fileSystem.invalidate(relative.isEmpty() ? "/" : relative);
+        }
+        MediaScanBatcher scanner = mediaScanBatcher;
+        if (scanner != null) scanner.enqueue(canonical);
+    }
+
 }
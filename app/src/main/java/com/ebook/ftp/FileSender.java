@@ -0,0 +1,114 @@
+package com.ebook.ftp;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+import javax.net.ssl.SSLSocket;
+
+/**
+ * The download data path shared by FTP RETR and HTTP GET: zero-copy where the kernel can do
+ * it, read-ahead otherwise, with the session's byte count and throttle applied either way.
+ */
+final class FileSender {
+
+    private static final long SENDFILE_CHUNK = 1024 * 1024;
+    private static final long THROTTLED_SENDFILE_CHUNK = 64 * 1024;
+    // Writes from a cached mapping check the file's size once per chunk
+    private static final int MAPPED_CHUNK = 256 * 1024;
+
+    private FileSender() {
+    }
+
+    /**
+     * Streams {@code count} bytes of a file (fewer if it ends first), starting at
+     * {@code position}, to {@code socket}.
+     *
+     * <p>Files on a local file system are sent with {@link FileChannel#transferTo}, which the
+     * kernel turns into sendfile() so the bytes never enter the Java heap. For FUSE-mounted
+     * storage and SD cards, where that gains nothing, the read-ahead pipeline prefetches the
+     * next chunks on a disk thread while the current one is on the wire, each chunk read as an
+     * operation of {@code io}. sendfile() is not scheduled: it cannot be split into a disk and
+     * a network part, and a permit held across it would wait on a slow client.
+     *
+     * <p>On the read-ahead path, a file several clients are downloading is sent from its
+     * shared mapping in {@code hotFiles} instead, so the sessions do not each read it.
+     *
+     * @param hotFiles the cache of files downloaded by many, or null for none.
+     * @return the number of bytes sent.
+     */
+    static long send(File file, FileChannel source, long position, long count, Socket socket,
+                     ClientSession session, ReadAheadPipeline readAhead, IoScheduler.Request io,
+                     HotFileCache hotFiles) throws IOException {
+        SocketChannel socketChannel = plainChannel(socket);
+        MountTable.Mount mount = MountTable.find(file);
+
+        if (socketChannel != null && mount != null && !mount.isSlowBackend()) {
+            long end = Math.min(source.size(), count > Long.MAX_VALUE - position ? Long.MAX_VALUE : position + count);
+            long pos = position;
+            while (pos < end) {
+                // Bounded chunks so the session's byte count and throttle stay live
+                long chunk = session.getThrottle() > 0 ? THROTTLED_SENDFILE_CHUNK : SENDFILE_CHUNK;
+                long n = source.transferTo(pos, Math.min(chunk, end - pos), socketChannel);
+                if (n <= 0) break; // file shrank underneath us
+                pos += n;
+                session.addBytesOut(n);
+                session.throttle(n);
+            }
+            return pos - position;
+        }
+
+        if (hotFiles == null) {
+            return readAhead.transfer(source, position, count, channelOf(socket, session), io);
+        }
+        try (HotFileCache.Lease hot = hotFiles.open(file, source)) {
+            ByteBuffer mapped = hot.content();
+            if (mapped == null) {
+                return readAhead.transfer(source, position, count, channelOf(socket, session), io);
+            }
+            return sendMapped(mapped, position, count, source, channelOf(socket, session), hot);
+        }
+    }
+
+    /**
+     * Writes a range of a cached mapping of {@code source}. A mapped file that is cut short
+     * would fault on the pages past its end, so the file's size is checked before each chunk
+     * and the send stops, like sendfile() does, if the file shrank.
+     */
+    private static long sendMapped(ByteBuffer mapped, long position, long count, FileChannel source,
+                                   WritableByteChannel out, HotFileCache.Lease hot) throws IOException {
+        long end = Math.min(mapped.capacity(), count > Long.MAX_VALUE - position ? Long.MAX_VALUE : position + count);
+        long pos = position;
+        while (pos < end) {
+            int chunkEnd = (int) Math.min(end, pos + MAPPED_CHUNK);
+            if (source.size() < chunkEnd) {
+                hot.invalidate();
+                break;
+            }
+            mapped.limit(chunkEnd);
+            mapped.position((int) pos);
+            while (mapped.hasRemaining()) {
+                out.write(mapped);
+            }
+            pos = chunkEnd;
+        }
+        return Math.max(0, pos - position);
+    }
+
+    /** Metered channel view of a socket; its own channel unless TLS is layered on it. */
+    static WritableByteChannel channelOf(Socket socket, ClientSession session) throws IOException {
+        SocketChannel socketChannel = plainChannel(socket);
+        WritableByteChannel raw = socketChannel != null ? socketChannel : Channels.newChannel(socket.getOutputStream());
+        return MeteredChannels.out(raw, session);
+    }
+
+    // A layered TLS socket may still report the plain socket's channel: never bypass TLS
+    private static SocketChannel plainChannel(Socket socket) {
+        return socket instanceof SSLSocket ? null : socket.getChannel();
+    }
+}
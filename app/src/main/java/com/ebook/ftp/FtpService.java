@@ -7,10 +7,13 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.ApplicationInfo;
 import android.net.wifi.WifiManager;
 import android.os.Build;
 import android.os.Environment;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.PowerManager;
 import android.util.Log;
 import android.widget.Toast;
@@ -20,7 +23,11 @@ import androidx.core.app.NotificationCompat;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.SocketException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class FtpService extends Service {
 
@@ -29,8 +36,17 @@ public class FtpService extends Service {
     private static final int NOTIFICATION_ID = 1;
     public static final String ACTION_START = "com.ebook.ftp.ACTION_START";
     public static final String ACTION_STOP = "com.ebook.ftp.ACTION_STOP";
+    // Boolean extra of ACTION_START: record a SessionTrace of every session for TraceReplayer
+    public static final String EXTRA_TRACE_SESSIONS = "com.ebook.ftp.EXTRA_TRACE_SESSIONS";
+    // Boolean extra of ACTION_START: also serve the root over HTTP on HttpGateway.DEFAULT_PORT
+    public static final String EXTRA_HTTP_GATEWAY = "com.ebook.ftp.EXTRA_HTTP_GATEWAY";
+    // Boolean extra of ACTION_START: hard link uploads whose content is already stored
+    public static final String EXTRA_DEDUPLICATE = "com.ebook.ftp.EXTRA_DEDUPLICATE";
 
-    private FTPServer ftpServer;
+    private volatile FTPServer ftpServer;
+
+    // The server of the running service, for the activity's session panel
+    private static volatile FTPServer runningServer;
 
 //    FTP server runs in separate thread to avoid blocking the main UI thread
     private Thread serverThread;
@@ -41,11 +57,41 @@ public class FtpService extends Service {
     //Keeps CPU awake
     private PowerManager.WakeLock wakeLock; // Optional, but can help further
 
+    // Holds the two locks above only while clients are active
+    private PowerLockManager powerLockManager;
+
+    // Reports uploaded media to the media library in batches
+    private MediaScanBatcher mediaScanBatcher;
+
+    // Sheds caches and concurrency when the system runs low on memory
+    private volatile ResourceGovernor resourceGovernor;
+
+    private NetworkMonitor networkMonitor;
+    private final NetworkMonitor.Listener networkListener = this::onAddressesChanged;
+    // Moves the listeners after network changes, off the connectivity callback thread
+    private final ExecutorService rebinder = Executors.newSingleThreadExecutor(r -> new Thread(r, "ftp-rebind"));
+
+    // The notification's rate summary is refreshed this often at most, and only when it changed
+    private static final long NOTIFICATION_REFRESH_MS = 2000;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable notificationRefresher = new Runnable() {
+        @Override
+        public void run() {
+            refreshNotification();
+            mainHandler.postDelayed(this, NOTIFICATION_REFRESH_MS);
+        }
+    };
+    // What the notification shows; only touched on the main thread
+    private String notifiedAddress;
+    private String notifiedSummary;
+
     @Override
     public void onCreate() {
         super.onCreate();
         createNotificationChannel();
-        acquireLocks();
+        createLocks();
+        networkMonitor = NetworkMonitor.get(this);
+        networkMonitor.addListener(networkListener);
         Log.d(TAG, "FTP Service Created.");
     }
 
@@ -54,7 +100,9 @@ public class FtpService extends Service {
         if (intent != null && intent.getAction() != null) {
             switch (intent.getAction()) {
                 case ACTION_START:
-                    startFtpServer();
+                    startFtpServer(intent.getBooleanExtra(EXTRA_TRACE_SESSIONS, false),
+                            intent.getBooleanExtra(EXTRA_HTTP_GATEWAY, false),
+                            intent.getBooleanExtra(EXTRA_DEDUPLICATE, false));
                     break;
                 case ACTION_STOP:
                     stopFtpServer();
@@ -64,36 +112,50 @@ public class FtpService extends Service {
         return START_STICKY;
     }
 
-    private void startFtpServer() {
+    private void startFtpServer(boolean traceSessions, boolean httpGateway, boolean deduplicate) {
         if (ftpServer != null && ftpServer.isRunning()) {
             Log.w(TAG, "FTP Server is already running.");
             Toast.makeText(this, "FTP Server is already running", Toast.LENGTH_SHORT).show();
             return;
         }
 
-        Intent notificationIntent = new Intent(this, MainActivity.class);
-        PendingIntent pendingIntent = PendingIntent.getActivity(this, 0, notificationIntent, PendingIntent.FLAG_IMMUTABLE);
-
-        String ipAddress = IpUtils.getLocalIpAddress();
-        String notificationText = (ipAddress != null)
-                ? "FTP Server Running at ftp://" + ipAddress + ":2121"
-                : "FTP Server Running...";
-
-        Notification notification = new NotificationCompat.Builder(this, CHANNEL_ID)
-                .setContentTitle("FTP Server Active")
-                .setContentText(notificationText)
-                .setSmallIcon(R.drawable.ftp)
-                .setContentIntent(pendingIntent)
-                .setOngoing(true) // Makes it non-dismissible
-                .build();
-
-        startForeground(NOTIFICATION_ID, notification);
+        notifiedAddress = IpUtils.getLocalIpAddress();
+        notifiedSummary = null;
+        startForeground(NOTIFICATION_ID, buildNotification(notifiedAddress, null));
         Log.d(TAG, "Service started in foreground.");
 
         serverThread = new Thread(() -> {
             try {
                 String rootPath = Environment.getExternalStorageDirectory().getAbsolutePath();
-                ftpServer = new FTPServer(2121, rootPath);
+                ftpServer = new FTPServer(2121, rootPath, new File(getFilesDir(), "metadata.idx"));
+                if (deduplicate && !ftpServer.enableDeduplication(new File(getFilesDir(), "dedup.idx"))) {
+                    Log.w(TAG, "Deduplication unavailable: " + rootPath + " cannot hold hard links");
+                }
+                ftpServer.enableTransferJournal(new File(getFilesDir(), "transfers.journal"));
+                mediaScanBatcher = new MediaScanBatcher(this, ftpServer.getMetrics());
+                ftpServer.setMediaScanBatcher(mediaScanBatcher);
+                if (traceSessions) {
+                    // App-specific external storage, so the traces can be pulled with adb
+                    File traceDir = getExternalFilesDir("traces");
+                    ftpServer.setTraceDirectory(traceDir);
+                    Log.i(TAG, "Recording session traces to " + traceDir);
+                }
+                if (httpGateway) {
+                    ftpServer.setHttpPort(HttpGateway.DEFAULT_PORT);
+                }
+                powerLockManager = new PowerLockManager(wakeLock, wifiLock, ftpServer.getMetrics(),
+                        PowerLockManager.DEFAULT_IDLE_GRACE_MS);
+                ftpServer.setActivityListener(powerLockManager);
+                // SITE BENCH only for development builds
+                ftpServer.setBenchmarksEnabled((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0);
+                resourceGovernor = new ResourceGovernor(ftpServer);
+                try {
+                    ftpServer.setTlsContext(TlsContext.fromAndroidKeyStore("ftps-server"), false);
+                } catch (Exception e) {
+                    Log.e(TAG, "FTPS unavailable, serving plaintext only: " + e.getMessage(), e);
+                }
+                runningServer = ftpServer;
+                mainHandler.post(notificationRefresher);
                 Log.i(TAG, "Starting FTP Server on port 2121 with root: " + rootPath);
                 ftpServer.Start();
                 Log.i(TAG, "FTP Server Start() method finished.");
@@ -112,11 +174,25 @@ public class FtpService extends Service {
 
     private void stopFtpServer() {
         Log.d(TAG, "Attempting to stop FTP Server.");
+        mainHandler.removeCallbacks(notificationRefresher);
         new Thread(() -> {
             try {
                 if (ftpServer != null && ftpServer.isRunning()) {
+                    runningServer = null;
                     ftpServer.stop();
                     ftpServer = null;
+                    if (powerLockManager != null) {
+                        powerLockManager.shutdown();
+                        powerLockManager = null;
+                    }
+                    if (resourceGovernor != null) {
+                        resourceGovernor.shutdown();
+                        resourceGovernor = null;
+                    }
+                    if (mediaScanBatcher != null) {
+                        mediaScanBatcher.shutdown(); // submits what is still queued
+                        mediaScanBatcher = null;
+                    }
                     Log.i(TAG, "FTP Server Stopped.");
                 } else {
                     Log.w(TAG, "FTP Server was not running or null.");
@@ -137,6 +213,91 @@ public class FtpService extends Service {
     }
 
 
+    /** The running server, or null when the service is not serving. */
+    @Nullable
+    public static FTPServer getRunningServer() {
+        FTPServer server = runningServer;
+        return server != null && server.isRunning() ? server : null;
+    }
+
+    /**
+     * @param summary the clients and rates line from {@link #rateSummary}, or null while no
+     *                client is connected.
+     */
+    private Notification buildNotification(String ipAddress, @Nullable String summary) {
+        Intent notificationIntent = new Intent(this, MainActivity.class);
+        PendingIntent pendingIntent = PendingIntent.getActivity(this, 0, notificationIntent, PendingIntent.FLAG_IMMUTABLE);
+
+        String notificationText = (ipAddress != null)
+                ? "FTP Server Running at ftp://" + ipAddress + ":2121"
+                : "FTP Server Running...";
+
+        return new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setContentTitle(summary != null ? summary : "FTP Server Active")
+                .setContentText(notificationText)
+                .setSmallIcon(R.drawable.ftp)
+                .setContentIntent(pendingIntent)
+                .setOngoing(true) // Makes it non-dismissible
+                .setOnlyAlertOnce(true)
+                .build();
+    }
+
+    /**
+     * Shows the latest throughput snapshot in the notification. Runs on the main thread every
+     * {@link #NOTIFICATION_REFRESH_MS} while the server runs, and only posts an update when
+     * the text changed, so an idle server does not touch the notification at all.
+     */
+    private void refreshNotification() {
+        FTPServer server = ftpServer;
+        if (server == null || !server.isRunning()) return;
+        String summary = rateSummary(server.getThroughputMonitor().getSnapshot());
+        if (summary == null ? notifiedSummary == null : summary.equals(notifiedSummary)) return;
+        notifiedSummary = summary;
+        NotificationManager manager = getSystemService(NotificationManager.class);
+        if (manager != null) {
+            manager.notify(NOTIFICATION_ID, buildNotification(notifiedAddress, summary));
+        }
+    }
+
+    // E.g. "2 clients · ↓ 4.2 MB/s ↑ 0 B/s"; null without clients.
+    @Nullable
+    private static String rateSummary(ThroughputMonitor.Snapshot snapshot) {
+        int clients = snapshot.sessions.size();
+        if (clients == 0) return null;
+        return clients + (clients == 1 ? " client" : " clients")
+                + " \u00b7 \u2193 " + ThroughputMonitor.formatBytes((long) snapshot.bytesInPerSecond) + "/s"
+                + " \u2191 " + ThroughputMonitor.formatBytes((long) snapshot.bytesOutPerSecond) + "/s";
+    }
+
+    /**
+     * Called by the {@link NetworkMonitor} when the device's local addresses change. Refreshes
+     * the notification and, once the device is on a network again, moves listeners bound to a
+     * single address to the new one so clients on the new network can connect without
+     * restarting the server. Listeners on all interfaces need no rebinding.
+     */
+    private void onAddressesChanged(List<InetAddress> addresses) {
+        FTPServer server = ftpServer;
+        if (server == null || !server.isRunning()) return;
+        InetAddress primary = addresses.isEmpty() ? null : addresses.get(0);
+        String address = primary != null ? primary.getHostAddress() : null;
+        mainHandler.post(() -> {
+            notifiedAddress = address;
+            NotificationManager manager = getSystemService(NotificationManager.class);
+            if (manager != null) {
+                manager.notify(NOTIFICATION_ID, buildNotification(address, notifiedSummary));
+            }
+        });
+        if (primary != null) {
+            rebinder.execute(() -> {
+                try {
+                    server.rebind(primary);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to rebind FTP listener: " + e.getMessage(), e);
+                }
+            });
+        }
+    }
+
     /**
      * Creates a notification channel for the FTP server service.
      * This method is only executed if the Android version is Oreo (API level 26) or higher,
@@ -158,35 +319,23 @@ public class FtpService extends Service {
     }
 
     /**
-     * Acquires the necessary system locks to ensure the FTP server can run reliably
-     * in the background.
+     * Creates the system locks that keep the FTP server reliable while it is serving clients.
      *
-     * This method attempts to acquire:
+     * This method creates, but does not acquire:
      * 1. **Wi-Fi Lock (WIFI_MODE_FULL_HIGH_PERF):**
-     *    - Prevents the Wi-Fi radio from turning off or going into a low-power state
-     *      while the FTP server is active. This is crucial for maintaining network
-     *      connectivity.
-     *    - The lock is set to not be reference-counted, meaning its lifecycle is
-     *      managed explicitly by this service (acquired here and released in `releaseLocks`).
+     *    - Keeps the Wi-Fi radio out of its power save mode so transfers run at full speed.
      * 2. **Partial Wake Lock (PARTIAL_WAKE_LOCK):**
-     *    - Ensures that the CPU continues to run even if the screen turns off.
-     *      This allows the FTP server to continue processing requests and transferring
-     *      files in the background.
-     *    - Similar to the Wi-Fi lock, it's not reference-counted.
-     *    - **Note:** The `wakeLock.acquire()` call is currently commented out. This
-     *      suggests it might be acquired conditionally elsewhere or was part of a
-     *      previous implementation. If background operation without the screen on is
-     *      required, this line should be uncommented.
+     *    - Keeps the CPU running while the screen is off so a transfer is not suspended.
      *
-     * Logs are generated to indicate the success or failure of acquiring each lock.
+     * Both are handed to a {@link PowerLockManager} when the server starts, which holds them
+     * only while commands or transfers are active and releases them after an idle grace
+     * period. Holding them for the whole life of the service costs hours of battery.
      */
-    private void acquireLocks() {
+    private void createLocks() {
         WifiManager wifiManager = (WifiManager) getApplicationContext().getSystemService(Context.WIFI_SERVICE);
         if (wifiManager != null) {
             wifiLock = wifiManager.createWifiLock(WifiManager.WIFI_MODE_FULL_HIGH_PERF, "FtpService:WifiLock");
             wifiLock.setReferenceCounted(false); // We manage its lifecycle
-            wifiLock.acquire();
-            Log.d(TAG, "WifiLock acquired.");
         } else {
             Log.w(TAG, "WifiManager not available.");
         }
@@ -195,32 +344,57 @@ public class FtpService extends Service {
         if (powerManager != null) {
             wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "FtpService:WakeLock");
             wakeLock.setReferenceCounted(false);
-            // wakeLock.acquire();
-            // Log.d(TAG, "WakeLock acquired.");
         }
     }
 
     // Release locks when service is destroyed
     private void releaseLocks() {
+        if (powerLockManager != null) {
+            powerLockManager.shutdown();
+            powerLockManager = null;
+        }
         if (wifiLock != null && wifiLock.isHeld()) {
             wifiLock.release();
-            wifiLock = null;
             Log.d(TAG, "WifiLock released.");
         }
+        wifiLock = null;
         if (wakeLock != null && wakeLock.isHeld()) {
             wakeLock.release();
-            wakeLock = null;
             Log.d(TAG, "WakeLock released.");
         }
+        wakeLock = null;
+    }
+
+    /**
+     * Forwards memory pressure to the {@link ResourceGovernor} so the server gets leaner, and
+     * slower, instead of the system killing the process in the middle of a transfer.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        ResourceGovernor governor = resourceGovernor;
+        if (governor != null) governor.onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        ResourceGovernor governor = resourceGovernor;
+        if (governor != null) governor.onLowMemory();
     }
 
     @Override
     public void onDestroy() {
         Log.d(TAG, "FTP Service Destroyed.");
+        mainHandler.removeCallbacks(notificationRefresher);
         if (ftpServer != null && ftpServer.isRunning()) {
             stopFtpServer();
         }
         releaseLocks();
+        if (networkMonitor != null) {
+            networkMonitor.removeListener(networkListener);
+        }
+        rebinder.shutdownNow();
         super.onDestroy();
     }
 
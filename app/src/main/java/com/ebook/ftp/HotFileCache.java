@@ -0,0 +1,222 @@
+package com.ebook.ftp;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves files that many clients download at once, or one after another, from a single
+ * read-only memory mapping, so N downloads of the same file read it from storage about once
+ * instead of N times. Meant for the read-ahead path of {@link FileSender} (FUSE storage, SD
+ * cards and TLS), where every session would otherwise read the file for itself; plain
+ * sendfile() already shares the kernel's page cache.
+ *
+ * <p>A file becomes hot when it is opened while another download of it is running, or again
+ * within {@link #HOT_WINDOW_MS} of the last one. Hot files are mapped whole and kept in
+ * least recently used order within a budget of mapped bytes. Every download holds a
+ * {@link Lease}; a mapping in use is never evicted, so when the budget is taken up by
+ * mappings in use a new hot file is simply read as usual. A mapping is only used while the
+ * file's size and modification time are those it was mapped at; changes the server makes
+ * itself are reported to {@link #invalidate}. A mapping dropped while downloads still use it
+ * is retired: later downloads no longer get it, but it counts against the budget until its
+ * last lease is closed, after which its memory is returned once the mapping is collected.
+ */
+public class HotFileCache {
+
+    private static final String TAG = "FTP_HotFileCache";
+
+    public static final long DEFAULT_BUDGET = 512L * 1024 * 1024;
+    // Smaller files are read faster than a mapping is set up
+    public static final long MIN_FILE_SIZE = 1024 * 1024;
+    public static final long HOT_WINDOW_MS = TimeUnit.MINUTES.toMillis(1);
+    // Files whose downloads are counted; the least recently opened are forgotten first
+    private static final int MAX_TRACKED = 1024;
+
+    /** One download of a file; close it when the download ends. */
+    public final class Lease implements AutoCloseable {
+        private final Usage usage;
+        private final Entry entry;
+        private boolean closed = false;
+
+        private Lease(Usage usage, Entry entry) {
+            this.usage = usage;
+            this.entry = entry;
+        }
+
+        /** The whole file, mapped, with its own position and limit; null if the file is not cached. */
+        public ByteBuffer content() {
+            return entry != null ? entry.buffer.duplicate() : null;
+        }
+
+        /** Drops the mapping for later downloads, e.g. after the file was found shorter than it. */
+        public void invalidate() {
+            if (entry == null) return;
+            synchronized (HotFileCache.this) {
+                if (entries.get(entry.path) == entry) drop(entry);
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (HotFileCache.this) {
+                if (closed) return;
+                closed = true;
+                usage.readers--;
+                if (entry != null && --entry.refs == 0 && entry.retired) {
+                    mappedBytes -= entry.size;
+                    metrics.set("hotcache.mapped_bytes", mappedBytes);
+                }
+            }
+        }
+    }
+
+    private static final class Entry {
+        final String path;
+        final long size;
+        final long modified;
+        final MappedByteBuffer buffer;
+        // Leases using the mapping
+        int refs = 0;
+        // No longer handed out, but still counted until the last lease is closed
+        boolean retired = false;
+
+        Entry(String path, long size, long modified, MappedByteBuffer buffer) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.buffer = buffer;
+        }
+    }
+
+    private static final class Usage {
+        int readers = 0;
+        long lastOpenMs;
+    }
+
+    private final ServerMetrics metrics;
+    // All guarded by this
+    private long budget;
+    private long mappedBytes = 0;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Usage> usage = new LinkedHashMap<String, Usage>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Usage> eldest) {
+            return size() > MAX_TRACKED;
+        }
+    };
+
+    public HotFileCache(long budget, ServerMetrics metrics) {
+        this.budget = budget;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Starts a download of {@code file}, open as {@code source}. The lease has the file's
+     * mapping if the file is hot and fits the budget, mapping it now if need be.
+     */
+    public Lease open(File file, FileChannel source) throws IOException {
+        String path = file.getPath();
+        long size = source.size();
+        long modified = file.lastModified();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            Usage u = usage.get(path);
+            boolean hot = u != null && (u.readers > 0 || now - u.lastOpenMs < HOT_WINDOW_MS);
+            if (u == null) {
+                u = new Usage();
+                usage.put(path, u);
+            }
+            u.readers++;
+            u.lastOpenMs = now;
+
+            Entry entry = entries.get(path);
+            if (entry != null && (entry.size != size || entry.modified != modified)) {
+                metrics.increment("hotcache.stale");
+                drop(entry);
+                entry = null;
+            }
+            if (entry == null && hot) entry = map(path, source, size, modified);
+            if (entry == null) return new Lease(u, null);
+            entry.refs++;
+            metrics.increment("hotcache.hits");
+            return new Lease(u, entry);
+        }
+    }
+
+    /** Drops the mapping of a file that was changed, so it is not kept until it is next opened. */
+    public synchronized void invalidate(File file) {
+        Entry entry = entries.get(file.getPath());
+        if (entry != null) drop(entry);
+    }
+
+    /** The most bytes kept mapped; 0 turns the cache off. Can be changed at any time. */
+    public synchronized void setBudget(long budget) {
+        this.budget = Math.max(0, budget);
+        makeRoom(0);
+    }
+
+    /** Drops every mapping not in use, e.g. under memory pressure. */
+    public synchronized void trim() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.refs > 0) continue;
+            it.remove();
+            mappedBytes -= entry.size;
+        }
+        metrics.set("hotcache.mapped_bytes", mappedBytes);
+    }
+
+    // Maps a hot file if it is worth it and room can be made; null otherwise.
+    private Entry map(String path, FileChannel source, long size, long modified) {
+        if (size < MIN_FILE_SIZE || size > Integer.MAX_VALUE || !makeRoom(size)) return null;
+        MappedByteBuffer buffer;
+        try {
+            // Only sets up the mapping; the first download's page faults read the file
+            buffer = source.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (IOException e) {
+            // Out of address space, or storage that cannot be mapped
+            Log.w(TAG, "Cannot map " + path + ": " + e.getMessage());
+            return null;
+        }
+        Entry entry = new Entry(path, size, modified, buffer);
+        entries.put(path, entry);
+        mappedBytes += size;
+        metrics.increment("hotcache.maps");
+        metrics.set("hotcache.mapped_bytes", mappedBytes);
+        return entry;
+    }
+
+    // Evicts unused mappings, least recently used first, until size more bytes fit the budget.
+    private boolean makeRoom(long size) {
+        Iterator<Entry> it = entries.values().iterator();
+        while (mappedBytes + size > budget && it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.refs > 0) continue;
+            it.remove();
+            mappedBytes -= entry.size;
+            metrics.increment("hotcache.evictions");
+        }
+        metrics.set("hotcache.mapped_bytes", mappedBytes);
+        return mappedBytes + size <= budget;
+    }
+
+    // Stops handing out a mapping; its bytes stay counted while leases still read it.
+    private void drop(Entry entry) {
+        entries.remove(entry.path);
+        if (entry.refs > 0) {
+            entry.retired = true;
+            return;
+        }
+        mappedBytes -= entry.size;
+        metrics.set("hotcache.mapped_bytes", mappedBytes);
+    }
+}
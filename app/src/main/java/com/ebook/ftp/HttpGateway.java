@@ -0,0 +1,686 @@
+package com.ebook.ftp;
+
+import android.util.Base64;
+import android.util.Log;
+import android.webkit.MimeTypeMap;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Read-only HTTP/1.1 access to the FTP server's root, for browsers and video players.
+ *
+ * <p>Serves GET and HEAD with single byte ranges (so players can seek without downloading the
+ * whole file), ETag revalidation, and HTML directory listings streamed with chunked encoding
+ * (to HTTP/1.0 clients, which don't know it, unframed up to the end of the connection).
+ * Connections are kept alive between requests. Requests are authenticated with HTTP Basic
+ * against the FTP credentials and confined to the root like FTP paths are.
+ *
+ * <p>File bodies go through the FTP download path ({@link FileSender}): sendfile on local
+ * storage, read-ahead on slow backends, buffers from the server's arena. Each connection is a
+ * session in the server's registry, so it is listed, counted, throttled and killed like an FTP
+ * client, and downloads share the FTP transfer limit and file locks.
+ */
+public class HttpGateway {
+
+    private static final String TAG = "FTP_HttpGateway";
+
+    public static final int DEFAULT_PORT = 8080;
+
+    private static final int MAX_HEADER_BYTES = 16 * 1024;
+    private static final int KEEP_ALIVE_TIMEOUT_MS = 15_000;
+    private static final int MAX_REQUESTS_PER_CONNECTION = 1000;
+    private static final long TRANSFER_SLOT_TIMEOUT_MS = 30_000;
+    private static final long PATH_LOCK_TIMEOUT_MS = 30_000;
+    private static final String SERVER_NAME = "AndroidFTP-HTTP";
+
+    private final FTPServer server;
+    private final int port;
+    private final File root;
+    private volatile ServerSocket serverSocket;
+    private volatile boolean running = false;
+    private ExecutorService pool;
+
+    public HttpGateway(FTPServer server, int port) throws IOException {
+        this.server = server;
+        this.port = port;
+        if (server.getRootDir() == null) throw new IOException("The file system is not backed by local files.");
+        this.root = new File(server.getRootDir()).getCanonicalFile();
+    }
+
+    /** Binds the port and starts accepting connections on a background thread. */
+    public synchronized void start() throws IOException {
+        if (running) return;
+        serverSocket = bindListener(server.getBindAddress());
+        pool = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "ftp-http");
+            t.setDaemon(true);
+            return t;
+        });
+        running = true;
+        pool.execute(this::acceptLoop);
+        Log.i(TAG, "HTTP gateway listening on port " + port);
+    }
+
+    /**
+     * Moves the listener to {@code address}; the new socket is bound before the old one is
+     * closed. Called by {@link FTPServer#rebind}, which decides whether a move is needed.
+     */
+    synchronized void rebind(InetAddress address) throws IOException {
+        if (!running) return;
+        ServerSocket old = serverSocket;
+        serverSocket = bindListener(address);
+        old.close(); // the accept loop moves on to the new socket
+        Log.i(TAG, "HTTP gateway rebound to " + address.getHostAddress() + ":" + port);
+    }
+
+    private ServerSocket bindListener(InetAddress address) throws IOException {
+        // Channel-backed so accepted sockets support transferTo()/sendfile()
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.socket().setReuseAddress(true);
+            channel.socket().bind(new InetSocketAddress(address, port));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel.socket();
+    }
+
+    public synchronized void stop() {
+        if (!running) return;
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing HTTP listener: " + e.getMessage());
+        }
+        pool.shutdownNow();
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            ServerSocket listening = serverSocket;
+            try {
+                Socket client = listening.accept();
+                pool.execute(new Connection(client));
+            } catch (IOException e) {
+                if (running && serverSocket != listening) continue; // closed by rebind()
+                if (running) Log.e(TAG, "Error accepting HTTP connection: " + e.getMessage());
+                if (listening.isClosed()) return;
+            } catch (java.util.concurrent.RejectedExecutionException e) {
+                return; // stopping
+            }
+        }
+    }
+
+    /** A parsed request line and headers (names lower-cased). */
+    private static final class Request {
+        String method;
+        String target;
+        String version;
+        final Map<String, String> headers = new LinkedHashMap<>();
+
+        String header(String name) {
+            return headers.get(name);
+        }
+    }
+
+    /** Signals a malformed request; answered with {@code status} and the connection closed. */
+    private static final class BadRequest extends IOException {
+        final int status;
+
+        BadRequest(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private final class Connection implements Runnable {
+        private final Socket socket;
+        private final ClientSession session;
+        private InputStream in;
+        private WritableByteChannel out;
+
+        Connection(Socket socket) {
+            this.socket = socket;
+            this.session = server.getSessions().register("http " + socket.getRemoteSocketAddress(), this::close);
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // already closed
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                socket.setSoTimeout(KEEP_ALIVE_TIMEOUT_MS);
+                socket.setTcpNoDelay(true);
+                in = new BufferedInputStream(socket.getInputStream(), 4096);
+                out = FileSender.channelOf(socket, session);
+                for (int served = 0; served < MAX_REQUESTS_PER_CONNECTION; served++) {
+                    Request request;
+                    try {
+                        request = readRequest();
+                    } catch (BadRequest e) {
+                        sendError(e.status, e.getMessage(), false, true);
+                        return;
+                    }
+                    if (request == null) return; // client closed the connection
+                    server.commandReceived();
+                    session.setCommand(request.method + " " + request.target);
+                    boolean keepAlive = wantsKeepAlive(request) && served + 1 < MAX_REQUESTS_PER_CONNECTION;
+                    if (!handle(request, keepAlive)) return;
+                }
+            } catch (SocketTimeoutException e) {
+                // idle keep-alive connection
+            } catch (SocketException e) {
+                Log.d(TAG, "HTTP connection dropped: " + e.getMessage());
+            } catch (IOException e) {
+                Log.w(TAG, "HTTP connection failed: " + e.getMessage());
+            } finally {
+                server.getSessions().unregister(session);
+                close();
+            }
+        }
+
+        /** Serves one request. @return false if the connection must be closed afterwards. */
+        private boolean handle(Request request, boolean keepAlive) throws IOException {
+            boolean head = request.method.equals("HEAD");
+            if (!head && !request.method.equals("GET")) {
+                Map<String, String> headers = new LinkedHashMap<>();
+                headers.put("Allow", "GET, HEAD");
+                sendText(405, "Method not allowed.", headers, false, keepAlive);
+                return keepAlive;
+            }
+            if (!authorized(request)) {
+                Map<String, String> headers = new LinkedHashMap<>();
+                headers.put("WWW-Authenticate", "Basic realm=\"FTP server\", charset=\"UTF-8\"");
+                sendText(401, "Login required.", headers, head, keepAlive);
+                return keepAlive;
+            }
+            session.setUser(server.getUsername());
+
+            String path = decodePath(request.target);
+            File file = path != null ? resolve(path) : null;
+            if (file == null || !file.exists() || UploadCommitter.isTempName(file.getName()) || !file.canRead()) {
+                sendError(404, "Not found.", head, keepAlive);
+                return keepAlive;
+            }
+            if (file.isDirectory()) {
+                if (!path.endsWith("/")) {
+                    Map<String, String> headers = new LinkedHashMap<>();
+                    headers.put("Location", encodePath(path + "/"));
+                    sendText(301, "Moved.", headers, head, keepAlive);
+                    return keepAlive;
+                }
+                return sendListing(request, file, path, head, keepAlive);
+            }
+            return sendFile(request, file, head, keepAlive);
+        }
+
+        private boolean sendFile(Request request, File file, boolean head, boolean keepAlive) throws IOException {
+            PathLockManager.Lease lock = server.getPathLocks().acquire(file, false,
+                    server.isFailFastOnBusyFiles() ? 0 : PATH_LOCK_TIMEOUT_MS);
+            if (lock == null) {
+                sendBusy("File is being written, try again later.", head, keepAlive);
+                return keepAlive;
+            }
+            try (FileInputStream fis = new FileInputStream(file)) {
+                long length = fis.getChannel().size();
+                String etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(file.lastModified()) + "\"";
+
+                Map<String, String> headers = new LinkedHashMap<>();
+                headers.put("Accept-Ranges", "bytes");
+                headers.put("ETag", etag);
+                headers.put("Last-Modified", httpDate(file.lastModified()));
+
+                String ifNoneMatch = request.header("if-none-match");
+                if (ifNoneMatch != null && (ifNoneMatch.equals("*") || Arrays.asList(ifNoneMatch.split("\\s*,\\s*")).contains(etag))) {
+                    sendHeaders(304, headers, -1, keepAlive);
+                    return keepAlive;
+                }
+
+                long start = 0;
+                long count = length;
+                int status = 200;
+                String range = request.header("range");
+                String ifRange = request.header("if-range");
+                if (range != null && (ifRange == null || ifRange.equals(etag))) {
+                    long[] r = parseRange(range, length);
+                    if (r == null) {
+                        headers.put("Content-Range", "bytes */" + length);
+                        sendText(416, "Range not satisfiable.", headers, head, keepAlive);
+                        return keepAlive;
+                    }
+                    if (r.length == 2) {
+                        start = r[0];
+                        count = r[1] - r[0] + 1;
+                        status = 206;
+                        headers.put("Content-Range", "bytes " + r[0] + "-" + r[1] + "/" + length);
+                    }
+                }
+                headers.put("Content-Type", mimeType(file.getName()));
+                if (head || count == 0) {
+                    sendHeaders(status, headers, count, keepAlive);
+                    return keepAlive;
+                }
+
+                if (!server.getTransferLimiter().acquire(TRANSFER_SLOT_TIMEOUT_MS)) {
+                    sendBusy("Too many transfers in progress, try again later.", false, keepAlive);
+                    return keepAlive;
+                }
+                server.transferStarted();
+                try {
+                    sendHeaders(status, headers, count, keepAlive);
+                    long sent = FileSender.send(file, fis.getChannel(), start, count, socket, session,
+                            server.getReadAheadPipeline(), server.getIoScheduler().request(file, count),
+                            server.getHotFileCache());
+                    // A file that shrank mid-response leaves the body short of Content-Length;
+                    // the only honest thing left is to drop the connection.
+                    return keepAlive && sent == count;
+                } finally {
+                    server.transferFinished();
+                    server.getTransferLimiter().release();
+                }
+            } finally {
+                lock.close();
+            }
+        }
+
+        /**
+         * Streams the listing of {@code dir}, chunked; HTTP/1.0 clients get it unframed and
+         * the connection is closed to end it. @return false if the connection must be closed.
+         */
+        private boolean sendListing(Request request, File dir, String path, boolean head, boolean keepAlive)
+                throws IOException {
+            boolean chunked = !request.version.equals("HTTP/1.0");
+            if (!chunked) keepAlive = false;
+            Map<String, String> headers = new LinkedHashMap<>();
+            headers.put("Content-Type", "text/html; charset=utf-8");
+            headers.put("Cache-Control", "no-cache");
+            if (chunked) headers.put("Transfer-Encoding", "chunked");
+            sendHeaders(200, headers, -1, keepAlive);
+            if (head) return keepAlive;
+
+            File[] entries = dir.listFiles();
+            if (entries == null) entries = new File[0];
+            Arrays.sort(entries, (a, b) -> {
+                boolean ad = a.isDirectory();
+                boolean bd = b.isDirectory();
+                if (ad != bd) return ad ? -1 : 1;
+                return a.getName().compareToIgnoreCase(b.getName());
+            });
+
+            String title = escapeHtml(path);
+            try (ListingWriter w = new ListingWriter(out, server.getBufferArena(), chunked)) {
+                w.write("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\"><title>Index of " + title
+                        + "</title></head><body><h1>Index of " + title + "</h1><table>\n"
+                        + "<tr><th align=\"left\">Name</th><th align=\"right\">Size</th><th align=\"left\">Modified</th></tr>\n");
+                if (!path.equals("/")) {
+                    w.write("<tr><td><a href=\"../\">../</a></td><td></td><td></td></tr>\n");
+                }
+                SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm", Locale.US);
+                for (File f : entries) {
+                    String name = f.getName();
+                    if (UploadCommitter.isTempName(name)) continue;
+                    boolean directory = f.isDirectory();
+                    String display = escapeHtml(name) + (directory ? "/" : "");
+                    w.write("<tr><td><a href=\"" + escapeHtml(encodePath(name)) + (directory ? "/" : "") + "\">" + display
+                            + "</a></td><td align=\"right\">" + (directory ? "-" : String.valueOf(f.length()))
+                            + "</td><td>" + format.format(new Date(f.lastModified())) + "</td></tr>\n");
+                }
+                w.write("</table></body></html>\n");
+            }
+            return keepAlive;
+        }
+
+        private boolean authorized(Request request) {
+            String auth = request.header("authorization");
+            if (auth == null || !auth.regionMatches(true, 0, "Basic ", 0, 6)) return false;
+            byte[] given;
+            try {
+                given = Base64.decode(auth.substring(6).trim(), Base64.DEFAULT);
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+            byte[] expected = (server.getUsername() + ":" + server.getPassword()).getBytes(StandardCharsets.UTF_8);
+            return MessageDigest.isEqual(given, expected);
+        }
+
+        // The file for a decoded request path, or null if it escapes the root.
+        private File resolve(String path) {
+            try {
+                File file = new File(root, path).getCanonicalFile();
+                String p = file.getPath();
+                if (p.equals(root.getPath()) || p.startsWith(root.getPath() + File.separator)) return file;
+                Log.w(TAG, "Security Alert: HTTP request outside root: " + path);
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot resolve " + path + ": " + e.getMessage());
+            }
+            return null;
+        }
+
+        private Request readRequest() throws IOException {
+            int[] budget = {MAX_HEADER_BYTES};
+            String line = readLine(budget);
+            while (line != null && line.isEmpty()) line = readLine(budget); // tolerate stray CRLFs
+            if (line == null) return null;
+            String[] parts = line.split(" ");
+            if (parts.length != 3 || !parts[2].startsWith("HTTP/1.")) {
+                throw new BadRequest(400, "Malformed request line.");
+            }
+            Request request = new Request();
+            request.method = parts[0];
+            request.target = parts[1];
+            request.version = parts[2];
+            while (true) {
+                String header = readLine(budget);
+                if (header == null) throw new BadRequest(400, "Incomplete request.");
+                if (header.isEmpty()) break;
+                int colon = header.indexOf(':');
+                if (colon <= 0) throw new BadRequest(400, "Malformed header.");
+                request.headers.put(header.substring(0, colon).trim().toLowerCase(Locale.US), header.substring(colon + 1).trim());
+            }
+            if (request.header("transfer-encoding") != null) {
+                throw new BadRequest(411, "Request bodies are not supported.");
+            }
+            String contentLength = request.header("content-length");
+            if (contentLength != null) {
+                long skip;
+                try {
+                    skip = Long.parseLong(contentLength);
+                } catch (NumberFormatException e) {
+                    throw new BadRequest(400, "Bad Content-Length.");
+                }
+                if (skip > MAX_HEADER_BYTES) throw new BadRequest(413, "Request body too large.");
+                while (skip > 0) {
+                    long n = in.skip(skip);
+                    if (n <= 0) throw new BadRequest(400, "Incomplete request body.");
+                    skip -= n;
+                }
+            }
+            return request;
+        }
+
+        // One CRLF (or LF) terminated header line in ISO-8859-1; null at end of stream.
+        private String readLine(int[] budget) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                int b = in.read();
+                if (b < 0) {
+                    if (sb.length() == 0) return null;
+                    throw new BadRequest(400, "Incomplete request.");
+                }
+                if (--budget[0] < 0) throw new BadRequest(431, "Request header too large.");
+                if (b == '\n') break;
+                sb.append((char) b);
+            }
+            int len = sb.length();
+            if (len > 0 && sb.charAt(len - 1) == '\r') sb.setLength(len - 1);
+            return sb.toString();
+        }
+
+        private boolean wantsKeepAlive(Request request) {
+            String connection = request.header("connection");
+            if (request.version.equals("HTTP/1.0")) {
+                return connection != null && connection.equalsIgnoreCase("keep-alive");
+            }
+            return connection == null || !connection.equalsIgnoreCase("close");
+        }
+
+        private void sendBusy(String message, boolean head, boolean keepAlive) throws IOException {
+            Map<String, String> headers = new LinkedHashMap<>();
+            headers.put("Retry-After", "5");
+            sendText(503, message, headers, head, keepAlive);
+        }
+
+        private void sendError(int status, String message, boolean head, boolean keepAlive) throws IOException {
+            sendText(status, message, new LinkedHashMap<>(), head, keepAlive);
+        }
+
+        private void sendText(int status, String message, Map<String, String> headers, boolean head, boolean keepAlive)
+                throws IOException {
+            byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+            headers.put("Content-Type", "text/plain; charset=utf-8");
+            sendHeaders(status, headers, body.length, keepAlive);
+            if (!head) writeFully(ByteBuffer.wrap(body));
+        }
+
+        /** Writes the status line and headers; {@code contentLength} -1 for none. */
+        private void sendHeaders(int status, Map<String, String> headers, long contentLength, boolean keepAlive)
+                throws IOException {
+            StringBuilder sb = new StringBuilder(256);
+            sb.append("HTTP/1.1 ").append(status).append(' ').append(reason(status)).append("\r\n");
+            sb.append("Date: ").append(httpDate(System.currentTimeMillis())).append("\r\n");
+            sb.append("Server: ").append(SERVER_NAME).append("\r\n");
+            for (Map.Entry<String, String> h : headers.entrySet()) {
+                sb.append(h.getKey()).append(": ").append(h.getValue()).append("\r\n");
+            }
+            if (contentLength >= 0) sb.append("Content-Length: ").append(contentLength).append("\r\n");
+            sb.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+            writeFully(ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.ISO_8859_1)));
+        }
+
+        private void writeFully(ByteBuffer buf) throws IOException {
+            while (buf.hasRemaining()) {
+                out.write(buf);
+            }
+        }
+    }
+
+    /**
+     * Writes a body through a buffer leased from the arena; each full buffer goes out as one
+     * chunk of the chunked transfer encoding (or as is, when not chunked), so a listing of any
+     * size is sent in bounded memory as it is generated.
+     */
+    private static final class ListingWriter implements Closeable {
+        private static final int HEADROOM = 16; // chunk size line
+
+        private final WritableByteChannel out;
+        private final BufferArena arena;
+        private final boolean chunked;
+        private final ByteBuffer buf;
+
+        ListingWriter(WritableByteChannel out, BufferArena arena, boolean chunked) throws IOException {
+            this.out = out;
+            this.arena = arena;
+            this.chunked = chunked;
+            this.buf = arena.lease(BufferArena.MEDIUM, BufferArena.SMALL);
+            buf.position(HEADROOM);
+        }
+
+        void write(String s) throws IOException {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            int off = 0;
+            while (off < bytes.length) {
+                int room = buf.remaining() - 2; // trailing CRLF
+                if (room <= 0) {
+                    flushChunk();
+                    continue;
+                }
+                int n = Math.min(room, bytes.length - off);
+                buf.put(bytes, off, n);
+                off += n;
+            }
+        }
+
+        // Sends the buffered data as one chunk: the size line is written into the headroom.
+        private void flushChunk() throws IOException {
+            int size = buf.position() - HEADROOM;
+            if (size > 0 && !chunked) {
+                buf.flip();
+                buf.position(HEADROOM);
+                while (buf.hasRemaining()) {
+                    out.write(buf);
+                }
+            } else if (size > 0) {
+                byte[] sizeLine = (Integer.toHexString(size) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+                buf.put((byte) '\r').put((byte) '\n');
+                buf.flip();
+                buf.position(HEADROOM - sizeLine.length);
+                buf.put(sizeLine);
+                buf.position(HEADROOM - sizeLine.length);
+                while (buf.hasRemaining()) {
+                    out.write(buf);
+                }
+            }
+            buf.clear();
+            buf.position(HEADROOM);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flushChunk();
+                if (!chunked) return;
+                ByteBuffer last = ByteBuffer.wrap("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                while (last.hasRemaining()) {
+                    out.write(last);
+                }
+            } finally {
+                arena.release(buf);
+            }
+        }
+    }
+
+    // Parses a single "bytes=" range. Returns {first, last}, an empty array to serve the whole
+    // file (multiple ranges, or a header we do not understand), or null if unsatisfiable.
+    static long[] parseRange(String header, long length) {
+        if (!header.startsWith("bytes=") || header.indexOf(',') >= 0) return new long[0];
+        String spec = header.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) return new long[0];
+        try {
+            String a = spec.substring(0, dash).trim();
+            String b = spec.substring(dash + 1).trim();
+            long first;
+            long last;
+            if (a.isEmpty()) {
+                long suffix = Long.parseLong(b);
+                if (suffix <= 0) return null;
+                first = Math.max(0, length - suffix);
+                last = length - 1;
+            } else {
+                first = Long.parseLong(a);
+                last = b.isEmpty() ? length - 1 : Math.min(Long.parseLong(b), length - 1);
+            }
+            if (first < 0 || first >= length || last < first) return null;
+            return new long[]{first, last};
+        } catch (NumberFormatException e) {
+            return new long[0];
+        }
+    }
+
+    // Percent-decodes a request target's path (as UTF-8); null if malformed.
+    static String decodePath(String target) {
+        int query = target.indexOf('?');
+        String raw = query >= 0 ? target.substring(0, query) : target;
+        if (!raw.startsWith("/")) return null;
+        byte[] bytes = new byte[raw.length()];
+        int n = 0;
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            if (c == '%') {
+                if (i + 2 >= raw.length()) return null;
+                int hi = Character.digit(raw.charAt(i + 1), 16);
+                int lo = Character.digit(raw.charAt(i + 2), 16);
+                if (hi < 0 || lo < 0) return null;
+                bytes[n++] = (byte) (hi * 16 + lo);
+                i += 2;
+            } else if (c > 0x7f) {
+                return null;
+            } else {
+                bytes[n++] = (byte) c;
+            }
+        }
+        String path = new String(bytes, 0, n, StandardCharsets.UTF_8);
+        return path.indexOf('\0') >= 0 ? null : path;
+    }
+
+    // Percent-encodes everything but unreserved characters and '/'.
+    static String encodePath(String path) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : path.getBytes(StandardCharsets.UTF_8)) {
+            int c = b & 0xff;
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '.' || c == '_' || c == '~' || c == '/') {
+                sb.append((char) c);
+            } else {
+                sb.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String escapeHtml(String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    private static String mimeType(String name) {
+        int dot = name.lastIndexOf('.');
+        String mime = dot >= 0
+                ? MimeTypeMap.getSingleton().getMimeTypeFromExtension(name.substring(dot + 1).toLowerCase(Locale.US))
+                : null;
+        return mime != null ? mime : "application/octet-stream";
+    }
+
+    private static String httpDate(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(millis));
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 200: return "OK";
+            case 206: return "Partial Content";
+            case 301: return "Moved Permanently";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 401: return "Unauthorized";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 411: return "Length Required";
+            case 413: return "Payload Too Large";
+            case 416: return "Range Not Satisfiable";
+            case 431: return "Request Header Fields Too Large";
+            case 503: return "Service Unavailable";
+            default: return "Status";
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package com.ebook.ftp;
+
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Decides which disk operation goes next when sessions compete for storage, so a LIST or a
+ * small RETR is not stuck behind the writes of a few large uploads to the same flash.
+ *
+ * <p>Operations are classified as {@link IoClass#INTERACTIVE} (stat and listings),
+ * {@link IoClass#SMALL} (transfers of small files) or {@link IoClass#BULK} (streaming large
+ * files). Each runs under a {@link Permit} taken just for it, one chunk at a time, so a
+ * transfer never holds a permit while it waits for the network. At most a fixed number of
+ * operations run at once. When more are waiting, each class has its own queue and the queues
+ * are served by weighted round robin (8 interactive, 4 small, 1 bulk), so no class starves.
+ * Bulk operations are further capped per storage volume, and they never take the last
+ * permit, which is kept for the other classes.
+ */
+public class IoScheduler {
+
+    /** What a disk operation is for, most urgent first. */
+    public enum IoClass {
+        INTERACTIVE(8),
+        SMALL(4),
+        BULK(1);
+
+        final int weight;
+
+        IoClass(int weight) {
+            this.weight = weight;
+        }
+    }
+
+    public static final int DEFAULT_MAX_CONCURRENT = 4;
+    public static final int DEFAULT_MAX_BULK_PER_VOLUME = 2;
+    // Transfers of up to this many bytes are small files
+    public static final long SMALL_FILE_LIMIT = 1024 * 1024;
+
+    /** Runs everything at once: for callers that have no scheduler. */
+    public static final Request UNSCHEDULED = new Request(null, IoClass.BULK, -1, "");
+
+    private static final IoClass[] CLASSES = IoClass.values();
+
+    /**
+     * A stream of disk operations of one kind on one volume, e.g. one transfer's chunks, from
+     * {@link #request}.
+     */
+    public static final class Request {
+        private final IoScheduler scheduler;
+        private final IoClass ioClass;
+        // Bytes the stream will move, or -1 if not known (an upload)
+        private final long expectedBytes;
+        private final String volume;
+
+        Request(IoScheduler scheduler, IoClass ioClass, long expectedBytes, String volume) {
+            this.scheduler = scheduler;
+            this.ioClass = ioClass;
+            this.expectedBytes = expectedBytes;
+            this.volume = volume;
+        }
+
+        /**
+         * Waits for the turn of the stream's next operation.
+         *
+         * @param done bytes the stream has moved so far: a stream of unknown length counts as
+         *             a small file until it has moved {@link #SMALL_FILE_LIMIT} bytes.
+         */
+        public Permit enter(long done) throws InterruptedIOException {
+            if (scheduler == null) return new Permit(null, ioClass, volume);
+            IoClass c = expectedBytes < 0 && done >= SMALL_FILE_LIMIT ? IoClass.BULK : ioClass;
+            return scheduler.enter(c, volume);
+        }
+    }
+
+    /** One running operation; closing it lets the next one in. */
+    public static final class Permit implements AutoCloseable {
+        private final IoScheduler scheduler;
+        private final IoClass ioClass;
+        private final String volume;
+        private boolean closed = false;
+
+        Permit(IoScheduler scheduler, IoClass ioClass, String volume) {
+            this.scheduler = scheduler;
+            this.ioClass = ioClass;
+            this.volume = volume;
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            if (scheduler != null) scheduler.release(ioClass, volume);
+        }
+    }
+
+    private static final class Waiter {
+        final IoClass ioClass;
+        final String volume;
+        boolean granted = false;
+
+        Waiter(IoClass ioClass, String volume) {
+            this.ioClass = ioClass;
+            this.volume = volume;
+        }
+    }
+
+    private final ServerMetrics metrics;
+    private final Request interactive = new Request(this, IoClass.INTERACTIVE, -1, "");
+
+    // All guarded by this
+    private int maxConcurrent = DEFAULT_MAX_CONCURRENT;
+    private int maxBulkPerVolume = DEFAULT_MAX_BULK_PER_VOLUME;
+    private int running = 0;
+    private int bulkRunning = 0;
+    private final Map<String, Integer> bulkByVolume = new HashMap<>();
+    private final ArrayDeque<Waiter>[] queues;
+    // Turns left for each class in the current round robin cycle
+    private final int[] credits = new int[CLASSES.length];
+
+    @SuppressWarnings("unchecked")
+    public IoScheduler(ServerMetrics metrics) {
+        this.metrics = metrics;
+        this.queues = new ArrayDeque[CLASSES.length];
+        for (IoClass c : CLASSES) {
+            queues[c.ordinal()] = new ArrayDeque<>();
+            credits[c.ordinal()] = c.weight;
+        }
+    }
+
+    /** Metadata lookups (stat, list) a client is waiting on. */
+    public Request interactive() {
+        return interactive;
+    }
+
+    /**
+     * Reading or writing {@code bytes} of {@code file} (-1 if not known yet): a small file or
+     * bulk streaming, on the volume the file is stored on.
+     */
+    public Request request(File file, long bytes) {
+        MountTable.Mount mount = file != null ? MountTable.find(file) : null;
+        IoClass c = bytes > SMALL_FILE_LIMIT ? IoClass.BULK : IoClass.SMALL;
+        return new Request(this, c, bytes, mount != null ? mount.mountPoint : "");
+    }
+
+    /** How many disk operations may run at once. Can be changed at any time. */
+    public synchronized void setMaxConcurrent(int max) {
+        this.maxConcurrent = Math.max(2, max);
+        dispatch();
+    }
+
+    /** How many bulk operations may run at once on one volume. Can be changed at any time. */
+    public synchronized void setMaxBulkPerVolume(int max) {
+        this.maxBulkPerVolume = Math.max(1, max);
+        dispatch();
+    }
+
+    private synchronized Permit enter(IoClass ioClass, String volume) throws InterruptedIOException {
+        if (running < maxConcurrent && nobodyWaiting() && canRun(ioClass, volume)) {
+            start(ioClass, volume);
+            return new Permit(this, ioClass, volume);
+        }
+        Waiter waiter = new Waiter(ioClass, volume);
+        queues[ioClass.ordinal()].add(waiter);
+        dispatch();
+        if (waiter.granted) return new Permit(this, ioClass, volume); // only others' bulk was queued
+        long waitStart = System.nanoTime();
+        while (!waiter.granted) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                if (waiter.granted) {
+                    // Too late to back out; the caller sees the interrupt on its next wait
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                queues[ioClass.ordinal()].remove(waiter);
+                dispatch();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for disk I/O");
+            }
+        }
+        String name = "io." + ioClass.name().toLowerCase(Locale.US);
+        metrics.increment(name + ".queued");
+        metrics.add(name + ".wait_ms", (System.nanoTime() - waitStart) / 1_000_000);
+        return new Permit(this, ioClass, volume);
+    }
+
+    private synchronized void release(IoClass ioClass, String volume) {
+        running--;
+        if (ioClass == IoClass.BULK) {
+            bulkRunning--;
+            int n = bulkByVolume.get(volume) - 1;
+            if (n == 0) {
+                bulkByVolume.remove(volume);
+            } else {
+                bulkByVolume.put(volume, n);
+            }
+        }
+        dispatch();
+    }
+
+    private boolean nobodyWaiting() {
+        for (ArrayDeque<Waiter> queue : queues) {
+            if (!queue.isEmpty()) return false;
+        }
+        return true;
+    }
+
+    private boolean canRun(IoClass ioClass, String volume) {
+        if (ioClass != IoClass.BULK) return true;
+        Integer onVolume = bulkByVolume.get(volume);
+        return bulkRunning < maxConcurrent - 1 && (onVolume == null || onVolume < maxBulkPerVolume);
+    }
+
+    private void start(IoClass ioClass, String volume) {
+        running++;
+        if (ioClass == IoClass.BULK) {
+            bulkRunning++;
+            bulkByVolume.merge(volume, 1, Integer::sum);
+        }
+    }
+
+    // Grants waiting operations while permits are free, wakes them if any were granted.
+    private void dispatch() {
+        boolean granted = false;
+        while (running < maxConcurrent) {
+            Waiter next = next();
+            if (next == null) break;
+            start(next.ioClass, next.volume);
+            next.granted = true;
+            granted = true;
+        }
+        if (granted) notifyAll();
+    }
+
+    /**
+     * Takes the next waiter to run: from the most urgent class that has turns left in this
+     * cycle and a waiter that may run; a new cycle starts when none has.
+     */
+    private Waiter next() {
+        for (int cycle = 0; cycle < 2; cycle++) {
+            boolean runnable = false;
+            for (IoClass c : CLASSES) {
+                Waiter w = firstRunnable(c);
+                if (w == null) continue;
+                runnable = true;
+                if (credits[c.ordinal()] > 0) {
+                    credits[c.ordinal()]--;
+                    queues[c.ordinal()].remove(w);
+                    return w;
+                }
+            }
+            if (!runnable) return null;
+            for (IoClass c : CLASSES) {
+                credits[c.ordinal()] = c.weight;
+            }
+        }
+        return null;
+    }
+
+    // The first waiter of a class that may run now; bulk ones on a busy volume are passed over.
+    private Waiter firstRunnable(IoClass ioClass) {
+        Iterator<Waiter> it = queues[ioClass.ordinal()].iterator();
+        while (it.hasNext()) {
+            Waiter w = it.next();
+            if (canRun(w.ioClass, w.volume)) return w;
+            if (ioClass != IoClass.BULK) break;
+        }
+        return null;
+    }
+}
@@ -1,5 +1,6 @@
 package com.ebook.ftp;
 
+import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
@@ -10,14 +11,47 @@ import java.util.List;
  * Utility class for IP address related operations.
  */
 public class IpUtils {
+
+    /**
+     * The device's local IPv4 address, from the {@link NetworkMonitor} cache when it is running.
+     * Falls back to enumerating the network interfaces only when the monitor is not running or
+     * knows no Wi-Fi / Ethernet address (e.g. the device is itself the hotspot).
+     */
     public static String getLocalIpAddress(){
+        NetworkMonitor monitor = NetworkMonitor.peek();
+        if (monitor != null) {
+            InetAddress primary = monitor.getPrimaryAddress();
+            if (primary != null) return primary.getHostAddress();
+        }
+        InetAddress enumerated = enumerateLocalAddress();
+        return enumerated != null ? enumerated.getHostAddress() : null;
+    }
+
+    /**
+     * Chooses the address to put in a PASV reply. The address the client reached the control
+     * connection on is preferred since it is known to be reachable from that client; when that is
+     * not a usable IPv4 address, the current primary local address is used instead.
+     *
+     * @return the address, or null if there is no IPv4 address to advertise.
+     */
+    public static InetAddress getPassiveAddress(InetAddress controlLocal) {
+        if (controlLocal instanceof Inet4Address && !controlLocal.isAnyLocalAddress()) {
+            return controlLocal;
+        }
+        NetworkMonitor monitor = NetworkMonitor.peek();
+        InetAddress primary = monitor != null ? monitor.getPrimaryAddress() : null;
+        return primary != null ? primary : enumerateLocalAddress();
+    }
+
+    private static InetAddress enumerateLocalAddress() {
         try{
             List<NetworkInterface> interfaces = Collections.list(NetworkInterface.getNetworkInterfaces());
             for (NetworkInterface intf : interfaces){
+                if (!intf.isUp()) continue;
                 List<InetAddress> addr = Collections.list(intf.getInetAddresses());
                 for (InetAddress inetAddress : addr){
-                   if (!inetAddress.isLoopbackAddress() && inetAddress instanceof java.net.Inet4Address){
-                       return inetAddress.getHostAddress();
+                   if (!inetAddress.isLoopbackAddress() && inetAddress instanceof Inet4Address){
+                       return inetAddress;
                    }
                 }
             }
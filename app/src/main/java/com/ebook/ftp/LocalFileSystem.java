@@ -0,0 +1,128 @@
+package com.ebook.ftp;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Serves a directory on the device. Every path is checked after resolving symbolic links, so
+ * a link cannot lead a client out of the root.
+ */
+public class LocalFileSystem implements VirtualFileSystem {
+
+    private static final String TAG = "FTP_LocalFileSystem";
+
+    private final File root;
+    private final String rootPath;
+
+    public LocalFileSystem(String rootDir) {
+        File dir = new File(rootDir);
+        File canonical;
+        try {
+            canonical = dir.getCanonicalFile();
+        } catch (IOException e) {
+            canonical = dir.getAbsoluteFile();
+        }
+        this.root = canonical;
+        this.rootPath = canonical.getPath();
+    }
+
+    @Override
+    public Attributes stat(String path) throws IOException {
+        File file = fileOf(path);
+        if (!file.exists()) return null;
+        return attributesOf(file);
+    }
+
+    @Override
+    public List<Attributes> list(String path) throws IOException {
+        File[] files = fileOf(path).listFiles();
+        if (files == null) return null;
+        List<Attributes> entries = new ArrayList<>(files.length);
+        for (File f : files) {
+            entries.add(attributesOf(f));
+        }
+        return entries;
+    }
+
+    @Override
+    public SeekableByteChannel openRead(String path) throws IOException {
+        File file = fileOf(path);
+        if (!file.isFile()) throw new FileNotFoundException(path + " is not a file.");
+        return new FileInputStream(file).getChannel();
+    }
+
+    @Override
+    public WriteChannel openWrite(String path) throws IOException {
+        File file = fileOf(path);
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create directory.");
+        }
+        // Written beside the file, hidden from listings like any upload in progress
+        File temp = File.createTempFile("." + file.getName() + ".", UploadCommitter.TEMP_SUFFIX, parent);
+        FileChannel channel = new FileOutputStream(temp).getChannel();
+        return new WriteChannel() {
+            private boolean committed = false;
+
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                return channel.write(src);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void commit() throws IOException {
+                channel.close();
+                if (!temp.renameTo(file)) throw new IOException("Cannot replace " + path + ".");
+                committed = true;
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+                if (!committed && temp.exists() && !temp.delete()) {
+                    Log.w(TAG, "Could not remove partial write " + temp.getPath());
+                }
+            }
+        };
+    }
+
+    @Override
+    public File toLocalFile(String path) throws IOException {
+        return fileOf(path);
+    }
+
+    /**
+     * The file at {@code path}, as named (a link is not replaced by its target), provided
+     * that it resolves to a location inside the root.
+     */
+    private File fileOf(String path) throws IOException {
+        File file = path.equals("/") ? root : new File(root, path.substring(1));
+        String canonicalPath = file.getCanonicalPath();
+        if (!canonicalPath.equals(rootPath) && !canonicalPath.startsWith(rootPath + File.separator)) {
+            Log.w(TAG, "Security Alert: Attempted access outside root: " + canonicalPath + " (Original: " + path + ")");
+            throw new IOException("Access denied - Path outside root directory.");
+        }
+        return file;
+    }
+
+    private static Attributes attributesOf(File f) {
+        boolean directory = f.isDirectory();
+        return new Attributes(f.getName(), directory, directory ? 0 : f.length(), f.lastModified(),
+                f.canRead(), f.canWrite(), f.canExecute());
+    }
+}
@@ -7,14 +7,20 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.Settings;
 import android.util.Log;
 import android.view.View;
+import android.widget.CheckBox;
+import android.widget.LinearLayout;
+import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.AppCompatButton;
 import androidx.cardview.widget.CardView;
@@ -24,6 +30,8 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MainActivity extends AppCompatActivity {
 
@@ -31,11 +39,41 @@ public class MainActivity extends AppCompatActivity {
     TextView showText;
     AppCompatButton startBtn;
     AppCompatButton stopBtn;
+    CheckBox httpGatewayBox;
+    CheckBox deduplicateBox;
     CardView serverInfoCard;
+    CardView sessionsCard;
+    TextView sessionCount;
+    TextView throughputSummary;
+    TextView throughputSparkline;
+    LinearLayout sessionList;
+
+    // The dashboard is redrawn at most once per sample, and only when a new one was taken
+    private static final long SESSION_REFRESH_MS = ThroughputMonitor.SAMPLE_INTERVAL_MS;
+    // Samples in the sparkline: the last half minute
+    private static final int SPARKLINE_SAMPLES = 30;
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
+    private final Runnable sessionRefresher = new Runnable() {
+        @Override
+        public void run() {
+            refreshSessions();
+            uiHandler.postDelayed(this, SESSION_REFRESH_MS);
+        }
+    };
+    private ThroughputMonitor.Snapshot shownSnapshot;
+    // Kills and throttles close sockets, which TLS sockets do with network I/O: never on the UI thread
+    private final ExecutorService sessionActions = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "ftp-session-actions");
+        t.setDaemon(true);
+        return t;
+    });
 
 
     private ActivityResultLauncher<String[]> requestPermissionLauncher;
 
+    // Network changes arrive on a connectivity thread; the address is shown on the UI thread
+    private final NetworkMonitor.Listener networkListener = addresses -> runOnUiThread(this::updateIpAddress);
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -43,8 +81,18 @@ public class MainActivity extends AppCompatActivity {
 
         startBtn = findViewById(R.id.start_server);
         stopBtn = findViewById(R.id.end_server);
+        httpGatewayBox = findViewById(R.id.http_gateway);
+        deduplicateBox = findViewById(R.id.deduplicate);
         showText = findViewById(R.id.show_ip);
         serverInfoCard = findViewById(R.id.server_info_card);
+        sessionsCard = findViewById(R.id.sessions_card);
+        sessionCount = findViewById(R.id.session_count);
+        throughputSummary = findViewById(R.id.throughput_summary);
+        throughputSparkline = findViewById(R.id.throughput_sparkline);
+        sessionList = findViewById(R.id.session_list);
+
+        // Starts tracking network changes so the address below is read from a cache
+        NetworkMonitor.get(this);
 
         requestPermissionLauncher = registerForActivityResult(
                 new ActivityResultContracts.RequestMultiplePermissions(),
@@ -72,6 +120,8 @@ public class MainActivity extends AppCompatActivity {
             if (hasRequiredPermissions()) {
                 Intent startIntent = new Intent(this, FtpService.class);
                 startIntent.setAction(FtpService.ACTION_START);
+                startIntent.putExtra(FtpService.EXTRA_HTTP_GATEWAY, httpGatewayBox.isChecked());
+                startIntent.putExtra(FtpService.EXTRA_DEDUPLICATE, deduplicateBox.isChecked());
                 serverInfoCard.setVisibility(View.VISIBLE);
 
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
@@ -103,6 +153,9 @@ public class MainActivity extends AppCompatActivity {
         String ipAddress = IpUtils.getLocalIpAddress();
         if (ipAddress != null) {
             String showIp = "ftp://" + ipAddress + ":2121";
+            if (httpGatewayBox.isChecked()) {
+                showIp += "\nhttp://" + ipAddress + ":" + HttpGateway.DEFAULT_PORT + "/";
+            }
             showText.setText(showIp);
             Log.d(TAG, "Current IP: " + showIp);
         } else {
@@ -111,6 +164,100 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    /**
+     * Redraws the connected clients panel from the running server's latest throughput
+     * snapshot: overall rates with a sparkline, then one row per client showing who is
+     * connected, what they are doing and how fast, with the progress and ETA of a transfer.
+     * Tapping a row offers to disconnect or throttle that client. The snapshot is taken by
+     * the server's sampler, so drawing it never touches a session's locks.
+     */
+    private void refreshSessions() {
+        FTPServer server = FtpService.getRunningServer();
+        if (server == null) {
+            sessionsCard.setVisibility(View.GONE);
+            shownSnapshot = null;
+            return;
+        }
+        ThroughputMonitor.Snapshot snapshot = server.getThroughputMonitor().getSnapshot();
+        if (snapshot == shownSnapshot) return; // nothing sampled since the last redraw
+        shownSnapshot = snapshot;
+        sessionsCard.setVisibility(View.VISIBLE);
+        sessionCount.setText("Connected Clients (" + snapshot.sessions.size() + ")");
+        throughputSummary.setText("\u2193 " + ThroughputMonitor.formatBytes((long) snapshot.bytesInPerSecond) + "/s"
+                + "  \u2191 " + ThroughputMonitor.formatBytes((long) snapshot.bytesOutPerSecond) + "/s"
+                + "  \u00b7 " + snapshot.getActiveTransfers() + " transferring");
+        throughputSparkline.setText(snapshot.sparkline(SPARKLINE_SAMPLES));
+        sessionList.removeAllViews();
+        for (ThroughputMonitor.SessionStatus session : snapshot.sessions) {
+            TextView row = new TextView(this);
+            row.setText(describeSession(session));
+            row.setTextSize(13);
+            row.setPadding(0, 8, 0, 8);
+            row.setOnClickListener(v -> showSessionActions(server, session));
+            sessionList.addView(row);
+            double fraction = session.transfer != null ? session.transfer.getFraction() : -1;
+            if (fraction >= 0) {
+                ProgressBar progress = new ProgressBar(this, null, android.R.attr.progressBarStyleHorizontal);
+                progress.setMax(1000);
+                progress.setProgress((int) (fraction * 1000));
+                sessionList.addView(progress);
+            }
+        }
+    }
+
+    private static String describeSession(ThroughputMonitor.SessionStatus session) {
+        String user = session.user != null ? session.user : "(not logged in)";
+        String line = "#" + session.id + " " + user + " @ " + session.remoteAddress
+                + "\n" + session.command
+                + "\n\u2193 " + ThroughputMonitor.formatBytes(session.bytesIn)
+                + "  \u2191 " + ThroughputMonitor.formatBytes(session.bytesOut)
+                + "  " + ThroughputMonitor.formatBytes((long) session.bytesPerSecond) + "/s";
+        if (session.throttle > 0) {
+            line += "  (limit " + ThroughputMonitor.formatBytes(session.throttle) + "/s)";
+        }
+        ThroughputMonitor.TransferStatus transfer = session.transfer;
+        if (transfer != null) {
+            line += "\n" + transfer.command + " " + ThroughputMonitor.formatBytes(transfer.bytesMoved);
+            if (transfer.expectedBytes >= 0) {
+                line += " of " + ThroughputMonitor.formatBytes(transfer.expectedBytes)
+                        + " (" + Math.round(transfer.getFraction() * 100) + "%)";
+            }
+            line += " at " + ThroughputMonitor.formatBytes((long) transfer.bytesPerSecond) + "/s";
+            long eta = transfer.getEtaSeconds();
+            if (eta >= 0) line += ", " + ThroughputMonitor.formatDuration(eta) + " left";
+        }
+        return line;
+    }
+
+    private void showSessionActions(FTPServer server, ThroughputMonitor.SessionStatus session) {
+        String[] actions = {"Disconnect", "Limit to 1 MB/s", "Limit to 256 KB/s", "Remove limit"};
+        new AlertDialog.Builder(this)
+                .setTitle("Client #" + session.id)
+                .setItems(actions, (dialog, which) -> sessionActions.execute(() -> {
+                    SessionRegistry registry = server.getSessions();
+                    boolean found;
+                    switch (which) {
+                        case 0:
+                            found = registry.kill(session.id);
+                            break;
+                        case 1:
+                            found = registry.setThrottle(session.id, 1024 * 1024);
+                            break;
+                        case 2:
+                            found = registry.setThrottle(session.id, 256 * 1024);
+                            break;
+                        default:
+                            found = registry.setThrottle(session.id, 0);
+                            break;
+                    }
+                    if (!found) {
+                        runOnUiThread(() -> Toast.makeText(this, "Client already disconnected", Toast.LENGTH_SHORT).show());
+                    }
+                }))
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
     private boolean hasRequiredPermissions() {
         List<String> neededPermissions = getNeededPermissions();
         for (String perm : neededPermissions) {
@@ -241,10 +388,31 @@ public class MainActivity extends AppCompatActivity {
     }
 
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        NetworkMonitor.get(this).addListener(networkListener);
+        uiHandler.post(sessionRefresher);
+    }
+
+    @Override
+    protected void onStop() {
+        NetworkMonitor.get(this).removeListener(networkListener);
+        uiHandler.removeCallbacks(sessionRefresher);
+        super.onStop();
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
         updateIpAddress();
     }
 
+    @Override
+    protected void onDestroy() {
+        // Actions already chosen still run
+        sessionActions.shutdown();
+        super.onDestroy();
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,193 @@
+package com.ebook.ftp;
+
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+import android.webkit.MimeTypeMap;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tells the media library about files clients added, changed or removed, so photos and
+ * videos uploaded over FTP show up in the gallery, without scanning each file on its own.
+ *
+ * <p>Changed paths are queued, grouped by directory, and handed to the media scanner in
+ * batches from one background-priority thread: once the uploads pause for a moment, once
+ * the oldest queued file has waited a few seconds, or once a batch is full. A directory that
+ * collected many files is scanned as a whole where the platform supports that. A bulk upload
+ * of thousands of photos therefore costs the media provider a handful of scan requests. Only
+ * the next batch is submitted after the previous one completed.
+ */
+public class MediaScanBatcher {
+
+    private static final String TAG = "FTP_MediaScan";
+
+    static final int MAX_BATCH = 256;
+    static final long IDLE_FLUSH_MS = 1000;
+    static final long MAX_DELAY_MS = 5000;
+    // From this many queued files in one directory on, the directory is scanned instead
+    static final int DIRECTORY_SCAN_THRESHOLD = 32;
+    private static final long SCAN_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(2);
+
+    private final Context context;
+    private final ServerMetrics metrics;
+    private final Thread worker;
+
+    // All guarded by this.
+    private final Map<String, Set<String>> pendingByDir = new LinkedHashMap<>();
+    private int pendingCount = 0;
+    private long firstQueuedAt;
+    private long lastQueuedAt;
+    private boolean flushRequested = false;
+    private boolean shutdown = false;
+
+    public MediaScanBatcher(Context context, ServerMetrics metrics) {
+        this.context = context.getApplicationContext();
+        this.metrics = metrics;
+        this.worker = new Thread(this::run, "ftp-media-scan");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /** Queues a changed path if the media library may care about it. Never blocks. */
+    public void enqueue(File file) {
+        String name = file.getName();
+        // A path that is gone and has no extension may have been a directory of media
+        boolean maybeRemovedDirectory = name.indexOf('.') < 0 && !file.exists();
+        if (!file.isDirectory() && !isMedia(name) && !maybeRemovedDirectory) return;
+        String path = file.getPath();
+        String dir = file.getParent() != null ? file.getParent() : path;
+        synchronized (this) {
+            if (shutdown) return;
+            Set<String> paths = pendingByDir.get(dir);
+            if (paths == null) {
+                paths = new LinkedHashSet<>();
+                pendingByDir.put(dir, paths);
+            }
+            if (!paths.add(path)) return;
+            long now = System.nanoTime();
+            if (pendingCount == 0) firstQueuedAt = now;
+            lastQueuedAt = now;
+            pendingCount++;
+            metrics.increment("mediascan.queued");
+            if (pendingCount == 1 || pendingCount >= MAX_BATCH) notifyAll();
+        }
+    }
+
+    /** Submits everything queued now instead of waiting for the uploads to pause. */
+    public synchronized void flush() {
+        flushRequested = true;
+        notifyAll();
+    }
+
+    /** Submits what is still queued and stops the worker. */
+    public void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+            notifyAll();
+        }
+        try {
+            worker.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        while (true) {
+            List<String> batch;
+            try {
+                batch = awaitBatch();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (batch == null) return;
+            scan(batch);
+        }
+    }
+
+    // Waits until a batch is due and takes it; null once shut down with nothing left.
+    private synchronized List<String> awaitBatch() throws InterruptedException {
+        while (true) {
+            if (pendingCount > 0) {
+                long now = System.nanoTime();
+                long due = Math.min(lastQueuedAt + TimeUnit.MILLISECONDS.toNanos(IDLE_FLUSH_MS),
+                        firstQueuedAt + TimeUnit.MILLISECONDS.toNanos(MAX_DELAY_MS));
+                if (shutdown || flushRequested || pendingCount >= MAX_BATCH || now >= due) {
+                    return takeBatch();
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, due - now);
+            } else {
+                flushRequested = false;
+                if (shutdown) return null;
+                wait();
+            }
+        }
+    }
+
+    // Takes up to MAX_BATCH scan targets, whole directories at a time
+    private List<String> takeBatch() {
+        List<String> batch = new ArrayList<>();
+        Iterator<Map.Entry<String, Set<String>>> it = pendingByDir.entrySet().iterator();
+        while (it.hasNext() && batch.size() < MAX_BATCH) {
+            Map.Entry<String, Set<String>> e = it.next();
+            Set<String> paths = e.getValue();
+            if (paths.size() >= DIRECTORY_SCAN_THRESHOLD && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                // The modern scanner walks a directory itself and skips unchanged files
+                batch.add(e.getKey());
+                pendingCount -= paths.size();
+                it.remove();
+                continue;
+            }
+            Iterator<String> pit = paths.iterator();
+            while (pit.hasNext() && batch.size() < MAX_BATCH) {
+                batch.add(pit.next());
+                pit.remove();
+                pendingCount--;
+            }
+            if (paths.isEmpty()) it.remove();
+        }
+        if (pendingCount > 0) {
+            firstQueuedAt = System.nanoTime(); // the rest starts a new wait, full batches go at once
+        }
+        return batch;
+    }
+
+    private void scan(List<String> batch) {
+        CountDownLatch done = new CountDownLatch(batch.size());
+        metrics.increment("mediascan.batches");
+        metrics.add("mediascan.paths", batch.size());
+        try {
+            MediaScannerConnection.scanFile(context, batch.toArray(new String[0]), null,
+                    (path, uri) -> done.countDown());
+            if (!done.await(SCAN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Media scan of " + batch.size() + " paths did not complete in time.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Media scan failed: " + e.getMessage(), e);
+        }
+        Log.d(TAG, "Scanned batch of " + batch.size() + " paths.");
+    }
+
+    private static boolean isMedia(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot < 0) return false;
+        String mime = MimeTypeMap.getSingleton().getMimeTypeFromExtension(name.substring(dot + 1).toLowerCase(Locale.US));
+        return mime != null && (mime.startsWith("image/") || mime.startsWith("video/") || mime.startsWith("audio/"));
+    }
+}
@@ -0,0 +1,258 @@
+package com.ebook.ftp;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A file system held entirely in RAM, so transfers can be benchmarked and the protocol
+ * exercised on any machine without storage getting in the way.
+ *
+ * <p>A file's content is an immutable byte array. A writer fills a private buffer and
+ * publishes it when the channel is committed, so readers always see one complete version of
+ * a file and need no locking, and a write closed without a commit leaves no trace. The total size of all files is capped.
+ */
+public class MemoryFileSystem implements VirtualFileSystem {
+
+    public static final long DEFAULT_CAPACITY = 256L * 1024 * 1024;
+
+    private static final class Node {
+        final boolean directory;
+        // Directories only; sorted so listings come out in name order
+        final Map<String, Node> children;
+        volatile byte[] content;
+        volatile long modified;
+
+        Node(boolean directory) {
+            this.directory = directory;
+            this.children = directory ? new ConcurrentSkipListMap<>() : null;
+            this.content = directory ? null : new byte[0];
+            this.modified = System.currentTimeMillis();
+        }
+    }
+
+    private final Node root = new Node(true);
+    private final long capacity;
+    private final AtomicLong used = new AtomicLong();
+
+    public MemoryFileSystem() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /** @param capacity the most bytes all files together may hold. */
+    public MemoryFileSystem(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /** Creates a directory and any missing parents. */
+    public synchronized void mkdirs(String path) throws IOException {
+        Node dir = root;
+        for (String part : partsOf(path)) {
+            Node child = dir.children.get(part);
+            if (child == null) {
+                child = new Node(true);
+                dir.children.put(part, child);
+                dir.modified = System.currentTimeMillis();
+            } else if (!child.directory) {
+                throw new IOException(part + " is not a directory.");
+            }
+            dir = child;
+        }
+    }
+
+    /** Creates or replaces a file with {@code content}, e.g. to seed a benchmark. */
+    public void write(String path, byte[] content) throws IOException {
+        publish(path, content.clone());
+    }
+
+    /** The bytes held by all files. */
+    public long getUsedBytes() {
+        return used.get();
+    }
+
+    @Override
+    public Attributes stat(String path) {
+        Node node = find(path);
+        return node != null ? attributesOf(VirtualFileSystem.nameOf(path), node) : null;
+    }
+
+    @Override
+    public List<Attributes> list(String path) {
+        Node node = find(path);
+        if (node == null || !node.directory) return null;
+        List<Attributes> entries = new ArrayList<>();
+        for (Map.Entry<String, Node> e : node.children.entrySet()) {
+            entries.add(attributesOf(e.getKey(), e.getValue()));
+        }
+        return entries;
+    }
+
+    @Override
+    public SeekableByteChannel openRead(String path) throws IOException {
+        Node node = find(path);
+        if (node == null || node.directory) throw new FileNotFoundException(path + " is not a file.");
+        return new ReadChannel(node.content);
+    }
+
+    @Override
+    public WriteChannel openWrite(String path) throws IOException {
+        Node existing = find(path);
+        if (existing != null && existing.directory) throw new IOException(path + " is a directory.");
+        return new Draft(path);
+    }
+
+    private Node find(String path) {
+        Node node = root;
+        for (String part : partsOf(path)) {
+            if (!node.directory) return null;
+            node = node.children.get(part);
+            if (node == null) return null;
+        }
+        return node;
+    }
+
+    private synchronized void publish(String path, byte[] content) throws IOException {
+        String parentPath = VirtualFileSystem.parentOf(path);
+        if (parentPath == null) throw new IOException("Cannot write the root directory.");
+        mkdirs(parentPath);
+        Node parent = find(parentPath);
+        String name = VirtualFileSystem.nameOf(path);
+        Node node = parent.children.get(name);
+        if (node != null && node.directory) throw new IOException(path + " is a directory.");
+        long previous = node != null ? node.content.length : 0;
+        if (used.get() - previous + content.length > capacity) {
+            throw new IOException("No space left in the memory file system.");
+        }
+        used.addAndGet(content.length - previous);
+        if (node == null) {
+            node = new Node(false);
+            parent.children.put(name, node);
+            parent.modified = System.currentTimeMillis();
+        }
+        node.content = content;
+        node.modified = System.currentTimeMillis();
+    }
+
+    private static String[] partsOf(String path) {
+        String trimmed = path.startsWith("/") ? path.substring(1) : path;
+        return trimmed.isEmpty() ? new String[0] : trimmed.split("/");
+    }
+
+    private static Attributes attributesOf(String name, Node node) {
+        return new Attributes(name, node.directory, node.directory ? 0 : node.content.length, node.modified,
+                true, true, node.directory);
+    }
+
+    /** Reads one published version of a file. */
+    private static final class ReadChannel implements SeekableByteChannel {
+        private final byte[] content;
+        private long position = 0;
+        private boolean open = true;
+
+        ReadChannel(byte[] content) {
+            this.content = content;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!open) throw new ClosedChannelException();
+            if (position >= content.length) return -1;
+            int n = (int) Math.min(dst.remaining(), content.length - position);
+            dst.put(content, (int) position, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long position() {
+            return position;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) {
+            if (newPosition < 0) throw new IllegalArgumentException("Negative position");
+            position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() {
+            return content.length;
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+
+    /** Collects a new version of a file and publishes it on commit. */
+    private final class Draft implements WriteChannel {
+        private final String path;
+        private byte[] buf = new byte[8192];
+        private int size = 0;
+        private boolean open = true;
+
+        Draft(String path) {
+            this.path = path;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (!open) throw new ClosedChannelException();
+            int n = src.remaining();
+            if (used.get() + size + (long) n > capacity) {
+                throw new IOException("No space left in the memory file system.");
+            }
+            if (size + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(size + n, buf.length * 2));
+            }
+            src.get(buf, size, n);
+            size += n;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void commit() throws IOException {
+            if (!open) throw new ClosedChannelException();
+            byte[] content = buf.length == size ? buf : Arrays.copyOf(buf, size);
+            close();
+            publish(path, content);
+        }
+
+        @Override
+        public void close() {
+            open = false;
+            buf = null;
+        }
+    }
+}
@@ -0,0 +1,537 @@
+package com.ebook.ftp;
+
+import android.os.FileObserver;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent metadata index of the served tree (path, size, mtime and type).
+ *
+ * <p>The index is loaded from disk on {@link #start()} and then reconciled against the real
+ * tree by a background walk, so queries are answered immediately from the last known state
+ * while the walk catches up. After that it is kept fresh by per-directory {@link FileObserver}s
+ * and by the server's own writes reported through {@link #notifyChanged(File)}.
+ *
+ * <p>Every change bumps a generation counter. Clients remember the generation returned by
+ * {@code SITE CHANGES} and pass it back on the next sync to receive only what changed since,
+ * instead of walking the whole tree with CWD/LIST.
+ *
+ * <p>Generations only mean something within one epoch, a random id persisted with the index.
+ * A new epoch starts whenever changes may have gone unrecorded: the index file was missing,
+ * unreadable, or not written by a clean {@link #close()}. Deletions are remembered for
+ * {@link #TOMBSTONE_RETENTION_MS}; the newest generation of a forgotten one is kept, and a
+ * delta from before it would silently miss that deletion. {@link #resyncReason} tells a
+ * client when its generation can no longer be trusted and it must sync from scratch.
+ */
+public class MetadataIndex {
+
+    private static final String TAG = "FTP_MetadataIndex";
+
+    private static final int FILE_MAGIC = 0x46544958; // "FTIX"
+    private static final int FILE_VERSION = 2;
+
+    // inotify watches are a limited per-user resource; directories beyond this are only
+    // refreshed by the reconcile walk and by our own writes.
+    private static final int MAX_WATCHED_DIRS = 4096;
+    private static final long PERSIST_INTERVAL_SECONDS = 60;
+    static final long TOMBSTONE_RETENTION_MS = TimeUnit.DAYS.toMillis(7);
+
+    private static final int WATCH_MASK = FileObserver.CREATE | FileObserver.DELETE
+            | FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.CLOSE_WRITE
+            | FileObserver.ATTRIB | FileObserver.DELETE_SELF;
+
+    /** Immutable snapshot of one indexed path. */
+    public static final class Entry {
+        public final String path;
+        public final long size;
+        public final long modified;
+        public final boolean directory;
+        public final boolean deleted;
+        public final long generation;
+
+        Entry(String path, long size, long modified, boolean directory, boolean deleted, long generation) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.directory = directory;
+            this.deleted = deleted;
+            this.generation = generation;
+        }
+
+        boolean sameAs(File f) {
+            return !deleted && directory == f.isDirectory() && modified == f.lastModified()
+                    && (directory || size == f.length());
+        }
+    }
+
+    private final File root;
+    private final String rootPath;
+    private final File storeFile;
+
+    // Keyed by path relative to the root ("/" for the root itself, "/DCIM/a.jpg" below it).
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> children = new ConcurrentHashMap<>();
+    private final Map<String, FileObserver> observers = new ConcurrentHashMap<>();
+    // Only bumped under changeLock, together with the entries.put() that publishes it
+    private final AtomicLong generation = new AtomicLong();
+    // Serializes stat, generation bump and publication of a change, so a generation is never
+    // visible before its entry and concurrent refreshes of one path cannot reorder
+    private final Object changeLock = new Object();
+    // Replaced by load() before any client can see it
+    private volatile String epoch = newEpoch();
+    // Changes after this generation are all known; those up to it may have been forgotten
+    private volatile long oldestGeneration = 0;
+
+    private ExecutorService worker;
+    private ScheduledExecutorService persister;
+    private volatile boolean complete = false;
+    private volatile boolean dirty = false;
+    private volatile boolean closed = false;
+    private volatile boolean paused = false;
+    private final Object pauseLock = new Object();
+
+    public MetadataIndex(String rootDir, File storeFile) throws IOException {
+        this.root = new File(rootDir).getCanonicalFile();
+        this.rootPath = root.getPath();
+        this.storeFile = storeFile;
+    }
+
+    /**
+     * Loads the persisted snapshot and starts the background reconcile walk and the
+     * periodic persister. Safe to call from the server thread; all I/O happens off it.
+     */
+    public synchronized void start() {
+        if (worker != null) return;
+        closed = false;
+        worker = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "metadata-index");
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+        persister = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "metadata-index-persist"));
+
+        worker.execute(() -> {
+            load();
+            reconcile(rootPath);
+            complete = true;
+            Log.i(TAG, "Index reconciled: " + entries.size() + " entries, generation " + generation.get());
+        });
+        persister.scheduleWithFixedDelay(() -> {
+            if (dirty) persist(false);
+        }, PERSIST_INTERVAL_SECONDS, PERSIST_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /** Stops watching the tree and writes the index to disk. */
+    public synchronized void close() {
+        if (worker == null) return;
+        closed = true;
+        synchronized (pauseLock) {
+            pauseLock.notifyAll();
+        }
+        for (FileObserver observer : observers.values()) {
+            observer.stopWatching();
+        }
+        observers.clear();
+        worker.shutdownNow();
+        persister.shutdownNow();
+        try {
+            worker.awaitTermination(2, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        persist(true);
+        worker = null;
+        persister = null;
+    }
+
+    /**
+     * Pauses or resumes the background worker, e.g. under memory pressure. While paused the
+     * reconcile walk and queued file events wait; lookups keep answering from the index.
+     */
+    public void setPaused(boolean paused) {
+        synchronized (pauseLock) {
+            if (this.paused == paused) return;
+            this.paused = paused;
+            pauseLock.notifyAll();
+        }
+        Log.i(TAG, paused ? "Indexing paused" : "Indexing resumed");
+    }
+
+    private void awaitResume() {
+        if (!paused) return;
+        synchronized (pauseLock) {
+            while (paused && !closed) {
+                try {
+                    pauseLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /** @return true once the initial reconcile walk has finished. */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /** The newest generation whose entry is visible to {@link #changesSince}. */
+    public long currentGeneration() {
+        synchronized (changeLock) {
+            return generation.get();
+        }
+    }
+
+    /** The epoch generations are counted in; a client must pass it back with its generation. */
+    public String getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Why {@link #changesSince} would not give a client that synced up to generation
+     * {@code since} of {@code clientEpoch} everything it missed, or null if it would.
+     * Generation 0, a full listing, is always complete.
+     */
+    public String resyncReason(String clientEpoch, long since) {
+        if (since == 0) return null;
+        if (clientEpoch == null) return "no epoch given with generation " + since;
+        if (!clientEpoch.equals(epoch)) return "the index was rebuilt";
+        if (since < oldestGeneration) return "deletions up to generation " + oldestGeneration + " were forgotten";
+        if (since > currentGeneration()) return "generation " + since + " is unknown";
+        return null;
+    }
+
+    /**
+     * Returns the indexed entry for a file, or null if the file is outside the root,
+     * not indexed yet or known to be deleted.
+     */
+    public Entry lookup(File file) {
+        String key = keyOf(file);
+        if (key == null) return null;
+        Entry e = entries.get(key);
+        return (e == null || e.deleted) ? null : e;
+    }
+
+    /**
+     * Returns every entry (including deletions) whose generation is greater than {@code since},
+     * in generation order.
+     */
+    public List<Entry> changesSince(long since) {
+        return changesSince(since, Long.MAX_VALUE);
+    }
+
+    /**
+     * Returns every entry (including deletions) whose generation is greater than {@code since}
+     * and at most {@code upTo}, in generation order. With {@code upTo} taken from
+     * {@link #currentGeneration()} first, a client that resumes from {@code upTo} misses nothing.
+     */
+    public List<Entry> changesSince(long since, long upTo) {
+        List<Entry> result = new ArrayList<>();
+        for (Entry e : entries.values()) {
+            if (e.generation > since && e.generation <= upTo) result.add(e);
+        }
+        Collections.sort(result, (a, b) -> Long.compare(a.generation, b.generation));
+        return result;
+    }
+
+    /**
+     * Records a change made by the server itself (upload, rename, delete...). The file is
+     * re-stat'ed synchronously so that an MDTM/MLST right after a 226 sees the new state.
+     */
+    public void notifyChanged(File file) {
+        String key = keyOf(file);
+        if (key == null) return;
+        refresh(key, file);
+        if (!key.equals("/")) {
+            // creating or removing an entry also bumps the parent directory's mtime
+            String parent = parentKey(key);
+            refresh(parent, fileOf(parent));
+        }
+        if (file.isDirectory()) {
+            submit(() -> reconcile(fileOf(key).getPath()));
+        }
+    }
+
+    String keyOf(File file) {
+        String path;
+        try {
+            path = file.getCanonicalPath();
+        } catch (IOException e) {
+            path = file.getAbsolutePath();
+        }
+        return keyOfPath(path);
+    }
+
+    private String keyOfPath(String path) {
+        if (path.equals(rootPath)) return "/";
+        if (!path.startsWith(rootPath + File.separator)) return null;
+        return path.substring(rootPath.length());
+    }
+
+    private static String parentKey(String key) {
+        int slash = key.lastIndexOf('/');
+        return slash <= 0 ? "/" : key.substring(0, slash);
+    }
+
+    private File fileOf(String key) {
+        return key.equals("/") ? root : new File(rootPath + key);
+    }
+
+    private void submit(Runnable task) {
+        ExecutorService w = worker;
+        if (w == null || closed) return;
+        try {
+            w.execute(task);
+        } catch (java.util.concurrent.RejectedExecutionException ignored) {
+            // shutting down
+        }
+    }
+
+    /**
+     * Re-stats one path and updates its entry (or records a tombstone if it is gone).
+     */
+    private void refresh(String key, File file) {
+        if (UploadCommitter.isTempName(file.getName())) return;
+        synchronized (changeLock) {
+            refreshLocked(key, file);
+        }
+    }
+
+    private void refreshLocked(String key, File file) {
+        Entry old = entries.get(key);
+        if (!file.exists()) {
+            if (old != null && !old.deleted) {
+                markDeleted(key);
+            }
+            return;
+        }
+        if (old != null && old.sameAs(file)) {
+            if (old.directory) watch(key, file);
+            return;
+        }
+        boolean dir = file.isDirectory();
+        entries.put(key, new Entry(key, dir ? 0 : file.length(), file.lastModified(), dir, false,
+                generation.incrementAndGet()));
+        if (!key.equals("/")) {
+            children.computeIfAbsent(parentKey(key), k -> ConcurrentHashMap.newKeySet())
+                    .add(key.substring(key.lastIndexOf('/') + 1));
+        }
+        if (dir) watch(key, file);
+        dirty = true;
+    }
+
+    private void markDeleted(String key) {
+        synchronized (changeLock) {
+            markDeletedLocked(key);
+        }
+    }
+
+    private void markDeletedLocked(String key) {
+        Entry old = entries.get(key);
+        if (old == null || old.deleted) return;
+        entries.put(key, new Entry(key, 0, System.currentTimeMillis(), old.directory, true,
+                generation.incrementAndGet()));
+        Set<String> siblings = children.get(parentKey(key));
+        if (siblings != null) siblings.remove(key.substring(key.lastIndexOf('/') + 1));
+        if (old.directory) {
+            FileObserver observer = observers.remove(key);
+            if (observer != null) observer.stopWatching();
+            Set<String> names = children.remove(key);
+            if (names != null) {
+                String prefix = key.equals("/") ? "/" : key + "/";
+                for (String name : names) {
+                    markDeletedLocked(prefix + name);
+                }
+            }
+        }
+        dirty = true;
+    }
+
+    /**
+     * Walks the subtree below {@code startPath} breadth first, refreshing every entry and
+     * dropping children that disappeared while we were not looking.
+     */
+    private void reconcile(String startPath) {
+        String startKey = keyOfPath(startPath);
+        if (startKey == null) return;
+        refresh(startKey, fileOf(startKey));
+
+        Deque<String> pending = new ArrayDeque<>();
+        pending.add(startKey);
+        while (!pending.isEmpty() && !closed && !Thread.currentThread().isInterrupted()) {
+            awaitResume();
+            String dirKey = pending.poll();
+            File dir = fileOf(dirKey);
+            File[] listed = dir.listFiles();
+            if (listed == null) continue;
+
+            Set<String> seen = new HashSet<>();
+            String prefix = dirKey.equals("/") ? "/" : dirKey + "/";
+            for (File f : listed) {
+                String key = prefix + f.getName();
+                seen.add(f.getName());
+                refresh(key, f);
+                if (f.isDirectory() && !TreeWalker.isSymlink(f)) pending.add(key);
+            }
+            Set<String> known = children.get(dirKey);
+            if (known != null) {
+                for (String name : new ArrayList<>(known)) {
+                    if (!seen.contains(name)) markDeleted(prefix + name);
+                }
+            }
+        }
+    }
+
+    private void watch(String key, File dir) {
+        if (closed || observers.containsKey(key) || observers.size() >= MAX_WATCHED_DIRS) return;
+        FileObserver observer = new FileObserver(dir.getPath(), WATCH_MASK) {
+            @Override
+            public void onEvent(int event, String name) {
+                onFileEvent(key, event, name);
+            }
+        };
+        if (observers.putIfAbsent(key, observer) == null) {
+            observer.startWatching();
+        }
+    }
+
+    private void onFileEvent(String dirKey, int event, String name) {
+        if ((event & FileObserver.DELETE_SELF) != 0) {
+            submit(() -> refresh(dirKey, fileOf(dirKey)));
+            return;
+        }
+        if (name == null) return;
+        String key = (dirKey.equals("/") ? "/" : dirKey + "/") + name;
+        submit(() -> {
+            File f = fileOf(key);
+            refresh(key, f);
+            if (f.isDirectory() && !TreeWalker.isSymlink(f)
+                    && (event & (FileObserver.CREATE | FileObserver.MOVED_TO)) != 0) {
+                reconcile(f.getPath());
+            }
+        });
+    }
+
+    private static String newEpoch() {
+        return UUID.randomUUID().toString();
+    }
+
+    private void load() {
+        if (storeFile == null || !storeFile.isFile()) {
+            Log.i(TAG, "No index file, starting epoch " + epoch);
+            return;
+        }
+        String storedEpoch = null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(storeFile)))) {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                Log.w(TAG, "Ignoring index with unknown format: " + storeFile);
+                return;
+            }
+            String fileEpoch = in.readUTF();
+            long oldest = in.readLong();
+            boolean clean = in.readBoolean();
+            long gen = in.readLong();
+            int count = in.readInt();
+            long cutoff = System.currentTimeMillis() - TOMBSTONE_RETENTION_MS;
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long modified = in.readLong();
+                byte flags = in.readByte();
+                long entryGen = in.readLong();
+                boolean deleted = (flags & 2) != 0;
+                if (deleted && modified < cutoff) {
+                    // A client that synced before this deletion can no longer learn of it
+                    oldest = Math.max(oldest, entryGen);
+                    continue;
+                }
+                entries.put(path, new Entry(path, size, modified, (flags & 1) != 0, deleted, entryGen));
+                if (!deleted && !path.equals("/")) {
+                    children.computeIfAbsent(parentKey(path), k -> ConcurrentHashMap.newKeySet())
+                            .add(path.substring(path.lastIndexOf('/') + 1));
+                }
+            }
+            generation.set(gen);
+            if (clean) {
+                storedEpoch = fileEpoch;
+                oldestGeneration = oldest;
+            } else {
+                // Changes after the last periodic persist were lost with the process
+                oldestGeneration = gen;
+            }
+            Log.i(TAG, "Loaded " + entries.size() + " index entries at generation " + gen
+                    + (clean ? "" : " after an unclean shutdown"));
+        } catch (EOFException e) {
+            Log.w(TAG, "Index file truncated, rebuilding: " + storeFile);
+            entries.clear();
+            children.clear();
+            generation.set(0);
+            oldestGeneration = 0;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to load index: " + e.getMessage(), e);
+        } finally {
+            if (storedEpoch != null) {
+                epoch = storedEpoch;
+            } else {
+                Log.i(TAG, "Starting index epoch " + epoch + "; clients must resync");
+            }
+        }
+    }
+
+    /** @param clean whether the index is closing, so no change can follow this snapshot. */
+    private synchronized void persist(boolean clean) {
+        if (storeFile == null) return;
+        dirty = false;
+        File tmp = new File(storeFile.getPath() + ".tmp");
+        List<Entry> snapshot = new ArrayList<>(entries.values());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeUTF(epoch);
+            out.writeLong(oldestGeneration);
+            out.writeBoolean(clean);
+            out.writeLong(generation.get());
+            out.writeInt(snapshot.size());
+            for (Entry e : snapshot) {
+                out.writeUTF(e.path);
+                out.writeLong(e.size);
+                out.writeLong(e.modified);
+                out.writeByte((e.directory ? 1 : 0) | (e.deleted ? 2 : 0));
+                out.writeLong(e.generation);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to persist index: " + e.getMessage(), e);
+            dirty = true;
+            return;
+        }
+        if (!tmp.renameTo(storeFile)) {
+            Log.w(TAG, "Failed to replace index file: " + storeFile);
+            dirty = true;
+        }
+    }
+}
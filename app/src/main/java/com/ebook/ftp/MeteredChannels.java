@@ -0,0 +1,63 @@
+package com.ebook.ftp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Channel wrappers that count a session's data connection traffic and apply its throttle.
+ */
+final class MeteredChannels {
+
+    private MeteredChannels() {
+    }
+
+    static ReadableByteChannel in(ReadableByteChannel delegate, ClientSession session) {
+        return new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                int n = delegate.read(dst);
+                if (n > 0) {
+                    session.addBytesIn(n);
+                    session.throttle(n);
+                }
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return delegate.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                delegate.close();
+            }
+        };
+    }
+
+    static WritableByteChannel out(WritableByteChannel delegate, ClientSession session) {
+        return new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                int n = delegate.write(src);
+                if (n > 0) {
+                    session.addBytesOut(n);
+                    session.throttle(n);
+                }
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return delegate.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                delegate.close();
+            }
+        };
+    }
+}
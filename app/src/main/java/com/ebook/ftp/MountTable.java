@@ -0,0 +1,113 @@
+package com.ebook.ftp;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Utility class that maps paths to the file system they live on, from /proc/self/mounts.
+ */
+public class MountTable {
+
+    private static final String TAG = "FTP_MountTable";
+
+    /** One line of the mount table. */
+    public static final class Mount {
+        public final String device;
+        public final String mountPoint;
+        public final String type;
+
+        Mount(String device, String mountPoint, String type) {
+            this.device = device;
+            this.mountPoint = mountPoint;
+            this.type = type;
+        }
+
+        /**
+         * FUSE (and the old sdcardfs / vfat SD card mounts) copy every byte through a daemon or
+         * a slow card, so sendfile() buys nothing there and reads benefit from read-ahead.
+         */
+        public boolean isSlowBackend() {
+            return type.startsWith("fuse") || type.equals("sdcardfs") || type.equals("vfat")
+                    || type.equals("exfat") || type.equals("texfat");
+        }
+
+        /** Whether link() works here; the FUSE daemon, sdcardfs and FAT file systems refuse it. */
+        public boolean supportsHardLinks() {
+            return !isSlowBackend();
+        }
+    }
+
+    private static volatile List<Mount> mounts;
+
+    private MountTable() {
+    }
+
+    /**
+     * Returns the mount that contains {@code file} (longest matching mount point), or null if
+     * the mount table cannot be read.
+     */
+    public static Mount find(File file) {
+        String path = file.getAbsolutePath();
+        Mount best = null;
+        for (Mount m : load()) {
+            String mp = m.mountPoint;
+            boolean contains = path.equals(mp) || mp.equals("/")
+                    || path.startsWith(mp.endsWith("/") ? mp : mp + "/");
+            if (contains && (best == null || mp.length() > best.mountPoint.length())) {
+                best = m;
+            }
+        }
+        return best;
+    }
+
+    /** Forgets the cached table, e.g. after an SD card was inserted or removed. */
+    public static void invalidate() {
+        mounts = null;
+    }
+
+    private static List<Mount> load() {
+        List<Mount> cached = mounts;
+        if (cached != null) return cached;
+
+        List<Mount> parsed = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/self/mounts"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ");
+                if (parts.length < 3) continue;
+                parsed.add(new Mount(parts[0], unescape(parts[1]), parts[2]));
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read mount table: " + e.getMessage());
+        }
+        mounts = Collections.unmodifiableList(parsed);
+        return mounts;
+    }
+
+    // The kernel escapes spaces and friends in mount points as octal (\040).
+    private static String unescape(String s) {
+        if (s.indexOf('\\') < 0) return s;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 3 < s.length()) {
+                try {
+                    sb.append((char) Integer.parseInt(s.substring(i + 1, i + 4), 8));
+                    i += 3;
+                    continue;
+                } catch (NumberFormatException ignored) {
+                    // not an escape, keep the backslash
+                }
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,163 @@
+package com.ebook.ftp;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.LinkAddress;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.util.Log;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Process-wide cache of the device's local network addresses, kept current by
+ * {@link ConnectivityManager} callbacks instead of enumerating every network interface on
+ * each lookup.
+ *
+ * <p>Only Wi-Fi and Ethernet networks are tracked: those are the networks FTP clients can reach
+ * us on. Listeners are told whenever the set of addresses changes, e.g. when the device hops
+ * to another access point; they are called on the connectivity callback thread.
+ */
+public class NetworkMonitor {
+
+    private static final String TAG = "FTP_NetworkMonitor";
+
+    /** Notified when the local addresses change. */
+    public interface Listener {
+        /**
+         * @param addresses the current IPv4 addresses, primary first; empty when no local network is up.
+         */
+        void onAddressesChanged(List<InetAddress> addresses);
+    }
+
+    private static volatile NetworkMonitor instance;
+
+    private final ConnectivityManager connectivityManager;
+    // Insertion ordered so the network that came up first stays primary; guarded by this.
+    private final Map<Network, List<InetAddress>> byNetwork = new LinkedHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private volatile List<InetAddress> addresses = Collections.emptyList();
+
+    private final ConnectivityManager.NetworkCallback callback = new ConnectivityManager.NetworkCallback() {
+        @Override
+        public void onLinkPropertiesChanged(Network network, LinkProperties linkProperties) {
+            update(network, ipv4Addresses(linkProperties));
+        }
+
+        @Override
+        public void onLost(Network network) {
+            update(network, null);
+        }
+    };
+
+    /** Returns the monitor, registering it with the connectivity service on first use. */
+    public static NetworkMonitor get(Context context) {
+        NetworkMonitor m = instance;
+        if (m == null) {
+            synchronized (NetworkMonitor.class) {
+                m = instance;
+                if (m == null) {
+                    m = new NetworkMonitor(context.getApplicationContext());
+                    instance = m;
+                }
+            }
+        }
+        return m;
+    }
+
+    /** The monitor if one was started, otherwise null. Never registers anything. */
+    static NetworkMonitor peek() {
+        return instance;
+    }
+
+    private NetworkMonitor(Context context) {
+        connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager == null) {
+            Log.w(TAG, "ConnectivityManager not available.");
+            return;
+        }
+        // Seed synchronously from the active network so callers have an address right away;
+        // the callback below then reports every matching network asynchronously.
+        Network active = connectivityManager.getActiveNetwork();
+        if (active != null && isLocalNetwork(connectivityManager.getNetworkCapabilities(active))) {
+            update(active, ipv4Addresses(connectivityManager.getLinkProperties(active)));
+        }
+        NetworkRequest request = new NetworkRequest.Builder()
+                .addTransportType(NetworkCapabilities.TRANSPORT_WIFI)
+                .addTransportType(NetworkCapabilities.TRANSPORT_ETHERNET)
+                .removeCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .build();
+        connectivityManager.registerNetworkCallback(request, callback);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /** The current local IPv4 addresses, primary first. */
+    public List<InetAddress> getAddresses() {
+        return addresses;
+    }
+
+    /** The address to show to users and advertise to clients, or null when offline. */
+    public InetAddress getPrimaryAddress() {
+        List<InetAddress> current = addresses;
+        return current.isEmpty() ? null : current.get(0);
+    }
+
+    /** @return true if {@code address} is one of the device's current local addresses. */
+    public boolean isLocalAddress(InetAddress address) {
+        return addresses.contains(address);
+    }
+
+    private synchronized void update(Network network, List<InetAddress> networkAddresses) {
+        if (networkAddresses == null) {
+            byNetwork.remove(network);
+        } else {
+            byNetwork.put(network, networkAddresses);
+        }
+        List<InetAddress> updated = new ArrayList<>();
+        for (List<InetAddress> list : byNetwork.values()) {
+            for (InetAddress a : list) {
+                if (!updated.contains(a)) updated.add(a);
+            }
+        }
+        List<InetAddress> previous = addresses;
+        if (updated.equals(previous)) return;
+        addresses = Collections.unmodifiableList(updated);
+        Log.i(TAG, "Local addresses changed: " + previous + " -> " + updated);
+        for (Listener l : listeners) {
+            l.onAddressesChanged(addresses);
+        }
+    }
+
+    private static boolean isLocalNetwork(NetworkCapabilities caps) {
+        return caps != null && (caps.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)
+                || caps.hasTransport(NetworkCapabilities.TRANSPORT_ETHERNET));
+    }
+
+    private static List<InetAddress> ipv4Addresses(LinkProperties lp) {
+        List<InetAddress> result = new ArrayList<>();
+        if (lp == null || lp.getLinkAddresses() == null) return result;
+        for (LinkAddress la : lp.getLinkAddresses()) {
+            InetAddress a = la.getAddress();
+            if (a instanceof Inet4Address && !a.isLoopbackAddress() && !a.isLinkLocalAddress()) {
+                result.add(a);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,210 @@
+package com.ebook.ftp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Read/write locks on files, keyed by canonical path: shared for downloads, exclusive for
+ * uploads, renames and deletes, so no client reads a file another one is replacing.
+ *
+ * <p>Lock state exists only for paths currently locked, spread over a fixed set of stripes
+ * by path hash. Transfers of unrelated files touch different stripes (or at worst share one
+ * monitor for a few instructions) and never wait for each other. A waiting writer holds off
+ * new readers, so a popular file cannot starve its uploader.
+ */
+public class PathLockManager {
+
+    private static final int STRIPES = 64;
+
+    /** A held lock on one or two paths. Closing it releases them; closing twice is harmless. */
+    public final class Lease implements Closeable {
+        private final String[] keys;
+        private final boolean[] exclusive;
+        private boolean released = false;
+
+        Lease(String[] keys, boolean[] exclusive) {
+            this.keys = keys;
+            this.exclusive = exclusive;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (released) return;
+                released = true;
+            }
+            for (int i = keys.length - 1; i >= 0; i--) {
+                release(keys[i], exclusive[i]);
+            }
+        }
+    }
+
+    // Per-path state, present only while the path is locked or awaited; guarded by its stripe.
+    private static final class State {
+        int readers;
+        boolean writer;
+        int writersWaiting;
+        int waiters;
+    }
+
+    private final Object[] stripes = new Object[STRIPES];
+    @SuppressWarnings("unchecked")
+    private final Map<String, State>[] states = new Map[STRIPES];
+    private final ServerMetrics metrics;
+
+    public PathLockManager(ServerMetrics metrics) {
+        this.metrics = metrics;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+            states[i] = new HashMap<>();
+        }
+    }
+
+    /**
+     * Locks {@code file}, waiting up to {@code timeoutMs} for conflicting holders
+     * (0 to fail at once).
+     *
+     * @return the lease, or null if the file stayed busy.
+     */
+    public Lease acquire(File file, boolean exclusive, long timeoutMs) throws InterruptedIOException {
+        String key = keyOf(file);
+        if (!lock(key, exclusive, deadline(timeoutMs))) return null;
+        return new Lease(new String[]{key}, new boolean[]{exclusive});
+    }
+
+    /**
+     * Locks two files together, e.g. the source and target of a rename or copy. Locks are
+     * taken in path order so two sessions locking the same pair cannot deadlock; the same
+     * path given twice is locked once, exclusively if either asked for it.
+     *
+     * @return the lease, or null if either file stayed busy (neither is held then).
+     */
+    public Lease acquire(File first, boolean firstExclusive, File second, boolean secondExclusive, long timeoutMs)
+            throws InterruptedIOException {
+        String a = keyOf(first);
+        String b = keyOf(second);
+        if (a.equals(b)) {
+            boolean exclusive = firstExclusive || secondExclusive;
+            if (!lock(a, exclusive, deadline(timeoutMs))) return null;
+            return new Lease(new String[]{a}, new boolean[]{exclusive});
+        }
+        if (a.compareTo(b) > 0) {
+            String k = a;
+            a = b;
+            b = k;
+            boolean e = firstExclusive;
+            firstExclusive = secondExclusive;
+            secondExclusive = e;
+        }
+        long deadline = deadline(timeoutMs);
+        if (!lock(a, firstExclusive, deadline)) return null;
+        boolean locked = false;
+        try {
+            locked = lock(b, secondExclusive, deadline);
+        } finally {
+            if (!locked) release(a, firstExclusive);
+        }
+        return locked ? new Lease(new String[]{a, b}, new boolean[]{firstExclusive, secondExclusive}) : null;
+    }
+
+    private boolean lock(String key, boolean exclusive, long deadline) throws InterruptedIOException {
+        int index = stripeOf(key);
+        Object stripe = stripes[index];
+        synchronized (stripe) {
+            Map<String, State> map = states[index];
+            State s = map.get(key);
+            if (s == null) {
+                s = new State();
+                map.put(key, s);
+            }
+            if (available(s, exclusive)) {
+                grant(s, exclusive);
+                return true;
+            }
+
+            metrics.increment("locks.contended");
+            s.waiters++;
+            if (exclusive) s.writersWaiting++;
+            try {
+                while (!available(s, exclusive)) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        metrics.increment("locks.busy");
+                        return false;
+                    }
+                    try {
+                        long ms = remaining / 1_000_000;
+                        stripe.wait(ms, (int) (remaining % 1_000_000));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for a file lock");
+                    }
+                }
+                grant(s, exclusive);
+                return true;
+            } finally {
+                s.waiters--;
+                if (exclusive) s.writersWaiting--;
+                if (s.readers == 0 && !s.writer && s.waiters == 0) {
+                    map.remove(key);
+                } else if (exclusive && s.writersWaiting == 0) {
+                    stripe.notifyAll(); // readers held off by this writer may go now
+                }
+            }
+        }
+    }
+
+    private void release(String key, boolean exclusive) {
+        int index = stripeOf(key);
+        Object stripe = stripes[index];
+        synchronized (stripe) {
+            Map<String, State> map = states[index];
+            State s = map.get(key);
+            if (s == null) return;
+            if (exclusive) {
+                s.writer = false;
+            } else {
+                s.readers--;
+            }
+            if (s.waiters > 0) {
+                stripe.notifyAll();
+            } else if (s.readers == 0 && !s.writer) {
+                map.remove(key);
+            }
+        }
+    }
+
+    private static boolean available(State s, boolean exclusive) {
+        if (exclusive) return !s.writer && s.readers == 0;
+        return !s.writer && s.writersWaiting == 0;
+    }
+
+    private static void grant(State s, boolean exclusive) {
+        if (exclusive) {
+            s.writer = true;
+        } else {
+            s.readers++;
+        }
+    }
+
+    private static long deadline(long timeoutMs) {
+        return System.nanoTime() + Math.max(0, timeoutMs) * 1_000_000L;
+    }
+
+    private static int stripeOf(String key) {
+        int h = key.hashCode();
+        return ((h ^ (h >>> 16)) & 0x7fffffff) % STRIPES;
+    }
+
+    private static String keyOf(File file) {
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return file.getAbsolutePath();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.ebook.ftp;
+
+import android.net.wifi.WifiManager;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds the partial wake lock and the high-performance Wi-Fi lock only while the server is
+ * busy: from the first command or transfer until no transfer is running and no command has
+ * arrived for the idle grace period. An idle server lets the CPU sleep and the radio drop
+ * into its power save mode; a client connecting wakes it through the normal network path.
+ *
+ * <p>The per-command cost is a volatile read while the locks are already held, so this can be
+ * called from every session's command loop.
+ */
+public class PowerLockManager implements FTPServer.ActivityListener {
+
+    private static final String TAG = "FTP_PowerLock";
+
+    public static final long DEFAULT_IDLE_GRACE_MS = TimeUnit.SECONDS.toMillis(30);
+
+    // The wake lock is taken with a timeout so a missed release can never drain the battery;
+    // every idle check that finds the server busy renews it.
+    private static final long WAKE_LOCK_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(2);
+
+    private final PowerManager.WakeLock wakeLock;
+    private final WifiManager.WifiLock wifiLock;
+    private final ServerMetrics metrics;
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicInteger activeTransfers = new AtomicInteger();
+    private volatile long lastActivity = SystemClock.elapsedRealtime();
+    private volatile long idleGraceMs;
+    private volatile boolean held = false;
+    private long heldSince;
+    private ScheduledFuture<?> idleCheck;
+
+    /**
+     * @param wakeLock partial wake lock, or null if unavailable.
+     * @param wifiLock Wi-Fi lock, or null if unavailable.
+     * @param metrics  receives the power state transitions.
+     */
+    public PowerLockManager(PowerManager.WakeLock wakeLock, WifiManager.WifiLock wifiLock,
+                            ServerMetrics metrics, long idleGraceMs) {
+        this.wakeLock = wakeLock;
+        this.wifiLock = wifiLock;
+        this.metrics = metrics;
+        this.idleGraceMs = idleGraceMs;
+        if (wakeLock != null) wakeLock.setReferenceCounted(false);
+        if (wifiLock != null) wifiLock.setReferenceCounted(false);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ftp-power");
+            t.setDaemon(true);
+            return t;
+        });
+        metrics.set("power.locks_held", 0);
+    }
+
+    /** Sets how long the locks are kept after the last activity. */
+    public void setIdleGraceMs(long idleGraceMs) {
+        this.idleGraceMs = Math.max(0, idleGraceMs);
+    }
+
+    public boolean isHeld() {
+        return held;
+    }
+
+    @Override
+    public void onCommand() {
+        lastActivity = SystemClock.elapsedRealtime();
+        if (!held) acquire();
+    }
+
+    @Override
+    public void onTransferStarted() {
+        activeTransfers.incrementAndGet();
+        lastActivity = SystemClock.elapsedRealtime();
+        if (!held) acquire();
+    }
+
+    @Override
+    public void onTransferFinished() {
+        activeTransfers.decrementAndGet();
+        lastActivity = SystemClock.elapsedRealtime();
+    }
+
+    /** Releases the locks immediately and stops the idle timer; the manager is unusable afterwards. */
+    public synchronized void shutdown() {
+        release("shutdown");
+        scheduler.shutdownNow();
+    }
+
+    private synchronized void acquire() {
+        if (held || scheduler.isShutdown()) return;
+        if (wakeLock != null) wakeLock.acquire(WAKE_LOCK_TIMEOUT_MS);
+        if (wifiLock != null) wifiLock.acquire();
+        held = true;
+        heldSince = SystemClock.elapsedRealtime();
+        metrics.increment("power.acquire");
+        metrics.set("power.locks_held", 1);
+        Log.d(TAG, "Power locks acquired");
+        scheduleIdleCheck(idleGraceMs);
+    }
+
+    private synchronized void checkIdle() {
+        if (!held) return;
+        long seen = lastActivity;
+        long idleFor = SystemClock.elapsedRealtime() - seen;
+        if (activeTransfers.get() > 0) {
+            if (wakeLock != null) wakeLock.acquire(WAKE_LOCK_TIMEOUT_MS);
+            scheduleIdleCheck(idleGraceMs);
+        } else if (idleFor < idleGraceMs) {
+            if (wakeLock != null) wakeLock.acquire(WAKE_LOCK_TIMEOUT_MS);
+            scheduleIdleCheck(idleGraceMs - idleFor);
+        } else {
+            release("idle " + idleFor + " ms");
+            // A command that raced with the release saw the locks still held and skipped acquire()
+            if (lastActivity != seen || activeTransfers.get() > 0) acquire();
+        }
+    }
+
+    private void scheduleIdleCheck(long delayMs) {
+        if (scheduler.isShutdown()) return;
+        idleCheck = scheduler.schedule(this::checkIdle, Math.max(delayMs, 1), TimeUnit.MILLISECONDS);
+    }
+
+    private void release(String reason) {
+        if (idleCheck != null) {
+            idleCheck.cancel(false);
+            idleCheck = null;
+        }
+        if (!held) return;
+        if (wifiLock != null && wifiLock.isHeld()) wifiLock.release();
+        if (wakeLock != null && wakeLock.isHeld()) wakeLock.release();
+        held = false;
+        long heldMs = SystemClock.elapsedRealtime() - heldSince;
+        metrics.increment("power.release");
+        metrics.add("power.held_ms", heldMs);
+        metrics.set("power.locks_held", 0);
+        Log.d(TAG, "Power locks released after " + heldMs + " ms (" + reason + ")");
+    }
+}
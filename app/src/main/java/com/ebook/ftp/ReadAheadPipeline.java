@@ -0,0 +1,218 @@
+package com.ebook.ftp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * RETR pipeline for files where zero-copy is not possible: a disk stage prefetches the next
+ * chunks of the file while the session thread sends the current one.
+ *
+ * <p>The read-ahead depth adapts to the observed rates. Whenever the sender finds no chunk
+ * ready (the disk is the bottleneck, or had a latency spike) the depth grows so that the next
+ * spike is absorbed by the prefetched chunks; while the sender keeps finding a full queue (the
+ * network is the bottleneck) the depth slowly shrinks back so idle prefetched buffers do not
+ * pile up.
+ *
+ * <p>Chunks are leased from the shared {@link BufferArena} as the window grows. When the arena
+ * is short of memory the window stops growing and the chunks already leased are recycled.
+ */
+public class ReadAheadPipeline {
+
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    public static final int MIN_DEPTH = 2;
+    public static final int MAX_DEPTH = 16;
+
+    // Consecutive chunks found waiting before the depth is reduced by one.
+    private static final int SHRINK_AFTER = 32;
+
+    private static final ByteBuffer EOF = ByteBuffer.allocate(0);
+
+    private final ExecutorService diskExecutor;
+    private final BufferArena arena;
+    private final int chunkSize;
+
+    public ReadAheadPipeline(ExecutorService diskExecutor, BufferArena arena) {
+        this(diskExecutor, arena, DEFAULT_CHUNK_SIZE);
+    }
+
+    public ReadAheadPipeline(ExecutorService diskExecutor, BufferArena arena, int chunkSize) {
+        this.diskExecutor = diskExecutor;
+        this.arena = arena;
+        this.chunkSize = chunkSize;
+    }
+
+    /** Read-ahead window shared by the two stages of one transfer. */
+    private static final class Window {
+        private int depth = MIN_DEPTH;
+        private int inFlight = 0;
+        private int hits = 0;
+
+        synchronized void acquire() throws InterruptedException {
+            while (inFlight >= depth) wait();
+            inFlight++;
+        }
+
+        synchronized void release() {
+            inFlight--;
+            notifyAll();
+        }
+
+        synchronized void onUnderrun() {
+            hits = 0;
+            if (depth < MAX_DEPTH) {
+                depth++;
+                notifyAll();
+            }
+        }
+
+        synchronized void onHit() {
+            if (++hits >= SHRINK_AFTER && depth > MIN_DEPTH) {
+                depth--;
+                hits = 0;
+            }
+        }
+    }
+
+    /**
+     * Sends {@code file} from {@code position} to its end.
+     *
+     * @return the number of bytes written to {@code out}.
+     */
+    public long transfer(FileChannel file, long position, WritableByteChannel out) throws IOException {
+        return transfer(file, position, Long.MAX_VALUE, out);
+    }
+
+    /**
+     * Sends at most {@code count} bytes of {@code file} starting at {@code position}.
+     *
+     * @return the number of bytes written to {@code out}.
+     */
+    public long transfer(FileChannel file, long position, long count, WritableByteChannel out) throws IOException {
+        return transfer(file, position, count, out, IoScheduler.UNSCHEDULED);
+    }
+
+    /**
+     * Like {@link #transfer(FileChannel, long, long, WritableByteChannel)}, with every chunk
+     * read as an operation of {@code io}.
+     */
+    public long transfer(FileChannel file, long position, long count, WritableByteChannel out,
+                         IoScheduler.Request io) throws IOException {
+        long end = count > Long.MAX_VALUE - position ? Long.MAX_VALUE : position + count;
+        BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(MAX_DEPTH);
+        BlockingQueue<ByteBuffer> ready = new ArrayBlockingQueue<>(MAX_DEPTH + 1);
+        Window window = new Window();
+
+        // Every chunk leased for this transfer; only touched by the reader until it exited.
+        List<ByteBuffer> leased = new ArrayList<>();
+        AtomicBoolean claimed = new AtomicBoolean();
+        CountDownLatch readerExited = new CountDownLatch(1);
+        Future<?> reader = diskExecutor.submit(() -> {
+            if (!claimed.compareAndSet(false, true)) return null;
+            try {
+                long pos = position;
+                while (true) {
+                    window.acquire();
+                    ByteBuffer buf = nextChunk(free, leased);
+                    if (end - pos < buf.remaining()) buf.limit((int) (end - pos));
+                    int read = -1;
+                    if (pos < end) {
+                        IoScheduler.Permit permit = io.enter(pos - position);
+                        try {
+                            read = file.read(buf, pos);
+                        } finally {
+                            permit.close();
+                        }
+                    }
+                    if (read < 0) {
+                        ready.put(EOF);
+                        return null;
+                    }
+                    pos += read;
+                    buf.flip();
+                    ready.put(buf);
+                }
+            } finally {
+                readerExited.countDown();
+            }
+        });
+
+        long sent = 0;
+        try {
+            while (true) {
+                ByteBuffer buf = ready.poll();
+                if (buf == null) {
+                    // The very first chunk is always a miss; only count stalls mid-stream
+                    if (sent > 0) window.onUnderrun();
+                    buf = nextReady(ready, reader);
+                } else {
+                    window.onHit();
+                }
+                if (buf == EOF) break;
+                while (buf.hasRemaining()) {
+                    sent += out.write(buf);
+                }
+                buf.clear();
+                free.offer(buf);
+                window.release();
+            }
+            reader.get();
+            return sent;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Download interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException("Disk read failed: " + cause, cause);
+        } finally {
+            reader.cancel(true);
+            if (!claimed.compareAndSet(false, true)) UploadPipeline.awaitUninterruptibly(readerExited);
+            for (ByteBuffer buf : leased) {
+                arena.release(buf);
+            }
+        }
+    }
+
+    /**
+     * A recycled chunk, else a newly leased one, else (arena exhausted) waits for the sender to
+     * recycle one. Only the very first chunk waits on the arena itself.
+     */
+    private ByteBuffer nextChunk(BlockingQueue<ByteBuffer> free, List<ByteBuffer> leased)
+            throws IOException, InterruptedException {
+        ByteBuffer buf = free.poll();
+        if (buf != null) return buf;
+        if (leased.isEmpty()) {
+            buf = arena.lease(chunkSize, BufferArena.SMALL);
+        } else {
+            buf = arena.tryLease(chunkSize, BufferArena.SMALL);
+            if (buf == null) return free.take();
+        }
+        leased.add(buf);
+        return buf;
+    }
+
+    private static ByteBuffer nextReady(BlockingQueue<ByteBuffer> ready, Future<?> reader)
+            throws InterruptedException, ExecutionException {
+        while (true) {
+            ByteBuffer buf = ready.poll(100, TimeUnit.MILLISECONDS);
+            if (buf != null) return buf;
+            if (reader.isDone() && ready.isEmpty()) {
+                reader.get(); // rethrows the disk failure
+                throw new ExecutionException(new IOException("Read-ahead stage stopped"));
+            }
+        }
+    }
+}
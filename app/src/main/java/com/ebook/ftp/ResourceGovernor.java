@@ -0,0 +1,143 @@
+package com.ebook.ftp;
+
+import android.content.ComponentCallbacks2;
+import android.util.Log;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reacts to the system's memory trim signals by making the server cheaper to keep alive,
+ * so under pressure transfers get slower instead of the process being killed mid-transfer.
+ *
+ * <p>The response is staged by trim level:
+ * <ol>
+ *     <li>{@link #STAGE_MODERATE}: drop pooled transfer buffers, the SITE DU cache and the
+ *     hot file mappings not in use.</li>
+ *     <li>{@link #STAGE_LOW}: also halve the transfer memory budget, allow at most
+ *     {@link #LOW_TRANSFER_LIMIT} concurrent transfers and pause background indexing.</li>
+ *     <li>{@link #STAGE_CRITICAL}: quarter the budget and run one transfer at a time.</li>
+ * </ol>
+ * Android never says when pressure is over, so after {@link #RECOVERY_DELAY_MS} without a new
+ * signal the governor steps back down one stage at a time.
+ */
+public class ResourceGovernor {
+
+    private static final String TAG = "FTP_ResourceGovernor";
+
+    public static final int STAGE_NORMAL = 0;
+    public static final int STAGE_MODERATE = 1;
+    public static final int STAGE_LOW = 2;
+    public static final int STAGE_CRITICAL = 3;
+
+    static final int LOW_TRANSFER_LIMIT = 4;
+    static final int CRITICAL_TRANSFER_LIMIT = 1;
+    static final long RECOVERY_DELAY_MS = TimeUnit.SECONDS.toMillis(60);
+
+    private final FTPServer server;
+    private final ScheduledExecutorService scheduler;
+    private int stage = STAGE_NORMAL; // guarded by this
+    private ScheduledFuture<?> recovery;
+
+    public ResourceGovernor(FTPServer server) {
+        this.server = server;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ftp-governor");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** Feed from {@link ComponentCallbacks2#onTrimMemory(int)}. */
+    public void onTrimMemory(int level) {
+        int requested;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            requested = STAGE_CRITICAL;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            requested = STAGE_LOW;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            requested = STAGE_MODERATE;
+        } else {
+            return; // TRIM_MEMORY_UI_HIDDEN and friends are not memory pressure
+        }
+        escalate(requested, "trim level " + level);
+    }
+
+    /** Feed from {@link ComponentCallbacks2#onLowMemory()}. */
+    public void onLowMemory() {
+        escalate(STAGE_CRITICAL, "low memory");
+    }
+
+    public synchronized int getStage() {
+        return stage;
+    }
+
+    public synchronized void shutdown() {
+        if (recovery != null) recovery.cancel(false);
+        scheduler.shutdownNow();
+        if (stage != STAGE_NORMAL) apply(STAGE_NORMAL);
+    }
+
+    private synchronized void escalate(int requested, String reason) {
+        if (scheduler.isShutdown()) return;
+        server.getMetrics().increment("governor.signals");
+        if (requested > stage) {
+            Log.w(TAG, "Memory pressure (" + reason + "): stage " + stage + " -> " + requested);
+            apply(requested);
+        } else if (requested >= STAGE_MODERATE) {
+            // Same or lower signal again: trim what was pooled up since
+            trimCaches();
+        }
+        scheduleRecovery();
+    }
+
+    private synchronized void recover() {
+        if (stage == STAGE_NORMAL) return;
+        Log.i(TAG, "No memory pressure for " + RECOVERY_DELAY_MS + " ms: stage " + stage + " -> " + (stage - 1));
+        apply(stage - 1);
+        if (stage != STAGE_NORMAL) scheduleRecovery();
+    }
+
+    private void scheduleRecovery() {
+        if (recovery != null) recovery.cancel(false);
+        recovery = scheduler.schedule(this::recover, RECOVERY_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void apply(int newStage) {
+        stage = newStage;
+        server.getMetrics().set("governor.stage", newStage);
+
+        if (newStage >= STAGE_MODERATE) trimCaches();
+
+        BufferArena arena = server.getBufferArena();
+        if (arena != null) {
+            long base = server.getTransferMemoryBudget();
+            long budget = newStage >= STAGE_CRITICAL ? base / 4 : newStage >= STAGE_LOW ? base / 2 : base;
+            arena.setBudget(budget);
+        }
+
+        int limit = server.getMaxConcurrentTransfers();
+        if (newStage >= STAGE_CRITICAL) {
+            limit = Math.min(limit, CRITICAL_TRANSFER_LIMIT);
+        } else if (newStage >= STAGE_LOW) {
+            limit = Math.min(limit, LOW_TRANSFER_LIMIT);
+        }
+        server.getTransferLimiter().setLimit(limit);
+
+        MetadataIndex index = server.getMetadataIndex();
+        if (index != null) index.setPaused(newStage >= STAGE_LOW);
+    }
+
+    private void trimCaches() {
+        BufferArena arena = server.getBufferArena();
+        if (arena != null) arena.trim();
+        TreeWalker walker = server.getTreeWalker();
+        if (walker != null) walker.clearCache();
+        server.getHotFileCache().trim();
+    }
+}
@@ -0,0 +1,68 @@
+package com.ebook.ftp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.List;
+
+/**
+ * Runs the metadata lookups of another file system as interactive operations of an
+ * {@link IoScheduler}, so they go ahead of bulk transfers competing for the same storage.
+ * Reads and writes through the returned channels are scheduled by the transfer pipelines,
+ * chunk by chunk, and are passed through as they are.
+ */
+public class ScheduledFileSystem implements VirtualFileSystem {
+
+    private final VirtualFileSystem delegate;
+    private final IoScheduler scheduler;
+
+    public ScheduledFileSystem(VirtualFileSystem delegate, IoScheduler scheduler) {
+        this.delegate = delegate;
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public String resolve(String currentDir, String path) throws IOException {
+        return delegate.resolve(currentDir, path);
+    }
+
+    @Override
+    public Attributes stat(String path) throws IOException {
+        IoScheduler.Permit permit = scheduler.interactive().enter(0);
+        try {
+            return delegate.stat(path);
+        } finally {
+            permit.close();
+        }
+    }
+
+    @Override
+    public List<Attributes> list(String path) throws IOException {
+        IoScheduler.Permit permit = scheduler.interactive().enter(0);
+        try {
+            return delegate.list(path);
+        } finally {
+            permit.close();
+        }
+    }
+
+    @Override
+    public SeekableByteChannel openRead(String path) throws IOException {
+        return delegate.openRead(path);
+    }
+
+    @Override
+    public WriteChannel openWrite(String path) throws IOException {
+        return delegate.openWrite(path);
+    }
+
+    @Override
+    public File toLocalFile(String path) throws IOException {
+        return delegate.toLocalFile(path);
+    }
+
+    @Override
+    public void invalidate(String path) {
+        delegate.invalidate(path);
+    }
+}
@@ -0,0 +1,51 @@
+package com.ebook.ftp;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Named counters and gauges describing what the server has been doing, reported by
+ * {@code SITE METRICS}. Counters only go up; gauges hold the latest value.
+ *
+ * <p>Updates are cheap enough for hot paths: counters are {@link LongAdder}s, so concurrent
+ * sessions bumping the same counter do not contend on a single cache line.
+ */
+public class ServerMetrics {
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> gauges = new ConcurrentHashMap<>();
+
+    public void increment(String name) {
+        add(name, 1);
+    }
+
+    public void add(String name, long delta) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(delta);
+    }
+
+    public void set(String name, long value) {
+        gauges.computeIfAbsent(name, k -> new AtomicLong()).set(value);
+    }
+
+    public long get(String name) {
+        LongAdder counter = counters.get(name);
+        if (counter != null) return counter.sum();
+        AtomicLong gauge = gauges.get(name);
+        return gauge != null ? gauge.get() : 0;
+    }
+
+    /** All counters and gauges, sorted by name. */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> e : counters.entrySet()) {
+            result.put(e.getKey(), e.getValue().sum());
+        }
+        for (Map.Entry<String, AtomicLong> e : gauges.entrySet()) {
+            result.put(e.getKey(), e.getValue().get());
+        }
+        return result;
+    }
+}
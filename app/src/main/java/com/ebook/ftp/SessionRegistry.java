@@ -0,0 +1,70 @@
+package com.ebook.ftp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The sessions currently connected to a server. Registration, removal and listing never block,
+ * so the operator UI polling it cannot stall a session and vice versa.
+ */
+public class SessionRegistry {
+
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final Map<Long, ClientSession> sessions = new ConcurrentHashMap<>();
+
+    ClientSession register(String remoteAddress, Runnable closer) {
+        ClientSession session = new ClientSession(nextId.getAndIncrement(), remoteAddress, closer);
+        sessions.put(session.getId(), session);
+        return session;
+    }
+
+    void unregister(ClientSession session) {
+        sessions.remove(session.getId());
+    }
+
+    /** The connected sessions, oldest first. */
+    public List<ClientSession> list() {
+        List<ClientSession> result = new ArrayList<>(sessions.values());
+        Collections.sort(result, (a, b) -> Long.compare(a.getId(), b.getId()));
+        return result;
+    }
+
+    public ClientSession get(long id) {
+        return sessions.get(id);
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    /** @return false if no such session is connected. */
+    public boolean kill(long id) {
+        ClientSession s = sessions.get(id);
+        if (s == null) return false;
+        s.kill();
+        return true;
+    }
+
+    /**
+     * Throttles one session to {@code bytesPerSecond} (0 to remove the throttle).
+     *
+     * @return false if no such session is connected.
+     */
+    public boolean setThrottle(long id, long bytesPerSecond) {
+        ClientSession s = sessions.get(id);
+        if (s == null) return false;
+        s.setThrottle(bytesPerSecond);
+        return true;
+    }
+
+    /** Disconnects every session, e.g. when the server stops. */
+    void killAll() {
+        for (ClientSession s : sessions.values()) {
+            s.kill();
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.ebook.ftp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples what the server's sessions are moving, for the live dashboard and the service
+ * notification: sessions, receive and send rates with a short history, and the progress of
+ * every transfer.
+ *
+ * <p>A background thread reads the sessions' byte counters once per
+ * {@link #SAMPLE_INTERVAL_MS} and publishes an immutable {@link Snapshot}. The counters are
+ * atomics the sessions update anyway, and readers only take the latest snapshot, so neither
+ * sampling nor any number of readers takes a lock a transfer could wait on. Readers poll at
+ * their own pace; one that gets the snapshot it drew last time has nothing new to draw.
+ */
+public class ThroughputMonitor {
+
+    public static final long SAMPLE_INTERVAL_MS = 1000;
+    // Samples kept for the sparkline: the last minute
+    public static final int HISTORY_SAMPLES = 60;
+    // Weight of the newest sample in a transfer's rate, so its ETA does not jump every second
+    private static final double RATE_SMOOTHING = 0.3;
+
+    // Bar heights of the sparkline, lowest first
+    private static final char[] SPARKS = {'\u2581', '\u2582', '\u2583', '\u2584', '\u2585', '\u2586', '\u2587', '\u2588'};
+
+    /** The progress of one data transfer when it was sampled. */
+    public static final class TransferStatus {
+        public final String command;
+        public final String argument;
+        public final long bytesMoved;
+        // -1 when not known
+        public final long expectedBytes;
+        public final double bytesPerSecond;
+
+        TransferStatus(String command, String argument, long bytesMoved, long expectedBytes, double bytesPerSecond) {
+            this.command = command;
+            this.argument = argument;
+            this.bytesMoved = bytesMoved;
+            this.expectedBytes = expectedBytes;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        /** Completed fraction from 0 to 1, or -1 if the size is not known. */
+        public double getFraction() {
+            if (expectedBytes <= 0) return -1;
+            return Math.min(1.0, (double) bytesMoved / expectedBytes);
+        }
+
+        /** Seconds left at the current rate, or -1 if that cannot be told. */
+        public long getEtaSeconds() {
+            if (expectedBytes < 0 || bytesPerSecond < 1) return -1;
+            return (long) Math.ceil(Math.max(0, expectedBytes - bytesMoved) / bytesPerSecond);
+        }
+    }
+
+    /** One connected session when it was sampled. */
+    public static final class SessionStatus {
+        public final long id;
+        public final String user;
+        public final String remoteAddress;
+        public final String command;
+        public final long bytesIn;
+        public final long bytesOut;
+        public final double bytesPerSecond;
+        public final long throttle;
+        // null when the session is not transferring
+        public final TransferStatus transfer;
+
+        SessionStatus(ClientSession session, double bytesPerSecond, TransferStatus transfer) {
+            this.id = session.getId();
+            this.user = session.getUser();
+            this.remoteAddress = session.getRemoteAddress();
+            this.command = session.getCommand();
+            this.bytesIn = session.getBytesIn();
+            this.bytesOut = session.getBytesOut();
+            this.bytesPerSecond = bytesPerSecond;
+            this.throttle = session.getThrottle();
+            this.transfer = transfer;
+        }
+    }
+
+    /** Everything sampled at one moment. Immutable, so it can be handed to any thread. */
+    public static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(Collections.emptyList(), 0, 0,
+                new double[HISTORY_SAMPLES], new double[HISTORY_SAMPLES]);
+
+        public final List<SessionStatus> sessions;
+        // Summed over all sessions, in bytes per second
+        public final double bytesInPerSecond;
+        public final double bytesOutPerSecond;
+        // The rates of the last HISTORY_SAMPLES samples, oldest first
+        private final double[] inHistory;
+        private final double[] outHistory;
+
+        Snapshot(List<SessionStatus> sessions, double bytesInPerSecond, double bytesOutPerSecond,
+                 double[] inHistory, double[] outHistory) {
+            this.sessions = sessions;
+            this.bytesInPerSecond = bytesInPerSecond;
+            this.bytesOutPerSecond = bytesOutPerSecond;
+            this.inHistory = inHistory;
+            this.outHistory = outHistory;
+        }
+
+        /** The number of sessions transferring. */
+        public int getActiveTransfers() {
+            int n = 0;
+            for (SessionStatus s : sessions) {
+                if (s.transfer != null) n++;
+            }
+            return n;
+        }
+
+        /** Receive plus send rate of the last {@code samples} samples, as a row of bars. */
+        public String sparkline(int samples) {
+            int n = Math.min(samples, HISTORY_SAMPLES);
+            double max = 0;
+            for (int i = HISTORY_SAMPLES - n; i < HISTORY_SAMPLES; i++) {
+                max = Math.max(max, inHistory[i] + outHistory[i]);
+            }
+            StringBuilder line = new StringBuilder(n);
+            for (int i = HISTORY_SAMPLES - n; i < HISTORY_SAMPLES; i++) {
+                double rate = inHistory[i] + outHistory[i];
+                int level = max > 0 ? (int) Math.round(rate / max * (SPARKS.length - 1)) : 0;
+                line.append(SPARKS[level]);
+            }
+            return line.toString();
+        }
+    }
+
+    private final SessionRegistry sessions;
+    private volatile Snapshot latest = Snapshot.EMPTY;
+    private ScheduledExecutorService sampler;
+
+    // Owned by the sampler thread: the counters seen at the last sample
+    private long lastSampleNanos;
+    private Map<Long, long[]> lastSessionBytes = new HashMap<>();
+    // Per transfer: bytes moved at the last sample, smoothed rate
+    private Map<ClientSession.Transfer, double[]> lastTransfers = new IdentityHashMap<>();
+    private final double[] inHistory = new double[HISTORY_SAMPLES];
+    private final double[] outHistory = new double[HISTORY_SAMPLES];
+
+    public ThroughputMonitor(SessionRegistry sessions) {
+        this.sessions = sessions;
+    }
+
+    public synchronized void start() {
+        if (sampler != null) return;
+        lastSampleNanos = System.nanoTime();
+        sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ftp-throughput");
+            t.setDaemon(true);
+            return t;
+        });
+        sampler.scheduleWithFixedDelay(this::sample, SAMPLE_INTERVAL_MS, SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (sampler != null) {
+            sampler.shutdownNow();
+            sampler = null;
+        }
+        latest = Snapshot.EMPTY;
+    }
+
+    /** The latest sample. Never blocks. */
+    public Snapshot getSnapshot() {
+        return latest;
+    }
+
+    // Runs on the sampler thread.
+    private void sample() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-3, (now - lastSampleNanos) / 1e9);
+        lastSampleNanos = now;
+
+        Map<Long, long[]> sessionBytes = new HashMap<>();
+        Map<ClientSession.Transfer, double[]> transfers = new IdentityHashMap<>();
+        List<SessionStatus> statuses = new ArrayList<>();
+        double totalIn = 0;
+        double totalOut = 0;
+        for (ClientSession session : sessions.list()) {
+            long in = session.getBytesIn();
+            long out = session.getBytesOut();
+            long[] last = lastSessionBytes.get(session.getId());
+            // A session's first sample only sets its baseline; it may have connected long before
+            double inRate = last != null ? (in - last[0]) / seconds : 0;
+            double outRate = last != null ? (out - last[1]) / seconds : 0;
+            sessionBytes.put(session.getId(), new long[]{in, out});
+            totalIn += inRate;
+            totalOut += outRate;
+
+            TransferStatus transferStatus = null;
+            ClientSession.Transfer transfer = session.getTransfer();
+            if (transfer != null) {
+                long moved = transfer.getBytesMoved();
+                double[] previous = lastTransfers.get(transfer);
+                double rate;
+                if (previous == null) {
+                    double elapsed = Math.max(1e-3, (now - transfer.getStartNanos()) / 1e9);
+                    rate = moved / elapsed;
+                } else {
+                    double current = (moved - previous[0]) / seconds;
+                    rate = previous[1] + RATE_SMOOTHING * (current - previous[1]);
+                }
+                transfers.put(transfer, new double[]{moved, rate});
+                transferStatus = new TransferStatus(transfer.getCommand(), transfer.getArgument(), moved,
+                        transfer.getExpectedBytes(), rate);
+            }
+            statuses.add(new SessionStatus(session, inRate + outRate, transferStatus));
+        }
+        lastSessionBytes = sessionBytes;
+        lastTransfers = transfers;
+
+        System.arraycopy(inHistory, 1, inHistory, 0, HISTORY_SAMPLES - 1);
+        System.arraycopy(outHistory, 1, outHistory, 0, HISTORY_SAMPLES - 1);
+        inHistory[HISTORY_SAMPLES - 1] = totalIn;
+        outHistory[HISTORY_SAMPLES - 1] = totalOut;
+        latest = new Snapshot(Collections.unmodifiableList(statuses), totalIn, totalOut,
+                inHistory.clone(), outHistory.clone());
+    }
+
+    /** A byte count for people: B, KB, MB or GB. */
+    public static String formatBytes(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        if (bytes < 1024 * 1024) return String.format(Locale.US, "%.1f KB", bytes / 1024.0);
+        if (bytes < 1024L * 1024 * 1024) return String.format(Locale.US, "%.1f MB", bytes / (1024.0 * 1024));
+        return String.format(Locale.US, "%.2f GB", bytes / (1024.0 * 1024 * 1024));
+    }
+
+    /** A duration in seconds as m:ss, or h:mm:ss from an hour on. */
+    public static String formatDuration(long seconds) {
+        if (seconds >= 3600) {
+            return String.format(Locale.US, "%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+        }
+        return String.format(Locale.US, "%d:%02d", seconds / 60, seconds % 60);
+    }
+}
@@ -0,0 +1,186 @@
+package com.ebook.ftp;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Loopback benchmark comparing plaintext and TLS data connection throughput on this device,
+ * plus the cost of a full versus a resumed handshake. Run through {@code SITE BENCH TLS [MB]}.
+ */
+public class TlsBenchmark {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Outcome of one benchmark run. */
+    public static final class Result {
+        public double plainMBps;
+        public double tlsMBps;
+        public double fullHandshakeMs;
+        public double resumedHandshakeMs;
+        public boolean resumed;
+        public String protocol;
+        public String cipherSuite;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "plain %.1f MB/s, tls %.1f MB/s (%s %s), handshake full %.1f ms, %s %.1f ms",
+                    plainMBps, tlsMBps, protocol, cipherSuite, fullHandshakeMs,
+                    resumed ? "resumed" : "NOT resumed", resumedHandshakeMs);
+        }
+    }
+
+    private final TlsContext tls;
+
+    public TlsBenchmark(TlsContext tls) {
+        this.tls = tls;
+    }
+
+    public Result run(long bytes) throws IOException, GeneralSecurityException {
+        Result result = new Result();
+        SSLContext clientContext = trustingClientContext();
+        ExecutorService acceptor = Executors.newSingleThreadExecutor();
+        byte[] firstId;
+        long firstCreated;
+        try (ServerSocket server = new ServerSocket(0, 4, InetAddress.getLoopbackAddress())) {
+            int port = server.getLocalPort();
+
+            // plaintext baseline
+            Future<Long> sink = acceptor.submit(drain(server, false));
+            long start = System.nanoTime();
+            try (Socket client = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                pump(client, bytes);
+            }
+            await(sink);
+            result.plainMBps = rate(bytes, System.nanoTime() - start);
+
+            // full handshake and TLS throughput
+            sink = acceptor.submit(drain(server, true));
+            start = System.nanoTime();
+            try (SSLSocket client = (SSLSocket) clientContext.getSocketFactory().createSocket(InetAddress.getLoopbackAddress(), port)) {
+                client.startHandshake();
+                result.fullHandshakeMs = (System.nanoTime() - start) / 1e6;
+                SSLSession session = client.getSession();
+                firstId = session.getId();
+                firstCreated = session.getCreationTime();
+                result.protocol = session.getProtocol();
+                result.cipherSuite = session.getCipherSuite();
+                start = System.nanoTime();
+                pump(client, bytes);
+                await(sink);
+                result.tlsMBps = rate(bytes, System.nanoTime() - start);
+            }
+
+            // second connection from the same client context: should resume
+            sink = acceptor.submit(drain(server, true));
+            start = System.nanoTime();
+            try (SSLSocket client = (SSLSocket) clientContext.getSocketFactory().createSocket(InetAddress.getLoopbackAddress(), port)) {
+                client.startHandshake();
+                result.resumedHandshakeMs = (System.nanoTime() - start) / 1e6;
+                SSLSession session = client.getSession();
+                result.resumed = Arrays.equals(firstId, session.getId()) || firstCreated == session.getCreationTime();
+                pump(client, 0);
+                await(sink);
+            }
+        } finally {
+            acceptor.shutdownNow();
+        }
+        return result;
+    }
+
+    private Callable<Long> drain(ServerSocket server, boolean secure) {
+        return () -> {
+            try (Socket accepted = server.accept();
+                 Socket s = secure ? tls.wrap(accepted) : accepted) {
+                DataInputStream in = new DataInputStream(s.getInputStream());
+                long expected = in.readLong();
+                byte[] buf = new byte[BUFFER_SIZE];
+                long total = 0;
+                while (total < expected) {
+                    int n = in.read(buf, 0, (int) Math.min(buf.length, expected - total));
+                    if (n < 0) break;
+                    total += n;
+                }
+                // Acknowledge so the client reads, which is also when a TLS 1.3 client
+                // processes the session ticket it needs to resume later
+                s.getOutputStream().write(1);
+                s.getOutputStream().flush();
+                return total;
+            }
+        };
+    }
+
+    /**
+     * Sends a length header and {@code bytes} of payload, then waits for the receiver's
+     * acknowledgement (half-closing is not supported on every TLS socket implementation).
+     */
+    private static void pump(Socket socket, long bytes) throws IOException {
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeLong(bytes);
+        byte[] buf = new byte[BUFFER_SIZE];
+        long left = bytes;
+        while (left > 0) {
+            int n = (int) Math.min(buf.length, left);
+            out.write(buf, 0, n);
+            left -= n;
+        }
+        out.flush();
+        socket.getInputStream().read();
+    }
+
+    private static void await(Future<Long> f) throws IOException {
+        try {
+            f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Benchmark interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Benchmark receiver failed: " + e.getCause(), e.getCause());
+        }
+    }
+
+    private static double rate(long bytes, long nanos) {
+        return bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+    }
+
+    // The benchmark only ever talks to this same process over loopback, so the client side
+    // accepts the server's self-signed certificate without checking it.
+    private static SSLContext trustingClientContext() throws GeneralSecurityException {
+        TrustManager trustAll = new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        };
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[]{trustAll}, null);
+        return context;
+    }
+}
@@ -0,0 +1,168 @@
+package com.ebook.ftp;
+
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Server-side TLS configuration for explicit FTPS (AUTH TLS).
+ *
+ * <p>The control connection and every data connection of the server are wrapped with the same
+ * {@link SSLContext}, whose server session cache lets a client resume the control session's
+ * TLS session on its data connections. A resumed handshake skips the certificate exchange and
+ * the key agreement, which is what keeps many-small-file transfers usable over TLS.
+ *
+ * <p>AES-GCM suites are preferred over ChaCha20: on ARMv8 cores with the crypto extensions
+ * AES-GCM runs in hardware and is several times faster.
+ */
+public class TlsContext {
+
+    private static final String TAG = "FTP_TlsContext";
+
+    private static final String ANDROID_KEY_STORE = "AndroidKeyStore";
+    private static final int SESSION_CACHE_SIZE = 256;
+    private static final int SESSION_TIMEOUT_SECONDS = (int) TimeUnit.HOURS.toSeconds(1);
+
+    private static final String[] PREFERRED_PROTOCOLS = {"TLSv1.3", "TLSv1.2"};
+
+    // Server preference order: hardware AES-GCM first, ChaCha20 only for clients that want it.
+    private static final String[] PREFERRED_SUITES = {
+            "TLS_AES_128_GCM_SHA256",
+            "TLS_AES_256_GCM_SHA384",
+            "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256",
+            "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+            "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384",
+            "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384",
+            "TLS_CHACHA20_POLY1305_SHA256",
+            "TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256",
+            "TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256",
+    };
+
+    private final SSLContext sslContext;
+    private final String[] protocols;
+    private final String[] cipherSuites;
+
+    public TlsContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+        SSLSessionContext sessions = sslContext.getServerSessionContext();
+        if (sessions != null) {
+            sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+            sessions.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+        }
+        SSLParameters supported = sslContext.getSupportedSSLParameters();
+        this.protocols = intersect(PREFERRED_PROTOCOLS, supported.getProtocols());
+        this.cipherSuites = preferFirst(PREFERRED_SUITES, supported.getCipherSuites(),
+                sslContext.getDefaultSSLParameters().getCipherSuites());
+        Log.d(TAG, "TLS protocols " + Arrays.toString(protocols) + ", suites " + Arrays.toString(cipherSuites));
+    }
+
+    /**
+     * Builds a context around a key held in the Android key store, generating a self-signed
+     * EC P-256 key the first time. The private key never leaves the key store.
+     */
+    public static TlsContext fromAndroidKeyStore(String alias) throws GeneralSecurityException, IOException {
+        KeyStore keyStore = KeyStore.getInstance(ANDROID_KEY_STORE);
+        keyStore.load(null);
+        if (!keyStore.containsAlias(alias)) {
+            Log.i(TAG, "Generating FTPS server key '" + alias + "'");
+            Date now = new Date();
+            KeyPairGenerator generator = KeyPairGenerator.getInstance(KeyProperties.KEY_ALGORITHM_EC, ANDROID_KEY_STORE);
+            generator.initialize(new KeyGenParameterSpec.Builder(alias, KeyProperties.PURPOSE_SIGN | KeyProperties.PURPOSE_VERIFY)
+                    .setAlgorithmParameterSpec(new ECGenParameterSpec("secp256r1"))
+                    .setDigests(KeyProperties.DIGEST_NONE, KeyProperties.DIGEST_SHA256, KeyProperties.DIGEST_SHA384)
+                    .setCertificateSubject(new X500Principal("CN=Android FTP Server"))
+                    .setCertificateSerialNumber(BigInteger.valueOf(now.getTime()))
+                    .setCertificateNotBefore(now)
+                    .setCertificateNotAfter(new Date(now.getTime() + TimeUnit.DAYS.toMillis(3650)))
+                    .build());
+            generator.generateKeyPair();
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, null);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), null, null);
+        return new TlsContext(context);
+    }
+
+    /** Builds a context from an operator-provided PKCS#12 key store. */
+    public static TlsContext fromPkcs12(File file, char[] password) throws GeneralSecurityException, IOException {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(file)) {
+            keyStore.load(in, password);
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, password);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), null, null);
+        return new TlsContext(context);
+    }
+
+    public SSLContext getSslContext() {
+        return sslContext;
+    }
+
+    /**
+     * Layers a server-mode TLS socket over an accepted plain socket and runs the handshake.
+     * Closing the returned socket closes {@code plain} as well.
+     */
+    public SSLSocket wrap(Socket plain) throws IOException {
+        SSLSocket ssl = (SSLSocket) sslContext.getSocketFactory().createSocket(
+                plain, plain.getInetAddress().getHostAddress(), plain.getPort(), true);
+        ssl.setUseClientMode(false);
+        configure(ssl);
+        ssl.startHandshake();
+        return ssl;
+    }
+
+    void configure(SSLSocket socket) {
+        SSLParameters params = socket.getSSLParameters();
+        if (protocols.length > 0) params.setProtocols(protocols);
+        if (cipherSuites.length > 0) params.setCipherSuites(cipherSuites);
+        params.setUseCipherSuitesOrder(true);
+        socket.setSSLParameters(params);
+    }
+
+    /**
+     * The preferred suites the provider supports, followed by the provider's remaining default
+     * suites so that older clients can still connect.
+     */
+    private static String[] preferFirst(String[] preferred, String[] supported, String[] defaults) {
+        List<String> result = new ArrayList<>(Arrays.asList(intersect(preferred, supported)));
+        for (String s : defaults) {
+            if (!result.contains(s)) result.add(s);
+        }
+        return result.toArray(new String[0]);
+    }
+
+    private static String[] intersect(String[] preferred, String[] supported) {
+        List<String> available = Arrays.asList(supported);
+        List<String> result = new ArrayList<>();
+        for (String s : preferred) {
+            if (available.contains(s)) result.add(s);
+        }
+        return result.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,322 @@
+package com.ebook.ftp;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the uploads in progress, so an upload cut off by the process being
+ * killed can be resumed with SIZE and REST after the service restarts instead of starting
+ * over.
+ *
+ * <p>An upload is journaled when it starts (target, temp file, expected size) and when it
+ * ends. In between, a background thread checkpoints every upload that has grown by
+ * {@link #CHECKPOINT_BYTES} about once per {@link #CHECKPOINT_INTERVAL_MS}: it syncs the temp
+ * file's data and then records its length, so a checkpoint never claims bytes that are not
+ * on storage. Every journal write, BEGIN and END included, runs on that thread, so the
+ * transfer never waits for the journal, and an ABOR interrupting a transfer thread can never
+ * close the journal's channel under it.
+ *
+ * <p>On {@link #recover}, an upload that never ended is cut back to its last checkpoint and
+ * put in place under its real name, if nothing else took that name meanwhile; the client
+ * then sees its size and resumes from there. A resumed upload (REST) replaces the partial
+ * file it continues. An upload that would have replaced any other file is dropped instead,
+ * so a complete file is never swapped for a partial one. The journal is emptied whenever no
+ * upload is in progress, so it stays a few records long.
+ *
+ * <p>Records are length-prefixed and checksummed; a record torn by a crash ends the replay.
+ */
+public class TransferJournal {
+
+    private static final String TAG = "FTP_TransferJournal";
+
+    private static final int FILE_MAGIC = 0x4654544A; // "FTTJ"
+    private static final int FILE_VERSION = 1;
+
+    private static final byte BEGIN = 1;
+    private static final byte CHECKPOINT = 2;
+    private static final byte END = 3;
+
+    public static final long CHECKPOINT_INTERVAL_MS = 1000;
+    public static final long CHECKPOINT_BYTES = 4 * 1024 * 1024;
+
+    /** One journaled upload; {@link #end} it whether it was committed or discarded. */
+    public final class Entry {
+        private final long id;
+        private final FileChannel channel;
+        // Guarded by TransferJournal.this
+        private long checkpointed;
+        private boolean ended = false;
+
+        private Entry(long id, FileChannel channel, long start) {
+            this.id = id;
+            this.channel = channel;
+            this.checkpointed = start;
+        }
+
+        public void end() {
+            synchronized (TransferJournal.this) {
+                if (ended) return;
+                ended = true;
+                active.remove(id);
+                if (journal == null) return;
+                writer.execute(() -> write(() -> {
+                    // Uploads begun since are journaled after this, so the journal can be emptied
+                    if (active.isEmpty()) {
+                        reset();
+                    } else {
+                        append(END, id, null, null, 0, 0);
+                    }
+                }));
+            }
+        }
+    }
+
+    // What replay found out about one upload.
+    private static final class Pending {
+        final String target;
+        final String temp;
+        // Bytes of the target the upload continued (REST), else 0
+        final long start;
+        long checkpointed;
+
+        Pending(String target, String temp, long start) {
+            this.target = target;
+            this.temp = temp;
+            this.start = start;
+            this.checkpointed = start;
+        }
+    }
+
+    private final File journalFile;
+    // All guarded by this
+    private FileChannel journal;
+    private final Map<Long, Entry> active = new LinkedHashMap<>();
+    private long nextId = 1;
+    // The one thread writing to the journal: checkpoints, BEGIN and END records
+    private ScheduledExecutorService writer;
+
+    public TransferJournal(File journalFile) {
+        this.journalFile = journalFile;
+    }
+
+    /**
+     * Puts the uploads a previous run left unfinished where clients can resume them, then
+     * starts an empty journal and the checkpoint thread.
+     *
+     * @return the files put in place, to be announced as changed.
+     */
+    public synchronized List<File> recover() throws IOException {
+        if (journal != null) return new ArrayList<>();
+        List<File> recovered = new ArrayList<>();
+        for (Pending p : replay()) {
+            File temp = new File(p.temp);
+            File target = new File(p.target);
+            if (!temp.isFile()) continue; // committed, or discarded, before the crash
+            // A resumed upload continues the target's content, as long as the target is unchanged
+            boolean continues = p.start == 0 ? !target.exists() : target.isFile() && target.length() == p.start;
+            if (continues && p.checkpointed > p.start && temp.length() >= p.checkpointed) {
+                try (RandomAccessFile raf = new RandomAccessFile(temp, "rw")) {
+                    raf.setLength(p.checkpointed);
+                }
+                if (temp.renameTo(target)) {
+                    Log.i(TAG, "Recovered " + p.checkpointed + " bytes of " + target);
+                    recovered.add(target);
+                    continue;
+                }
+            }
+            if (!temp.delete()) Log.w(TAG, "Could not remove partial upload " + temp);
+        }
+        journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        reset();
+        writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ftp-journal");
+            t.setDaemon(true);
+            return t;
+        });
+        writer.scheduleWithFixedDelay(this::checkpoint, CHECKPOINT_INTERVAL_MS, CHECKPOINT_INTERVAL_MS,
+                TimeUnit.MILLISECONDS);
+        return recovered;
+    }
+
+    public synchronized void close() {
+        if (writer != null) {
+            // Not interrupted: that would close the upload channel it may be syncing
+            writer.shutdown();
+            writer = null;
+        }
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Journal close failed: " + e.getMessage());
+            }
+            journal = null;
+        }
+    }
+
+    /**
+     * Journals an upload into {@code temp}, to become {@code target}, written through
+     * {@code channel}.
+     *
+     * @param start         bytes already in the temp file (a resumed upload's kept part).
+     * @param expectedBytes the upload's final size, or -1 if not known.
+     * @return the entry, or null if the journal is not running.
+     */
+    public synchronized Entry begin(File target, File temp, FileChannel channel, long start, long expectedBytes) {
+        if (journal == null) return null;
+        Entry entry = new Entry(nextId++, channel, start);
+        active.put(entry.id, entry);
+        String targetPath = target.getAbsolutePath();
+        String tempPath = temp.getAbsolutePath();
+        writer.execute(() -> write(() -> append(BEGIN, entry.id, targetPath, tempPath, start, expectedBytes)));
+        return entry;
+    }
+
+    private interface JournalWrite {
+        void run() throws IOException;
+    }
+
+    // Runs on the writer thread.
+    private synchronized void write(JournalWrite write) {
+        if (journal == null) return; // closed meanwhile
+        try {
+            write.run();
+        } catch (IOException e) {
+            Log.w(TAG, "Journal write failed: " + e.getMessage());
+        }
+    }
+
+    /** Waits until the journal writes requested so far are done, e.g. for tests. */
+    void sync() throws InterruptedException {
+        ScheduledExecutorService w;
+        synchronized (this) {
+            w = writer;
+        }
+        if (w == null) return;
+        try {
+            w.submit(() -> { }).get();
+        } catch (ExecutionException | RejectedExecutionException e) {
+            // closed meanwhile: nothing left to wait for
+        }
+    }
+
+    // Runs on the writer thread; the syncs run without the lock, so uploads can begin and end meanwhile.
+    private void checkpoint() {
+        List<Entry> entries;
+        synchronized (this) {
+            entries = new ArrayList<>(active.values());
+        }
+        for (Entry entry : entries) {
+            try {
+                long length = entry.channel.position();
+                synchronized (this) {
+                    if (entry.ended || length - entry.checkpointed < CHECKPOINT_BYTES) continue;
+                }
+                entry.channel.force(false);
+                synchronized (this) {
+                    if (entry.ended || journal == null) continue;
+                    append(CHECKPOINT, entry.id, null, null, length, 0);
+                    journal.force(false);
+                    entry.checkpointed = length;
+                }
+            } catch (IOException e) {
+                // The upload ended and closed its channel meanwhile
+            }
+        }
+    }
+
+    // Empties the journal: nothing in progress.
+    private void reset() throws IOException {
+        journal.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putInt(FILE_MAGIC).putInt(FILE_VERSION).flip();
+        journal.write(header, 0);
+        journal.position(8);
+    }
+
+    // Appends one record in a single write: [length][type, payload][crc of type and payload].
+    private void append(byte type, long id, String target, String temp, long bytes, long expected) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(body);
+        out.writeByte(type);
+        out.writeLong(id);
+        if (type == BEGIN) {
+            out.writeUTF(target);
+            out.writeUTF(temp);
+            out.writeLong(bytes);
+            out.writeLong(expected);
+        } else if (type == CHECKPOINT) {
+            out.writeLong(bytes);
+        }
+        byte[] payload = body.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(4 + payload.length + 4);
+        record.putInt(payload.length).put(payload).putInt((int) crc.getValue()).flip();
+        while (record.hasRemaining()) {
+            journal.write(record);
+        }
+    }
+
+    // Reads the journal of the previous run: the uploads begun and not ended.
+    private List<Pending> replay() {
+        Map<Long, Pending> pending = new LinkedHashMap<>();
+        if (!journalFile.isFile()) return new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                Log.w(TAG, "Ignoring transfer journal with unknown format: " + journalFile);
+                return new ArrayList<>();
+            }
+            while (true) {
+                int length = in.readInt();
+                if (length <= 0 || length > 64 * 1024) break;
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if (in.readInt() != (int) crc.getValue()) break;
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                byte type = record.readByte();
+                long id = record.readLong();
+                if (type == BEGIN) {
+                    String target = record.readUTF();
+                    String temp = record.readUTF();
+                    pending.put(id, new Pending(target, temp, record.readLong()));
+                } else if (type == CHECKPOINT) {
+                    Pending p = pending.get(id);
+                    if (p != null) p.checkpointed = record.readLong();
+                } else if (type == END) {
+                    pending.remove(id);
+                }
+            }
+        } catch (EOFException e) {
+            // The end of the journal, or a record cut short by the crash
+        } catch (IOException e) {
+            Log.w(TAG, "Transfer journal unreadable: " + e.getMessage());
+        }
+        return new ArrayList<>(pending.values());
+    }
+}
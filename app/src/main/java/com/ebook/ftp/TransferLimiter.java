@@ -0,0 +1,59 @@
+package com.ebook.ftp;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps how many file transfers run at once. The limit can be changed at any time; lowering it
+ * never interrupts running transfers, new ones simply wait until enough of them finished.
+ */
+public class TransferLimiter {
+
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+
+    private int limit;
+    private int active = 0;
+
+    public TransferLimiter(int limit) {
+        this.limit = Math.max(1, limit);
+    }
+
+    /**
+     * Waits up to {@code timeoutMs} for a transfer slot.
+     *
+     * @return true if a slot was taken and must be given back with {@link #release()}.
+     */
+    public synchronized boolean acquire(long timeoutMs) throws InterruptedIOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (active >= limit) {
+            long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (left <= 0) return false;
+            try {
+                wait(left);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a transfer slot");
+            }
+        }
+        active++;
+        return true;
+    }
+
+    public synchronized void release() {
+        active--;
+        notifyAll();
+    }
+
+    public synchronized void setLimit(int limit) {
+        this.limit = Math.max(1, limit);
+        notifyAll();
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    public synchronized int getActive() {
+        return active;
+    }
+}
@@ -0,0 +1,479 @@
+package com.ebook.ftp;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Parallel fork-join walks of the served tree for SITE DU, SITE FIND and the server-side
+ * recursive copy and delete.
+ *
+ * <p>Each directory is a fork-join task that forks one subtask per subdirectory, so wide
+ * trees fan out across the pool while deep ones are handled by work stealing. The pool is
+ * shared by all sessions and bounded by the configured parallelism.
+ *
+ * <p>Directory totals computed by DU are cached and reused by later walks (a DU of the
+ * parent reuses the cached totals of its children) until a write below them invalidates
+ * the cached value through {@link #invalidate(File)}.
+ */
+public class TreeWalker {
+
+    private static final String TAG = "FTP_TreeWalker";
+
+    private static final long CACHE_TTL_MS = TimeUnit.MINUTES.toMillis(10);
+    private static final int MAX_CACHED_TOTALS = 20000;
+    public static final int MAX_FIND_RESULTS = 10000;
+
+    /** Size and file count of one directory subtree. */
+    public static final class Usage {
+        public final String path;
+        public final long bytes;
+        public final long files;
+        final long computedAt;
+
+        Usage(String path, long bytes, long files) {
+            this.path = path;
+            this.bytes = bytes;
+            this.files = files;
+            this.computedAt = System.currentTimeMillis();
+        }
+    }
+
+    /** Counts of a recursive copy or delete. */
+    public static final class Result {
+        public final long done;
+        public final long failed;
+
+        Result(long done, long failed) {
+            this.done = done;
+            this.failed = failed;
+        }
+    }
+
+    /** Receives partial results while a walk is still running. */
+    public interface Sink<T> {
+        void accept(T value) throws IOException;
+    }
+
+    private final ForkJoinPool pool;
+    private final Map<String, Usage> usageCache = new ConcurrentHashMap<>();
+
+    public TreeWalker(int parallelism) {
+        this.pool = new ForkJoinPool(Math.max(1, parallelism));
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Drops the cached totals of {@code changed} and of every directory above it, and of
+     * everything below it when it was a directory that is now gone or was replaced.
+     */
+    public void invalidate(File changed) {
+        if (usageCache.isEmpty()) return;
+        File f = changed.getAbsoluteFile();
+        if (!f.isFile()) {
+            String prefix = f.getPath() + File.separator;
+            usageCache.keySet().removeIf(path -> path.startsWith(prefix));
+        }
+        while (f != null) {
+            usageCache.remove(f.getPath());
+            f = f.getParentFile();
+        }
+    }
+
+    public void clearCache() {
+        usageCache.clear();
+    }
+
+    /**
+     * Computes the disk usage of {@code dir}. Every immediate subdirectory is walked as its
+     * own fork-join task and reported to {@code partial} as soon as its total is known, in
+     * completion order, while the others are still being walked.
+     *
+     * @return the total for {@code dir}, including files directly inside it.
+     */
+    public Usage du(File dir, Sink<Usage> partial) throws IOException, InterruptedException {
+        Usage cached = cachedUsage(dir);
+        if (cached != null) {
+            File[] subdirs = dir.listFiles(f -> f.isDirectory() && !isSymlink(f));
+            if (subdirs != null) {
+                for (File sub : subdirs) {
+                    Usage child = cachedUsage(sub);
+                    if (child != null) partial.accept(child);
+                }
+            }
+            return cached;
+        }
+
+        File[] listed = dir.listFiles();
+        if (listed == null) {
+            throw new IOException("Cannot list " + dir.getPath());
+        }
+
+        ExecutorCompletionService<Usage> completion = new ExecutorCompletionService<>(pool);
+        List<Future<Usage>> pending = new ArrayList<>();
+        long bytes = 0;
+        long files = 0;
+        for (File f : listed) {
+            if (isSymlink(f)) continue; // may lead outside the root, or back up the tree
+            if (f.isDirectory()) {
+                pending.add(completion.submit(() -> new DuTask(f).invoke()));
+            } else {
+                bytes += f.length();
+                files++;
+            }
+        }
+
+        try {
+            for (int i = 0; i < pending.size(); i++) {
+                Usage child = completion.take().get();
+                bytes += child.bytes;
+                files += child.files;
+                partial.accept(child);
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("DU failed: " + e.getCause(), e.getCause());
+        } finally {
+            for (Future<Usage> f : pending) f.cancel(true);
+        }
+
+        Usage total = new Usage(dir.getPath(), bytes, files);
+        cache(total);
+        return total;
+    }
+
+    /**
+     * Deletes {@code file} and, if it is a directory, everything below it. Each directory is
+     * a fork-join task, so large trees are removed by the whole pool at once. Symbolic links
+     * are removed, never followed.
+     *
+     * @return the number of entries deleted and of entries that could not be.
+     * @throws IOException if the walk itself failed, e.g. on an unexpected error in a task.
+     */
+    public Result deleteTree(File file) throws IOException, InterruptedException {
+        return run(new DeleteTask(file));
+    }
+
+    /**
+     * Copies {@code source} to {@code target} recursively, each file through
+     * {@link UploadCommitter#commitCopy} and each directory as its own fork-join task.
+     * Symbolic links below {@code source} are skipped. {@code target} must not lie inside
+     * {@code source}.
+     *
+     * @return the number of files copied and of entries that could not be.
+     * @throws IOException if the walk itself failed, e.g. on an unexpected error in a task.
+     */
+    public Result copyTree(File source, File target, UploadCommitter committer)
+            throws IOException, InterruptedException {
+        return run(new CopyTask(source, target, committer));
+    }
+
+    // A failed walk is an IOException, like a failed DU or FIND, so the session can reply to it.
+    private Result run(RecursiveTask<long[]> task) throws IOException, InterruptedException {
+        Future<long[]> future;
+        try {
+            future = pool.submit(task);
+        } catch (RejectedExecutionException e) {
+            throw new IOException("Server is shutting down.", e);
+        }
+        try {
+            long[] counts = future.get();
+            return new Result(counts[0], counts[1]);
+        } catch (ExecutionException e) {
+            throw new IOException("Tree operation failed: " + e.getCause(), e.getCause());
+        } catch (CancellationException e) {
+            throw new IOException("Tree operation cancelled.", e);
+        } finally {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * Whether {@code file} itself is a symbolic link: its canonical path differs from the
+     * canonical path of its directory plus its name. Walks must not follow links, which may
+     * lead outside the root or back up the tree.
+     */
+    static boolean isSymlink(File file) {
+        try {
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (parent == null) return false;
+            File inCanonicalParent = new File(parent.getCanonicalFile(), file.getName());
+            return !inCanonicalParent.getCanonicalFile().equals(inCanonicalParent);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Finds every path below {@code dir} whose name matches the glob {@code pattern}
+     * ({@code *} and {@code ?}, case-insensitive). Matches are handed to {@code sink} on the
+     * calling thread as the walk discovers them.
+     *
+     * @return the number of matches reported (capped at {@link #MAX_FIND_RESULTS}).
+     */
+    public int find(File dir, String pattern, Sink<File> sink) throws IOException, InterruptedException {
+        Pattern regex = globToRegex(pattern);
+        BlockingQueue<File> found = new LinkedBlockingQueue<>();
+        AtomicBoolean stop = new AtomicBoolean(false);
+        AtomicInteger matched = new AtomicInteger();
+
+        Future<Void> walk = pool.submit(new FindTask(dir, regex, found, stop, matched));
+        int reported = 0;
+        try {
+            while (true) {
+                File next = found.poll(50, TimeUnit.MILLISECONDS);
+                if (next != null) {
+                    sink.accept(next);
+                    if (++reported >= MAX_FIND_RESULTS) break;
+                } else if (walk.isDone()) {
+                    if (found.isEmpty()) break;
+                }
+            }
+        } finally {
+            stop.set(true);
+            if (!walk.isDone()) walk.cancel(true);
+        }
+        try {
+            walk.get();
+        } catch (ExecutionException e) {
+            throw new IOException("FIND failed: " + e.getCause(), e.getCause());
+        } catch (CancellationException ignored) {
+            // the cap was reached
+        }
+        return reported;
+    }
+
+    private Usage cachedUsage(File dir) {
+        Usage u = usageCache.get(dir.getAbsolutePath());
+        if (u == null) return null;
+        if (System.currentTimeMillis() - u.computedAt > CACHE_TTL_MS) {
+            usageCache.remove(u.path);
+            return null;
+        }
+        return u;
+    }
+
+    private void cache(Usage usage) {
+        if (usageCache.size() >= MAX_CACHED_TOTALS) {
+            Log.d(TAG, "DU cache full, clearing " + usageCache.size() + " totals");
+            usageCache.clear();
+        }
+        usageCache.put(usage.path, usage);
+    }
+
+    static Pattern globToRegex(String glob) {
+        StringBuilder sb = new StringBuilder();
+        for (char c : glob.toCharArray()) {
+            switch (c) {
+                case '*':
+                    sb.append(".*");
+                    break;
+                case '?':
+                    sb.append('.');
+                    break;
+                default:
+                    sb.append(Pattern.quote(String.valueOf(c)));
+                    break;
+            }
+        }
+        return Pattern.compile(sb.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+    }
+
+    private final class DuTask extends RecursiveTask<Usage> {
+        private final File dir;
+
+        DuTask(File dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        protected Usage compute() {
+            Usage cached = cachedUsage(dir);
+            if (cached != null) return cached;
+
+            File[] listed = dir.listFiles();
+            long bytes = 0;
+            long files = 0;
+            List<DuTask> forked = new ArrayList<>();
+            if (listed != null) {
+                for (File f : listed) {
+                    if (isSymlink(f)) continue;
+                    if (f.isDirectory()) {
+                        DuTask t = new DuTask(f);
+                        t.fork();
+                        forked.add(t);
+                    } else {
+                        bytes += f.length();
+                        files++;
+                    }
+                }
+            }
+            for (DuTask t : forked) {
+                Usage u = t.join();
+                bytes += u.bytes;
+                files += u.files;
+            }
+            Usage usage = new Usage(dir.getPath(), bytes, files);
+            cache(usage);
+            return usage;
+        }
+    }
+
+    // Counts are {deleted, failed}
+    private static final class DeleteTask extends RecursiveTask<long[]> {
+        private final File file;
+
+        DeleteTask(File file) {
+            this.file = file;
+        }
+
+        @Override
+        protected long[] compute() {
+            long deleted = 0;
+            long failed = 0;
+            if (file.isDirectory() && !isSymlink(file)) {
+                File[] listed = file.listFiles();
+                List<DeleteTask> forked = new ArrayList<>();
+                if (listed != null) {
+                    for (File f : listed) {
+                        if (f.isDirectory() && !isSymlink(f)) {
+                            DeleteTask t = new DeleteTask(f);
+                            t.fork();
+                            forked.add(t);
+                        } else if (f.delete()) {
+                            deleted++;
+                        } else {
+                            failed++;
+                        }
+                    }
+                }
+                for (DeleteTask t : forked) {
+                    long[] counts = t.join();
+                    deleted += counts[0];
+                    failed += counts[1];
+                }
+            }
+            if (file.delete()) {
+                deleted++;
+            } else {
+                Log.w(TAG, "Could not delete " + file);
+                failed++;
+            }
+            return new long[]{deleted, failed};
+        }
+    }
+
+    // Counts are {copied, failed}
+    private static final class CopyTask extends RecursiveTask<long[]> {
+        private final File source;
+        private final File target;
+        private final UploadCommitter committer;
+
+        CopyTask(File source, File target, UploadCommitter committer) {
+            this.source = source;
+            this.target = target;
+            this.committer = committer;
+        }
+
+        @Override
+        protected long[] compute() {
+            if (!source.isDirectory()) {
+                try {
+                    committer.commitCopy(source, target);
+                    return new long[]{1, 0};
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not copy " + source + " to " + target + ": " + e.getMessage());
+                    return new long[]{0, 1};
+                }
+            }
+            if (!target.isDirectory() && !target.mkdirs()) {
+                Log.w(TAG, "Could not create " + target);
+                return new long[]{0, 1};
+            }
+            File[] listed = source.listFiles();
+            long copied = 0;
+            long failed = 0;
+            List<CopyTask> forked = new ArrayList<>();
+            if (listed != null) {
+                for (File f : listed) {
+                    if (isSymlink(f) || UploadCommitter.isTempName(f.getName())) continue;
+                    CopyTask t = new CopyTask(f, new File(target, f.getName()), committer);
+                    t.fork();
+                    forked.add(t);
+                }
+            }
+            for (CopyTask t : forked) {
+                long[] counts = t.join();
+                copied += counts[0];
+                failed += counts[1];
+            }
+            return new long[]{copied, failed};
+        }
+    }
+
+    private static final class FindTask extends RecursiveAction {
+        private final File dir;
+        private final Pattern regex;
+        private final BlockingQueue<File> found;
+        private final AtomicBoolean stop;
+        private final AtomicInteger matched;
+
+        FindTask(File dir, Pattern regex, BlockingQueue<File> found, AtomicBoolean stop, AtomicInteger matched) {
+            this.dir = dir;
+            this.regex = regex;
+            this.found = found;
+            this.stop = stop;
+            this.matched = matched;
+        }
+
+        @Override
+        protected void compute() {
+            if (stop.get()) return;
+            File[] listed = dir.listFiles();
+            if (listed == null) return;
+            List<FindTask> forked = new ArrayList<>();
+            for (File f : listed) {
+                if (regex.matcher(f.getName()).matches() && !UploadCommitter.isTempName(f.getName())) {
+                    if (matched.incrementAndGet() > MAX_FIND_RESULTS) {
+                        stop.set(true);
+                        return;
+                    }
+                    found.add(f);
+                }
+                if (f.isDirectory() && !isSymlink(f)) {
+                    FindTask t = new FindTask(f, regex, found, stop, matched);
+                    t.fork();
+                    forked.add(t);
+                }
+            }
+            for (FindTask t : forked) {
+                t.join();
+            }
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package com.ebook.ftp;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Makes uploads atomic: data is written to a hidden temporary sibling of the target and
+ * renamed over it only once the transfer completed, so a dropped connection never leaves a
+ * truncated file under the real name.
+ *
+ * <p>How hard the committed data is pushed to storage is set by the {@link DurabilityPolicy}.
+ * With {@link DurabilityPolicy#GROUP_COMMIT} uploads finishing within a few milliseconds of
+ * each other are committed as one batch: their fsyncs are issued concurrently (ext4 and f2fs
+ * fold concurrent fsyncs into a single journal commit and cache flush), then the renames are
+ * done and every directory touched by the batch is fsynced once.
+ */
+public class UploadCommitter {
+
+    private static final String TAG = "FTP_UploadCommitter";
+
+    static final String TEMP_SUFFIX = ".ftppart";
+
+    private static final long BATCH_WINDOW_MS = 5;
+    private static final int MAX_BATCH = 64;
+
+    public enum DurabilityPolicy {
+        /** Rename only; data reaches storage whenever the kernel writes it back. */
+        NONE,
+        /** fsync the file and its directory before every 226. */
+        PER_FILE,
+        /**
+         * fsync in batches shared by concurrently finishing uploads. Each upload waits up to
+         * 5 ms for others to join, plus the batch's fsync, before its 226. The default: it is
+         * as durable as PER_FILE with far fewer cache flushes.
+         */
+        GROUP_COMMIT
+    }
+
+    private static final class Pending {
+        final FileChannel channel;
+        final File temp;
+        final File target;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        // Taken by the group commit thread to rename, or by an interrupted uploader to withdraw
+        final AtomicBoolean claimed = new AtomicBoolean(false);
+
+        Pending(FileChannel channel, File temp, File target) {
+            this.channel = channel;
+            this.temp = temp;
+            this.target = target;
+        }
+    }
+
+    private final SecureRandom random = new SecureRandom();
+    private final ExecutorService syncExecutor;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private volatile DurabilityPolicy policy;
+    private Thread groupCommitThread;
+
+    /**
+     * @param syncExecutor runs the concurrent fsyncs of a group commit batch.
+     */
+    public UploadCommitter(DurabilityPolicy policy, ExecutorService syncExecutor) {
+        this.policy = policy;
+        this.syncExecutor = syncExecutor;
+    }
+
+    public DurabilityPolicy getPolicy() {
+        return policy;
+    }
+
+    public void setPolicy(DurabilityPolicy policy) {
+        this.policy = policy;
+    }
+
+    /** @return true for names of in-progress upload files, which are never shown to clients. */
+    public static boolean isTempName(String name) {
+        return name.endsWith(TEMP_SUFFIX);
+    }
+
+    /** Returns a fresh hidden sibling of {@code target} to receive the upload into. */
+    public File tempFor(File target) {
+        String name = "." + target.getName() + "." + Long.toHexString(random.nextLong() & Long.MAX_VALUE) + TEMP_SUFFIX;
+        return new File(target.getParentFile(), name);
+    }
+
+    /**
+     * Publishes a completed upload under its real name according to the current policy.
+     * An interrupted group commit withdraws the upload unless its rename has begun, so the
+     * caller may delete the temp file whenever this throws.
+     * {@code channel} must still be open on {@code temp}.
+     */
+    public void commit(FileChannel channel, File temp, File target) throws IOException {
+        switch (policy) {
+            case NONE:
+                rename(temp, target);
+                break;
+            case PER_FILE:
+                channel.force(true);
+                rename(temp, target);
+                syncDirectory(target.getParentFile());
+                break;
+            case GROUP_COMMIT:
+                Pending p = new Pending(channel, temp, target);
+                ensureGroupCommitThread();
+                queue.add(p);
+                awaitGroupCommit(p);
+                break;
+        }
+    }
+
+    /**
+     * Publishes {@code target} as a hard link to {@code existing} instead of a new copy.
+     *
+     * @return false if the file system does not support hard links (FUSE-backed shared
+     * storage usually does not); nothing was changed in that case.
+     */
+    public boolean commitLink(File existing, File target) throws IOException {
+        File temp = tempFor(target);
+        try {
+            Os.link(existing.getPath(), temp.getPath());
+        } catch (ErrnoException e) {
+            Log.d(TAG, "Hard link not possible for " + target + ": " + e.getMessage());
+            return false;
+        }
+        try {
+            rename(temp, target);
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        if (policy != DurabilityPolicy.NONE) {
+            syncDirectory(target.getParentFile());
+        }
+        return true;
+    }
+
+    /**
+     * Publishes {@code target} as a copy of {@code source} made on the server with
+     * {@link FileChannel#transferTo}, which copies inside the kernel where the file system
+     * allows it. Atomic like an upload: the copy appears under its name only once complete.
+     */
+    public void commitCopy(File source, File target) throws IOException {
+        File temp = tempFor(target);
+        boolean committed = false;
+        try (FileInputStream fis = new FileInputStream(source);
+             FileOutputStream fos = new FileOutputStream(temp)) {
+            FileChannel in = fis.getChannel();
+            FileChannel out = fos.getChannel();
+            long size = in.size();
+            long pos = 0;
+            while (pos < size) {
+                long n = in.transferTo(pos, size - pos, out);
+                if (n <= 0) break;
+                pos += n;
+            }
+            if (pos < size) throw new IOException("Short copy of " + source + ": " + pos + " of " + size + " bytes");
+            commit(out, temp, target);
+            committed = true;
+        } finally {
+            if (!committed) temp.delete();
+        }
+    }
+
+    // Waits for p's batch. Once the rename has begun it cannot be undone, so an interrupt
+    // then only takes effect after it.
+    private void awaitGroupCommit(Pending p) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    p.done.get();
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    if (p.claimed.compareAndSet(false, true)) {
+                        queue.remove(p);
+                        throw new InterruptedIOException("Interrupted waiting for group commit");
+                    }
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException("Commit failed: " + cause, cause);
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    public synchronized void shutdown() {
+        if (groupCommitThread != null) {
+            groupCommitThread.interrupt();
+            groupCommitThread = null;
+        }
+        Pending p;
+        while ((p = queue.poll()) != null) {
+            p.done.completeExceptionally(new IOException("Server stopping"));
+        }
+    }
+
+    private synchronized void ensureGroupCommitThread() {
+        if (groupCommitThread != null) return;
+        groupCommitThread = new Thread(this::groupCommitLoop, "ftp-group-commit");
+        groupCommitThread.setDaemon(true);
+        groupCommitThread.start();
+    }
+
+    private void groupCommitLoop() {
+        List<Pending> batch = new ArrayList<>();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                batch.add(queue.take());
+                // Give uploads finishing right now a moment to join this batch
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BATCH_WINDOW_MS);
+                while (batch.size() < MAX_BATCH) {
+                    long wait = deadline - System.nanoTime();
+                    if (wait <= 0) break;
+                    Pending next = queue.poll(wait, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+                commitBatch(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            for (Pending p : batch) {
+                p.done.completeExceptionally(new IOException("Server stopping"));
+            }
+        }
+    }
+
+    private void commitBatch(List<Pending> batch) throws InterruptedException {
+        // Withdrawn meanwhile; their channels may already be closed
+        batch.removeIf(p -> p.claimed.get());
+        List<Future<?>> syncs = new ArrayList<>(batch.size());
+        for (Pending p : batch) {
+            syncs.add(syncExecutor.submit(() -> {
+                p.channel.force(true);
+                return null;
+            }));
+        }
+
+        Set<File> dirs = new LinkedHashSet<>();
+        for (int i = 0; i < batch.size(); i++) {
+            Pending p = batch.get(i);
+            try {
+                syncs.get(i).get();
+                if (!p.claimed.compareAndSet(false, true)) {
+                    // Withdrawn by its interrupted uploader, which deletes the temp file
+                    p.done.cancel(false);
+                    continue;
+                }
+                rename(p.temp, p.target);
+                dirs.add(p.target.getParentFile());
+            } catch (ExecutionException e) {
+                p.done.completeExceptionally(e.getCause());
+            } catch (IOException e) {
+                p.done.completeExceptionally(e);
+            }
+        }
+
+        IOException dirFailure = null;
+        for (File dir : dirs) {
+            try {
+                syncDirectory(dir);
+            } catch (IOException e) {
+                dirFailure = e;
+            }
+        }
+        for (Pending p : batch) {
+            if (p.done.isDone()) continue;
+            if (dirFailure != null && dirs.contains(p.target.getParentFile())) {
+                // The data is renamed but the rename itself may not survive a power loss
+                Log.w(TAG, "Directory sync failed for " + p.target.getParent() + ": " + dirFailure.getMessage());
+            }
+            p.done.complete(null);
+        }
+        if (batch.size() > 1) {
+            Log.d(TAG, "Group commit of " + batch.size() + " uploads in " + dirs.size() + " directories");
+        }
+    }
+
+    private static void rename(File temp, File target) throws IOException {
+        try {
+            Os.rename(temp.getPath(), target.getPath());
+        } catch (ErrnoException e) {
+            throw new IOException("Cannot rename " + temp.getName() + " to " + target.getName() + ": " + e.getMessage(), e);
+        }
+    }
+
+    /** fsyncs a directory so a rename inside it is durable. */
+    static void syncDirectory(File dir) throws IOException {
+        if (dir == null) return;
+        FileDescriptor fd = null;
+        try {
+            fd = Os.open(dir.getPath(), OsConstants.O_RDONLY, 0);
+            Os.fsync(fd);
+        } catch (ErrnoException e) {
+            throw new IOException("Cannot sync directory " + dir + ": " + e.getMessage(), e);
+        } finally {
+            if (fd != null) {
+                try {
+                    Os.close(fd);
+                } catch (ErrnoException ignored) {
+                    // nothing useful to do
+                }
+            }
+        }
+    }
+}
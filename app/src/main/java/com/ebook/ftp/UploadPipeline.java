@@ -0,0 +1,180 @@
+package com.ebook.ftp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Two-stage STOR pipeline: the session thread receives from the data socket while a disk
+ * stage writes the previously received buffers to the file.
+ *
+ * <p>The stages hand buffers to each other through a small ring: a queue of free buffers
+ * and a queue of filled ones, both bounded by the ring size. When storage stalls the ring
+ * fills up and the receiver blocks (so TCP flow control pushes back on the client); when
+ * the network stalls the writer simply drains what it has. This way a slow flash write
+ * overlaps the next network receive instead of adding to it.
+ *
+ * <p>Ring buffers are leased from the shared {@link BufferArena}. Only the first is waited
+ * for; when memory is tight the ring is simply shorter, or made of smaller buffers.
+ */
+public class UploadPipeline {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    public static final int DEFAULT_RING_SIZE = 4;
+
+    // Marks the end of the stream in the filled queue.
+    private static final ByteBuffer EOF = ByteBuffer.allocate(0);
+
+    private final ExecutorService diskExecutor;
+    private final BufferArena arena;
+    private final int bufferSize;
+    private final int ringSize;
+
+    public UploadPipeline(ExecutorService diskExecutor, BufferArena arena) {
+        this(diskExecutor, arena, DEFAULT_BUFFER_SIZE, DEFAULT_RING_SIZE);
+    }
+
+    public UploadPipeline(ExecutorService diskExecutor, BufferArena arena, int bufferSize, int ringSize) {
+        this.diskExecutor = diskExecutor;
+        this.arena = arena;
+        this.bufferSize = bufferSize;
+        this.ringSize = Math.max(2, ringSize);
+    }
+
+    public long transfer(ReadableByteChannel in, FileChannel out) throws IOException {
+        return transfer(in, out, null);
+    }
+
+    /**
+     * Copies {@code in} to {@code out} until end of stream.
+     *
+     * @param digest if not null, updated with every received byte on the receive stage, so
+     *               hashing overlaps the disk write.
+     * @return the number of bytes written to {@code out}.
+     * @throws IOException if either the receive or the disk stage fails; the other stage is
+     *                     stopped before this method returns.
+     */
+    public long transfer(ReadableByteChannel in, FileChannel out, MessageDigest digest) throws IOException {
+        return transfer(in, out, digest, IoScheduler.UNSCHEDULED);
+    }
+
+    /**
+     * Like {@link #transfer(ReadableByteChannel, FileChannel, MessageDigest)}, with every
+     * buffer written as an operation of {@code io}.
+     */
+    public long transfer(ReadableByteChannel in, FileChannel out, MessageDigest digest, IoScheduler.Request io)
+            throws IOException {
+        List<ByteBuffer> ring = new ArrayList<>(ringSize);
+        ring.add(arena.lease(bufferSize, BufferArena.SMALL));
+        while (ring.size() < ringSize) {
+            ByteBuffer extra = arena.tryLease(bufferSize, BufferArena.SMALL);
+            if (extra == null) break;
+            ring.add(extra);
+        }
+        BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(ring.size(), false, ring);
+        BlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<>(ring.size() + 1);
+
+        // Whoever claims this first decides: the writer runs, or the transfer was abandoned
+        // before it started and the writer must not touch the ring.
+        AtomicBoolean claimed = new AtomicBoolean();
+        CountDownLatch writerExited = new CountDownLatch(1);
+        Future<Long> writer = diskExecutor.submit(() -> {
+            if (!claimed.compareAndSet(false, true)) return 0L;
+            try {
+                long written = 0;
+                while (true) {
+                    ByteBuffer buf = filled.take();
+                    if (buf == EOF) return written;
+                    IoScheduler.Permit permit = io.enter(written);
+                    try {
+                        while (buf.hasRemaining()) {
+                            written += out.write(buf);
+                        }
+                    } finally {
+                        permit.close();
+                    }
+                    buf.clear();
+                    free.put(buf);
+                }
+            } finally {
+                writerExited.countDown();
+            }
+        });
+
+        try {
+            while (true) {
+                ByteBuffer buf = nextFree(free, writer);
+                // Fill the whole buffer so the disk stage issues few, large writes
+                boolean eof = false;
+                while (buf.hasRemaining()) {
+                    if (in.read(buf) < 0) {
+                        eof = true;
+                        break;
+                    }
+                }
+                buf.flip();
+                if (digest != null) digest.update(buf.duplicate());
+                if (buf.hasRemaining()) filled.put(buf);
+                if (eof) break;
+            }
+            filled.put(EOF);
+            return writer.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Upload interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException("Disk write failed: " + cause, cause);
+        } finally {
+            writer.cancel(true);
+            // The ring may only go back to the arena once the writer is done with it
+            if (!claimed.compareAndSet(false, true)) awaitUninterruptibly(writerExited);
+            for (ByteBuffer buf : ring) {
+                arena.release(buf);
+            }
+        }
+    }
+
+    static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Waits for a free buffer, bailing out early if the disk stage died so the receiver does
+     * not block forever on a ring nobody is draining.
+     */
+    private static ByteBuffer nextFree(BlockingQueue<ByteBuffer> free, Future<Long> writer)
+            throws InterruptedException, ExecutionException {
+        while (true) {
+            ByteBuffer buf = free.poll(100, TimeUnit.MILLISECONDS);
+            if (buf != null) return buf;
+            if (writer.isDone()) {
+                writer.get(); // rethrows the disk failure
+                throw new ExecutionException(new IOException("Disk stage stopped"));
+            }
+        }
+    }
+}
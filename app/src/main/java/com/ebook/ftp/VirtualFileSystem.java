@@ -0,0 +1,122 @@
+package com.ebook.ftp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * The tree a server serves, addressed by absolute "/"-separated paths ("/" is the root).
+ *
+ * <p>{@link LocalFileSystem} serves a directory on the device, {@link MemoryFileSystem} keeps
+ * everything in RAM for benchmarks and tests, and {@link CachingFileSystem} puts a metadata
+ * cache in front of either. A backend that is backed by real files says so through
+ * {@link #toLocalFile}; the server then uses its file-only machinery (sendfile, atomic
+ * commits, deduplication, the metadata index, tree walks) and otherwise falls back to the
+ * channels returned here.
+ */
+public interface VirtualFileSystem {
+
+    /** What {@link #stat} and {@link #list} report about one entry. */
+    final class Attributes {
+        public final String name;
+        public final boolean directory;
+        public final long size;
+        public final long modified;
+        public final boolean readable;
+        public final boolean writable;
+        public final boolean executable;
+
+        public Attributes(String name, boolean directory, long size, long modified,
+                          boolean readable, boolean writable, boolean executable) {
+            this.name = name;
+            this.directory = directory;
+            this.size = size;
+            this.modified = modified;
+            this.readable = readable;
+            this.writable = writable;
+            this.executable = executable;
+        }
+    }
+
+    /**
+     * Turns a client-supplied path, absolute or relative to {@code currentDir}, into an
+     * absolute path of this file system. "." and ".." are resolved by name and never lead
+     * above the root.
+     */
+    default String resolve(String currentDir, String path) throws IOException {
+        if (path.indexOf('\0') >= 0) throw new IOException("Invalid path.");
+        Deque<String> parts = new ArrayDeque<>();
+        if (!path.startsWith("/")) push(parts, currentDir);
+        push(parts, path);
+        if (parts.isEmpty()) return "/";
+        StringBuilder sb = new StringBuilder();
+        for (String part : parts) {
+            sb.append('/').append(part);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * What {@link #openWrite} returns. The data written replaces the file only on
+     * {@link #commit}; closing the channel without committing, e.g. after an aborted upload,
+     * discards it and leaves the file as it was.
+     */
+    interface WriteChannel extends WritableByteChannel {
+        /** Makes the data written the file's content, and closes the channel. */
+        void commit() throws IOException;
+    }
+
+    /** The entry at {@code path}, or null if there is none. */
+    Attributes stat(String path) throws IOException;
+
+    /** The entries of the directory at {@code path}, or null if it is not a readable directory. */
+    List<Attributes> list(String path) throws IOException;
+
+    /** Opens the file at {@code path} for reading from any position. */
+    SeekableByteChannel openRead(String path) throws IOException;
+
+    /**
+     * Opens the file at {@code path} for writing from the start, creating its parent
+     * directories as needed. The file is created or replaced when the channel is committed.
+     */
+    WriteChannel openWrite(String path) throws IOException;
+
+    /** The device file behind {@code path}, or null if this file system is not backed by files. */
+    default File toLocalFile(String path) throws IOException {
+        return null;
+    }
+
+    /**
+     * Told when {@code path} (and, for a directory, everything below it) was changed other
+     * than through {@link #openWrite}, e.g. renamed or deleted through its local file.
+     */
+    default void invalidate(String path) {
+    }
+
+    /** The last element of an absolute path; empty for the root. */
+    static String nameOf(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    /** The parent of an absolute path; null for the root. */
+    static String parentOf(String path) {
+        if (path.equals("/")) return null;
+        int slash = path.lastIndexOf('/');
+        return slash == 0 ? "/" : path.substring(0, slash);
+    }
+
+    private static void push(Deque<String> parts, String path) {
+        for (String part : path.split("/")) {
+            if (part.isEmpty() || part.equals(".")) continue;
+            if (part.equals("..")) {
+                parts.pollLast();
+            } else {
+                parts.addLast(part);
+            }
+        }
+    }
+}
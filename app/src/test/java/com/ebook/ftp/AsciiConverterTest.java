@@ -0,0 +1,182 @@
+package com.ebook.ftp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class AsciiConverterTest {
+
+    // Line ends of every kind, including a lone CR, a stored CRLF and a CR at the very end
+    private static final String[] SAMPLES = {
+            "", "a", "\n", "\r", "\r\n", "a\nb\n", "a\rb", "a\r\nb", "\n\n\r\r\n\n", "x\r", "line one\nline two\r\nthree\rfour\n"
+    };
+
+    @Test
+    public void encoderConvertsBareLineFeedsOnly() throws IOException {
+        assertEquals("a\r\nb\r\n", encode("a\nb\n", false, 64));
+        assertEquals("a\r\nb", encode("a\r\nb", false, 64));
+        assertEquals("a\rb", encode("a\rb", false, 64));
+    }
+
+    @Test
+    public void encoderWorksWithTinyBuffers() throws IOException {
+        for (String sample : SAMPLES) {
+            assertEquals(sample, encode(sample, false, 64), encode(sample, false, 2));
+        }
+    }
+
+    @Test
+    public void decoderConvertsCrLfAndKeepsLoneCr() throws IOException {
+        assertEquals("a\nb\n", decode("a\r\nb\r\n", false, false));
+        assertEquals("a\rb", decode("a\rb", false, false));
+        assertEquals("x\r", decode("x\r", false, false));
+    }
+
+    @Test
+    public void decoderHandlesCrLfSplitAcrossReads() throws IOException {
+        for (String sample : SAMPLES) {
+            String converted = encode(sample, false, 64);
+            assertEquals(sample, decode(converted, false, false), decode(converted, false, true));
+        }
+    }
+
+    @Test
+    public void sizeMatchesEncodedLength() throws IOException {
+        for (String sample : SAMPLES) {
+            long expected = encode(sample, false, 64).length();
+            assertEquals(sample, expected, AsciiConverter.convertedSize(channelOf(sample), ByteBuffer.allocate(3)));
+        }
+    }
+
+    @Test
+    public void seekPastTheEndIsRefused() throws IOException {
+        assertNull(AsciiConverter.seek(channelOf("a\n"), 4, ByteBuffer.allocate(8)));
+        assertNotNull(AsciiConverter.seek(channelOf("a\n"), 3, ByteBuffer.allocate(8)));
+    }
+
+    @Test
+    public void seekTellsSplitLineEndFromStoredCr() throws IOException {
+        // "a\n" is sent as "a\r\n": offset 2 falls between the CR and LF sent for the LF
+        AsciiConverter.Position split = AsciiConverter.seek(channelOf("a\nb"), 2, ByteBuffer.allocate(8));
+        assertEquals(1, split.offset);
+        assertTrue(split.afterCr);
+        assertTrue(split.splitLineEnd);
+        // A CR from the file was sent as is, and is already in the file before offset
+        AsciiConverter.Position stored = AsciiConverter.seek(channelOf("a\rb"), 2, ByteBuffer.allocate(8));
+        assertEquals(2, stored.offset);
+        assertTrue(stored.afterCr);
+        assertFalse(stored.splitLineEnd);
+    }
+
+    /** RETR with REST at every offset sends exactly the rest of the converted file. */
+    @Test
+    public void resumedDownloadContinuesConvertedStream() throws IOException {
+        for (String sample : SAMPLES) {
+            String converted = encode(sample, false, 64);
+            for (int k = 0; k <= converted.length(); k++) {
+                AsciiConverter.Position p = AsciiConverter.seek(channelOf(sample), k, ByteBuffer.allocate(3));
+                String rest = encode(sample.substring((int) p.offset), p.afterCr, 4);
+                assertEquals(sample + " @" + k, converted.substring(k), rest);
+            }
+        }
+    }
+
+    /** STOR with REST at every offset of a stored file ends with the same file. */
+    @Test
+    public void resumedUploadDoesNotRepeatStoredCr() throws IOException {
+        for (String stored : SAMPLES) {
+            String converted = encode(stored, false, 64);
+            // A stored CRLF comes back as LF from an ASCII upload; such files cannot be resent
+            if (!decode(converted, false, false).equals(stored)) continue;
+            for (int k = 0; k <= converted.length(); k++) {
+                AsciiConverter.Position p = AsciiConverter.seek(channelOf(stored), k, ByteBuffer.allocate(3));
+                String resumed = stored.substring(0, (int) p.offset)
+                        + decode(converted.substring(k), p.splitLineEnd, false);
+                assertEquals(stored + " @" + k, stored, resumed);
+            }
+        }
+    }
+
+    @Test
+    public void sizeCacheOnlyAnswersForSameSizeAndTime() {
+        AsciiConverter.SizeCache cache = new AsciiConverter.SizeCache();
+        long size = AsciiConverter.SizeCache.MIN_CACHED_SIZE;
+        cache.put("/big", size, 1000, size + 10);
+        cache.put("/small", 10, 1000, 12);
+        assertEquals(size + 10, cache.get("/big", size, 1000));
+        assertEquals(-1, cache.get("/big", size, 2000));
+        assertEquals(-1, cache.get("/big", size + 1, 1000));
+        assertEquals(-1, cache.get("/small", 10, 1000));
+        cache.clear();
+        assertEquals(-1, cache.get("/big", size, 1000));
+    }
+
+    private static String encode(String text, boolean afterCr, int bufferSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AsciiConverter.Encoder encoder = new AsciiConverter.Encoder(Channels.newChannel(out),
+                ByteBuffer.allocate(bufferSize), afterCr);
+        // Several writes, so conversion state is carried across them
+        byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+        for (int i = 0; i < bytes.length; i += 3) {
+            encoder.write(ByteBuffer.wrap(bytes, i, Math.min(3, bytes.length - i)));
+        }
+        encoder.close();
+        return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    private static String decode(String converted, boolean pendingCr, boolean byteAtATime) throws IOException {
+        byte[] bytes = converted.getBytes(StandardCharsets.ISO_8859_1);
+        ReadableByteChannel in = byteAtATime ? new OneByteChannel(bytes) : Channels.newChannel(new ByteArrayInputStream(bytes));
+        AsciiConverter.Decoder decoder = new AsciiConverter.Decoder(in, ByteBuffer.allocate(16), pendingCr);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer dst = ByteBuffer.allocate(5);
+        while (decoder.read(dst) >= 0) {
+            dst.flip();
+            out.write(dst.array(), 0, dst.limit());
+            dst.clear();
+        }
+        return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    private static SeekableByteChannel channelOf(String content) throws IOException {
+        MemoryFileSystem fs = new MemoryFileSystem();
+        fs.write("/f", content.getBytes(StandardCharsets.ISO_8859_1));
+        return fs.openRead("/f");
+    }
+
+    // Hands out one byte per read, so every line end is split across reads.
+    private static final class OneByteChannel implements ReadableByteChannel {
+        private final byte[] bytes;
+        private int position = 0;
+
+        OneByteChannel(byte[] bytes) {
+            this.bytes = Arrays.copyOf(bytes, bytes.length);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (position == bytes.length) return -1;
+            dst.put(bytes[position++]);
+            return 1;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
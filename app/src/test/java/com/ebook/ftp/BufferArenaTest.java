@@ -0,0 +1,94 @@
+package com.ebook.ftp;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class BufferArenaTest {
+
+    private final ServerMetrics metrics = new ServerMetrics();
+
+    @Test
+    public void releasedBufferIsReused() throws Exception {
+        BufferArena arena = new BufferArena(BufferArena.DEFAULT_BUDGET, metrics);
+        ByteBuffer first = arena.lease(BufferArena.LARGE, BufferArena.SMALL);
+        assertTrue(first.isDirect());
+        assertEquals(BufferArena.LARGE, first.capacity());
+        first.put((byte) 1);
+        arena.release(first);
+        ByteBuffer second = arena.lease(BufferArena.LARGE, BufferArena.SMALL);
+        assertSame(first, second);
+        assertEquals(0, second.position());
+        assertEquals(BufferArena.LARGE, metrics.get("arena.allocated_bytes"));
+        arena.release(second);
+    }
+
+    @Test
+    public void requestsRoundUpToASizeClass() throws Exception {
+        BufferArena arena = new BufferArena(BufferArena.DEFAULT_BUDGET, metrics);
+        ByteBuffer buf = arena.lease(5000, BufferArena.SMALL);
+        assertEquals(BufferArena.MEDIUM, buf.capacity());
+        arena.release(buf);
+    }
+
+    /** An exhausted budget first evicts pooled buffers, then falls back to a smaller class. */
+    @Test
+    public void fullBudgetFallsBackToSmallerBuffers() throws Exception {
+        BufferArena arena = new BufferArena(2 * BufferArena.LARGE, metrics);
+        ByteBuffer pooled = arena.lease(BufferArena.SMALL, BufferArena.SMALL);
+        arena.release(pooled);
+        ByteBuffer a = arena.lease(BufferArena.LARGE, BufferArena.SMALL);
+        ByteBuffer b = arena.lease(BufferArena.LARGE, BufferArena.SMALL); // needs the pooled 4 KB gone
+        assertEquals(BufferArena.LARGE, b.capacity());
+        assertNull(arena.tryLease(BufferArena.LARGE, BufferArena.SMALL));
+        arena.release(a);
+        arena.release(b);
+        assertEquals(2 * BufferArena.LARGE, metrics.get("arena.allocated_bytes"));
+
+        BufferArena tight = new BufferArena(BufferArena.LARGE + BufferArena.MEDIUM, metrics);
+        ByteBuffer large = tight.lease(BufferArena.LARGE, BufferArena.SMALL);
+        ByteBuffer fallback = tight.lease(BufferArena.LARGE, BufferArena.SMALL);
+        assertEquals(BufferArena.MEDIUM, fallback.capacity());
+        assertEquals(1, metrics.get("arena.fallbacks"));
+        tight.release(large);
+        tight.release(fallback);
+    }
+
+    @Test
+    public void leaseWaitsForARelease() throws Exception {
+        BufferArena arena = new BufferArena(BufferArena.LARGE, metrics);
+        ByteBuffer held = arena.lease(BufferArena.LARGE, BufferArena.LARGE);
+        AtomicReference<ByteBuffer> leased = new AtomicReference<>();
+        Thread waiter = new Thread(() -> {
+            try {
+                leased.set(arena.lease(BufferArena.LARGE, BufferArena.LARGE));
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        });
+        waiter.start();
+        Thread.sleep(100);
+        assertNull(leased.get());
+        arena.release(held);
+        waiter.join(2000);
+        assertSame(held, leased.get());
+        assertEquals(1, metrics.get("arena.waits"));
+    }
+
+    @Test
+    public void loweredBudgetDropsBuffersAsTheyComeBack() throws Exception {
+        BufferArena arena = new BufferArena(4 * BufferArena.LARGE, metrics);
+        ByteBuffer a = arena.lease(BufferArena.LARGE, BufferArena.LARGE);
+        ByteBuffer b = arena.lease(BufferArena.LARGE, BufferArena.LARGE);
+        arena.setBudget(BufferArena.LARGE);
+        arena.release(a);
+        assertEquals(BufferArena.LARGE, metrics.get("arena.allocated_bytes"));
+        arena.release(b);
+        assertEquals(BufferArena.LARGE, metrics.get("arena.allocated_bytes"));
+        arena.trim();
+        assertEquals(0, metrics.get("arena.allocated_bytes"));
+    }
+}
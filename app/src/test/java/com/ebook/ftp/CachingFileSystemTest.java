@@ -0,0 +1,86 @@
+package com.ebook.ftp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CachingFileSystemTest {
+
+    private MemoryFileSystem storage;
+
+    @Before
+    public void setUp() throws IOException {
+        storage = new MemoryFileSystem();
+        storage.write("/dir/a.txt", new byte[3]);
+    }
+
+    /** Changes made behind the server's back show up only once the entries expire. */
+    @Test
+    public void outsideChangesShowAfterExpiry() throws Exception {
+        CachingFileSystem fs = new CachingFileSystem(storage, 100, 100);
+        assertEquals(3, fs.stat("/dir/a.txt").size);
+        assertNull(fs.stat("/dir/b.txt"));
+        assertEquals(1, fs.list("/dir").size());
+        storage.write("/dir/a.txt", new byte[5]);
+        storage.write("/dir/b.txt", new byte[1]);
+        assertEquals(3, fs.stat("/dir/a.txt").size);
+        assertNull(fs.stat("/dir/b.txt")); // misses are cached too
+        assertEquals(1, fs.list("/dir").size());
+        Thread.sleep(150);
+        assertEquals(5, fs.stat("/dir/a.txt").size);
+        assertNotNull(fs.stat("/dir/b.txt"));
+        assertEquals(2, fs.list("/dir").size());
+    }
+
+    @Test
+    public void committedWriteInvalidatesFileAndParentListing() throws IOException {
+        CachingFileSystem fs = new CachingFileSystem(storage, 60_000, 100);
+        assertNull(fs.stat("/dir/new.txt"));
+        assertEquals(1, fs.list("/dir").size());
+        try (VirtualFileSystem.WriteChannel out = fs.openWrite("/dir/new.txt")) {
+            out.write(ByteBuffer.wrap(new byte[7]));
+            assertNull(fs.stat("/dir/new.txt")); // nothing to see before the commit
+            out.commit();
+        }
+        assertEquals(7, fs.stat("/dir/new.txt").size);
+        assertEquals(2, fs.list("/dir").size());
+    }
+
+    @Test
+    public void invalidatingADirectoryDropsEverythingBelowIt() throws IOException {
+        storage.write("/dir/sub/c.txt", new byte[1]);
+        storage.write("/dirx/d.txt", new byte[1]);
+        CachingFileSystem fs = new CachingFileSystem(storage, 60_000, 100);
+        fs.stat("/dir/sub/c.txt");
+        fs.stat("/dirx/d.txt");
+        storage.write("/dir/sub/c.txt", new byte[9]);
+        storage.write("/dirx/d.txt", new byte[9]);
+        fs.invalidate("/dir");
+        assertEquals(9, fs.stat("/dir/sub/c.txt").size);
+        assertEquals(1, fs.stat("/dirx/d.txt").size); // a sibling with the same prefix is kept
+    }
+
+    @Test
+    public void leastRecentlyUsedEntriesAreDropped() throws IOException {
+        CachingFileSystem fs = new CachingFileSystem(storage, 60_000, 2);
+        fs.stat("/dir/a.txt");
+        fs.stat("/x");
+        fs.stat("/dir/a.txt"); // keeps it the most recently used
+        fs.stat("/y"); // evicts /x
+        storage.write("/dir/a.txt", new byte[5]);
+        storage.write("/x", new byte[1]);
+        assertEquals(3, fs.stat("/dir/a.txt").size);
+        assertNotNull(fs.stat("/x"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void cachedListingsCannotBeModified() throws IOException {
+        List<VirtualFileSystem.Attributes> entries = new CachingFileSystem(storage).list("/dir");
+        entries.clear();
+    }
+}
@@ -0,0 +1,118 @@
+package com.ebook.ftp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class HotFileCacheTest {
+
+    private static final int SIZE = (int) HotFileCache.MIN_FILE_SIZE;
+
+    private File dir;
+    private ServerMetrics metrics;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("hot").toFile();
+        metrics = new ServerMetrics();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void concurrentDownloadsShareOneMapping() throws IOException {
+        HotFileCache cache = new HotFileCache(4L * SIZE, metrics);
+        File file = file("a.bin", SIZE);
+        try (FileInputStream first = new FileInputStream(file); FileInputStream second = new FileInputStream(file);
+             FileInputStream third = new FileInputStream(file)) {
+            HotFileCache.Lease a = cache.open(file, first.getChannel());
+            assertNull(a.content()); // not hot yet
+            HotFileCache.Lease b = cache.open(file, second.getChannel());
+            HotFileCache.Lease c = cache.open(file, third.getChannel());
+            assertNotNull(b.content());
+            assertEquals(SIZE, b.content().remaining());
+            assertNotNull(c.content());
+            assertEquals(1, metrics.get("hotcache.maps"));
+            assertEquals(SIZE, metrics.get("hotcache.mapped_bytes"));
+            a.close();
+            b.close();
+            c.close();
+        }
+    }
+
+    /** A mapping invalidated while in use keeps counting until its last download ends. */
+    @Test
+    public void invalidatedMappingCountsUntilLastLeaseCloses() throws IOException {
+        HotFileCache cache = new HotFileCache(SIZE + SIZE / 2, metrics);
+        File file = file("a.bin", SIZE);
+        File other = file("b.bin", SIZE);
+        try (FileInputStream first = new FileInputStream(file); FileInputStream second = new FileInputStream(file)) {
+            HotFileCache.Lease a = cache.open(file, first.getChannel());
+            HotFileCache.Lease b = cache.open(file, second.getChannel());
+            assertNotNull(b.content());
+            cache.invalidate(file);
+            b.invalidate();
+            assertEquals(SIZE, metrics.get("hotcache.mapped_bytes"));
+
+            // The retired mapping still takes up the budget
+            assertNull(openHot(cache, other));
+            assertNotNull(b.content()); // still readable by its download
+
+            b.close();
+            b.close(); // closing twice changes nothing
+            assertEquals(0, metrics.get("hotcache.mapped_bytes"));
+            a.close();
+        }
+        assertNotNull(openHot(cache, other));
+    }
+
+    @Test
+    public void changedFileIsRemapped() throws IOException {
+        HotFileCache cache = new HotFileCache(4L * SIZE, metrics);
+        File file = file("a.bin", SIZE);
+        assertNotNull(openHot(cache, file));
+        Files.write(file.toPath(), new byte[SIZE + 1]);
+        assertNotNull(openHot(cache, file));
+        assertEquals(1, metrics.get("hotcache.stale"));
+        assertEquals(SIZE + 1, metrics.get("hotcache.mapped_bytes"));
+    }
+
+    @Test
+    public void smallFilesAreNotMapped() throws IOException {
+        HotFileCache cache = new HotFileCache(4L * SIZE, metrics);
+        assertNull(openHot(cache, file("small.bin", SIZE - 1)));
+        assertEquals(0, metrics.get("hotcache.maps"));
+    }
+
+    // Opens file twice in a row, so it is hot; returns whether the second open got a mapping.
+    private static Object openHot(HotFileCache cache, File file) throws IOException {
+        try (FileInputStream first = new FileInputStream(file); FileInputStream second = new FileInputStream(file)) {
+            HotFileCache.Lease a = cache.open(file, first.getChannel());
+            a.close();
+            HotFileCache.Lease b = cache.open(file, second.getChannel());
+            Object content = b.content();
+            b.close();
+            return content;
+        }
+    }
+
+    private File file(String name, int size) throws IOException {
+        File f = new File(dir, name);
+        Files.write(f.toPath(), new byte[size]);
+        return f;
+    }
+}
@@ -0,0 +1,60 @@
+package com.ebook.ftp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HttpGatewayTest {
+
+    @Test
+    public void parsesSingleRanges() {
+        assertArrayEquals(new long[]{0, 99}, HttpGateway.parseRange("bytes=0-99", 1000));
+        assertArrayEquals(new long[]{500, 999}, HttpGateway.parseRange("bytes=500-", 1000));
+        assertArrayEquals(new long[]{900, 999}, HttpGateway.parseRange("bytes=-100", 1000));
+        assertArrayEquals(new long[]{0, 999}, HttpGateway.parseRange("bytes=-5000", 1000));
+        assertArrayEquals(new long[]{990, 999}, HttpGateway.parseRange("bytes=990-2000", 1000));
+    }
+
+    @Test
+    public void unsatisfiableRangesAreNull() {
+        assertNull(HttpGateway.parseRange("bytes=1000-", 1000));
+        assertNull(HttpGateway.parseRange("bytes=50-10", 1000));
+        assertNull(HttpGateway.parseRange("bytes=-0", 1000));
+        assertNull(HttpGateway.parseRange("bytes=0-", 0));
+    }
+
+    /** Anything we don't serve as a single range gets the whole file. */
+    @Test
+    public void otherRangesServeWholeFile() {
+        assertEquals(0, HttpGateway.parseRange("bytes=0-1,5-6", 1000).length);
+        assertEquals(0, HttpGateway.parseRange("items=0-1", 1000).length);
+        assertEquals(0, HttpGateway.parseRange("bytes=abc-", 1000).length);
+        assertEquals(0, HttpGateway.parseRange("bytes=5", 1000).length);
+    }
+
+    @Test
+    public void decodesPercentEncodedUtf8() {
+        assertEquals("/a b/été.txt", HttpGateway.decodePath("/a%20b/%C3%A9t%c3%A9.txt"));
+        assertEquals("/dir/", HttpGateway.decodePath("/dir/?sort=name"));
+        assertEquals("/", HttpGateway.decodePath("/"));
+    }
+
+    @Test
+    public void rejectsMalformedTargets() {
+        assertNull(HttpGateway.decodePath("relative/path"));
+        assertNull(HttpGateway.decodePath("http://host/a"));
+        assertNull(HttpGateway.decodePath("/a%2"));
+        assertNull(HttpGateway.decodePath("/a%"));
+        assertNull(HttpGateway.decodePath("/a%zz"));
+        assertNull(HttpGateway.decodePath("/a%00b"));
+        assertNull(HttpGateway.decodePath("/é"));
+    }
+
+    @Test
+    public void encodedPathsDecodeBack() {
+        String path = "/Music/AC DC/été #1 (100%).mp3";
+        String encoded = HttpGateway.encodePath(path);
+        assertEquals("/Music/AC%20DC/%C3%A9t%C3%A9%20%231%20%28100%25%29.mp3", encoded);
+        assertEquals(path, HttpGateway.decodePath(encoded));
+    }
+}
@@ -0,0 +1,143 @@
+package com.ebook.ftp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class IoSchedulerTest {
+
+    private ServerMetrics metrics;
+    private IoScheduler scheduler;
+    // Names of waiting operations, in the order they were let in
+    private final BlockingQueue<String> granted = new LinkedBlockingQueue<>();
+    private final BlockingQueue<IoScheduler.Permit> permits = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() {
+        metrics = new ServerMetrics();
+        scheduler = new IoScheduler(metrics);
+    }
+
+    /** Bulk streams leave the last permit to interactive and small operations. */
+    @Test
+    public void bulkNeverTakesTheLastPermit() throws Exception {
+        scheduler.setMaxConcurrent(2);
+        IoScheduler.Permit bulk = bulk("a").enter(0);
+        Thread second = enterLater("second bulk", bulk("b"), 0);
+        assertNull(granted.poll(100, TimeUnit.MILLISECONDS));
+        scheduler.interactive().enter(0).close(); // not held up by the waiting bulk stream
+        bulk.close();
+        assertEquals("second bulk", granted.poll(2, TimeUnit.SECONDS));
+        second.join();
+        permits.take().close();
+    }
+
+    @Test
+    public void bulkIsCappedPerVolume() throws Exception {
+        scheduler.setMaxBulkPerVolume(1);
+        IoScheduler.Permit first = bulk("a").enter(0);
+        Thread sameVolume = enterLater("same volume", bulk("a"), 0);
+        assertNull(granted.poll(100, TimeUnit.MILLISECONDS));
+        bulk("b").enter(0).close(); // another volume is not held up
+        first.close();
+        assertEquals("same volume", granted.poll(2, TimeUnit.SECONDS));
+        sameVolume.join();
+        permits.take().close();
+    }
+
+    /** Interactive operations queued after bulk ones still go first. */
+    @Test
+    public void waitingInteractiveGoesBeforeWaitingBulk() throws Exception {
+        scheduler.setMaxConcurrent(2);
+        IoScheduler.Permit small = small().enter(0);
+        IoScheduler.Permit other = small().enter(0);
+        Thread bulk = enterLater("bulk", bulk("a"), 0);
+        Thread.sleep(50);
+        Thread listing = enterLater("listing", scheduler.interactive(), 0);
+        Thread.sleep(50);
+        small.close();
+        assertEquals("listing", granted.poll(2, TimeUnit.SECONDS));
+        other.close();
+        assertEquals("bulk", granted.poll(2, TimeUnit.SECONDS));
+        bulk.join();
+        listing.join();
+        assertEquals(1, metrics.get("io.interactive.queued"));
+        assertEquals(1, metrics.get("io.bulk.queued"));
+        permits.take().close();
+        permits.take().close();
+    }
+
+    /** An upload counts as a small file until it has moved SMALL_FILE_LIMIT bytes. */
+    @Test
+    public void uploadOfUnknownLengthTurnsBulk() throws Exception {
+        scheduler.setMaxConcurrent(2);
+        IoScheduler.Request upload = new IoScheduler.Request(scheduler, IoScheduler.IoClass.SMALL, -1, "a");
+        IoScheduler.Permit bulk = bulk("b").enter(0);
+        upload.enter(IoScheduler.SMALL_FILE_LIMIT - 1).close();
+        Thread large = enterLater("large upload", upload, IoScheduler.SMALL_FILE_LIMIT);
+        assertNull(granted.poll(100, TimeUnit.MILLISECONDS));
+        bulk.close();
+        assertEquals("large upload", granted.poll(2, TimeUnit.SECONDS));
+        large.join();
+        permits.take().close();
+    }
+
+    @Test
+    public void interruptedWaiterLeavesTheQueue() throws Exception {
+        scheduler.setMaxConcurrent(2);
+        IoScheduler.Permit first = small().enter(0);
+        IoScheduler.Permit second = small().enter(0);
+        Thread waiter = enterLater("interrupted", small(), 0);
+        Thread.sleep(50);
+        waiter.interrupt();
+        waiter.join(2000);
+        assertFalse(waiter.isAlive());
+        first.close();
+        second.close();
+        assertNull(granted.poll(100, TimeUnit.MILLISECONDS));
+        // Both permits are free again
+        small().enter(0).close();
+        IoScheduler.Permit a = small().enter(0);
+        IoScheduler.Permit b = scheduler.interactive().enter(0);
+        a.close();
+        b.close();
+    }
+
+    @Test
+    public void unscheduledRequestsNeverWait() throws Exception {
+        scheduler.setMaxConcurrent(2);
+        IoScheduler.Permit a = small().enter(0);
+        IoScheduler.Permit b = small().enter(0);
+        IoScheduler.UNSCHEDULED.enter(0).close();
+        a.close();
+        b.close();
+    }
+
+    private IoScheduler.Request bulk(String volume) {
+        return new IoScheduler.Request(scheduler, IoScheduler.IoClass.BULK, 100L << 20, volume);
+    }
+
+    private IoScheduler.Request small() {
+        return new IoScheduler.Request(scheduler, IoScheduler.IoClass.SMALL, 1000, "a");
+    }
+
+    // Enters on another thread; the permit, once granted, is kept in permits.
+    private Thread enterLater(String name, IoScheduler.Request request, long done) {
+        Thread t = new Thread(() -> {
+            try {
+                IoScheduler.Permit permit = request.enter(done);
+                permits.add(permit);
+                granted.add(name);
+            } catch (Exception e) {
+                // interrupted while waiting
+            }
+        });
+        t.start();
+        return t;
+    }
+}
@@ -0,0 +1,125 @@
+package com.ebook.ftp;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MemoryFileSystemTest {
+
+    @Test
+    public void committedWriteReplacesFile() throws IOException {
+        MemoryFileSystem fs = new MemoryFileSystem();
+        fs.write("/dir/a.txt", bytes("old"));
+        VirtualFileSystem.WriteChannel out = fs.openWrite("/dir/a.txt");
+        out.write(ByteBuffer.wrap(bytes("new content")));
+        // Not visible until committed
+        assertEquals("old", read(fs, "/dir/a.txt"));
+        out.commit();
+        assertFalse(out.isOpen());
+        assertEquals("new content", read(fs, "/dir/a.txt"));
+        assertEquals(11, fs.getUsedBytes());
+    }
+
+    /** An aborted STOR closes its channel without a commit; the old file must survive. */
+    @Test
+    public void closedWithoutCommitLeavesFileAsItWas() throws IOException {
+        MemoryFileSystem fs = new MemoryFileSystem();
+        fs.write("/a.txt", bytes("complete file"));
+        try (VirtualFileSystem.WriteChannel out = fs.openWrite("/a.txt")) {
+            out.write(ByteBuffer.wrap(bytes("partial")));
+        }
+        assertEquals("complete file", read(fs, "/a.txt"));
+        try (VirtualFileSystem.WriteChannel out = fs.openWrite("/new.txt")) {
+            out.write(ByteBuffer.wrap(bytes("partial")));
+        }
+        assertNull(fs.stat("/new.txt"));
+        assertEquals(13, fs.getUsedBytes());
+    }
+
+    @Test
+    public void readerKeepsVersionItOpened() throws IOException {
+        MemoryFileSystem fs = new MemoryFileSystem();
+        fs.write("/a", bytes("first"));
+        SeekableByteChannel in = fs.openRead("/a");
+        fs.write("/a", bytes("second version"));
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        in.read(buf);
+        assertEquals("first", new String(buf.array(), 0, buf.position(), StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    public void capacityIsEnforced() throws IOException {
+        MemoryFileSystem fs = new MemoryFileSystem(10);
+        fs.write("/a", new byte[6]);
+        VirtualFileSystem.WriteChannel out = fs.openWrite("/b");
+        try {
+            out.write(ByteBuffer.allocate(5));
+            fail("wrote past the capacity");
+        } catch (IOException expected) {
+            // full
+        } finally {
+            out.close();
+        }
+        // Replacing a file only counts the difference
+        fs.write("/a", new byte[10]);
+        assertEquals(10, fs.getUsedBytes());
+    }
+
+    @Test
+    public void listsDirectoriesInNameOrder() throws IOException {
+        MemoryFileSystem fs = new MemoryFileSystem();
+        fs.write("/d/b", bytes("bb"));
+        fs.write("/d/a", bytes("a"));
+        fs.mkdirs("/d/c");
+        List<VirtualFileSystem.Attributes> entries = fs.list("/d");
+        assertEquals(3, entries.size());
+        assertEquals("a", entries.get(0).name);
+        assertEquals(1, entries.get(0).size);
+        assertEquals("b", entries.get(1).name);
+        assertTrue(entries.get(2).directory);
+        assertNull(fs.list("/d/a"));
+        assertNull(fs.list("/missing"));
+    }
+
+    @Test(expected = IOException.class)
+    public void directoryCannotBeOpenedForWriting() throws IOException {
+        MemoryFileSystem fs = new MemoryFileSystem();
+        fs.mkdirs("/d");
+        fs.openWrite("/d");
+    }
+
+    @Test(expected = IOException.class)
+    public void directoryCannotBeRead() throws IOException {
+        MemoryFileSystem fs = new MemoryFileSystem();
+        fs.mkdirs("/d");
+        fs.openRead("/d");
+    }
+
+    @Test
+    public void resolveStaysInsideRoot() throws IOException {
+        MemoryFileSystem fs = new MemoryFileSystem();
+        assertEquals("/a/c", fs.resolve("/a/b", "../c"));
+        assertEquals("/", fs.resolve("/a", "../../.."));
+        assertEquals("/x", fs.resolve("/a", "/x/./"));
+    }
+
+    private static String read(MemoryFileSystem fs, String path) throws IOException {
+        try (SeekableByteChannel in = fs.openRead(path)) {
+            ByteBuffer buf = ByteBuffer.allocate((int) in.size());
+            while (buf.hasRemaining() && in.read(buf) >= 0) {
+                // fill
+            }
+            return new String(buf.array(), StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,201 @@
+package com.ebook.ftp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class MetadataIndexTest {
+
+    private File root;
+    private File store;
+
+    @Before
+    public void setUp() throws IOException {
+        File dir = Files.createTempDirectory("index").toFile();
+        root = new File(dir, "root");
+        assertTrue(root.mkdir());
+        store = new File(dir, "metadata.idx");
+    }
+
+    @After
+    public void tearDown() {
+        deleteTree(root.getParentFile());
+    }
+
+    @Test
+    public void generationCarriesOverCleanRestart() throws Exception {
+        MetadataIndex index = started();
+        File file = new File(root, "a.txt");
+        Files.write(file.toPath(), new byte[3]);
+        index.notifyChanged(file);
+        long generation = index.currentGeneration();
+        String epoch = index.getEpoch();
+        assertNull(index.resyncReason(epoch, generation));
+        index.close();
+
+        MetadataIndex reopened = started();
+        assertEquals(epoch, reopened.getEpoch());
+        assertNull(reopened.resyncReason(epoch, generation));
+        assertTrue(reopened.changesSince(generation).isEmpty());
+        reopened.close();
+    }
+
+    @Test
+    public void generationWithoutEpochOrFromAnotherEpochNeedsResync() throws Exception {
+        MetadataIndex index = started();
+        Files.write(new File(root, "a").toPath(), new byte[1]);
+        index.notifyChanged(new File(root, "a"));
+        long generation = index.currentGeneration();
+        assertNull(index.resyncReason(null, 0));
+        assertNotNull(index.resyncReason(null, generation));
+        assertNotNull(index.resyncReason("another-epoch", generation));
+        assertNotNull(index.resyncReason(index.getEpoch(), generation + 1));
+        index.close();
+    }
+
+    @Test
+    public void lostOrCorruptIndexStartsNewEpoch() throws Exception {
+        MetadataIndex index = started();
+        String epoch = index.getEpoch();
+        index.close();
+
+        Files.write(store.toPath(), new byte[]{0x46, 0x54, 0x49, 0x58, 0, 0, 0, 2, 0});
+        MetadataIndex corrupt = started();
+        assertNotEquals(epoch, corrupt.getEpoch());
+        assertNotNull(corrupt.resyncReason(epoch, 1));
+        String corruptEpoch = corrupt.getEpoch();
+        corrupt.close();
+
+        assertTrue(store.delete());
+        MetadataIndex lost = started();
+        assertNotEquals(corruptEpoch, lost.getEpoch());
+        lost.close();
+    }
+
+    /** A crash loses the changes after the last periodic persist, so the old epoch cannot go on. */
+    @Test
+    public void uncleanShutdownStartsNewEpoch() throws Exception {
+        MetadataIndex index = started();
+        String epoch = index.getEpoch();
+        long generation = index.currentGeneration();
+        index.close();
+        // Clear the clean flag after magic, version, epoch (2-byte length + 36 chars) and oldest generation
+        try (RandomAccessFile raf = new RandomAccessFile(store, "rw")) {
+            raf.seek(4 + 4 + 2 + 36 + 8);
+            assertEquals(1, raf.read());
+            raf.seek(4 + 4 + 2 + 36 + 8);
+            raf.write(0);
+        }
+        MetadataIndex reopened = started();
+        assertNotEquals(epoch, reopened.getEpoch());
+        assertNotNull(reopened.resyncReason(epoch, generation));
+        reopened.close();
+    }
+
+    @Test
+    public void forgottenTombstoneRequiresResyncFromBeforeIt() throws Exception {
+        long old = System.currentTimeMillis() - MetadataIndex.TOMBSTONE_RETENTION_MS - 60_000;
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(store))) {
+            out.writeInt(0x46544958);
+            out.writeInt(2);
+            out.writeUTF("0123456789abcdef0123456789abcdef0123");
+            out.writeLong(0);
+            out.writeBoolean(true);
+            out.writeLong(10);
+            out.writeInt(2);
+            // Deleted at generation 7, long ago
+            out.writeUTF("/gone.txt");
+            out.writeLong(0);
+            out.writeLong(old);
+            out.writeByte(2);
+            out.writeLong(7);
+            // Deleted at generation 10, recently
+            out.writeUTF("/recent.txt");
+            out.writeLong(0);
+            out.writeLong(System.currentTimeMillis());
+            out.writeByte(2);
+            out.writeLong(10);
+        }
+        MetadataIndex index = started();
+        String epoch = "0123456789abcdef0123456789abcdef0123";
+        assertEquals(epoch, index.getEpoch());
+        assertNotNull(index.resyncReason(epoch, 6));
+        assertNull(index.resyncReason(epoch, 7));
+        boolean recentReported = false;
+        for (MetadataIndex.Entry e : index.changesSince(7)) {
+            assertNotEquals("/gone.txt", e.path);
+            if (e.path.equals("/recent.txt")) recentReported = e.deleted;
+        }
+        assertTrue(recentReported);
+        index.close();
+    }
+
+    /** A client polling with the current generation as its mark never skips a change. */
+    @Test
+    public void pollingUpToCurrentGenerationMissesNothing() throws Exception {
+        MetadataIndex index = started();
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            int id = t;
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < 200; i++) {
+                    File file = new File(root, id + "-" + i);
+                    try {
+                        Files.write(file.toPath(), new byte[1]);
+                    } catch (IOException e) {
+                        throw new AssertionError(e);
+                    }
+                    index.notifyChanged(file);
+                }
+            });
+            writers[t].start();
+        }
+        Set<String> seen = new HashSet<>();
+        long since = 0;
+        boolean writing = true;
+        while (writing) {
+            writing = false;
+            for (Thread w : writers) writing |= w.isAlive();
+            long mark = index.currentGeneration();
+            for (MetadataIndex.Entry e : index.changesSince(since, mark)) {
+                assertTrue(e.generation > since && e.generation <= mark);
+                seen.add(e.path);
+            }
+            since = mark;
+        }
+        assertEquals(800, seen.size() - 1); // and the root itself
+        index.close();
+    }
+
+    private MetadataIndex started() throws Exception {
+        MetadataIndex index = new MetadataIndex(root.getPath(), store);
+        index.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!index.isComplete() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(index.isComplete());
+        return index;
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,18 @@
+package com.ebook.ftp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MountTableTest {
+
+    @Test
+    public void sharedStorageAndCardsCannotHoldHardLinks() {
+        assertFalse(new MountTable.Mount("/dev/fuse", "/storage/emulated", "fuse").supportsHardLinks());
+        assertFalse(new MountTable.Mount("/data/media", "/storage/emulated", "sdcardfs").supportsHardLinks());
+        assertFalse(new MountTable.Mount("/dev/block/vold/public:179,1", "/mnt/media_rw/ABCD", "vfat").supportsHardLinks());
+        assertFalse(new MountTable.Mount("/dev/block/vold/public:179,1", "/mnt/media_rw/ABCD", "exfat").supportsHardLinks());
+        assertTrue(new MountTable.Mount("/dev/block/dm-5", "/data", "f2fs").supportsHardLinks());
+        assertTrue(new MountTable.Mount("/dev/block/dm-5", "/data", "ext4").supportsHardLinks());
+    }
+}
@@ -0,0 +1,92 @@
+package com.ebook.ftp;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class PathLockManagerTest {
+
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final PathLockManager locks = new PathLockManager(metrics);
+    private final File dir = new File(System.getProperty("java.io.tmpdir"), "locks");
+    private final File a = new File(dir, "a.bin");
+    private final File b = new File(dir, "b.bin");
+
+    @Test
+    public void readersShareWritersExclude() throws Exception {
+        PathLockManager.Lease first = locks.acquire(a, false, 0);
+        PathLockManager.Lease second = locks.acquire(a, false, 0);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNull(locks.acquire(a, true, 0));
+        assertNotNull(locks.acquire(b, true, 0)); // other files are unaffected
+        first.close();
+        first.close(); // closing twice releases once
+        assertNull(locks.acquire(a, true, 0));
+        second.close();
+        PathLockManager.Lease writer = locks.acquire(a, true, 0);
+        assertNotNull(writer);
+        assertNull(locks.acquire(a, false, 0));
+        assertEquals(3, metrics.get("locks.busy"));
+        writer.close();
+    }
+
+    @Test
+    public void samePathUnderAnotherNameIsLocked() throws Exception {
+        PathLockManager.Lease writer = locks.acquire(a, true, 0);
+        assertNull(locks.acquire(new File(dir, "./sub/../a.bin"), false, 0));
+        writer.close();
+    }
+
+    /** A waiting uploader holds off new downloads, so it is not starved. */
+    @Test
+    public void waitingWriterHoldsOffNewReaders() throws Exception {
+        PathLockManager.Lease reader = locks.acquire(a, false, 0);
+        AtomicReference<PathLockManager.Lease> written = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            try {
+                written.set(locks.acquire(a, true, 5000));
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        });
+        writer.start();
+        Thread.sleep(100);
+        assertNull(locks.acquire(a, false, 0));
+        reader.close();
+        writer.join(2000);
+        assertNotNull(written.get());
+        written.get().close();
+        assertNotNull(locks.acquire(a, false, 0));
+    }
+
+    @Test
+    public void pairLocksBothOrNeither() throws Exception {
+        PathLockManager.Lease busy = locks.acquire(b, true, 0);
+        assertNull(locks.acquire(a, true, b, true, 0));
+        // a was not left locked by the failed attempt
+        PathLockManager.Lease single = locks.acquire(a, true, 0);
+        assertNotNull(single);
+        single.close();
+        busy.close();
+
+        PathLockManager.Lease pair = locks.acquire(b, false, a, true, 0); // given out of path order
+        assertNotNull(pair);
+        assertNull(locks.acquire(a, false, 0));
+        assertNotNull(locks.acquire(b, false, 0));
+        pair.close();
+        assertNotNull(locks.acquire(a, true, 0));
+    }
+
+    @Test
+    public void samePathTwiceIsLockedOnceExclusively() throws Exception {
+        PathLockManager.Lease pair = locks.acquire(a, false, a, true, 0);
+        assertNotNull(pair);
+        assertNull(locks.acquire(a, false, 0));
+        pair.close();
+        assertNotNull(locks.acquire(a, true, 0));
+    }
+}
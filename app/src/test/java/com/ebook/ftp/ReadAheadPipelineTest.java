@@ -0,0 +1,74 @@
+package com.ebook.ftp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class ReadAheadPipelineTest {
+
+    private File file;
+    private byte[] data;
+    private ExecutorService disk;
+    private ServerMetrics metrics;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("download", ".bin");
+        data = new byte[700_001];
+        new Random(2).nextBytes(data);
+        Files.write(file.toPath(), data);
+        disk = Executors.newCachedThreadPool();
+        metrics = new ServerMetrics();
+    }
+
+    @After
+    public void tearDown() {
+        disk.shutdownNow();
+        file.delete();
+    }
+
+    @Test
+    public void sendsFileFromResumeOffset() throws IOException {
+        ReadAheadPipeline pipeline = new ReadAheadPipeline(disk, new BufferArena(BufferArena.DEFAULT_BUDGET, metrics));
+        assertArrayEquals(Arrays.copyOfRange(data, 12_345, data.length), send(pipeline, 12_345, Long.MAX_VALUE));
+        assertEquals(0, metrics.get("arena.leased_bytes"));
+    }
+
+    @Test
+    public void sendsOnlyTheRequestedRange() throws IOException {
+        ReadAheadPipeline pipeline = new ReadAheadPipeline(disk, new BufferArena(BufferArena.DEFAULT_BUDGET, metrics));
+        assertArrayEquals(Arrays.copyOfRange(data, 100_000, 300_000), send(pipeline, 100_000, 200_000));
+        assertArrayEquals(new byte[0], send(pipeline, data.length, Long.MAX_VALUE));
+    }
+
+    /** With an arena too small for a full window, chunks are recycled instead. */
+    @Test
+    public void completesWithinATinyArena() throws IOException {
+        BufferArena arena = new BufferArena(BufferArena.LARGE, metrics);
+        ReadAheadPipeline pipeline = new ReadAheadPipeline(disk, arena, BufferArena.MEDIUM);
+        assertArrayEquals(data, send(pipeline, 0, Long.MAX_VALUE));
+        assertEquals(0, metrics.get("arena.leased_bytes"));
+    }
+
+    private byte[] send(ReadAheadPipeline pipeline, long position, long count) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long sent = pipeline.transfer(raf.getChannel(), position, count, Channels.newChannel(out));
+            assertEquals(out.size(), sent);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,202 @@
+package com.ebook.ftp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class TransferJournalTest {
+
+    private File dir;
+    private File journalFile;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("journal").toFile();
+        journalFile = new File(dir, "transfers.journal");
+    }
+
+    @After
+    public void tearDown() {
+        deleteTree(dir);
+    }
+
+    @Test
+    public void recoversUploadUpToItsLastCheckpoint() throws Exception {
+        TransferJournal journal = new TransferJournal(journalFile);
+        assertTrue(journal.recover().isEmpty());
+        File target = new File(dir, "movie.bin");
+        File temp = new File(dir, ".movie.bin.part");
+        FileOutputStream out = new FileOutputStream(temp);
+        journal.begin(target, temp, out.getChannel(), 0, -1);
+        write(out.getChannel(), TransferJournal.CHECKPOINT_BYTES + 1000);
+        awaitCheckpoint(journal);
+        long checkpointed = temp.length();
+        write(out.getChannel(), 5000); // lost in the "crash"
+        out.close();
+        journal.close(); // no END: the process died
+
+        List<File> recovered = new TransferJournal(journalFile).recover();
+        assertEquals(1, recovered.size());
+        assertEquals(target, recovered.get(0));
+        assertEquals(checkpointed, target.length());
+        assertFalse(temp.exists());
+    }
+
+    @Test
+    public void endedUploadIsForgotten() throws Exception {
+        TransferJournal journal = new TransferJournal(journalFile);
+        journal.recover();
+        File temp = new File(dir, ".a.part");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            TransferJournal.Entry entry = journal.begin(new File(dir, "a"), temp, out.getChannel(), 0, -1);
+            write(out.getChannel(), TransferJournal.CHECKPOINT_BYTES + 1);
+            awaitCheckpoint(journal);
+            entry.end();
+            journal.sync();
+        }
+        // Nothing in progress: back to the bare header
+        assertEquals(8, journalFile.length());
+        journal.close();
+        assertTrue(new TransferJournal(journalFile).recover().isEmpty());
+    }
+
+    /** An ABOR interrupts the transfer thread; its journal records must not close the journal. */
+    @Test
+    public void abortedUploadDoesNotStopJournaling() throws Exception {
+        TransferJournal journal = new TransferJournal(journalFile);
+        journal.recover();
+        AtomicReference<TransferJournal.Entry> aborted = new AtomicReference<>();
+        Thread transfer = new Thread(() -> {
+            Thread.currentThread().interrupt();
+            try (FileOutputStream out = new FileOutputStream(new File(dir, ".x.part"))) {
+                TransferJournal.Entry entry = journal.begin(new File(dir, "x"), new File(dir, ".x.part"),
+                        out.getChannel(), 0, -1);
+                aborted.set(entry);
+                if (entry != null) entry.end();
+            } catch (IOException e) {
+                fail(e.toString());
+            }
+        });
+        transfer.start();
+        transfer.join();
+        assertNotNull(aborted.get());
+        journal.sync();
+
+        // The next upload is still journaled, and recovered after a crash
+        File target = new File(dir, "next.bin");
+        File temp = new File(dir, ".next.bin.part");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            assertNotNull(journal.begin(target, temp, out.getChannel(), 0, -1));
+            write(out.getChannel(), TransferJournal.CHECKPOINT_BYTES + 10);
+            awaitCheckpoint(journal);
+        }
+        journal.close();
+        List<File> recovered = new TransferJournal(journalFile).recover();
+        assertEquals(1, recovered.size());
+        assertEquals(target, recovered.get(0));
+    }
+
+    @Test
+    public void resumedUploadOnlyReplacesUnchangedTarget() throws Exception {
+        File kept = new File(dir, "kept.bin");
+        File changed = new File(dir, "changed.bin");
+        writeFile(kept, 100);
+        writeFile(changed, 100);
+        TransferJournal journal = new TransferJournal(journalFile);
+        journal.recover();
+        File keptTemp = new File(dir, ".kept.part");
+        File changedTemp = new File(dir, ".changed.part");
+        try (FileOutputStream a = new FileOutputStream(keptTemp); FileOutputStream b = new FileOutputStream(changedTemp)) {
+            write(a.getChannel(), 100); // the prefix copied from the target
+            write(b.getChannel(), 100);
+            journal.begin(kept, keptTemp, a.getChannel(), 100, -1);
+            journal.begin(changed, changedTemp, b.getChannel(), 100, -1);
+            write(a.getChannel(), TransferJournal.CHECKPOINT_BYTES);
+            write(b.getChannel(), TransferJournal.CHECKPOINT_BYTES);
+            awaitCheckpoint(journal);
+        }
+        journal.close();
+        writeFile(changed, 50); // replaced by someone else meanwhile
+
+        List<File> recovered = new TransferJournal(journalFile).recover();
+        assertEquals(1, recovered.size());
+        assertEquals(kept, recovered.get(0));
+        assertEquals(100 + TransferJournal.CHECKPOINT_BYTES, kept.length());
+        assertEquals(50, changed.length());
+        assertFalse(changedTemp.exists());
+    }
+
+    @Test
+    public void tornRecordEndsReplay() throws Exception {
+        TransferJournal journal = new TransferJournal(journalFile);
+        journal.recover();
+        File target = new File(dir, "t.bin");
+        File temp = new File(dir, ".t.part");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            journal.begin(target, temp, out.getChannel(), 0, -1);
+            write(out.getChannel(), TransferJournal.CHECKPOINT_BYTES);
+            awaitCheckpoint(journal);
+        }
+        journal.close();
+        // Half a record, as a crash mid-append leaves it
+        try (RandomAccessFile raf = new RandomAccessFile(journalFile, "rw")) {
+            raf.seek(raf.length());
+            raf.writeInt(40);
+            raf.writeByte(2);
+        }
+        List<File> recovered = new TransferJournal(journalFile).recover();
+        assertEquals(1, recovered.size());
+        assertEquals(TransferJournal.CHECKPOINT_BYTES, target.length());
+    }
+
+    @Test
+    public void unknownJournalFormatIsIgnored() throws Exception {
+        writeFile(journalFile, 64);
+        assertTrue(new TransferJournal(journalFile).recover().isEmpty());
+        assertEquals(8, journalFile.length());
+    }
+
+    // Waits for the writer thread to record a checkpoint of every upload that grew enough.
+    private static void awaitCheckpoint(TransferJournal journal) throws InterruptedException {
+        Thread.sleep(TransferJournal.CHECKPOINT_INTERVAL_MS + 500);
+        journal.sync();
+    }
+
+    private static void write(FileChannel channel, long bytes) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        long left = bytes;
+        while (left > 0) {
+            buf.clear();
+            if (left < buf.capacity()) buf.limit((int) left);
+            left -= channel.write(buf);
+        }
+    }
+
+    private static void writeFile(File file, int bytes) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[bytes]);
+        }
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,60 @@
+package com.ebook.ftp;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class TransferLimiterTest {
+
+    @Test
+    public void slotsRunOutAndComeBack() throws Exception {
+        TransferLimiter limiter = new TransferLimiter(2);
+        assertTrue(limiter.acquire(0));
+        assertTrue(limiter.acquire(0));
+        assertFalse(limiter.acquire(50));
+        assertEquals(2, limiter.getActive());
+        limiter.release();
+        assertTrue(limiter.acquire(0));
+    }
+
+    /** Lowering the limit keeps running transfers; new ones wait until enough finished. */
+    @Test
+    public void loweredLimitOnlyHoldsBackNewTransfers() throws Exception {
+        TransferLimiter limiter = new TransferLimiter(3);
+        for (int i = 0; i < 3; i++) assertTrue(limiter.acquire(0));
+        limiter.setLimit(1);
+        assertEquals(3, limiter.getActive());
+        limiter.release();
+        limiter.release();
+        assertFalse(limiter.acquire(0));
+        limiter.release();
+        assertTrue(limiter.acquire(0));
+    }
+
+    @Test
+    public void raisedLimitWakesWaiters() throws Exception {
+        TransferLimiter limiter = new TransferLimiter(1);
+        assertTrue(limiter.acquire(0));
+        AtomicBoolean acquired = new AtomicBoolean();
+        Thread waiter = new Thread(() -> {
+            try {
+                acquired.set(limiter.acquire(5000));
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        });
+        waiter.start();
+        Thread.sleep(100);
+        limiter.setLimit(2);
+        waiter.join(2000);
+        assertTrue(acquired.get());
+        assertEquals(2, limiter.getActive());
+    }
+
+    @Test
+    public void limitIsAtLeastOne() {
+        assertEquals(1, new TransferLimiter(0).getLimit());
+    }
+}
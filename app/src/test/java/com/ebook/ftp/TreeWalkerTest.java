@@ -0,0 +1,176 @@
+package com.ebook.ftp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class TreeWalkerTest {
+
+    private TreeWalker walker;
+    private File dir;
+    private File tree;
+
+    /**
+     * tree/top.txt, tree/a/one.jpg, tree/a/b/two.JPG and tree/c/three.txt, 26 bytes in all,
+     * plus tree/a/link, a symbolic link to tree/c that walks must not follow.
+     */
+    @Before
+    public void setUp() throws IOException {
+        walker = new TreeWalker(2);
+        dir = Files.createTempDirectory("walk").toFile();
+        tree = new File(dir, "tree");
+        write("top.txt", 3);
+        write("a/one.jpg", 5);
+        write("a/b/two.JPG", 7);
+        write("c/three.txt", 11);
+        Files.createSymbolicLink(new File(tree, "a/link").toPath(), new File(tree, "c").toPath());
+    }
+
+    @After
+    public void tearDown() {
+        walker.shutdown();
+        deleteTree(dir);
+    }
+
+    @Test
+    public void duCountsFilesOnceAndReportsEachSubdirectory() throws Exception {
+        Map<String, TreeWalker.Usage> partials = new HashMap<>();
+        TreeWalker.Usage total = walker.du(tree, u -> partials.put(u.path, u));
+        assertEquals(26, total.bytes);
+        assertEquals(4, total.files);
+        assertEquals(2, partials.size());
+        assertEquals(12, partials.get(new File(tree, "a").getPath()).bytes);
+        assertEquals(2, partials.get(new File(tree, "a").getPath()).files);
+        assertEquals(11, partials.get(new File(tree, "c").getPath()).bytes);
+
+        // Cached now, but each subdirectory is still reported
+        partials.clear();
+        assertEquals(26, walker.du(tree, u -> partials.put(u.path, u)).bytes);
+        assertEquals(2, partials.size());
+    }
+
+    @Test
+    public void findMatchesNamesWithoutFollowingLinks() throws Exception {
+        assertEquals(List.of("a/b/two.JPG", "a/one.jpg"), find("*.jpg"));
+        assertEquals(List.of("c/three.txt", "top.txt"), find("*.txt"));
+        assertEquals(List.of("a/link"), find("link")); // the link itself is a match
+    }
+
+    @Test
+    public void deleteTreeRemovesLinkButNotItsTarget() throws Exception {
+        TreeWalker.Result result = walker.deleteTree(new File(tree, "a"));
+        assertEquals(5, result.done); // one.jpg, two.JPG, b, link and a itself
+        assertEquals(0, result.failed);
+        assertEquals(List.of("c/three.txt", "top.txt"), files(tree));
+    }
+
+    @Test
+    public void copyTreeCopiesFilesAndSkipsLinks() throws Exception {
+        ExecutorService syncs = Executors.newSingleThreadExecutor();
+        UploadCommitter committer = new UploadCommitter(UploadCommitter.DurabilityPolicy.NONE, syncs);
+        try {
+            File target = new File(dir, "copy");
+            TreeWalker.Result result = walker.copyTree(tree, target, committer);
+            assertEquals(4, result.done);
+            assertEquals(0, result.failed);
+            assertEquals(List.of("a/b/two.JPG", "a/one.jpg", "c/three.txt", "top.txt"), files(target));
+            assertEquals(7, new File(target, "a/b/two.JPG").length());
+        } finally {
+            committer.shutdown();
+            syncs.shutdownNow();
+        }
+    }
+
+    /** An unexpected error in a task must reach the session as an IOException it can answer. */
+    @Test
+    public void failedWalkThrowsIOException() throws Exception {
+        File source = new File(dir, "a.bin");
+        try (FileOutputStream out = new FileOutputStream(source)) {
+            out.write(1);
+        }
+        try {
+            walker.copyTree(source, new File(dir, "b.bin"), null);
+            fail("copy without a committer succeeded");
+        } catch (IOException expected) {
+            assertTrue(expected.getCause() instanceof NullPointerException);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void walkAfterShutdownThrowsIOException() throws Exception {
+        walker.shutdown();
+        walker.copyTree(new File(dir, "missing"), new File(dir, "b"), null);
+    }
+
+    @Test
+    public void globMatchesWholeNameIgnoringCase() {
+        assertTrue(TreeWalker.globToRegex("*.JPG").matcher("photo.jpg").matches());
+        assertTrue(TreeWalker.globToRegex("a?c").matcher("abc").matches());
+        assertFalse(TreeWalker.globToRegex("a?c").matcher("abbc").matches());
+        assertFalse(TreeWalker.globToRegex("a.c").matcher("abc").matches());
+    }
+
+    private void write(String path, int length) throws IOException {
+        File file = new File(tree, path);
+        assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[length]);
+        }
+    }
+
+    // Sorted paths of the matches, relative to tree
+    private List<String> find(String pattern) throws Exception {
+        List<String> found = new ArrayList<>();
+        int count = walker.find(tree, pattern, f -> found.add(relative(tree, f)));
+        assertEquals(found.size(), count);
+        Collections.sort(found);
+        return found;
+    }
+
+    // Sorted paths of the regular files below root, relative to it
+    private static List<String> files(File root) {
+        List<String> found = new ArrayList<>();
+        collectFiles(root, root, found);
+        Collections.sort(found);
+        return found;
+    }
+
+    private static void collectFiles(File root, File file, List<String> found) {
+        File[] children = file.listFiles();
+        if (children == null) {
+            found.add(relative(root, file));
+            return;
+        }
+        for (File child : children) {
+            if (!Files.isSymbolicLink(child.toPath())) collectFiles(root, child, found);
+        }
+    }
+
+    private static String relative(File root, File file) {
+        return root.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = Files.isSymbolicLink(file.toPath()) ? null : file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,96 @@
+package com.ebook.ftp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class UploadCommitterTest {
+
+    private File dir;
+    private ExecutorService syncs;
+    private UploadCommitter committer;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("commit").toFile();
+        syncs = Executors.newSingleThreadExecutor();
+        committer = new UploadCommitter(UploadCommitter.DurabilityPolicy.GROUP_COMMIT, syncs);
+    }
+
+    @After
+    public void tearDown() {
+        committer.shutdown();
+        syncs.shutdownNow();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void tempNamesAreHiddenAndUnique() {
+        File target = new File(dir, "a.txt");
+        File first = committer.tempFor(target);
+        File second = committer.tempFor(target);
+        assertTrue(first.getName().startsWith("."));
+        assertTrue(UploadCommitter.isTempName(first.getName()));
+        assertFalse(UploadCommitter.isTempName(target.getName()));
+        assertNotEquals(first, second);
+        assertEquals(dir, first.getParentFile());
+    }
+
+    /** ABOR while waiting for the batch: the upload is withdrawn and never renamed later. */
+    @Test
+    public void interruptedGroupCommitIsWithdrawn() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        // Holds the sync thread, so the batch waits for the fsync of the first upload
+        syncs.submit(() -> {
+            release.await();
+            return null;
+        });
+        File target = new File(dir, "aborted.bin");
+        File temp = committer.tempFor(target);
+        // Left open, as if the batch's fsync of it had already finished
+        FileOutputStream aborted = new FileOutputStream(temp);
+        aborted.write(new byte[100]);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread uploader = new Thread(() -> {
+            try {
+                committer.commit(aborted.getChannel(), temp, target);
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        uploader.start();
+        Thread.sleep(200);
+        uploader.interrupt();
+        uploader.join(2000);
+        assertFalse(uploader.isAlive());
+        assertTrue(failure.get() instanceof InterruptedIOException);
+
+        release.countDown();
+        // The next upload is committed after the withdrawn one was passed over
+        File next = new File(dir, "next.bin");
+        File nextTemp = committer.tempFor(next);
+        try (FileOutputStream out = new FileOutputStream(nextTemp)) {
+            out.write(1);
+            committer.commit(out.getChannel(), nextTemp, next);
+        }
+        aborted.close();
+        assertTrue(temp.exists());
+        assertFalse(target.exists());
+    }
+}
@@ -0,0 +1,82 @@
+package com.ebook.ftp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class UploadPipelineTest {
+
+    private File file;
+    private ExecutorService disk;
+    private ServerMetrics metrics;
+    private BufferArena arena;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("upload", ".bin");
+        disk = Executors.newCachedThreadPool();
+        metrics = new ServerMetrics();
+        arena = new BufferArena(BufferArena.DEFAULT_BUDGET, metrics);
+    }
+
+    @After
+    public void tearDown() {
+        disk.shutdownNow();
+        file.delete();
+    }
+
+    @Test
+    public void copiesEveryByteAndHashesIt() throws Exception {
+        byte[] data = new byte[1_000_003]; // many times the ring, not a multiple of a buffer
+        new Random(1).nextBytes(data);
+        UploadPipeline pipeline = new UploadPipeline(disk, arena, BufferArena.MEDIUM, 3);
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long written = pipeline.transfer(Channels.newChannel(new ByteArrayInputStream(data)), raf.getChannel(), digest);
+            assertEquals(data.length, written);
+        }
+        assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(data), digest.digest());
+        assertEquals(0, metrics.get("arena.leased_bytes"));
+    }
+
+    @Test
+    public void emptyUploadWritesNothing() throws IOException {
+        UploadPipeline pipeline = new UploadPipeline(disk, arena);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            assertEquals(0, pipeline.transfer(Channels.newChannel(new ByteArrayInputStream(new byte[0])), raf.getChannel()));
+        }
+        assertEquals(0, file.length());
+    }
+
+    /** A failed disk stage stops the receiver and gives the ring back to the arena. */
+    @Test
+    public void diskFailureEndsTransferAndReleasesRing() throws IOException {
+        byte[] data = new byte[4 * 1024 * 1024];
+        Arrays.fill(data, (byte) 7);
+        UploadPipeline pipeline = new UploadPipeline(disk, arena);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel readOnly = raf.getChannel();
+            pipeline.transfer(Channels.newChannel(new ByteArrayInputStream(data)), readOnly);
+            fail("Writing to a read-only channel succeeded");
+        } catch (IOException expected) {
+            // the disk stage's failure
+        }
+        assertEquals(0, metrics.get("arena.leased_bytes"));
+    }
+}
@@ -21,4 +21,6 @@ dependencyResolutionManagement {
 
 rootProject.name = "FTP"
 include(":app")
+include(":trace")
+include(":trace-replayer")
  
\ No newline at end of file
@@ -0,0 +1,17 @@
+// Desktop command line tool: ./gradlew :trace-replayer:run --args="<trace> <host> <port> <user> <password>"
+plugins {
+    application
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+application {
+    mainClass.set("com.ebook.ftp.TraceReplayer")
+}
+
+dependencies {
+    implementation(project(":trace"))
+}
@@ -0,0 +1,499 @@
+package com.ebook.ftp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Replays recorded {@link SessionTrace}s against a server and reports how latency and
+ * throughput compare, to catch performance regressions between builds.
+ *
+ * <p>A replay sends the recorded commands in order over a fresh connection, with the replayer's
+ * credentials in place of the recorded (and never stored) password. File contents are
+ * synthetic: uploads send pseudo-random bytes of the recorded size and every file the trace
+ * downloads is uploaded with its recorded size beforehand, outside the measurement. Commands
+ * are sent as fast as the server answers unless think time is preserved, so two replays of
+ * the same trace do the same work and differ only by how fast the server did it. TLS
+ * negotiation is not replayed.
+ *
+ * <p>The replay is itself recorded as a trace, so a replay on one build is the baseline for a
+ * replay on the next. A desktop tool, not part of the app; usually run against a device
+ * reached through {@code adb forward tcp:2121 tcp:2121}:
+ * <pre>
+ *   ./gradlew :trace-replayer:run --args="[--allow-remote] &lt;trace file or directory&gt; &lt;host&gt; &lt;port&gt; &lt;user&gt; &lt;password&gt; [baseline file or directory]"
+ * </pre>
+ * A replay uploads, overwrites and deletes files on the target, so only loopback targets are
+ * accepted unless {@code --allow-remote} is given.
+ */
+public class TraceReplayer {
+
+    /** Suffix of the trace a replay of {@code x.ftptrace} writes next to it. */
+    public static final String REPLAY_SUFFIX = ".replay" + SessionTrace.FILE_SUFFIX;
+
+    private static final Pattern PASV_REPLY = Pattern.compile("(\\d+),(\\d+),(\\d+),(\\d+),(\\d+),(\\d+)");
+    private static final int BLOCK = 64 * 1024;
+    private static final int TIMEOUT_MS = 60_000;
+    private static final String ALLOW_REMOTE = "--allow-remote";
+
+    private final String host;
+    private final int port;
+    private final String user;
+    private final String password;
+    private boolean preserveThinkTime = false;
+
+    /** Outcome of replaying one trace. */
+    public static final class Replay {
+        public final List<SessionTrace.Record> records;
+        /** Commands whose first reply code differed from the recording. */
+        public final int mismatches;
+        /** Recorded commands that were not replayed (TLS negotiation). */
+        public final int skipped;
+
+        Replay(List<SessionTrace.Record> records, int mismatches, int skipped) {
+            this.records = records;
+            this.mismatches = mismatches;
+            this.skipped = skipped;
+        }
+    }
+
+    public TraceReplayer(String host, int port, String user, String password) {
+        this.host = host;
+        this.port = port;
+        this.user = user;
+        this.password = password;
+    }
+
+    /** If true, waits between commands as long as the recorded client did. */
+    public void setPreserveThinkTime(boolean preserve) {
+        this.preserveThinkTime = preserve;
+    }
+
+    /** Uploads synthetic content for every file the trace downloads, so its RETRs succeed. */
+    public void prepare(List<SessionTrace.Record> recorded) throws IOException {
+        try (Connection c = connect()) {
+            c.login();
+            String cwd = "/";
+            for (int i = 0; i < recorded.size(); i++) {
+                SessionTrace.Record r = recorded.get(i);
+                if (r.type != SessionTrace.COMMAND) continue;
+                String verb = r.verb();
+                if (verb.equals("CWD") || verb.equals("XCWD")) {
+                    cwd = resolve(cwd, r.argument());
+                } else if (verb.equals("CDUP")) {
+                    cwd = resolve(cwd, "..");
+                } else if (verb.equals("RETR")) {
+                    SessionTrace.Record transfer = transferOf(recorded, i);
+                    if (transfer == null) continue; // the recorded RETR failed
+                    String path = resolve(cwd, r.argument());
+                    c.transfer("STOR " + path, path, transfer.bytes);
+                }
+            }
+            c.command("QUIT");
+        }
+    }
+
+    /**
+     * Replays one trace.
+     *
+     * @param output where to record the replay, or null to keep it in memory only.
+     */
+    public Replay replay(List<SessionTrace.Record> recorded, File output) throws IOException {
+        List<SessionTrace.Record> records = new ArrayList<>();
+        int mismatches = 0;
+        int skipped = 0;
+        long start = System.nanoTime();
+        long lastSent = start;
+        try (Connection c = connect()) {
+            String greeting = c.readReply();
+            records.add(reply(System.nanoTime() - start, greeting));
+            String cwd = "/";
+            long lastRecordedMicros = 0;
+            for (int i = 0; i < recorded.size(); i++) {
+                SessionTrace.Record r = recorded.get(i);
+                if (r.type != SessionTrace.COMMAND) continue;
+                String verb = r.verb();
+                if (verb.equals("AUTH") || verb.equals("PBSZ") || verb.equals("PROT") || verb.equals("CCC")) {
+                    skipped++;
+                    continue;
+                }
+                if (preserveThinkTime) {
+                    // The recorded gap between commands, less the time the replay already spent
+                    sleepMicros(r.timeMicros - lastRecordedMicros - (System.nanoTime() - lastSent) / 1000);
+                }
+                lastRecordedMicros = r.timeMicros;
+
+                String line = r.line;
+                if (verb.equals("USER")) line = "USER " + user;
+                if (verb.equals("PASS")) line = "PASS " + password;
+                if (verb.equals("CWD") || verb.equals("XCWD")) cwd = resolve(cwd, r.argument());
+                if (verb.equals("CDUP")) cwd = resolve(cwd, "..");
+
+                long sent = System.nanoTime();
+                lastSent = sent;
+                records.add(new SessionTrace.Record(SessionTrace.COMMAND, (sent - start) / 1000, line, 0, (byte) 0, 0, 0));
+
+                String first;
+                SessionTrace.Record recordedTransfer = transferOf(recorded, i);
+                boolean dataCommand = verb.equals("RETR") || verb.equals("STOR") || verb.equals("LIST") || verb.equals("NLST");
+                if (dataCommand && c.dataAddress != null) {
+                    String content = verb.equals("STOR") ? resolve(cwd, r.argument()) : null;
+                    long size = content != null && recordedTransfer != null ? recordedTransfer.bytes : 0;
+                    first = c.transfer(line, content, size);
+                    records.add(reply(c.firstReplyNanos - start, first));
+                    if (c.lastFinalReply != null) {
+                        records.add(reply(System.nanoTime() - start, c.lastFinalReply));
+                        byte direction = verb.equals("STOR") ? SessionTrace.DIRECTION_UPLOAD
+                                : verb.equals("RETR") ? SessionTrace.DIRECTION_DOWNLOAD : SessionTrace.DIRECTION_LISTING;
+                        records.add(new SessionTrace.Record(SessionTrace.TRANSFER, (System.nanoTime() - start) / 1000,
+                                null, 0, direction, c.lastTransferBytes, c.lastTransferNanos / 1000));
+                    }
+                } else {
+                    first = c.command(line);
+                    records.add(reply(System.nanoTime() - start, first));
+                    if (verb.equals("PASV")) c.parsePassive(first);
+                }
+
+                SessionTrace.Record recordedReply = replyOf(recorded, i);
+                if (recordedReply != null && recordedReply.code != code(first)) mismatches++;
+                if (verb.equals("QUIT")) break;
+            }
+        } finally {
+            if (output != null) SessionTrace.write(output, records);
+        }
+        return new Replay(records, mismatches, skipped);
+    }
+
+    /** Latency and throughput figures of one or more traces. */
+    public static final class Report {
+        // Microseconds from command to its first reply, by verb
+        final Map<String, List<Long>> latencies = new TreeMap<>();
+        final long[] transferBytes = new long[3];
+        final long[] transferMicros = new long[3];
+
+        public void add(List<SessionTrace.Record> records) {
+            for (int i = 0; i < records.size(); i++) {
+                SessionTrace.Record r = records.get(i);
+                if (r.type == SessionTrace.TRANSFER && r.direction >= 0 && r.direction < 3) {
+                    transferBytes[r.direction] += r.bytes;
+                    transferMicros[r.direction] += r.durationMicros;
+                }
+                if (r.type != SessionTrace.COMMAND) continue;
+                SessionTrace.Record reply = replyOf(records, i);
+                if (reply == null) continue;
+                List<Long> list = latencies.get(r.verb());
+                if (list == null) {
+                    list = new ArrayList<>();
+                    latencies.put(r.verb(), list);
+                }
+                list.add(reply.timeMicros - r.timeMicros);
+            }
+        }
+
+        double percentileMs(String verb, double p) {
+            List<Long> list = latencies.get(verb);
+            if (list == null || list.isEmpty()) return Double.NaN;
+            List<Long> sorted = new ArrayList<>(list);
+            Collections.sort(sorted);
+            int index = (int) Math.ceil(p * sorted.size()) - 1;
+            return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1))) / 1000.0;
+        }
+
+        double megabytesPerSecond(int direction) {
+            if (transferMicros[direction] == 0) return Double.NaN;
+            return transferBytes[direction] / (double) transferMicros[direction]; // bytes/us == MB/s
+        }
+    }
+
+    /** A table of the candidate's figures against the baseline's, with relative change. */
+    public static String compare(Report baseline, Report candidate) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%-6s %5s %10s %10s %8s %10s %10s %8s%n",
+                "verb", "n", "p50 base", "p50 new", "change", "p95 base", "p95 new", "change"));
+        for (String verb : candidate.latencies.keySet()) {
+            double b50 = baseline.percentileMs(verb, 0.5);
+            double c50 = candidate.percentileMs(verb, 0.5);
+            double b95 = baseline.percentileMs(verb, 0.95);
+            double c95 = candidate.percentileMs(verb, 0.95);
+            sb.append(String.format(Locale.US, "%-6s %5d %8.2fms %8.2fms %8s %8.2fms %8.2fms %8s%n",
+                    verb, candidate.latencies.get(verb).size(), b50, c50, change(b50, c50), b95, c95, change(b95, c95)));
+        }
+        String[] names = {"download", "upload", "listing"};
+        for (int d = 0; d < names.length; d++) {
+            if (candidate.transferBytes[d] == 0 && baseline.transferBytes[d] == 0) continue;
+            double b = baseline.megabytesPerSecond(d);
+            double c = candidate.megabytesPerSecond(d);
+            sb.append(String.format(Locale.US, "%-8s %12d bytes %8.2f MB/s -> %8.2f MB/s %8s%n",
+                    names[d], candidate.transferBytes[d], b, c, change(b, c)));
+        }
+        return sb.toString();
+    }
+
+    private static String change(double base, double current) {
+        if (Double.isNaN(base) || Double.isNaN(current) || base == 0) return "-";
+        return String.format(Locale.US, "%+.1f%%", (current - base) * 100 / base);
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean allowRemote = args.length > 0 && args[0].equals(ALLOW_REMOTE);
+        if (allowRemote) args = Arrays.copyOfRange(args, 1, args.length);
+        if (args.length < 5) {
+            System.err.println("usage: TraceReplayer [" + ALLOW_REMOTE + "] <trace file or directory> <host> <port> <user> <password> [baseline file or directory]");
+            System.exit(2);
+        }
+        if (!allowRemote && !InetAddress.getByName(args[1]).isLoopbackAddress()) {
+            System.err.println("Refusing to replay against " + args[1] + ": a replay writes and deletes files there."
+                    + " Use a loopback address (e.g. through adb forward) or pass " + ALLOW_REMOTE + ".");
+            System.exit(2);
+        }
+        TraceReplayer replayer = new TraceReplayer(args[1], Integer.parseInt(args[2]), args[3], args[4]);
+        Report recordedReport = new Report();
+        Report replayReport = new Report();
+        int mismatches = 0;
+        int skipped = 0;
+        for (File file : traceFiles(new File(args[0]))) {
+            List<SessionTrace.Record> recorded = SessionTrace.read(file);
+            recordedReport.add(recorded);
+            replayer.prepare(recorded);
+            File output = new File(file.getPath().substring(0, file.getPath().length() - SessionTrace.FILE_SUFFIX.length()) + REPLAY_SUFFIX);
+            Replay replay = replayer.replay(recorded, output);
+            replayReport.add(replay.records);
+            mismatches += replay.mismatches;
+            skipped += replay.skipped;
+            System.out.println("Replayed " + file.getName() + " -> " + output.getName());
+        }
+        Report baseline = recordedReport;
+        if (args.length > 5) {
+            baseline = new Report();
+            for (File file : replayFiles(new File(args[5]))) {
+                baseline.add(SessionTrace.read(file));
+            }
+            System.out.println("Baseline: replays in " + args[5]);
+        } else {
+            System.out.println("Baseline: the original recordings");
+        }
+        System.out.print(compare(baseline, replayReport));
+        System.out.println(mismatches + " reply code mismatches, " + skipped + " commands not replayed");
+    }
+
+    private static List<File> traceFiles(File path) {
+        List<File> files = new ArrayList<>();
+        for (File f : list(path)) {
+            if (f.getName().endsWith(SessionTrace.FILE_SUFFIX) && !f.getName().endsWith(REPLAY_SUFFIX)) files.add(f);
+        }
+        return files;
+    }
+
+    private static List<File> replayFiles(File path) {
+        List<File> files = new ArrayList<>();
+        for (File f : list(path)) {
+            if (f.getName().endsWith(REPLAY_SUFFIX)) files.add(f);
+        }
+        return files;
+    }
+
+    private static List<File> list(File path) {
+        if (!path.isDirectory()) return Collections.singletonList(path);
+        File[] children = path.listFiles();
+        if (children == null) return Collections.emptyList();
+        Arrays.sort(children);
+        return Arrays.asList(children);
+    }
+
+    // The TRANSFER record belonging to the command at index, if it moved data
+    private static SessionTrace.Record transferOf(List<SessionTrace.Record> records, int index) {
+        for (int i = index + 1; i < records.size() && records.get(i).type != SessionTrace.COMMAND; i++) {
+            if (records.get(i).type == SessionTrace.TRANSFER) return records.get(i);
+        }
+        return null;
+    }
+
+    // The first reply to the command at index
+    private static SessionTrace.Record replyOf(List<SessionTrace.Record> records, int index) {
+        for (int i = index + 1; i < records.size() && records.get(i).type != SessionTrace.COMMAND; i++) {
+            if (records.get(i).type == SessionTrace.REPLY) return records.get(i);
+        }
+        return null;
+    }
+
+    private static SessionTrace.Record reply(long elapsedNanos, String line) {
+        return new SessionTrace.Record(SessionTrace.REPLY, elapsedNanos / 1000, null, code(line), (byte) 0, 0, 0);
+    }
+
+    private static int code(String reply) {
+        try {
+            return Integer.parseInt(reply.substring(0, 3));
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    // Client-side view of the server's path resolution, for naming prepared files
+    static String resolve(String cwd, String path) {
+        List<String> parts = new ArrayList<>();
+        String full = path.startsWith("/") ? path : cwd + "/" + path;
+        for (String part : full.split("/")) {
+            if (part.isEmpty() || part.equals(".")) continue;
+            if (part.equals("..")) {
+                if (!parts.isEmpty()) parts.remove(parts.size() - 1);
+            } else {
+                parts.add(part);
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String part : parts) sb.append('/').append(part);
+        return sb.length() == 0 ? "/" : sb.toString();
+    }
+
+    private static void sleepMicros(long micros) {
+        if (micros <= 0) return;
+        try {
+            Thread.sleep(micros / 1000, (int) (micros % 1000) * 1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Connection connect() throws IOException {
+        return new Connection(host, port);
+    }
+
+    private final class Connection implements AutoCloseable {
+        private final Socket socket;
+        private final BufferedReader reader;
+        private final Writer writer;
+        InetSocketAddress dataAddress;
+        String lastFinalReply;
+        long firstReplyNanos;
+        long lastTransferBytes;
+        long lastTransferNanos;
+
+        Connection(String host, int port) throws IOException {
+            socket = new Socket();
+            socket.connect(new InetSocketAddress(host, port), TIMEOUT_MS);
+            socket.setSoTimeout(TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+        }
+
+        void login() throws IOException {
+            readReply();
+            command("USER " + user);
+            String reply = command("PASS " + password);
+            if (!reply.startsWith("230")) throw new IOException("Login failed: " + reply);
+        }
+
+        String command(String line) throws IOException {
+            writer.write(line + "\r\n");
+            writer.flush();
+            return readReply();
+        }
+
+        // The last line of a possibly multi-line reply
+        String readReply() throws IOException {
+            String line = reader.readLine();
+            if (line == null) throw new IOException("Server closed the control connection");
+            if (line.length() >= 4 && line.charAt(3) == '-') {
+                String end = line.substring(0, 3) + " ";
+                do {
+                    line = reader.readLine();
+                    if (line == null) throw new IOException("Server closed the control connection");
+                } while (!line.startsWith(end));
+            }
+            return line;
+        }
+
+        void parsePassive(String reply) {
+            Matcher m = PASV_REPLY.matcher(reply);
+            if (!reply.startsWith("227") || !m.find()) {
+                dataAddress = null;
+                return;
+            }
+            // The advertised address may not be reachable from here (e.g. the device's Wi-Fi
+            // address when replaying over adb forward); the control host always is.
+            int dataPort = Integer.parseInt(m.group(5)) * 256 + Integer.parseInt(m.group(6));
+            dataAddress = new InetSocketAddress(socket.getInetAddress(), dataPort);
+        }
+
+        /**
+         * Runs a data command over a new passive connection: sends {@code size} synthetic bytes
+         * named after {@code contentKey} if it is an upload, else drains the connection.
+         *
+         * @return the first reply; the final one is left in {@link #lastFinalReply} (null if the
+         * command was refused before any data moved).
+         */
+        String transfer(String line, String contentKey, long size) throws IOException {
+            if (dataAddress == null) parsePassive(command("PASV"));
+            if (dataAddress == null) throw new IOException("Passive mode refused");
+            lastFinalReply = null;
+            lastTransferBytes = 0;
+            long start;
+            String first;
+            // The data connection is closed before the final reply is read
+            try (Socket data = new Socket()) {
+                data.connect(dataAddress, TIMEOUT_MS);
+                data.setSoTimeout(TIMEOUT_MS);
+                dataAddress = null; // one transfer per PASV
+                // Timed like the server times it: up to the final reply, so upload data still
+                // sitting in socket buffers is not counted as delivered
+                start = System.nanoTime();
+                first = command(line);
+                firstReplyNanos = System.nanoTime();
+                if (!first.startsWith("1")) return first;
+                if (contentKey != null) {
+                    writeSynthetic(data.getOutputStream(), contentKey, size);
+                    data.shutdownOutput();
+                } else {
+                    lastTransferBytes = drain(data.getInputStream());
+                }
+                if (contentKey != null) lastTransferBytes = size;
+            }
+            lastFinalReply = readReply();
+            lastTransferNanos = System.nanoTime() - start;
+            return first;
+        }
+
+        private void writeSynthetic(OutputStream out, String key, long size) throws IOException {
+            byte[] block = new byte[BLOCK];
+            new Random(key.hashCode()).nextBytes(block);
+            for (long left = size; left > 0; ) {
+                int n = (int) Math.min(block.length, left);
+                out.write(block, 0, n);
+                left -= n;
+            }
+            out.flush();
+        }
+
+        private long drain(InputStream in) throws IOException {
+            byte[] buf = new byte[BLOCK];
+            long total = 0;
+            int n;
+            while ((n = in.read(buf)) != -1) total += n;
+            return total;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,13 @@
+// Session trace format, shared by the app (recording) and :trace-replayer (replay).
+plugins {
+    `java-library`
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+dependencies {
+    testImplementation(libs.junit)
+}
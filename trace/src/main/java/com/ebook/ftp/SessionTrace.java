@@ -0,0 +1,231 @@
+package com.ebook.ftp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary trace of one control session: every command, every final reply code and
+ * every data transfer, each stamped with the time since the previous record. Traces recorded
+ * by the server are replayed by {@code TraceReplayer} (module :trace-replayer), which records
+ * its replay in the same format so two runs can be compared record for record.
+ *
+ * <p>Layout: a header ({@code int} magic, {@code short} version, {@code long} start time in
+ * epoch milliseconds) followed by records of a type byte, a varint time delta in microseconds
+ * and a type specific payload. Passwords are never recorded.
+ */
+public class SessionTrace implements Closeable {
+
+    static final int MAGIC = 0x46545452; // "FTTR"
+    static final int VERSION = 1;
+
+    public static final String FILE_SUFFIX = ".ftptrace";
+
+    public static final byte COMMAND = 1;
+    public static final byte REPLY = 2;
+    public static final byte TRANSFER = 3;
+
+    public static final byte DIRECTION_DOWNLOAD = 0;
+    public static final byte DIRECTION_UPLOAD = 1;
+    public static final byte DIRECTION_LISTING = 2;
+
+    /** One decoded trace record. Unused fields are 0 or null. */
+    public static final class Record {
+        public final byte type;
+        /** Microseconds since the start of the session. */
+        public final long timeMicros;
+        public final String line;
+        public final int code;
+        public final byte direction;
+        public final long bytes;
+        public final long durationMicros;
+
+        public Record(byte type, long timeMicros, String line, int code, byte direction, long bytes, long durationMicros) {
+            this.type = type;
+            this.timeMicros = timeMicros;
+            this.line = line;
+            this.code = code;
+            this.direction = direction;
+            this.bytes = bytes;
+            this.durationMicros = durationMicros;
+        }
+
+        /** The upper-cased command verb of a COMMAND record. */
+        public String verb() {
+            int space = line.indexOf(' ');
+            return (space < 0 ? line : line.substring(0, space)).toUpperCase(java.util.Locale.US);
+        }
+
+        /** The argument of a COMMAND record, or "" if it has none. */
+        public String argument() {
+            int space = line.indexOf(' ');
+            return space < 0 ? "" : line.substring(space + 1).trim();
+        }
+    }
+
+    private final DataOutputStream out;
+    private final long startNanos = System.nanoTime();
+    private long lastNanos = startNanos;
+    private boolean failed = false;
+
+    public SessionTrace(File file) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 16 * 1024));
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeLong(System.currentTimeMillis());
+    }
+
+    public synchronized void command(String line) {
+        if (line.regionMatches(true, 0, "PASS", 0, 4)) line = "PASS ****";
+        if (!begin(COMMAND)) return;
+        try {
+            out.writeUTF(line.length() > 1024 ? line.substring(0, 1024) : line);
+        } catch (IOException e) {
+            failed = true;
+        }
+    }
+
+    /** Records a reply; intermediate lines of multi-line replies are skipped. */
+    public synchronized void reply(String response) {
+        if (response.length() < 4 || response.charAt(3) == '-') return;
+        int code;
+        try {
+            code = Integer.parseInt(response.substring(0, 3));
+        } catch (NumberFormatException e) {
+            return; // continuation line of a multi-line reply
+        }
+        if (!begin(REPLY)) return;
+        try {
+            out.writeShort(code);
+        } catch (IOException e) {
+            failed = true;
+        }
+    }
+
+    public synchronized void transfer(byte direction, long bytes, long durationNanos) {
+        if (!begin(TRANSFER)) return;
+        try {
+            out.writeByte(direction);
+            writeVarLong(out, bytes);
+            writeVarLong(out, durationNanos / 1000);
+        } catch (IOException e) {
+            failed = true;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    private boolean begin(byte type) {
+        if (failed) return false;
+        long now = System.nanoTime();
+        try {
+            out.writeByte(type);
+            writeVarLong(out, (now - lastNanos) / 1000);
+        } catch (IOException e) {
+            failed = true; // a full disk must never break the session itself
+            return false;
+        }
+        lastNanos = now;
+        return true;
+    }
+
+    /** Writes already timed records, e.g. those a replay measured, as a trace file. */
+    public static void write(File file, List<Record> records) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            long last = 0;
+            for (Record r : records) {
+                out.writeByte(r.type);
+                writeVarLong(out, Math.max(0, r.timeMicros - last));
+                last = Math.max(last, r.timeMicros);
+                switch (r.type) {
+                    case COMMAND:
+                        out.writeUTF(r.line);
+                        break;
+                    case REPLY:
+                        out.writeShort(r.code);
+                        break;
+                    case TRANSFER:
+                        out.writeByte(r.direction);
+                        writeVarLong(out, r.bytes);
+                        writeVarLong(out, r.durationMicros);
+                        break;
+                }
+            }
+        }
+    }
+
+    /** Decodes a whole trace file. */
+    public static List<Record> read(File file) throws IOException {
+        List<Record> records = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+                throw new IOException("Not a session trace: " + file);
+            }
+            in.readLong(); // start time, informational
+            long time = 0;
+            while (true) {
+                int type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                try {
+                    time += readVarLong(in);
+                    switch (type) {
+                        case COMMAND:
+                            records.add(new Record(COMMAND, time, in.readUTF(), 0, (byte) 0, 0, 0));
+                            break;
+                        case REPLY:
+                            records.add(new Record(REPLY, time, null, in.readShort(), (byte) 0, 0, 0));
+                            break;
+                        case TRANSFER:
+                            byte direction = in.readByte();
+                            long bytes = readVarLong(in);
+                            long duration = readVarLong(in);
+                            records.add(new Record(TRANSFER, time, null, 0, direction, bytes, duration));
+                            break;
+                        default:
+                            throw new IOException("Corrupt trace record type " + type + " in " + file);
+                    }
+                } catch (EOFException e) {
+                    break; // session ended while the last record was being written
+                }
+            }
+        }
+        return records;
+    }
+
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -0,0 +1,113 @@
+package com.ebook.ftp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SessionTraceTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("session", SessionTrace.FILE_SUFFIX);
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void varintsRoundTrip() throws IOException {
+        long[] values = {0, 1, 127, 128, 300, 16_383, 16_384, Integer.MAX_VALUE, 1L << 56, Long.MAX_VALUE, -1};
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            for (long v : values) SessionTrace.writeVarLong(out, v);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for (long v : values) {
+            assertEquals(v, SessionTrace.readVarLong(in));
+        }
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void varintsAreShortForSmallValues() throws IOException {
+        assertEquals(1, encoded(127).length);
+        assertEquals(2, encoded(128).length);
+        assertArrayEquals(new byte[]{(byte) 0xAC, 0x02}, encoded(300));
+        assertEquals(10, encoded(-1).length);
+    }
+
+    @Test(expected = IOException.class)
+    public void overlongVarintIsRejected() throws IOException {
+        byte[] bytes = new byte[11];
+        Arrays.fill(bytes, (byte) 0x80);
+        SessionTrace.readVarLong(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    @Test
+    public void recordsRoundTripWithoutPasswords() throws IOException {
+        try (SessionTrace trace = new SessionTrace(file)) {
+            trace.command("USER admin");
+            trace.reply("331 Password required");
+            trace.command("PASS secret");
+            trace.reply("230-Welcome");
+            trace.reply(" continued");
+            trace.reply("230 Logged in");
+            trace.command("RETR a.bin");
+            trace.transfer(SessionTrace.DIRECTION_DOWNLOAD, 1_000_000, 2_500_000);
+        }
+        List<SessionTrace.Record> records = SessionTrace.read(file);
+        assertEquals(6, records.size());
+        assertEquals("USER", records.get(0).verb());
+        assertEquals("admin", records.get(0).argument());
+        assertEquals(331, records.get(1).code);
+        assertEquals("PASS ****", records.get(2).line);
+        assertEquals(230, records.get(3).code); // multi-line reply recorded once
+        assertEquals("RETR", records.get(4).verb());
+        SessionTrace.Record transfer = records.get(5);
+        assertEquals(SessionTrace.TRANSFER, transfer.type);
+        assertEquals(1_000_000, transfer.bytes);
+        assertEquals(2_500, transfer.durationMicros);
+        for (int i = 1; i < records.size(); i++) {
+            assertTrue(records.get(i).timeMicros >= records.get(i - 1).timeMicros);
+        }
+    }
+
+    /** A session cut off mid-record still yields every complete record before it. */
+    @Test
+    public void tornLastRecordIsDropped() throws IOException {
+        try (SessionTrace trace = new SessionTrace(file)) {
+            trace.command("LIST");
+            trace.command("NOOP");
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 2);
+        }
+        List<SessionTrace.Record> records = SessionTrace.read(file);
+        assertEquals(1, records.size());
+        assertEquals("LIST", records.get(0).line);
+    }
+
+    private static byte[] encoded(long value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            SessionTrace.writeVarLong(out, value);
+        }
+        return bytes.toByteArray();
+    }
+}